@@ -0,0 +1,52 @@
+package com.koalap.geofirestore.benchmark;
+
+import com.koalap.geofirestore.GeoLocation;
+import com.koalap.geofirestore.GeoQueryEngine;
+import com.koalap.geofirestore.store.MemoryGeoStore;
+
+/**
+ * A sink that only counts the transitions, so the benchmarks measure the query engine and not the listeners.
+ */
+final class CountingSink implements GeoQueryEngine.Sink<MemoryGeoStore.Document> {
+    int entered;
+    int moved;
+    int changed;
+    int exited;
+    int updates;
+    int ready;
+
+    @Override
+    public void onDocumentEntered(MemoryGeoStore.Document document, GeoLocation location) {
+        this.entered++;
+    }
+
+    @Override
+    public void onDocumentMoved(MemoryGeoStore.Document document, GeoLocation location) {
+        this.moved++;
+    }
+
+    @Override
+    public void onDocumentChanged(MemoryGeoStore.Document document, GeoLocation location) {
+        this.changed++;
+    }
+
+    @Override
+    public void onDocumentExited(MemoryGeoStore.Document document, GeoLocation location) {
+        this.exited++;
+    }
+
+    @Override
+    public void onUpdateComplete() {
+        this.updates++;
+    }
+
+    @Override
+    public void onReady() {
+        this.ready++;
+    }
+
+    @Override
+    public void onError(Exception exception) {
+        throw new IllegalStateException(exception);
+    }
+}
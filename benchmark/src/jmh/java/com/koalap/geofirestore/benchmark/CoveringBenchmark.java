@@ -0,0 +1,130 @@
+package com.koalap.geofirestore.benchmark;
+
+import com.koalap.geofirestore.GeoLocation;
+import com.koalap.geofirestore.core.CoveringCache;
+import com.koalap.geofirestore.core.GeoHash;
+import com.koalap.geofirestore.core.GeoHashQuery;
+import com.koalap.geofirestore.util.Base32Utils;
+import com.koalap.geofirestore.util.Constants;
+import com.koalap.geofirestore.util.GeoUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the geohash coverings of a circle across radii and latitudes, for the pairwise join loop the coverings
+ * were computed with before, the sort and merge pass of coveringAtLocation and a hit of the covering cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CoveringBenchmark {
+
+    private static final int LOCATIONS = 256;
+
+    // The radius in meters
+    @Param({"10", "100", "1000", "10000", "100000", "1000000"})
+    public double radius;
+
+    @Param({"0", "45", "70", "85"})
+    public double latitude;
+
+    private final GeoLocation[] locations = new GeoLocation[LOCATIONS];
+    private final CoveringCache coveringCache = new CoveringCache();
+    private int next;
+
+    @Setup
+    public void setUp() {
+        // Locations around the latitude, so the results do not depend on a single cell boundary
+        Random random = new Random(42);
+        for (int i = 0; i < LOCATIONS; i++) {
+            double latitude = Math.max(-90, Math.min(90, this.latitude + random.nextDouble() - 0.5));
+            this.locations[i] = new GeoLocation(latitude, random.nextDouble() * 360 - 180);
+        }
+        this.coveringCache.coveringAtLocation(this.locations[0], this.radius);
+    }
+
+    private GeoLocation nextLocation() {
+        GeoLocation location = this.locations[this.next];
+        this.next = (this.next + 1) % LOCATIONS;
+        return location;
+    }
+
+    @Benchmark
+    public Set<GeoHashQuery> legacyQueriesAtLocation() {
+        return legacyQueriesAtLocation(this.nextLocation(), this.radius);
+    }
+
+    @Benchmark
+    public List<GeoHashQuery> coveringAtLocation() {
+        return GeoHashQuery.coveringAtLocation(this.nextLocation(), this.radius);
+    }
+
+    @Benchmark
+    public List<GeoHashQuery> coveringCacheHit() {
+        return this.coveringCache.coveringAtLocation(this.locations[0], this.radius);
+    }
+
+    // The implementation of GeoHashQuery.queriesAtLocation before the covering was computed with long hashes
+    private static Set<GeoHashQuery> legacyQueriesAtLocation(GeoLocation location, double radius) {
+        int queryBits = Math.max(1, GeoHashQuery.Utils.bitsForBoundingBox(location, radius));
+        int geoHashPrecision = (int) Math.ceil((float)queryBits /Base32Utils.BITS_PER_BASE32_CHAR);
+
+        double latitude = location.latitude;
+        double longitude = location.longitude;
+        double latitudeDegrees = radius/Constants.METERS_PER_DEGREE_LATITUDE;
+        double latitudeNorth = Math.min(90, latitude + latitudeDegrees);
+        double latitudeSouth = Math.max(-90, latitude - latitudeDegrees);
+        double longitudeDeltaNorth = GeoUtils.distanceToLongitudeDegrees(radius, latitudeNorth);
+        double longitudeDeltaSouth = GeoUtils.distanceToLongitudeDegrees(radius, latitudeSouth);
+        double longitudeDelta = Math.max(longitudeDeltaNorth, longitudeDeltaSouth);
+
+        Set<GeoHashQuery> queries = new HashSet<>();
+        double[] latitudes = { latitude, latitudeNorth, latitudeSouth };
+        double[] longitudes = { longitude, GeoUtils.wrapLongitude(longitude - longitudeDelta),
+                GeoUtils.wrapLongitude(longitude + longitudeDelta) };
+        for (double sampleLatitude : latitudes) {
+            for (double sampleLongitude : longitudes) {
+                GeoHash geoHash = new GeoHash(sampleLatitude, sampleLongitude, geoHashPrecision);
+                queries.add(GeoHashQuery.queryForGeoHash(geoHash, queryBits));
+            }
+        }
+
+        boolean didJoin;
+        do {
+            GeoHashQuery query1 = null;
+            GeoHashQuery query2 = null;
+            for (GeoHashQuery query: queries) {
+                for (GeoHashQuery other: queries) {
+                    if (query != other && query.canJoinWith(other)) {
+                        query1 = query;
+                        query2 = other;
+                        break;
+                    }
+                }
+            }
+            if (query1 != null && query2 != null) {
+                queries.remove(query1);
+                queries.remove(query2);
+                queries.add(query1.joinWith(query2));
+                didJoin = true;
+            } else {
+                didJoin = false;
+            }
+        } while (didJoin);
+
+        return queries;
+    }
+}
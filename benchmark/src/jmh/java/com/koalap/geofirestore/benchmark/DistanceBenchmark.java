@@ -0,0 +1,90 @@
+package com.koalap.geofirestore.benchmark;
+
+import com.koalap.geofirestore.DistanceFunction;
+import com.koalap.geofirestore.DistanceFunctions;
+import com.koalap.geofirestore.GeoLocation;
+import com.koalap.geofirestore.core.CircleBounds;
+import com.koalap.geofirestore.util.GeoUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the per-location decision of a query: GeoUtils.distance, the distance functions with precomputed
+ * center terms and the bounding boxes of the circle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DistanceBenchmark {
+
+    private static final int LOCATIONS = 1024;
+    private static final double RADIUS = 10000;
+
+    private final GeoLocation center = new GeoLocation(52.52, 13.405);
+    private final double[] latitudes = new double[LOCATIONS];
+    private final double[] longitudes = new double[LOCATIONS];
+    private DistanceFunction.CenterDistance haversine;
+    private DistanceFunction.CenterDistance equirectangular;
+    private DistanceFunction.CenterDistance ellipsoidal;
+    private CircleBounds circleBounds;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        // Locations in a square around the circle of the radius
+        Random random = new Random(42);
+        for (int i = 0; i < LOCATIONS; i++) {
+            this.latitudes[i] = this.center.latitude + (random.nextDouble() - 0.5) * 0.2;
+            this.longitudes[i] = this.center.longitude + (random.nextDouble() - 0.5) * 0.33;
+        }
+        this.haversine = DistanceFunctions.haversine().forCenter(this.center);
+        this.equirectangular = DistanceFunctions.equirectangular().forCenter(this.center);
+        this.ellipsoidal = DistanceFunctions.ellipsoidal().forCenter(this.center);
+        this.circleBounds = new CircleBounds(this.center, RADIUS, 0);
+    }
+
+    private int nextIndex() {
+        int index = this.next;
+        this.next = (index + 1) & (LOCATIONS - 1);
+        return index;
+    }
+
+    @Benchmark
+    public double geoUtilsDistance() {
+        int i = this.nextIndex();
+        return GeoUtils.distance(this.latitudes[i], this.longitudes[i], this.center.latitude, this.center.longitude);
+    }
+
+    @Benchmark
+    public double haversine() {
+        int i = this.nextIndex();
+        return this.haversine.distanceTo(this.latitudes[i], this.longitudes[i]);
+    }
+
+    @Benchmark
+    public double equirectangular() {
+        int i = this.nextIndex();
+        return this.equirectangular.distanceTo(this.latitudes[i], this.longitudes[i]);
+    }
+
+    @Benchmark
+    public double ellipsoidal() {
+        int i = this.nextIndex();
+        return this.ellipsoidal.distanceTo(this.latitudes[i], this.longitudes[i]);
+    }
+
+    @Benchmark
+    public int circleBounds() {
+        int i = this.nextIndex();
+        return this.circleBounds.classify(this.latitudes[i], this.longitudes[i]);
+    }
+}
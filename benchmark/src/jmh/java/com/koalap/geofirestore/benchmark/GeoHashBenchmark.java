@@ -0,0 +1,71 @@
+package com.koalap.geofirestore.benchmark;
+
+import com.koalap.geofirestore.core.GeoHash;
+import com.koalap.geofirestore.core.LongGeoHash;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode throughput of the string and the long geohashes, at the precision of the stored "g" field.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GeoHashBenchmark {
+
+    private static final int LOCATIONS = 1024;
+
+    private final double[] latitudes = new double[LOCATIONS];
+    private final double[] longitudes = new double[LOCATIONS];
+    private final String[] hashes = new String[LOCATIONS];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < LOCATIONS; i++) {
+            this.latitudes[i] = random.nextDouble() * 180 - 90;
+            this.longitudes[i] = random.nextDouble() * 360 - 180;
+            this.hashes[i] = new GeoHash(this.latitudes[i], this.longitudes[i]).getGeoHashString();
+        }
+    }
+
+    private int nextIndex() {
+        int index = this.next;
+        this.next = (index + 1) & (LOCATIONS - 1);
+        return index;
+    }
+
+    @Benchmark
+    public String encodeString() {
+        int i = this.nextIndex();
+        return new GeoHash(this.latitudes[i], this.longitudes[i]).getGeoHashString();
+    }
+
+    @Benchmark
+    public long encodeLong() {
+        int i = this.nextIndex();
+        return LongGeoHash.encode(this.latitudes[i], this.longitudes[i]);
+    }
+
+    @Benchmark
+    public String encodeLongToString() {
+        int i = this.nextIndex();
+        long hash = LongGeoHash.encode(this.latitudes[i], this.longitudes[i]);
+        return LongGeoHash.toBase32String(hash, LongGeoHash.DEFAULT_PRECISION);
+    }
+
+    @Benchmark
+    public long decodeLong() {
+        return LongGeoHash.fromBase32String(this.hashes[this.nextIndex()]);
+    }
+}
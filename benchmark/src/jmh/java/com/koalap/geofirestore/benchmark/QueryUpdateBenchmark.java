@@ -0,0 +1,146 @@
+package com.koalap.geofirestore.benchmark;
+
+import com.koalap.geofirestore.GeoIndex;
+import com.koalap.geofirestore.GeoLocation;
+import com.koalap.geofirestore.GeoQueryEngine;
+import com.koalap.geofirestore.store.GeoStore;
+import com.koalap.geofirestore.store.MemoryGeoStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot apply throughput of a query tracking 1k to 100k entities of an in-memory store.
+ *
+ * The entities are spread over a square around the circle of the query, so most of them are tracked and some enter
+ * and exit the circle when they move. applySnapshot commits a batch of moving entities, which the store delivers as
+ * snapshot diffs to the ranges of the query; moveCenter moves the center back and forth; initialLoad measures
+ * starting a query, which applies the initial snapshots of all ranges.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueryUpdateBenchmark {
+
+    private static final GeoLocation CENTER = new GeoLocation(52.52, 13.405);
+    // The radius of the query in kilometers, and the half sizes of the square of the entities in degrees
+    private static final double RADIUS = 5;
+    private static final double LATITUDE_SPREAD = 0.05;
+    private static final double LONGITUDE_SPREAD = 0.08;
+    // The distance the entities and the center move, in degrees
+    private static final double STEP = 0.0005;
+    private static final double CENTER_STEP = 0.002;
+    private static final int MOVES_PER_SNAPSHOT = 100;
+
+    @State(Scope.Thread)
+    public static class Entities {
+        @Param({"1000", "10000", "100000"})
+        public int entities;
+
+        MemoryGeoStore store;
+        GeoIndex<MemoryGeoStore.Document> index;
+        double[] latitudes;
+        double[] longitudes;
+        final Random random = new Random(42);
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            this.store = new MemoryGeoStore();
+            this.index = new GeoIndex<>(this.store);
+            this.latitudes = new double[this.entities];
+            this.longitudes = new double[this.entities];
+            GeoStore.Batch batch = this.store.newBatch();
+            for (int i = 0; i < this.entities; i++) {
+                this.latitudes[i] = CENTER.latitude + (this.random.nextDouble() * 2 - 1) * LATITUDE_SPREAD;
+                this.longitudes[i] = CENTER.longitude + (this.random.nextDouble() * 2 - 1) * LONGITUDE_SPREAD;
+                batch.setLocation(key(i), new GeoLocation(this.latitudes[i], this.longitudes[i]));
+                if ((i + 1) % this.store.getMaxBatchSize() == 0) {
+                    batch.commit(null);
+                    batch = this.store.newBatch();
+                }
+            }
+            batch.commit(null);
+        }
+
+        static String key(int i) {
+            return "entity-" + i;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class RunningQuery {
+        GeoQueryEngine<MemoryGeoStore.Document> engine;
+        final CountingSink sink = new CountingSink();
+        boolean centerMoved;
+
+        @Setup(Level.Trial)
+        public void setUp(Entities entities) {
+            this.engine = entities.index.queryAtLocation(CENTER, RADIUS, this.sink);
+            this.engine.start();
+            if (!this.engine.isReady()) {
+                throw new IllegalStateException("The in-memory query must be ready after starting");
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            this.engine.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class StoppedQuery {
+        GeoQueryEngine<MemoryGeoStore.Document> engine;
+        final CountingSink sink = new CountingSink();
+
+        @Setup(Level.Invocation)
+        public void setUp(Entities entities) {
+            this.engine = entities.index.queryAtLocation(CENTER, RADIUS, this.sink);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            this.engine.stop();
+        }
+    }
+
+    @Benchmark
+    public int applySnapshot(Entities entities, RunningQuery query) {
+        GeoStore.Batch batch = entities.store.newBatch();
+        Random random = entities.random;
+        for (int i = 0; i < MOVES_PER_SNAPSHOT; i++) {
+            // Entities move around their initial location, so the distribution stays the same
+            int entity = random.nextInt(entities.entities);
+            double latitude = entities.latitudes[entity] + (random.nextDouble() * 2 - 1) * STEP;
+            double longitude = entities.longitudes[entity] + (random.nextDouble() * 2 - 1) * STEP;
+            batch.setLocation(Entities.key(entity), new GeoLocation(latitude, longitude));
+        }
+        batch.commit(null);
+        return query.sink.updates;
+    }
+
+    @Benchmark
+    public int moveCenter(RunningQuery query) {
+        query.centerMoved = !query.centerMoved;
+        double offset = query.centerMoved ? CENTER_STEP : 0;
+        query.engine.setCenter(new GeoLocation(CENTER.latitude + offset, CENTER.longitude + offset));
+        return query.sink.updates;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public int initialLoad(StoppedQuery query) {
+        query.engine.start();
+        return query.sink.entered;
+    }
+}
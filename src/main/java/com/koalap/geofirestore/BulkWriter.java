@@ -0,0 +1,103 @@
+package com.koalap.geofirestore;
+
+import com.koalap.geofirestore.store.GeoStore;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the documents of many keys with chunked store batches, keeping a bounded number of batches in flight.
+ *
+ * Batches are built only when they are committed, so a large import never holds more than the batches in flight in
+ * memory. A batch is atomic, so all keys of a failed batch are reported with the exception of that batch. The
+ * results are reported in the order of the keys, whatever order the batches complete in.
+ */
+final class BulkWriter {
+
+    /**
+     * Adds the write of a single key to a batch.
+     */
+    interface Operation {
+        void write(GeoStore.Batch batch, String key);
+    }
+
+    private final GeoStore<?> store;
+    private final List<String> keys;
+    private final Operation operation;
+    private final int maxBatchesInFlight;
+    private final GeoFire.BulkCompletionListener completionListener;
+    // The exception of every key by its index, guarded by this writer
+    private final Exception[] exceptions;
+    private int nextIndex;
+    private int batchesInFlight;
+    private int completedCount;
+
+    BulkWriter(GeoStore<?> store, List<String> keys, Operation operation,
+               int maxBatchesInFlight, GeoFire.BulkCompletionListener completionListener) {
+        this.store = store;
+        this.keys = keys;
+        this.operation = operation;
+        this.maxBatchesInFlight = maxBatchesInFlight;
+        this.completionListener = completionListener;
+        this.exceptions = new Exception[keys.size()];
+    }
+
+    /**
+     * Commits the first batches, the following batches are committed as soon as earlier ones complete.
+     */
+    void start() {
+        if (this.keys.isEmpty()) {
+            if (this.completionListener != null) {
+                this.completionListener.onComplete(new LinkedHashMap<String, Exception>());
+            }
+            return;
+        }
+        this.commitBatches();
+    }
+
+    private void commitBatches() {
+        while (true) {
+            final int start;
+            final int end;
+            synchronized (this) {
+                if (this.batchesInFlight >= this.maxBatchesInFlight || this.nextIndex == this.keys.size()) {
+                    return;
+                }
+                start = this.nextIndex;
+                end = Math.min(this.keys.size(), start + this.store.getMaxBatchSize());
+                this.nextIndex = end;
+                this.batchesInFlight++;
+            }
+            GeoStore.Batch batch = this.store.newBatch();
+            for (int i = start; i < end; i++) {
+                this.operation.write(batch, this.keys.get(i));
+            }
+            batch.commit((result, exception) -> this.batchCompleted(start, end, exception));
+        }
+    }
+
+    private void batchCompleted(int start, int end, Exception exception) {
+        Map<String, Exception> results = null;
+        synchronized (this) {
+            for (int i = start; i < end; i++) {
+                this.exceptions[i] = exception;
+            }
+            this.batchesInFlight--;
+            this.completedCount += end - start;
+            if (this.completedCount == this.keys.size()) {
+                results = new LinkedHashMap<>(this.keys.size() * 4 / 3 + 1);
+                for (int i = 0; i < this.keys.size(); i++) {
+                    results.put(this.keys.get(i), this.exceptions[i]);
+                }
+            }
+        }
+        if (results != null) {
+            if (this.completionListener != null) {
+                this.completionListener.onComplete(results);
+            }
+        } else {
+            this.commitBatches();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.koalap.geofirestore;
+
+/**
+ * Runs every event synchronously on the thread raising it.
+ */
+final class DirectEventRaiser implements EventRaiser {
+
+    static final DirectEventRaiser INSTANCE = new DirectEventRaiser();
+
+    private DirectEventRaiser() {
+    }
+
+    @Override
+    public void raiseEvent(Runnable r) {
+        r.run();
+    }
+}
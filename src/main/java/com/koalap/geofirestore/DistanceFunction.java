@@ -0,0 +1,56 @@
+package com.koalap.geofirestore;
+
+/**
+ * Measures the distance between locations for the circle of a GeoQuery. See {@link DistanceFunctions} for the
+ * built-in implementations.
+ */
+public interface DistanceFunction {
+
+    /**
+     * Measures the distances to a fixed center. All terms that only depend on the center are computed once when it
+     * is created.
+     */
+    interface CenterDistance {
+        /**
+         * @param latitude The latitude of the location
+         * @param longitude The longitude of the location
+         * @return The distance of the location to the center, in meters
+         */
+        double distanceTo(double latitude, double longitude);
+    }
+
+    /**
+     * @param center The center to measure distances from
+     * @return The distance function for the center
+     */
+    CenterDistance forCenter(GeoLocation center);
+
+    /**
+     * Returns whether the function satisfies the triangle inequality up to rounding errors. Queries only re-evaluate
+     * the locations near the border of their circle when the center moves by a metric function, otherwise they
+     * re-evaluate all locations.
+     *
+     * @return True if the function is a metric
+     */
+    boolean isMetric();
+
+    /**
+     * Returns an upper bound of the relative deviation of this function from the haversine distance. Queries widen
+     * their bounding boxes by it, which decide most locations without computing their distance. The default has no
+     * bound, so all locations are decided by their distance.
+     *
+     * @return The maximal relative deviation, or infinity if there is no bound
+     */
+    default double getMaxRelativeDeviation() {
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @param location1 The first location
+     * @param location2 The second location
+     * @return The distance between the two locations, in meters
+     */
+    default double distance(GeoLocation location1, GeoLocation location2) {
+        return this.forCenter(location2).distanceTo(location1.latitude, location1.longitude);
+    }
+}
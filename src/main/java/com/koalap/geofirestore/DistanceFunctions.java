@@ -0,0 +1,198 @@
+package com.koalap.geofirestore;
+
+import com.koalap.geofirestore.util.Constants;
+
+/**
+ * Factory methods for the built-in DistanceFunction implementations.
+ */
+public final class DistanceFunctions {
+
+    // Earth's mean radius in meters, as used by GeoUtils.distance
+    private static final double MEAN_RADIUS = (Constants.EARTH_EQ_RADIUS + Constants.EARTH_POLAR_RADIUS)/2;
+
+    // The flattening and the semi-minor axis of the WGS84 ellipsoid
+    private static final double WGS84_FLATTENING = 1/298.257223563;
+    private static final double WGS84_POLAR_RADIUS = Constants.EARTH_EQ_RADIUS * (1 - WGS84_FLATTENING);
+
+    // Convergence limit and maximal number of iterations of the Vincenty inverse formula
+    private static final double VINCENTY_EPSILON = 1e-12;
+    private static final int VINCENTY_MAX_ITERATIONS = 200;
+
+    // The radii of curvature of the ellipsoid deviate about 0.5% from the mean radius, with some margin
+    private static final double MAX_ELLIPSOIDAL_DEVIATION = 0.01;
+
+    private DistanceFunctions() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * Returns the great-circle distance on a sphere with the mean radius of the earth, computed with the haversine
+     * formula. This is the default and gives the same results as GeoUtils.distance.
+     *
+     * @return The haversine distance function
+     */
+    public static DistanceFunction haversine() {
+        return Haversine.INSTANCE;
+    }
+
+    /**
+     * Returns the equirectangular approximation of the haversine distance. It projects the locations on a plane
+     * around their mean latitude, estimated from the precomputed cosine and sine of the center latitude, and needs
+     * neither trigonometric functions nor square roots besides a single one per location.
+     *
+     * The relative deviation from the haversine distance is below 0.001% for distances up to 10 km and latitudes up
+     * to 80 degrees, below 0.01% for 100 km up to 70 degrees and below 0.04% for 100 km up to 80 degrees. It grows
+     * with the square of the distance and towards the poles, reaching 1% for 1000 km at 70 degrees, so prefer the
+     * haversine distance for radii of several hundred kilometers. The approximation is not a metric, so queries
+     * re-evaluate all their locations when the center moves. Its deviation is not bounded, so nearest queries and pages
+     * select their documents by the haversine distance and order them by the approximation.
+     *
+     * @return The equirectangular distance function
+     */
+    public static DistanceFunction equirectangular() {
+        return Equirectangular.INSTANCE;
+    }
+
+    /**
+     * Returns the geodesic distance on the WGS84 ellipsoid, computed with the inverse formula of Vincenty. It is
+     * accurate to a millimeter but deviates up to 0.5% from the spherical distances of the other functions. For
+     * nearly antipodal locations, where the iteration does not converge, the last iteration is returned; such
+     * locations are beyond the maximal radius of a query anyway.
+     *
+     * @return The ellipsoidal distance function
+     */
+    public static DistanceFunction ellipsoidal() {
+        return Ellipsoidal.INSTANCE;
+    }
+
+    private static final class Haversine implements DistanceFunction {
+        static final Haversine INSTANCE = new Haversine();
+
+        @Override
+        public CenterDistance forCenter(GeoLocation center) {
+            final double centerLatitude = center.latitude;
+            final double centerLongitude = center.longitude;
+            final double cosCenterLatitude = Math.cos(Math.toRadians(centerLatitude));
+            return (latitude, longitude) -> {
+                double latDelta = Math.toRadians(latitude - centerLatitude);
+                double lonDelta = Math.toRadians(longitude - centerLongitude);
+
+                double a = (Math.sin(latDelta/2)*Math.sin(latDelta/2)) +
+                        (Math.cos(Math.toRadians(latitude))*cosCenterLatitude *
+                                Math.sin(lonDelta/2) * Math.sin(lonDelta/2));
+                return MEAN_RADIUS * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+            };
+        }
+
+        @Override
+        public boolean isMetric() {
+            return true;
+        }
+
+        @Override
+        public double getMaxRelativeDeviation() {
+            return 0;
+        }
+    }
+
+    private static final class Equirectangular implements DistanceFunction {
+        static final Equirectangular INSTANCE = new Equirectangular();
+
+        @Override
+        public CenterDistance forCenter(GeoLocation center) {
+            final double centerLatitude = Math.toRadians(center.latitude);
+            final double centerLongitude = Math.toRadians(center.longitude);
+            final double cosCenterLatitude = Math.cos(centerLatitude);
+            final double sinCenterLatitude = Math.sin(centerLatitude);
+            return (latitude, longitude) -> {
+                double latDelta = Math.toRadians(latitude) - centerLatitude;
+                double lonDelta = Math.toRadians(longitude) - centerLongitude;
+                if (lonDelta > Math.PI) {
+                    lonDelta -= 2 * Math.PI;
+                } else if (lonDelta < -Math.PI) {
+                    lonDelta += 2 * Math.PI;
+                }
+                // Second order Taylor expansion of the cosine of the mean latitude around the center latitude
+                double halfDelta = latDelta/2;
+                double cosMeanLatitude = cosCenterLatitude * (1 - halfDelta*halfDelta/2) - sinCenterLatitude * halfDelta;
+                double x = lonDelta * cosMeanLatitude;
+                return MEAN_RADIUS * Math.sqrt(x*x + latDelta*latDelta);
+            };
+        }
+
+        @Override
+        public boolean isMetric() {
+            return false;
+        }
+    }
+
+    private static final class Ellipsoidal implements DistanceFunction {
+        static final Ellipsoidal INSTANCE = new Ellipsoidal();
+
+        @Override
+        public CenterDistance forCenter(GeoLocation center) {
+            final double f = WGS84_FLATTENING;
+            final double centerLongitude = Math.toRadians(center.longitude);
+            // Reduced latitude of the center
+            final double u1 = Math.atan((1 - f) * Math.tan(Math.toRadians(center.latitude)));
+            final double sinU1 = Math.sin(u1);
+            final double cosU1 = Math.cos(u1);
+            return (latitude, longitude) -> {
+                double l = Math.toRadians(longitude) - centerLongitude;
+                double u2 = Math.atan((1 - f) * Math.tan(Math.toRadians(latitude)));
+                double sinU2 = Math.sin(u2);
+                double cosU2 = Math.cos(u2);
+
+                double lambda = l;
+                double sinSigma;
+                double cosSigma;
+                double sigma;
+                double cosSqAlpha;
+                double cos2SigmaM;
+                for (int i = 0; ; i++) {
+                    double sinLambda = Math.sin(lambda);
+                    double cosLambda = Math.cos(lambda);
+                    double p = cosU2 * sinLambda;
+                    double q = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+                    sinSigma = Math.sqrt(p*p + q*q);
+                    if (sinSigma == 0) {
+                        // Coincident locations
+                        return 0;
+                    }
+                    cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+                    sigma = Math.atan2(sinSigma, cosSigma);
+                    double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+                    cosSqAlpha = 1 - sinAlpha*sinAlpha;
+                    // On the equator cos²α is zero
+                    cos2SigmaM = cosSqAlpha != 0 ? cosSigma - 2 * sinU1 * sinU2 / cosSqAlpha : 0;
+                    double c = f/16 * cosSqAlpha * (4 + f * (4 - 3 * cosSqAlpha));
+                    double previousLambda = lambda;
+                    lambda = l + (1 - c) * f * sinAlpha *
+                            (sigma + c * sinSigma * (cos2SigmaM + c * cosSigma * (-1 + 2 * cos2SigmaM*cos2SigmaM)));
+                    if (Math.abs(lambda - previousLambda) <= VINCENTY_EPSILON || i == VINCENTY_MAX_ITERATIONS) {
+                        break;
+                    }
+                }
+
+                final double a = Constants.EARTH_EQ_RADIUS;
+                final double b = WGS84_POLAR_RADIUS;
+                double uSq = cosSqAlpha * (a*a - b*b) / (b*b);
+                double bigA = 1 + uSq/16384 * (4096 + uSq * (-768 + uSq * (320 - 175 * uSq)));
+                double bigB = uSq/1024 * (256 + uSq * (-128 + uSq * (74 - 47 * uSq)));
+                double deltaSigma = bigB * sinSigma * (cos2SigmaM + bigB/4 * (cosSigma * (-1 + 2 * cos2SigmaM*cos2SigmaM) -
+                        bigB/6 * cos2SigmaM * (-3 + 4 * sinSigma*sinSigma) * (-3 + 4 * cos2SigmaM*cos2SigmaM)));
+                return b * bigA * (sigma - deltaSigma);
+            };
+        }
+
+        @Override
+        public boolean isMetric() {
+            return true;
+        }
+
+        @Override
+        public double getMaxRelativeDeviation() {
+            return MAX_ELLIPSOIDAL_DEVIATION;
+        }
+    }
+}
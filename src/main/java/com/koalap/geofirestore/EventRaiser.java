@@ -1,6 +1,32 @@
 package com.koalap.geofirestore;
 
-interface EventRaiser {
+/**
+ * Delivers the events of GeoFire and its queries to the listeners, e.g. on the Android main thread or on an
+ * executor. See {@link EventRaisers} for the built-in implementations.
+ */
+public interface EventRaiser {
+
+    /**
+     * Delivers an event. Events raised through the same EventRaiser are run in the order they were raised.
+     *
+     * @param r The event to run
+     */
     void raiseEvent(Runnable r);
-}
 
+    /**
+     * Returns an EventRaiser for the events of a single query. Events of one channel keep their order, while
+     * different channels may run concurrently. The default shares this EventRaiser.
+     *
+     * @return The channel
+     */
+    default EventRaiser newChannel() {
+        return this;
+    }
+
+    /**
+     * Waits for the raised events to run and releases the threads owned by this EventRaiser. Events raised after
+     * closing are dropped. This must not be called from an event.
+     */
+    default void close() {
+    }
+}
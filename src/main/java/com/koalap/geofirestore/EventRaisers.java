@@ -0,0 +1,118 @@
+package com.koalap.geofirestore;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory methods for the built-in EventRaiser implementations.
+ */
+public final class EventRaisers {
+
+    // Time after which idle threads of the shared pool are released
+    private static final long SHARED_POOL_KEEP_ALIVE_SECONDS = 30;
+
+    private static final class SharedPoolHolder {
+        static final ThreadPoolExecutor POOL = createSharedPool();
+    }
+
+    private EventRaisers() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * @return An EventRaiser posting all events to the Android main thread
+     * @throws RuntimeException If the Android main looper is not available
+     */
+    public static EventRaiser mainThread() {
+        return new AndroidEventRaiser();
+    }
+
+    /**
+     * @return An EventRaiser running every event synchronously on the thread that raises it, e.g. the Firestore
+     * callback thread
+     */
+    public static EventRaiser direct() {
+        return DirectEventRaiser.INSTANCE;
+    }
+
+    /**
+     * Returns an EventRaiser running events on a pool of daemon threads shared by all GeoFire instances. The pool
+     * is bounded to the number of available processors and releases its threads when idle. Events of one query
+     * keep their order, events of different queries run in parallel. Closing it does not shut down the pool.
+     *
+     * @return The EventRaiser
+     */
+    public static EventRaiser sharedPool() {
+        return new ExecutorEventRaiser(SharedPoolHolder.POOL, false);
+    }
+
+    /**
+     * Returns an EventRaiser running events on the given executor. Events of one query keep their order even if
+     * the executor is multi-threaded. Closing the EventRaiser waits for pending events but does not shut down
+     * the executor.
+     *
+     * @param executor The executor to run events on
+     * @return The EventRaiser
+     */
+    public static EventRaiser fromExecutor(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        return new ExecutorEventRaiser(executor, false);
+    }
+
+    /**
+     * Returns an EventRaiser running events on virtual threads where the runtime supports them (Java 21 and
+     * later), and on the shared pool otherwise. The virtual thread executor is owned by the EventRaiser and shut
+     * down on close.
+     *
+     * @return The EventRaiser
+     */
+    public static EventRaiser virtualThreads() {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            return new ExecutorEventRaiser(executor, true);
+        } catch (Exception e) {
+            return sharedPool();
+        }
+    }
+
+    /**
+     * @return The EventRaiser used when none is given: the Android main thread if available, the shared pool
+     * otherwise
+     */
+    static EventRaiser defaultEventRaiser() {
+        try {
+            return mainThread();
+        } catch (Throwable e) {
+            // We're not on Android, use the shared pool
+            return sharedPool();
+        }
+    }
+
+    private static ThreadPoolExecutor createSharedPool() {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "GeoFire-events-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, SHARED_POOL_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
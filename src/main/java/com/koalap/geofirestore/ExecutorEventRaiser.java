@@ -0,0 +1,186 @@
+package com.koalap.geofirestore;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Runs events on an executor. Every channel is a queue which is drained by at most one task of the executor at a
+ * time, so the events of a channel keep their order while different channels run in parallel.
+ */
+final class ExecutorEventRaiser implements EventRaiser {
+
+    // Number of events a channel runs before it yields its thread to other channels
+    private static final int MAX_EVENTS_PER_TASK = 64;
+
+    // Maximal time close waits for pending events
+    private static final long CLOSE_TIMEOUT_MILLIS = 10000;
+
+    private final Executor executor;
+    private final boolean ownsExecutor;
+    private final Channel defaultChannel = new Channel();
+    private final Object lock = new Object();
+    private int pendingEvents;
+    private boolean closed;
+
+    /**
+     * @param executor The executor running the events
+     * @param ownsExecutor Whether the executor is an ExecutorService to shut down on close
+     */
+    ExecutorEventRaiser(Executor executor, boolean ownsExecutor) {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    @Override
+    public void raiseEvent(Runnable r) {
+        this.defaultChannel.raiseEvent(r);
+    }
+
+    @Override
+    public EventRaiser newChannel() {
+        return new Channel();
+    }
+
+    @Override
+    public void close() {
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+        synchronized (this.lock) {
+            this.closed = true;
+            long remaining;
+            while (this.pendingEvents > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    this.lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        if (this.ownsExecutor) {
+            ExecutorService executorService = (ExecutorService) this.executor;
+            executorService.shutdown();
+            try {
+                executorService.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean eventAdded() {
+        synchronized (this.lock) {
+            if (this.closed) {
+                return false;
+            }
+            this.pendingEvents++;
+            return true;
+        }
+    }
+
+    private void eventsDone(int count) {
+        synchronized (this.lock) {
+            this.pendingEvents -= count;
+            if (this.pendingEvents == 0) {
+                this.lock.notifyAll();
+            }
+        }
+    }
+
+    private final class Channel implements EventRaiser, Runnable {
+        private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        private boolean scheduled;
+
+        @Override
+        public void raiseEvent(Runnable r) {
+            if (!ExecutorEventRaiser.this.eventAdded()) {
+                GeoFire.LOGGER.warning("Dropped an event raised after the EventRaiser was closed");
+                return;
+            }
+            synchronized (this.queue) {
+                this.queue.add(r);
+                if (this.scheduled) {
+                    return;
+                }
+                this.scheduled = true;
+            }
+            this.schedule();
+        }
+
+        @Override
+        public EventRaiser newChannel() {
+            return ExecutorEventRaiser.this.newChannel();
+        }
+
+        @Override
+        public void close() {
+            ExecutorEventRaiser.this.close();
+        }
+
+        private void schedule() {
+            try {
+                ExecutorEventRaiser.this.executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                int dropped;
+                synchronized (this.queue) {
+                    dropped = this.queue.size();
+                    this.queue.clear();
+                    this.scheduled = false;
+                }
+                GeoFire.LOGGER.log(Level.WARNING, "Executor rejected " + dropped + " events", e);
+                ExecutorEventRaiser.this.eventsDone(dropped);
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean idle = false;
+            try {
+                idle = this.runEvents();
+            } finally {
+                // Also continues after an Error of a listener, which is thrown on to the executor
+                if (!idle) {
+                    this.continueEvents();
+                }
+            }
+        }
+
+        /**
+         * @return True if the queue was drained and the channel is no longer scheduled
+         */
+        private boolean runEvents() {
+            for (int i = 0; i < MAX_EVENTS_PER_TASK; i++) {
+                Runnable event;
+                synchronized (this.queue) {
+                    event = this.queue.poll();
+                    if (event == null) {
+                        this.scheduled = false;
+                        return true;
+                    }
+                }
+                try {
+                    event.run();
+                } catch (RuntimeException e) {
+                    GeoFire.LOGGER.log(Level.SEVERE, "Uncaught exception in a GeoFire event", e);
+                } finally {
+                    ExecutorEventRaiser.this.eventsDone(1);
+                }
+            }
+            return false;
+        }
+
+        private void continueEvents() {
+            synchronized (this.queue) {
+                if (this.queue.isEmpty()) {
+                    this.scheduled = false;
+                    return;
+                }
+            }
+            // Yield to other channels and continue with a new task
+            this.schedule();
+        }
+    }
+}
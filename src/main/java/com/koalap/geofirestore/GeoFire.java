@@ -33,14 +33,18 @@ import com.google.android.gms.tasks.Task;
 import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.FieldValue;
-import com.google.firebase.firestore.GeoPoint;
 import com.google.firebase.firestore.Query;
-import com.google.firebase.firestore.SetOptions;
-import com.koalap.geofirestore.core.GeoHash;
+import com.koalap.geofirestore.core.CoveringCache;
+import com.koalap.geofirestore.core.CoveringCostModel;
+import com.koalap.geofirestore.store.FirestoreGeoStore;
+import com.koalap.geofirestore.store.GeoStore;
 
+import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -49,7 +53,7 @@ import androidx.annotation.NonNull;
 /**
  * A GeoFire instance is used to store geo location data in Firebase.
  */
-public class GeoFire {
+public class GeoFire implements Closeable {
     public static Logger LOGGER = Logger.getLogger("GeoFire");
 
     /**
@@ -66,6 +70,24 @@ public class GeoFire {
         void onComplete(String key, Exception exception);
     }
 
+    /**
+     * A listener that can be used to be notified once all writes of a bulk operation completed.
+     */
+    public interface BulkCompletionListener {
+        /**
+         * Called once the writes of all keys were saved on the server or failed.
+         *
+         * @param exceptions The exception of every key, or null for the keys that were saved successfully
+         */
+        void onComplete(Map<String, Exception> exceptions);
+    }
+
+    // The default maximal number of write batches of a bulk operation committed at the same time
+    public static final int DEFAULT_MAX_BATCHES_IN_FLIGHT = 4;
+
+    // The default maximal number of reads of getLocations running at the same time
+    public static final int DEFAULT_MAX_READS_IN_FLIGHT = 8;
+
     /**
      * A small wrapper class to forward any events to the LocationEventListener.
      */
@@ -85,7 +107,7 @@ public class GeoFire {
                 if (task.getResult() == null) {
                     this.callback.onLocationResult(key, null);
                 } else {
-                    GeoLocation location = GeoFire.getLocationValue(task.getResult());
+                    GeoLocation location = FirestoreGeoStore.getLocationValue(task.getResult());
                     if (location != null) {
                         this.callback.onLocationResult(key, location);
                     } else {
@@ -100,64 +122,61 @@ public class GeoFire {
         }
     }
 
-    static GeoLocation getLocationValue(DocumentSnapshot documentSnapshot) {
-        try {
-            Map<String, Object> data = documentSnapshot.getData();
-            GeoPoint location = (GeoPoint) data.get("l");
-            Number latitudeObj = location.getLatitude();
-            Number longitudeObj = location.getLongitude();
-            double latitude = latitudeObj.doubleValue();
-            double longitude = longitudeObj.doubleValue();
-            if (GeoLocation.coordinatesValid(latitude, longitude)) {
-                return new GeoLocation(latitude, longitude);
-            } else {
-                return null;
-            }
-        } catch (NullPointerException e) {
-            return null;
-        } catch (ClassCastException e) {
-            return null;
-        }
-    }
-
     private final CollectionReference collectionReference;
-    private Query query;
+    private final FirestoreGeoStore geoStore;
+    private final GeoIndex<DocumentSnapshot> index;
     private final EventRaiser eventRaiser;
+    private volatile int maxBatchesInFlight = DEFAULT_MAX_BATCHES_IN_FLIGHT;
+    private volatile int maxReadsInFlight = DEFAULT_MAX_READS_IN_FLIGHT;
+    private final LocationFetcher<DocumentSnapshot> locationFetcher;
 
     /**
-     * Creates a new GeoFire instance at the given Firebase reference.
+     * Creates a new GeoFire instance at the given Firebase reference. Events are raised on the Android main thread,
+     * or on a shared thread pool if not running on Android.
      *
      * @param collectionReference The Firebase reference this GeoFire instance uses
      */
     public GeoFire(CollectionReference collectionReference) {
-        this.collectionReference = collectionReference;
-        EventRaiser eventRaiser;
-        try {
-            eventRaiser = new AndroidEventRaiser();
-        } catch (Throwable e) {
-            // We're not on Android, use the ThreadEventRaiser
-            eventRaiser = new ThreadEventRaiser();
-        }
-        this.eventRaiser = eventRaiser;
+        this(collectionReference, null, EventRaisers.defaultEventRaiser());
     }
 
     /**
-     * Creates a new GeoFire instance at the given Firebase reference.
+     * Creates a new GeoFire instance at the given Firebase reference. Events are raised on the Android main thread,
+     * or on a shared thread pool if not running on Android.
      *
      * @param collectionReference The Firebase reference this GeoFire instance uses
      * @param query The query to add filters to the collection
      */
     public GeoFire(CollectionReference collectionReference, Query query) {
-        this.collectionReference = collectionReference;
-        this.query = query;
-        EventRaiser eventRaiser;
-        try {
-            eventRaiser = new AndroidEventRaiser();
-        } catch (Throwable e) {
-            // We're not on Android, use the ThreadEventRaiser
-            eventRaiser = new ThreadEventRaiser();
+        this(collectionReference, query, EventRaisers.defaultEventRaiser());
+    }
+
+    /**
+     * Creates a new GeoFire instance at the given Firebase reference.
+     *
+     * @param collectionReference The Firebase reference this GeoFire instance uses
+     * @param eventRaiser The EventRaiser delivering all events, see {@link EventRaisers}
+     */
+    public GeoFire(CollectionReference collectionReference, EventRaiser eventRaiser) {
+        this(collectionReference, null, eventRaiser);
+    }
+
+    /**
+     * Creates a new GeoFire instance at the given Firebase reference.
+     *
+     * @param collectionReference The Firebase reference this GeoFire instance uses
+     * @param query The query to add filters to the collection
+     * @param eventRaiser The EventRaiser delivering all events, see {@link EventRaisers}
+     */
+    public GeoFire(CollectionReference collectionReference, Query query, EventRaiser eventRaiser) {
+        if (eventRaiser == null) {
+            throw new NullPointerException("eventRaiser");
         }
+        this.collectionReference = collectionReference;
+        this.geoStore = new FirestoreGeoStore(collectionReference, query);
+        this.index = new GeoIndex<>(this.geoStore);
         this.eventRaiser = eventRaiser;
+        this.locationFetcher = new LocationFetcher<>(this.geoStore);
     }
 
     /**
@@ -171,7 +190,7 @@ public class GeoFire {
      * @return The query to add filters to the collection
      */
     public Query getQuery() {
-        return query;
+        return this.geoStore.getFilter();
     }
 
     /**
@@ -179,7 +198,110 @@ public class GeoFire {
      * @param query This will be added to the collection
      */
     public void setQuery(final Query query) {
-        this.query = query;
+        this.geoStore.setFilter(query);
+    }
+
+    /**
+     * @return The cache of geohash coverings shared by all queries of this GeoFire instance
+     */
+    public CoveringCache getCoveringCache() {
+        return this.index.getCoveringCache();
+    }
+
+    /**
+     * @return The cost model of the adaptive circle coverings, or null if circles use the cached coverings
+     */
+    public CoveringCostModel getCoveringCostModel() {
+        return this.index.getCoveringCostModel();
+    }
+
+    /**
+     * Enables the adaptive coverings of circles, which follow the border of a circle with finer ranges where the
+     * cost model deems the saved reads worth the additional listeners, see {@link GeoIndex#setCoveringCostModel}.
+     *
+     * @param coveringCostModel The cost model, or null to use the cached coverings
+     */
+    public void setCoveringCostModel(CoveringCostModel coveringCostModel) {
+        this.index.setCoveringCostModel(coveringCostModel);
+    }
+
+    /**
+     * @return The distance function of new queries
+     */
+    public DistanceFunction getDistanceFunction() {
+        return this.index.getDistanceFunction();
+    }
+
+    /**
+     * Sets the distance function of queries created afterwards. The default is {@link DistanceFunctions#haversine()}.
+     *
+     * @param distanceFunction The distance function, see {@link DistanceFunctions}
+     */
+    public void setDistanceFunction(DistanceFunction distanceFunction) {
+        this.index.setDistanceFunction(distanceFunction);
+    }
+
+    /**
+     * @return True if queries created now record metrics
+     */
+    public boolean isMetricsEnabled() {
+        return this.index.isMetricsEnabled();
+    }
+
+    /**
+     * Enables or disables the metrics of queries created afterwards, see {@link GeoQuery#getMetrics()}. Metrics
+     * are disabled by default; disabled metrics cost the queries a null check.
+     *
+     * @param metricsEnabled True to record the metrics of new queries
+     */
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.index.setMetricsEnabled(metricsEnabled);
+    }
+
+    /**
+     * @return The metrics of all queries of this GeoFire instance that were created with metrics enabled
+     */
+    public GeoQueryMetrics getMetrics() {
+        return this.index.getMetrics();
+    }
+
+    /**
+     * @return The maximal number of write batches a bulk operation commits at the same time
+     */
+    public int getMaxBatchesInFlight() {
+        return this.maxBatchesInFlight;
+    }
+
+    /**
+     * Sets the maximal number of write batches a bulk operation commits at the same time. Each batch writes up to
+     * 500 documents.
+     *
+     * @param maxBatchesInFlight The maximal number of batches in flight, at least one
+     */
+    public void setMaxBatchesInFlight(int maxBatchesInFlight) {
+        if (maxBatchesInFlight < 1) {
+            throw new IllegalArgumentException("The number of batches in flight must be at least one!");
+        }
+        this.maxBatchesInFlight = maxBatchesInFlight;
+    }
+
+    /**
+     * @return The maximal number of reads getLocations runs at the same time
+     */
+    public int getMaxReadsInFlight() {
+        return this.maxReadsInFlight;
+    }
+
+    /**
+     * Sets the maximal number of reads getLocations runs at the same time. Each read fetches up to 10 keys.
+     *
+     * @param maxReadsInFlight The maximal number of reads in flight, at least one
+     */
+    public void setMaxReadsInFlight(int maxReadsInFlight) {
+        if (maxReadsInFlight < 1) {
+            throw new IllegalArgumentException("The number of reads in flight must be at least one!");
+        }
+        this.maxReadsInFlight = maxReadsInFlight;
     }
 
     /**
@@ -201,16 +323,40 @@ public class GeoFire {
      *                           error occurred
      */
     public void setLocation(final String key, final GeoLocation location, final CompletionListener completionListener) {
-        DocumentReference docRef = this.collectionReference.document(key);
-        GeoHash geoHash = new GeoHash(location);
-        Map<String, Object> updates = new HashMap<>();
-        updates.put("g", geoHash.getGeoHashString());
-        updates.put("l", new GeoPoint(location.latitude, location.longitude));
         if (completionListener != null) {
-            docRef.set(updates, SetOptions.merge()).addOnCompleteListener(task -> completionListener.onComplete(key, task.getException()));
+            this.geoStore.setLocation(key, location, (result, exception) -> completionListener.onComplete(key, exception));
         } else {
-            docRef.update(updates);
+            this.geoStore.setLocation(key, location, null);
+        }
+    }
+
+    /**
+     * Sets the locations for many keys with batched writes.
+     *
+     * @param locations The locations to save by their key
+     */
+    public void setLocations(Map<String, GeoLocation> locations) {
+        this.setLocations(locations, null);
+    }
+
+    /**
+     * Sets the locations for many keys with batched writes. The writes are split into batches of up to 500
+     * documents, at most {@link #getMaxBatchesInFlight()} batches are committed at the same time. A batch is
+     * written atomically, so a failed batch reports its exception for all of its keys.
+     *
+     * @param locations          The locations to save by their key
+     * @param completionListener A listener that is called once all locations were saved on the server or failed
+     */
+    public void setLocations(Map<String, GeoLocation> locations, final BulkCompletionListener completionListener) {
+        final Map<String, GeoLocation> copy = new LinkedHashMap<>(locations);
+        for (Map.Entry<String, GeoLocation> entry: copy.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                throw new NullPointerException("Keys and locations must not be null!");
+            }
         }
+        new BulkWriter(this.geoStore, new ArrayList<>(copy.keySet()),
+                (batch, key) -> batch.setLocation(key, copy.get(key)),
+                this.maxBatchesInFlight, completionListener).start();
     }
 
     /**
@@ -230,17 +376,37 @@ public class GeoFire {
      *                           from the server or an error occurred
      */
     public void removeLocation(final String key, final CompletionListener completionListener) {
-        DocumentReference docRef = this.collectionReference.document(key);
-        Map<String, Object> updates = new HashMap<>();
-        updates.put("g", FieldValue.delete());
-        updates.put("l", FieldValue.delete());
         if (completionListener != null) {
-            docRef.update(updates).addOnCompleteListener(task -> completionListener.onComplete(key, task.getException()));
+            this.geoStore.removeLocation(key, (result, exception) -> completionListener.onComplete(key, exception));
         } else {
-            docRef.update(updates);
+            this.geoStore.removeLocation(key, null);
         }
     }
 
+    /**
+     * Removes the locations for many keys with batched writes.
+     *
+     * @param keys The keys to remove from this GeoFire
+     */
+    public void removeLocations(Collection<String> keys) {
+        this.removeLocations(keys, null);
+    }
+
+    /**
+     * Removes the locations for many keys with batched writes. The writes are split into batches of up to 500
+     * documents, at most {@link #getMaxBatchesInFlight()} batches are committed at the same time. Unlike
+     * {@link #removeLocation(String)} a key without a document does not fail, it is written as an empty document.
+     * A batch is written atomically, so a failed batch reports its exception for all of its keys.
+     *
+     * @param keys               The keys to remove from this GeoFire
+     * @param completionListener A listener that is called once all locations were removed from the server or failed
+     */
+    public void removeLocations(Collection<String> keys, final BulkCompletionListener completionListener) {
+        new BulkWriter(this.geoStore, new ArrayList<>(new LinkedHashSet<>(keys)),
+                GeoStore.Batch::removeLocation,
+                this.maxBatchesInFlight, completionListener).start();
+    }
+
     /**
      * Gets the current location for a key and calls the callback with the current value.
      *
@@ -253,6 +419,19 @@ public class GeoFire {
         keyRef.get().addOnCompleteListener(valueListener);
     }
 
+    /**
+     * Gets the current locations for many keys and calls the callback once with all of them. The keys are read in
+     * chunks of 10 with whereIn queries on the document id, with at most {@link #getMaxReadsInFlight()} reads
+     * running at the same time. Keys that are still being read for an earlier call are not read again. The reads
+     * apply the filter of {@link #getQuery()}, keys of documents it excludes have no location.
+     *
+     * @param keys     The keys whose locations to get
+     * @param callback The callback that is called once all locations are retrieved
+     */
+    public void getLocations(Collection<String> keys, LocationsCallback callback) {
+        this.locationFetcher.getLocations(keys, callback, this.maxReadsInFlight);
+    }
+
     /**
      * Returns a new Query object centered at the given location and with the given radius.
      *
@@ -264,7 +443,75 @@ public class GeoFire {
         return new GeoQuery(this, center, radius);
     }
 
+    /**
+     * Returns a new Query object restricted to the given shape, e.g. a {@link GeoRectangle} or a {@link GeoPolygon}.
+     * The query reads the geohash ranges following the shape and fires the same events as a query in a circle.
+     *
+     * @param shape The shape of the query
+     * @return The new GeoQuery object
+     */
+    public GeoQuery queryInShape(GeoShape shape) {
+        return new GeoQuery(this, shape);
+    }
+
+    /**
+     * Returns a new query for the k documents nearest to the given center. The first ring of the query covers a
+     * circle of 1 kilometer.
+     *
+     * @param center The center of the query
+     * @param k The number of documents to find
+     * @return The new GeoNearestQuery object
+     */
+    public GeoNearestQuery queryNearest(GeoLocation center, int k) {
+        return new GeoNearestQuery(this, center, k, GeoNearestEngine.DEFAULT_INITIAL_RADIUS);
+    }
+
+    /**
+     * Returns a new query for the k documents nearest to the given center.
+     *
+     * @param center The center of the query
+     * @param k The number of documents to find
+     * @param initialRadius The radius of the first ring, in kilometers, e.g. the expected distance of the k-th
+     *                      nearest document
+     * @return The new GeoNearestQuery object
+     */
+    public GeoNearestQuery queryNearest(GeoLocation center, int k, double initialRadius) {
+        return new GeoNearestQuery(this, center, k, initialRadius);
+    }
+
+    /**
+     * Removes the remaining Firestore listeners of all queries, waits for pending events and releases the threads
+     * of the EventRaiser of this GeoFire instance. Queries should have their listeners removed before. Must not be
+     * called from an event.
+     */
+    @Override
+    public void close() {
+        this.index.close();
+        this.eventRaiser.close();
+    }
+
     void raiseEvent(Runnable r) {
         this.eventRaiser.raiseEvent(r);
     }
+
+    /**
+     * @return An EventRaiser for the events of a single query, see {@link EventRaiser#newChannel()}
+     */
+    EventRaiser newEventChannel() {
+        return this.eventRaiser.newChannel();
+    }
+
+    /**
+     * @return The store of the Firestore collection of this GeoFire instance
+     */
+    FirestoreGeoStore getGeoStore() {
+        return this.geoStore;
+    }
+
+    /**
+     * @return The index shared by all queries of this GeoFire instance
+     */
+    GeoIndex<DocumentSnapshot> getIndex() {
+        return this.index;
+    }
 }
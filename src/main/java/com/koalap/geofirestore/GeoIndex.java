@@ -0,0 +1,189 @@
+package com.koalap.geofirestore;
+
+import com.koalap.geofirestore.core.CoveringCache;
+import com.koalap.geofirestore.core.CoveringCostModel;
+import com.koalap.geofirestore.store.GeoStore;
+
+/**
+ * The query side of a GeoStore: the geohash coverings, the range listeners shared by all queries and the distance
+ * function of new queries. GeoFire uses an index over its Firestore collection; an index over a
+ * {@link com.koalap.geofirestore.store.MemoryGeoStore} runs the same query logic without Firestore.
+ *
+ * @param <D> The type of the documents of the store
+ */
+public final class GeoIndex<D> {
+
+    private final GeoStore<D> store;
+    private final CoveringCache coveringCache = new CoveringCache();
+    private final RangeListenerPool<D> rangeListenerPool;
+    private volatile DistanceFunction distanceFunction = DistanceFunctions.haversine();
+    // The cost model of adaptive circle coverings, or null for the cached coverings
+    private volatile CoveringCostModel coveringCostModel;
+    // The metrics of all queries of this index
+    private final QueryMetrics metrics = new QueryMetrics(null);
+    private volatile boolean metricsEnabled;
+
+    /**
+     * @param store The store of the documents
+     */
+    public GeoIndex(GeoStore<D> store) {
+        if (store == null) {
+            throw new NullPointerException("store");
+        }
+        this.store = store;
+        this.rangeListenerPool = new RangeListenerPool<>(store);
+    }
+
+    public GeoStore<D> getStore() {
+        return this.store;
+    }
+
+    /**
+     * @return The cache of geohash coverings shared by all queries of this index
+     */
+    public CoveringCache getCoveringCache() {
+        return this.coveringCache;
+    }
+
+    /**
+     * @return The distance function of new queries
+     */
+    public DistanceFunction getDistanceFunction() {
+        return this.distanceFunction;
+    }
+
+    /**
+     * Sets the distance function of queries created afterwards. The default is {@link DistanceFunctions#haversine()}.
+     *
+     * @param distanceFunction The distance function, see {@link DistanceFunctions}
+     */
+    public void setDistanceFunction(DistanceFunction distanceFunction) {
+        if (distanceFunction == null) {
+            throw new NullPointerException("distanceFunction");
+        }
+        this.distanceFunction = distanceFunction;
+    }
+
+    /**
+     * @return The cost model of the adaptive circle coverings, or null if circles use the cached coverings
+     */
+    public CoveringCostModel getCoveringCostModel() {
+        return this.coveringCostModel;
+    }
+
+    /**
+     * Enables the adaptive coverings of circles. By default a circle is covered by at most 9 cells of a single
+     * precision from the {@link CoveringCache}, which often reads 2 to 4 times the area of the circle. An adaptive
+     * covering splits the cells along the border of the circle as long as the cost model deems the saved reads worth
+     * the additional ranges. Queries use the cost model the next time they compute their ranges, i.e. when they are
+     * started or their criteria change. Adaptive coverings are computed for every change of the criteria instead of
+     * being cached, and are not used with distance functions that do not bound their deviation from the haversine
+     * distance.
+     *
+     * @param coveringCostModel The cost model, or null to use the cached coverings
+     */
+    public void setCoveringCostModel(CoveringCostModel coveringCostModel) {
+        this.coveringCostModel = coveringCostModel;
+    }
+
+    /**
+     * @return True if queries created now record metrics
+     */
+    public boolean isMetricsEnabled() {
+        return this.metricsEnabled;
+    }
+
+    /**
+     * Enables or disables the metrics of queries created afterwards. Metrics are disabled by default.
+     *
+     * @param metricsEnabled True to record the metrics of new queries
+     */
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    /**
+     * @return The metrics of all queries of this index that were created with metrics enabled
+     */
+    public GeoQueryMetrics getMetrics() {
+        return this.metrics.snapshot();
+    }
+
+    /**
+     * @return A recorder for the metrics of a new query, or null if metrics are disabled
+     */
+    QueryMetrics newQueryMetrics() {
+        return this.metricsEnabled ? new QueryMetrics(this.metrics) : null;
+    }
+
+    /**
+     * Returns a new query engine centered at the given location and with the given radius. The engine does not
+     * listen to the store before it is started.
+     *
+     * @param center The center of the query
+     * @param radius The radius of the query, in kilometers
+     * @param sink The sink receiving the transitions of the documents
+     * @return The new query engine
+     */
+    public GeoQueryEngine<D> queryAtLocation(GeoLocation center, double radius, GeoQueryEngine.Sink<D> sink) {
+        return new GeoQueryEngine<>(this, center, radius, sink);
+    }
+
+    /**
+     * Returns a new query engine restricted to the given shape. The engine does not listen to the store before it is
+     * started.
+     *
+     * @param shape The shape of the query
+     * @param sink The sink receiving the transitions of the documents
+     * @return The new query engine
+     */
+    public GeoQueryEngine<D> queryInShape(GeoShape shape, GeoQueryEngine.Sink<D> sink) {
+        return new GeoQueryEngine<>(this, shape, sink);
+    }
+
+    /**
+     * Returns a new nearest-k query engine around the given center, see {@link GeoNearestEngine}. The first ring
+     * covers a circle of 1 kilometer.
+     *
+     * @param center The center of the query
+     * @param k The number of documents to find
+     * @param sink The sink receiving the nearest documents of the started engine
+     * @return The new query engine
+     */
+    public GeoNearestEngine<D> queryNearest(GeoLocation center, int k, GeoNearestEngine.Sink<D> sink) {
+        return this.queryNearest(center, k, GeoNearestEngine.DEFAULT_INITIAL_RADIUS, sink);
+    }
+
+    /**
+     * Returns a new nearest-k query engine around the given center, see {@link GeoNearestEngine}.
+     *
+     * @param center The center of the query
+     * @param k The number of documents to find
+     * @param initialRadius The radius of the first ring, in kilometers, e.g. the expected distance of the k-th
+     *                      nearest document
+     * @param sink The sink receiving the nearest documents of the started engine
+     * @return The new query engine
+     */
+    public GeoNearestEngine<D> queryNearest(GeoLocation center, int k, double initialRadius,
+                                            GeoNearestEngine.Sink<D> sink) {
+        return new GeoNearestEngine<>(this, null, center, k, initialRadius, sink);
+    }
+
+    /**
+     * @return The number of store listeners currently open
+     */
+    public int getListenerCount() {
+        return this.rangeListenerPool.getListenerCount();
+    }
+
+    /**
+     * Removes the store listeners of all queries. Queries should be stopped before.
+     */
+    public void close() {
+        this.rangeListenerPool.close();
+    }
+
+    RangeListenerPool<D> getRangeListenerPool() {
+        return this.rangeListenerPool;
+    }
+}
@@ -0,0 +1,331 @@
+package com.koalap.geofirestore;
+
+import com.koalap.geofirestore.core.GeoHashQuery;
+import com.koalap.geofirestore.store.GeoStore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The query logic of a nearest-k query over any GeoStore: it explores the geohash ranges around a center ring by
+ * ring until the k nearest documents are known, and reports them ordered by their distance to the center.
+ *
+ * Every ring covers a larger circle than the previous rings and only reads the ranges they did not read, so every
+ * document is read once. The search stops as soon as the k-th nearest document is provably closer than every
+ * unexplored range, or at the maximal radius of a query, in which case fewer than k documents may be reported. The
+ * proof relies on the maximal deviation of the distance function from the haversine distance; with a function that
+ * does not bound it the k nearest documents are selected by their haversine distance and ordered by the function.
+ *
+ * A started engine listens to the ranges of its rings. It expands by another ring when documents leave and shrinks
+ * by its last ring when the nearest documents come much closer, and reports the nearest documents whenever they
+ * change. All methods and all calls of the sink hold the lock of the engine. The engine is created by
+ * {@link GeoIndex#queryNearest}.
+ *
+ * @param <D> The type of the documents of the store
+ */
+public final class GeoNearestEngine<D> {
+
+    /**
+     * Receives the nearest documents of a started engine.
+     *
+     * @param <D> The type of the documents of the store
+     */
+    public interface Sink<D> {
+        /**
+         * Called whenever the nearest documents changed, before the ready event.
+         *
+         * @param nearest The nearest documents ordered by their distance to the center
+         */
+        void onNearestChanged(List<GeoQueryEngine.Match<D>> nearest);
+
+        /**
+         * Called whenever the engine knows the nearest documents again after it was started or had to expand.
+         */
+        void onReady();
+
+        void onError(Exception exception);
+    }
+
+    /**
+     * The radius of the first ring if none is given, in kilometers.
+     */
+    public static final double DEFAULT_INITIAL_RADIUS = 1;
+
+    private static final int KILOMETER_TO_METER = 1000;
+
+    // Factor the previous rings must exceed the radius of the k nearest documents before the last ring is dropped
+    private static final double SHRINK_MARGIN = 2;
+
+    private final GeoIndex<D> index;
+    private final GeoStore<D> store;
+    private final Object lock;
+    private final Sink<D> sink;
+    private final GeoLocation center;
+    private final int k;
+    private final double initialRadius;
+    private final DistanceFunction distanceFunction;
+    // The search of the started engine, or null
+    private NearestSearch<D> search;
+    private final Map<GeoHashQuery, RangeListenerPool<D>.Subscription> rangeSubscriptions = new HashMap<>();
+    private final Set<GeoHashQuery> outstandingQueries = new HashSet<>();
+    private boolean ready;
+    private List<GeoQueryEngine.Match<D>> nearest = Collections.emptyList();
+
+    private final RangeListenerPool.Subscriber<D> rangeSubscriber = new RangeListenerPool.Subscriber<D>() {
+        @Override
+        public void onRangeChanges(RangeListenerPool<D>.Subscription subscription, List<GeoStore.Change<D>> changes) {
+            synchronized (GeoNearestEngine.this.lock) {
+                if (!subscription.isRemoved()) {
+                    GeoNearestEngine.this.applyChanges(subscription.getRange(), changes);
+                }
+            }
+        }
+
+        @Override
+        public void onRangeReady(RangeListenerPool<D>.Subscription subscription) {
+            synchronized (GeoNearestEngine.this.lock) {
+                if (!subscription.isRemoved() && GeoNearestEngine.this.outstandingQueries.remove(subscription.getRange())) {
+                    GeoNearestEngine.this.update();
+                }
+            }
+        }
+
+        @Override
+        public void onRangeError(RangeListenerPool<D>.Subscription subscription, Exception error) {
+            synchronized (GeoNearestEngine.this.lock) {
+                if (!subscription.isRemoved()) {
+                    GeoNearestEngine.this.sink.onError(error);
+                }
+            }
+        }
+    };
+
+    /**
+     * @param index The index this engine queries
+     * @param lock The lock guarding the engine and its sink, or null to lock the engine itself
+     * @param center The center of the query
+     * @param k The number of documents to find
+     * @param initialRadius The radius of the first ring, in kilometers
+     * @param sink The sink receiving the nearest documents of the started engine
+     */
+    GeoNearestEngine(GeoIndex<D> index, Object lock, GeoLocation center, int k, double initialRadius, Sink<D> sink) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be larger than zero: " + k);
+        }
+        if (!(initialRadius > 0)) {
+            throw new IllegalArgumentException("The initial radius must be larger than zero: " + initialRadius);
+        }
+        this.index = index;
+        this.store = index.getStore();
+        this.lock = lock != null ? lock : this;
+        this.sink = sink;
+        this.center = center;
+        this.k = k;
+        this.initialRadius = initialRadius * KILOMETER_TO_METER;
+        this.distanceFunction = index.getDistanceFunction();
+    }
+
+    private NearestSearch<D> newSearch() {
+        return new NearestSearch<>(this.store, this.index.getCoveringCache(), this.distanceFunction, this.center,
+                this.k, this.initialRadius);
+    }
+
+    private void applyChanges(GeoHashQuery range, List<GeoStore.Change<D>> changes) {
+        for (GeoStore.Change<D> change: changes) {
+            if (change.getType() == GeoStore.Change.Type.REMOVED) {
+                this.search.remove(change.getDocument(), range);
+            } else {
+                this.search.add(change.getDocument());
+            }
+        }
+        this.update();
+    }
+
+    /**
+     * Expands or shrinks the search once all ranges delivered their documents, and reports the nearest documents
+     * if they changed.
+     */
+    private void update() {
+        if (!this.outstandingQueries.isEmpty()) {
+            return;
+        }
+        while (!this.search.isComplete()) {
+            this.ready = false;
+            NearestSearch.Ring ring = this.search.nextRing();
+            if (!ring.ranges.isEmpty()) {
+                this.subscribe(ring.ranges);
+                return;
+            }
+        }
+        NearestSearch.Ring removed;
+        while ((removed = this.search.shrink(SHRINK_MARGIN)) != null) {
+            for (GeoHashQuery range: removed.ranges) {
+                this.rangeSubscriptions.remove(range).remove();
+            }
+        }
+        List<GeoQueryEngine.Match<D>> nearest = this.search.getNearest();
+        if (!sameMatches(this.nearest, nearest)) {
+            this.nearest = nearest;
+            this.sink.onNearestChanged(Collections.unmodifiableList(nearest));
+        }
+        if (!this.ready) {
+            this.ready = true;
+            this.sink.onReady();
+        }
+    }
+
+    private void subscribe(List<GeoHashQuery> ranges) {
+        RangeListenerPool<D> rangeListenerPool = this.index.getRangeListenerPool();
+        List<RangeListenerPool<D>.Subscription> addedSubscriptions = new ArrayList<>(ranges.size());
+        for (GeoHashQuery range: ranges) {
+            this.outstandingQueries.add(range);
+            RangeListenerPool<D>.Subscription subscription = rangeListenerPool.subscribe(range, this.rangeSubscriber);
+            this.rangeSubscriptions.put(range, subscription);
+            addedSubscriptions.add(subscription);
+        }
+        // The last range becoming ready continues the search
+        for (RangeListenerPool<D>.Subscription subscription: addedSubscriptions) {
+            subscription.deliverPending();
+        }
+    }
+
+    private static <D> boolean sameMatches(List<GeoQueryEngine.Match<D>> matches1, List<GeoQueryEngine.Match<D>> matches2) {
+        if (matches1.size() != matches2.size()) {
+            return false;
+        }
+        for (int i = 0; i < matches1.size(); i++) {
+            if (matches1.get(i).getDocument() != matches2.get(i).getDocument()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts listening to the rings of the query. The sink receives the nearest documents and the ready event once
+     * they are known.
+     */
+    public void start() {
+        synchronized (this.lock) {
+            if (this.search == null) {
+                this.search = this.newSearch();
+                this.ready = false;
+                this.update();
+            }
+        }
+    }
+
+    /**
+     * Stops listening to the rings of the query and forgets the nearest documents.
+     */
+    public void stop() {
+        synchronized (this.lock) {
+            for (RangeListenerPool<D>.Subscription subscription: this.rangeSubscriptions.values()) {
+                subscription.remove();
+            }
+            this.rangeSubscriptions.clear();
+            this.outstandingQueries.clear();
+            this.search = null;
+            this.nearest = Collections.emptyList();
+        }
+    }
+
+    public boolean isStarted() {
+        synchronized (this.lock) {
+            return this.search != null;
+        }
+    }
+
+    /**
+     * @return True if the query is started and knows its nearest documents
+     */
+    public boolean isReady() {
+        synchronized (this.lock) {
+            return this.search != null && this.ready;
+        }
+    }
+
+    /**
+     * @return The nearest documents of the started query ordered by their distance, as last reported to the sink
+     */
+    public List<GeoQueryEngine.Match<D>> getNearest() {
+        synchronized (this.lock) {
+            return Collections.unmodifiableList(this.nearest);
+        }
+    }
+
+    /**
+     * @return The radius of the circle explored by the started query, in kilometers, or 0 if it is not started
+     */
+    public double getExploredRadius() {
+        synchronized (this.lock) {
+            return this.search != null ? this.search.getRadius() / KILOMETER_TO_METER : 0;
+        }
+    }
+
+    public GeoLocation getCenter() {
+        return this.center;
+    }
+
+    public int getK() {
+        return this.k;
+    }
+
+    /**
+     * Finds the nearest documents once, without listening to the store. Every ring is read with one read per range
+     * after the previous ring was read.
+     *
+     * @param callback The callback receiving the nearest documents ordered by their distance, or the exception of
+     *                 the first failed range
+     */
+    public void getOnce(final GeoStore.Callback<List<GeoQueryEngine.Match<D>>> callback) {
+        this.readNextRing(this.newSearch(), callback);
+    }
+
+    private void readNextRing(final NearestSearch<D> search, final GeoStore.Callback<List<GeoQueryEngine.Match<D>>> callback) {
+        final List<GeoHashQuery> ranges;
+        synchronized (search) {
+            List<GeoHashQuery> next = Collections.emptyList();
+            while (next.isEmpty() && !search.isComplete()) {
+                next = search.nextRing().ranges;
+            }
+            if (next.isEmpty()) {
+                callback.onComplete(search.getNearest(), null);
+                return;
+            }
+            ranges = next;
+        }
+        final int[] remaining = { ranges.size() };
+        final Exception[] failure = { null };
+        for (GeoHashQuery range: ranges) {
+            this.store.getRange(range, (documents, exception) -> {
+                Exception error;
+                synchronized (search) {
+                    if (exception != null) {
+                        if (failure[0] == null) {
+                            failure[0] = exception;
+                        }
+                    } else if (failure[0] == null) {
+                        for (D document: documents) {
+                            search.add(document);
+                        }
+                    }
+                    if (--remaining[0] > 0) {
+                        return;
+                    }
+                    error = failure[0];
+                }
+                if (error != null) {
+                    callback.onComplete(null, error);
+                } else {
+                    this.readNextRing(search, callback);
+                }
+            });
+        }
+    }
+}
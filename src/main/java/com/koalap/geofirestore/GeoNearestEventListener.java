@@ -0,0 +1,30 @@
+package com.koalap.geofirestore;
+
+import java.util.List;
+
+/**
+ * GeoNearestQuery notifies listeners with this interface about the documents nearest to its center.
+ */
+public interface GeoNearestEventListener {
+
+    /**
+     * Called with the nearest documents once they are known, and again whenever they change. When the listener is
+     * added to a query that already knows its nearest documents, it is called once with them.
+     *
+     * @param nearest The nearest documents ordered by their distance to the center, fewer than k if there are not
+     *                enough documents within the maximal radius of a query
+     */
+    void onNearestChanged(List<GeoQueryDocumentChange> nearest);
+
+    /**
+     * Called after onNearestChanged once the nearest documents are known, and again every time the query had to
+     * explore farther because documents left.
+     */
+    void onGeoQueryReady();
+
+    /**
+     * Called in case an error occurred while retrieving locations for a query, e.g. violating security rules.
+     * @param error The error that occurred while retrieving the query
+     */
+    void onGeoQueryError(Exception error);
+}
@@ -0,0 +1,158 @@
+package com.koalap.geofirestore;
+
+import com.google.firebase.firestore.DocumentSnapshot;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A GeoNearestQuery finds the k documents nearest to a center, ordered by their distance. The GeoNearestQuery class
+ * is thread safe.
+ *
+ * The query explores the geohash ranges around the center ring by ring and reads every document once, instead of
+ * guessing a radius and querying again with a larger one, see {@link GeoNearestEngine}. The nearest documents can be
+ * read once with {@link #getNearestOnce} or followed in realtime by adding a {@link GeoNearestEventListener}.
+ */
+public class GeoNearestQuery {
+    private final EventRaiser eventRaiser;
+    private final Set<GeoNearestEventListener> eventListeners = new HashSet<>();
+    private final GeoNearestEngine<DocumentSnapshot> engine;
+
+    private final GeoNearestEngine.Sink<DocumentSnapshot> engineSink = new GeoNearestEngine.Sink<DocumentSnapshot>() {
+        @Override
+        public void onNearestChanged(List<GeoQueryEngine.Match<DocumentSnapshot>> nearest) {
+            final List<GeoQueryDocumentChange> documents = GeoQueryDocumentChange.fromMatches(nearest);
+            final List<GeoNearestEventListener> listeners = new ArrayList<>(GeoNearestQuery.this.eventListeners);
+            GeoNearestQuery.this.eventRaiser.raiseEvent(() -> {
+                for (GeoNearestEventListener listener: listeners) {
+                    listener.onNearestChanged(documents);
+                }
+            });
+        }
+
+        @Override
+        public void onReady() {
+            final List<GeoNearestEventListener> listeners = new ArrayList<>(GeoNearestQuery.this.eventListeners);
+            GeoNearestQuery.this.eventRaiser.raiseEvent(() -> {
+                for (GeoNearestEventListener listener: listeners) {
+                    listener.onGeoQueryReady();
+                }
+            });
+        }
+
+        @Override
+        public void onError(final Exception exception) {
+            final List<GeoNearestEventListener> listeners = new ArrayList<>(GeoNearestQuery.this.eventListeners);
+            GeoNearestQuery.this.eventRaiser.raiseEvent(() -> {
+                for (GeoNearestEventListener listener: listeners) {
+                    listener.onGeoQueryError(exception);
+                }
+            });
+        }
+    };
+
+    /**
+     * Creates a new GeoNearestQuery for the k documents nearest to the given center.
+     * @param geoFire The GeoFire object this GeoNearestQuery uses
+     * @param center The center of this query
+     * @param k The number of documents to find
+     * @param initialRadius The radius of the first ring, in kilometers
+     */
+    GeoNearestQuery(GeoFire geoFire, GeoLocation center, int k, double initialRadius) {
+        this.eventRaiser = geoFire.newEventChannel();
+        this.engine = new GeoNearestEngine<>(geoFire.getIndex(), this, center, k, initialRadius, this.engineSink);
+    }
+
+    /**
+     * Reads the nearest documents once, without listening for changes. The listener receives them with
+     * onNearestChanged followed by onGeoQueryReady, or receives onGeoQueryError. There is no need to remove this
+     * listener after usage.
+     *
+     * @param listener The listener to call once
+     */
+    public void getNearestOnce(final GeoNearestEventListener listener) {
+        this.engine.getOnce((matches, exception) -> {
+            if (exception != null) {
+                this.eventRaiser.raiseEvent(() -> listener.onGeoQueryError(exception));
+                return;
+            }
+            final List<GeoQueryDocumentChange> documents = GeoQueryDocumentChange.fromMatches(matches);
+            this.eventRaiser.raiseEvent(() -> {
+                listener.onNearestChanged(documents);
+                listener.onGeoQueryReady();
+            });
+        });
+    }
+
+    /**
+     * Adds a new GeoNearestEventListener to this GeoNearestQuery. The first listener starts listening to the
+     * rings of the query.
+     *
+     * @throws IllegalArgumentException If this listener was already added
+     *
+     * @param listener The listener to add
+     */
+    public synchronized void addGeoNearestEventListener(final GeoNearestEventListener listener) {
+        if (eventListeners.contains(listener)) {
+            throw new IllegalArgumentException("Added the same listener twice to a GeoNearestQuery!");
+        }
+        eventListeners.add(listener);
+        if (!this.engine.isStarted()) {
+            this.engine.start();
+        } else if (this.engine.isReady()) {
+            final List<GeoQueryDocumentChange> documents = GeoQueryDocumentChange.fromMatches(this.engine.getNearest());
+            this.eventRaiser.raiseEvent(() -> {
+                listener.onNearestChanged(documents);
+                listener.onGeoQueryReady();
+            });
+        }
+    }
+
+    /**
+     * Removes an event listener. Removing the last listener stops listening to the rings of the query.
+     *
+     * @throws IllegalArgumentException If the listener was removed already or never added
+     *
+     * @param listener The listener to remove
+     */
+    public synchronized void removeGeoNearestEventListener(GeoNearestEventListener listener) {
+        if (!eventListeners.contains(listener)) {
+            throw new IllegalArgumentException("Trying to remove listener that was removed or not added!");
+        }
+        eventListeners.remove(listener);
+        if (eventListeners.isEmpty()) {
+            this.engine.stop();
+        }
+    }
+
+    /**
+     * Removes all event listeners from this GeoNearestQuery.
+     */
+    public synchronized void removeAllListeners() {
+        eventListeners.clear();
+        this.engine.stop();
+    }
+
+    /**
+     * @return The center of this query
+     */
+    public GeoLocation getCenter() {
+        return this.engine.getCenter();
+    }
+
+    /**
+     * @return The number of documents this query finds
+     */
+    public int getK() {
+        return this.engine.getK();
+    }
+
+    /**
+     * @return The radius of the circle explored while listening, in kilometers, or 0 if there are no listeners
+     */
+    public double getExploredRadius() {
+        return this.engine.getExploredRadius();
+    }
+}
@@ -0,0 +1,170 @@
+package com.koalap.geofirestore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A simple polygon given by its vertices. The edges are straight lines between latitudes and longitudes, as on a
+ * plate carrée map, which is close to the great circle for the short edges of service zones and delivery areas.
+ *
+ * The polygon must not intersect itself and must not cross the antimeridian. Locations exactly on the border may be
+ * inside or outside of it.
+ */
+public final class GeoPolygon implements GeoShape {
+
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final GeoRectangle bounds;
+
+    /**
+     * @throws IllegalArgumentException If there are fewer than 3 vertices or an edge spans more than 180 degrees of
+     * longitude, i.e. the polygon would cross the antimeridian
+     * @param vertices The vertices in order, the last vertex is connected to the first
+     */
+    public GeoPolygon(List<GeoLocation> vertices) {
+        int count = vertices.size();
+        if (count > 3 && vertices.get(0).equals(vertices.get(count - 1))) {
+            // The ring is closed explicitly
+            count--;
+        }
+        if (count < 3) {
+            throw new IllegalArgumentException("A polygon needs at least 3 vertices: " + vertices);
+        }
+        this.latitudes = new double[count];
+        this.longitudes = new double[count];
+        double south = 90;
+        double west = 180;
+        double north = -90;
+        double east = -180;
+        for (int i = 0; i < count; i++) {
+            GeoLocation vertex = vertices.get(i);
+            this.latitudes[i] = vertex.latitude;
+            this.longitudes[i] = vertex.longitude;
+            south = Math.min(south, vertex.latitude);
+            north = Math.max(north, vertex.latitude);
+            west = Math.min(west, vertex.longitude);
+            east = Math.max(east, vertex.longitude);
+            GeoLocation next = vertices.get((i + 1) % count);
+            if (Math.abs(next.longitude - vertex.longitude) > 180) {
+                throw new IllegalArgumentException("A polygon must not cross the antimeridian: " + vertices);
+            }
+        }
+        this.bounds = new GeoRectangle(south, west, north, east);
+    }
+
+    /**
+     * @param vertices The vertices in order, the last vertex is connected to the first
+     */
+    public GeoPolygon(GeoLocation... vertices) {
+        this(Arrays.asList(vertices));
+    }
+
+    /**
+     * @return The vertices of the polygon
+     */
+    public List<GeoLocation> getVertices() {
+        List<GeoLocation> vertices = new ArrayList<>(this.latitudes.length);
+        for (int i = 0; i < this.latitudes.length; i++) {
+            vertices.add(new GeoLocation(this.latitudes[i], this.longitudes[i]));
+        }
+        return Collections.unmodifiableList(vertices);
+    }
+
+    /**
+     * Tests the location with the even-odd rule: a ray to the east crosses the border an odd number of times.
+     */
+    @Override
+    public boolean contains(double latitude, double longitude) {
+        if (!this.bounds.contains(latitude, longitude)) {
+            return false;
+        }
+        boolean inside = false;
+        int count = this.latitudes.length;
+        for (int i = 0, j = count - 1; i < count; j = i++) {
+            double latitudeI = this.latitudes[i];
+            double latitudeJ = this.latitudes[j];
+            if ((latitudeI > latitude) != (latitudeJ > latitude)) {
+                double crossing = this.longitudes[i] + (latitude - latitudeI) *
+                        (this.longitudes[j] - this.longitudes[i]) / (latitudeJ - latitudeI);
+                if (longitude < crossing) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+
+    @Override
+    public int relate(double south, double west, double north, double east) {
+        if (this.bounds.relate(south, west, north, east) == DISJOINT) {
+            return DISJOINT;
+        }
+        int count = this.latitudes.length;
+        for (int i = 0, j = count - 1; i < count; j = i++) {
+            if (segmentIntersectsBox(this.latitudes[j], this.longitudes[j], this.latitudes[i], this.longitudes[i],
+                    south, west, north, east)) {
+                return INTERSECTS;
+            }
+        }
+        // The border does not enter the box, so the box is either completely inside or completely outside
+        return this.contains((south + north)/2, (west + east)/2) ? CONTAINS : DISJOINT;
+    }
+
+    /**
+     * Clips the segment to the box with the algorithm of Liang and Barsky.
+     */
+    private static boolean segmentIntersectsBox(double latitude1, double longitude1, double latitude2, double longitude2,
+                                                double south, double west, double north, double east) {
+        double deltaLongitude = longitude2 - longitude1;
+        double deltaLatitude = latitude2 - latitude1;
+        double[] p = { -deltaLongitude, deltaLongitude, -deltaLatitude, deltaLatitude };
+        double[] q = { longitude1 - west, east - longitude1, latitude1 - south, north - latitude1 };
+        double enter = 0;
+        double exit = 1;
+        for (int i = 0; i < 4; i++) {
+            if (p[i] == 0) {
+                if (q[i] < 0) {
+                    return false;
+                }
+            } else {
+                double t = q[i] / p[i];
+                if (p[i] < 0) {
+                    enter = Math.max(enter, t);
+                } else {
+                    exit = Math.min(exit, t);
+                }
+                if (enter > exit) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public GeoRectangle getBounds() {
+        return this.bounds;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        GeoPolygon that = (GeoPolygon) o;
+
+        return Arrays.equals(this.latitudes, that.latitudes) && Arrays.equals(this.longitudes, that.longitudes);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(this.latitudes) + Arrays.hashCode(this.longitudes);
+    }
+
+    @Override
+    public String toString() {
+        return "GeoPolygon" + this.getVertices();
+    }
+}
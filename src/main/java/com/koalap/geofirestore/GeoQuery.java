@@ -30,71 +30,79 @@ package com.koalap.geofirestore;
 import com.google.android.gms.tasks.Task;
 import com.google.android.gms.tasks.TaskCompletionSource;
 import com.google.android.gms.tasks.Tasks;
-import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.DocumentChange;
 import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.EventListener;
-import com.google.firebase.firestore.GeoPoint;
-import com.google.firebase.firestore.ListenerRegistration;
-import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QuerySnapshot;
-import com.koalap.geofirestore.core.GeoHash;
 import com.koalap.geofirestore.core.GeoHashQuery;
-import com.koalap.geofirestore.util.GeoUtils;
+import com.koalap.geofirestore.store.FirestoreGeoStore;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
 
 /**
- * A GeoQuery object can be used for geo queries in a given circle. The GeoQuery class is thread safe.
+ * A GeoQuery object can be used for geo queries in a given circle, or in a given {@link GeoShape}. The GeoQuery
+ * class is thread safe.
+ *
+ * The query logic runs in a {@link GeoQueryEngine} over the Firestore store of the GeoFire instance, this class
+ * turns its transitions into the events of the listeners. Changes of the criteria, snapshots of the ranges and
+ * changes of the listeners are updates of the engine, applied one at a time in order, so a thread changing the
+ * query never waits for a snapshot applied by another thread and the getters never wait at all. The getters of the
+ * criteria return the criteria as last set, even if another thread has not applied their update yet, and a listener
+ * changing the query from an event changes it after the update raising the event.
  */
 public class GeoQuery {
-    private static final int KILOMETER_TO_METER = 1000;
-    private ListenerRegistration removeListerRegistration;
-
-    private static class LocationInfo {
-        final GeoLocation location;
-        final boolean inGeoQuery;
-        final GeoHash geoHash;
-        final DocumentSnapshot documentSnapshot;
-
-        public LocationInfo(GeoLocation location, boolean inGeoQuery, DocumentSnapshot documentSnapshot) {
-            this.location = location;
-            this.inGeoQuery = inGeoQuery;
-            this.geoHash = new GeoHash(location);
-            this.documentSnapshot = documentSnapshot;
+    private final GeoFire geoFire;
+    private final EventRaiser eventRaiser;
+    // The added listeners, guarded by this query
+    private final Set<GeoQueryDataEventListener> eventListeners = new HashSet<>();
+    private final Set<GeoQueryBatchEventListener> batchEventListeners = new HashSet<>();
+    // The listeners receiving events, only used in the updates of the engine
+    private final Set<GeoQueryDataEventListener> activeEventListeners = new HashSet<>();
+    private final Set<GeoQueryBatchEventListener> activeBatchEventListeners = new HashSet<>();
+    // Transitions of the current update, delivered together by flushEvents
+    private List<GeoQueryEvent> pendingEvents = new ArrayList<>();
+    private final GeoQueryEngine<DocumentSnapshot> engine;
+    private volatile GeoQueryMetricsListener metricsListener;
+
+    private final GeoQueryEngine.Sink<DocumentSnapshot> engineSink = new GeoQueryEngine.Sink<DocumentSnapshot>() {
+        @Override
+        public void onDocumentEntered(DocumentSnapshot document, GeoLocation location) {
+            GeoQuery.this.addEvent(GeoQueryEvent.Type.ENTERED, document, location);
         }
-    }
 
-    private final EventListener<QuerySnapshot> queryListener = (queryDocumentSnapshots, e) -> {
-        for (DocumentChange dc : queryDocumentSnapshots.getDocumentChanges()) {
-            switch (dc.getType()) {
-                case ADDED:
-                    childAdded(dc.getDocument());
-                    break;
-                case MODIFIED:
-                    childChanged(dc.getDocument());
-                    break;
-                case REMOVED:
-                    childRemoved(dc.getDocument());
-                    break;
-            }
+        @Override
+        public void onDocumentMoved(DocumentSnapshot document, GeoLocation location) {
+            GeoQuery.this.addEvent(GeoQueryEvent.Type.MOVED, document, location);
         }
-    };
 
-    private final GeoFire geoFire;
-    private final Set<GeoQueryDataEventListener> eventListeners = new HashSet<>();
-    private final Map<GeoHashQuery, ListenerRegistration> firebaseQueries = new HashMap<>();
-    private final Set<GeoHashQuery> outstandingQueries = new HashSet<>();
-    private final Map<String, LocationInfo> locationInfos = new HashMap<>();
-    private GeoLocation center;
-    private double radius;
-    private Set<GeoHashQuery> queries;
+        @Override
+        public void onDocumentChanged(DocumentSnapshot document, GeoLocation location) {
+            GeoQuery.this.addEvent(GeoQueryEvent.Type.CHANGED, document, location);
+        }
+
+        @Override
+        public void onDocumentExited(DocumentSnapshot document, GeoLocation location) {
+            GeoQuery.this.addEvent(GeoQueryEvent.Type.EXITED, document, location);
+        }
+
+        @Override
+        public void onUpdateComplete() {
+            GeoQuery.this.flushEvents();
+        }
+
+        @Override
+        public void onReady() {
+            GeoQuery.this.fireReady();
+        }
+
+        @Override
+        public void onError(Exception exception) {
+            GeoQuery.this.fireError(exception);
+        }
+    };
 
     /**
      * Creates a new GeoQuery object centered at the given location and with the given radius.
@@ -105,185 +113,130 @@ public class GeoQuery {
      */
     GeoQuery(GeoFire geoFire, GeoLocation center, double radius) {
         this.geoFire = geoFire;
-        this.center = center;
-        // convert from kilometers to meters
-        this.radius = radius * KILOMETER_TO_METER; // Convert from kilometers to meters.
+        this.eventRaiser = geoFire.newEventChannel();
+        this.engine = new GeoQueryEngine<>(geoFire.getIndex(), center, radius, this.engineSink);
     }
 
-    private boolean locationIsInQuery(GeoLocation location) {
-        return GeoUtils.distance(location, center) <= this.radius;
-    }
-
-    private void updateLocationInfo(final DocumentSnapshot documentSnapshot, final GeoLocation location) {
-        String key = documentSnapshot.getId();
-        LocationInfo oldInfo = this.locationInfos.get(key);
-        boolean isNew = oldInfo == null;
-        final boolean changedLocation = oldInfo != null && !oldInfo.location.equals(location);
-        boolean wasInQuery = oldInfo != null && oldInfo.inGeoQuery;
-
-        boolean isInQuery = this.locationIsInQuery(location);
-        if ((isNew || !wasInQuery) && isInQuery) {
-            for (final GeoQueryDataEventListener listener: this.eventListeners) {
-                this.geoFire.raiseEvent(() -> listener.onDataEntered(documentSnapshot, location));
-            }
-        } else if (!isNew && isInQuery) {
-            for (final GeoQueryDataEventListener listener: this.eventListeners) {
-                this.geoFire.raiseEvent(() -> {
-                    if (changedLocation) {
-                        listener.onDataMoved(documentSnapshot, location);
-                    }
-
-                    listener.onDataChanged(documentSnapshot, location);
-                });
-            }
-        } else if (wasInQuery && !isInQuery) {
-            for (final GeoQueryDataEventListener listener: this.eventListeners) {
-                this.geoFire.raiseEvent(() -> listener.onDataExited(documentSnapshot));
-            }
-        }
-        LocationInfo newInfo = new LocationInfo(location, this.locationIsInQuery(location), documentSnapshot);
-        this.locationInfos.put(key, newInfo);
+    /**
+     * Creates a new GeoQuery object restricted to the given shape.
+     * @param geoFire The GeoFire object this GeoQuery uses
+     * @param shape The shape of this query
+     */
+    GeoQuery(GeoFire geoFire, GeoShape shape) {
+        this.geoFire = geoFire;
+        this.eventRaiser = geoFire.newEventChannel();
+        this.engine = new GeoQueryEngine<>(geoFire.getIndex(), shape, this.engineSink);
     }
 
-    private boolean geoHashQueriesContainGeoHash(GeoHash geoHash) {
-        if (this.queries == null) {
-            return false;
-        }
-        for (GeoHashQuery query: this.queries) {
-            if (query.containsGeoHash(geoHash)) {
-                return true;
-            }
-        }
-        return false;
+    private boolean hasListeners() {
+        return !this.activeEventListeners.isEmpty() || !this.activeBatchEventListeners.isEmpty();
     }
 
     private void reset() {
-        for (Map.Entry<GeoHashQuery, ListenerRegistration> entry: this.firebaseQueries.entrySet()) {
-            entry.getValue().remove();
-        }
-        this.outstandingQueries.clear();
-        this.firebaseQueries.clear();
-        this.queries = null;
-        this.locationInfos.clear();
+        this.engine.stop();
+        this.pendingEvents.clear();
     }
 
-    private boolean hasListeners() {
-        return !this.eventListeners.isEmpty();
+    /**
+     * Raises an event of this query, recording its dispatch if metrics are enabled.
+     */
+    private void raiseEvent(final Runnable event) {
+        final QueryMetrics metrics = this.engine.getMetricsRecorder();
+        if (metrics == null) {
+            this.eventRaiser.raiseEvent(event);
+            return;
+        }
+        final long raisedAt = System.nanoTime();
+        metrics.eventQueued();
+        this.eventRaiser.raiseEvent(() -> {
+            metrics.eventDispatched(System.nanoTime() - raisedAt);
+            event.run();
+        });
     }
 
-    private boolean canFireReady() {
-        return this.outstandingQueries.isEmpty();
+    private void addEvent(GeoQueryEvent.Type type, DocumentSnapshot documentSnapshot, GeoLocation location) {
+        this.pendingEvents.add(new GeoQueryEvent(type, documentSnapshot, location));
     }
 
-    private void checkAndFireReady() {
-        if (canFireReady()) {
-            for (final GeoQueryDataEventListener listener: this.eventListeners) {
-                this.geoFire.raiseEvent(listener::onGeoQueryReady);
-            }
+    /**
+     * Delivers the transitions of the current update to all listeners with a single raised event.
+     */
+    private void flushEvents() {
+        if (this.pendingEvents.isEmpty()) {
+            return;
         }
-    }
-
-    private void addValueToReadyListener(final Query firebase, final GeoHashQuery query) {
-        firebase.get().addOnCompleteListener(task -> {
-            if (task.isCanceled()) {
-                synchronized (GeoQuery.this) {
-                    for (final GeoQueryDataEventListener listener : GeoQuery.this.eventListeners) {
-                        GeoQuery.this.geoFire.raiseEvent(() -> listener.onGeoQueryError(task.getException()));
+        final GeoQueryEventBatch batch = new GeoQueryEventBatch(this.pendingEvents);
+        this.pendingEvents = new ArrayList<>();
+        final List<GeoQueryDataEventListener> listeners = new ArrayList<>(this.activeEventListeners);
+        final List<GeoQueryBatchEventListener> batchListeners = new ArrayList<>(this.activeBatchEventListeners);
+        this.raiseEvent(() -> {
+            if (!listeners.isEmpty()) {
+                for (GeoQueryEvent event: batch.getEvents()) {
+                    for (GeoQueryDataEventListener listener: listeners) {
+                        event.dispatch(listener);
                     }
                 }
             }
-            else {
-                synchronized (GeoQuery.this) {
-                    GeoQuery.this.outstandingQueries.remove(query);
-                    GeoQuery.this.checkAndFireReady();
-                }
+            for (GeoQueryBatchEventListener listener: batchListeners) {
+                listener.onGeoQueryBatch(batch);
             }
         });
     }
 
-    private void setupQueries() {
-        Set<GeoHashQuery> oldQueries = (this.queries == null) ? new HashSet<>() : this.queries;
-        Set<GeoHashQuery> newQueries = GeoHashQuery.queriesAtLocation(center, radius);
-        this.queries = newQueries;
-        for (GeoHashQuery query: oldQueries) {
-            if (!newQueries.contains(query)) {
-                firebaseQueries.get(query).remove();
-                firebaseQueries.remove(query);
-                outstandingQueries.remove(query);
+    private void fireError(final Exception error) {
+        final List<GeoQueryDataEventListener> listeners = new ArrayList<>(this.activeEventListeners);
+        final List<GeoQueryBatchEventListener> batchListeners = new ArrayList<>(this.activeBatchEventListeners);
+        this.raiseEvent(() -> {
+            for (GeoQueryDataEventListener listener: listeners) {
+                listener.onGeoQueryError(error);
             }
-        }
-        for (final GeoHashQuery query: newQueries) {
-            if (!oldQueries.contains(query)) {
-                outstandingQueries.add(query);
-                CollectionReference collectionReference = this.geoFire.getCollectionReference();
-                Query filterQuery = this.geoFire.getQuery();
-                Query firebaseQuery = (filterQuery != null ? filterQuery : collectionReference).orderBy("g").startAt(query.getStartValue()).endAt(query.getEndValue());
-                final ListenerRegistration registration = firebaseQuery.addSnapshotListener((queryDocumentSnapshots, e) -> {
-                    try {
-                        if (e != null) {
-                            throw e;
-                        }
-                        for (DocumentChange dc : queryDocumentSnapshots.getDocumentChanges()) {
-                            switch (dc.getType()) {
-                                case ADDED:
-                                    childAdded(dc.getDocument());
-                                    break;
-                                case MODIFIED:
-                                    childChanged(dc.getDocument());
-                                    break;
-                                case REMOVED:
-                                    childRemoved(dc.getDocument());
-                                    break;
-                            }
-                        }
-                    }
-                    catch (Exception exception) {
-                        exception.printStackTrace();
-                    }
-                });
-                addValueToReadyListener(firebaseQuery, query);
-                firebaseQueries.put(query, registration);
+            for (GeoQueryBatchEventListener listener: batchListeners) {
+                listener.onGeoQueryError(error);
             }
-        }
-        for (Map.Entry<String, LocationInfo> info: this.locationInfos.entrySet()) {
-            LocationInfo oldLocationInfo = info.getValue();
+        });
+    }
 
-            if (oldLocationInfo != null) {
-                updateLocationInfo(oldLocationInfo.documentSnapshot, oldLocationInfo.location);
+    private void fireReady() {
+        this.flushEvents();
+        final List<GeoQueryDataEventListener> listeners = new ArrayList<>(this.activeEventListeners);
+        final List<GeoQueryBatchEventListener> batchListeners = new ArrayList<>(this.activeBatchEventListeners);
+        this.raiseEvent(() -> {
+            for (GeoQueryDataEventListener listener: listeners) {
+                listener.onGeoQueryReady();
             }
-        }
-        // remove locations that are not part of the geo query anymore
-        Iterator<Map.Entry<String, LocationInfo>> it = this.locationInfos.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry<String, LocationInfo> entry = it.next();
-            if (!this.geoHashQueriesContainGeoHash(entry.getValue().geoHash)) {
-                it.remove();
+            for (GeoQueryBatchEventListener listener: batchListeners) {
+                listener.onGeoQueryReady();
             }
+        });
+        final GeoQueryMetricsListener metricsListener = this.metricsListener;
+        final GeoQueryMetrics metrics = this.engine.getMetrics();
+        if (metricsListener != null && metrics != null) {
+            this.raiseEvent(() -> metricsListener.onGeoQueryMetrics(metrics));
         }
-
-        checkAndFireReady();
     }
 
     private void setupQueriesForSingleValueEvent(final GeoQueryValueEventListener listener) {
-        Set<GeoHashQuery> newQueries = GeoHashQuery.queriesAtLocation(
-                center,
-                radius
-        );
+        // The callbacks run later, so they decide with the area of this call
+        final GeoQueryEngine.Area area = this.engine.getArea();
+        FirestoreGeoStore store = this.geoFire.getGeoStore();
         List<TaskCompletionSource<QuerySnapshot>> taskCompletionSourceList = new ArrayList<>();
-        List<DocumentChange> result = new ArrayList<>();
-        for (final GeoHashQuery query : newQueries) {
-            CollectionReference collectionReference = this.geoFire.getCollectionReference();
-            Query filterQuery = this.geoFire.getQuery();
-            Query firebaseQuery = (filterQuery != null ? filterQuery : collectionReference)
-                    .orderBy("g").startAt(query.getStartValue()).endAt(query.getEndValue());
-            TaskCompletionSource<QuerySnapshot> completionSource = new TaskCompletionSource<>();
-            firebaseQuery.get()
+        // The ranges may complete on different threads, so each fills its own slot
+        final List<List<DocumentChange>> rangeResults = new ArrayList<>(area.ranges.size());
+        for (final GeoHashQuery query : area.ranges) {
+            final TaskCompletionSource<QuerySnapshot> completionSource = new TaskCompletionSource<>();
+            final List<DocumentChange> rangeResult = new ArrayList<>();
+            rangeResults.add(rangeResult);
+            store.rangeQuery(query).get()
                     .addOnCompleteListener(task -> {
+                        if (!task.isSuccessful()) {
+                            completionSource.setException(task.getException());
+                            return;
+                        }
                         QuerySnapshot querySnapshot = task.getResult();
                         for (DocumentChange change : querySnapshot.getDocumentChanges()) {
-                            GeoPoint destination = (GeoPoint) change.getDocument().getData().get("l");
-                            if (locationIsInQuery(new GeoLocation(destination.getLatitude(), destination.getLongitude()))) {
-                                result.add(change);
+                            GeoLocation destination = FirestoreGeoStore.getLocationValue(change.getDocument());
+                            if (destination != null && area.contains(destination)) {
+                                rangeResult.add(change);
                             }
                         }
                         completionSource.setResult(querySnapshot);
@@ -294,49 +247,21 @@ public class GeoQuery {
         for (TaskCompletionSource<QuerySnapshot> task : taskCompletionSourceList) {
             tasks.add(task.getTask());
         }
+        // The completed tasks publish the slots they filled to this listener
         Tasks.whenAll(tasks).addOnCompleteListener(task -> {
+            if (!task.isSuccessful()) {
+                // The listener has no error callback
+                GeoFire.LOGGER.log(Level.WARNING, "A single value query failed", task.getException());
+                return;
+            }
+            List<DocumentChange> result = new ArrayList<>();
+            for (List<DocumentChange> rangeResult : rangeResults) {
+                result.addAll(rangeResult);
+            }
             listener.onDocumentChange(result);
         });
     }
 
-    private void childAdded(DocumentSnapshot documentSnapshot) {
-        GeoLocation location = GeoFire.getLocationValue(documentSnapshot);
-        if (location != null) {
-            this.updateLocationInfo(
-                    documentSnapshot,
-                    location
-            );
-        } else {
-            // throw an error in future?
-        }
-    }
-
-    private void childChanged(DocumentSnapshot documentSnapshot) {
-        GeoLocation location = GeoFire.getLocationValue(documentSnapshot);
-        if (location != null) {
-            this.updateLocationInfo(documentSnapshot, location);
-        } else {
-            // throw an error in future?
-        }
-    }
-
-    private void childRemoved(DocumentSnapshot documentSnapshot) {
-        final String key = documentSnapshot.getId();
-        final LocationInfo info = this.locationInfos.get(key);
-        if (info != null) {
-            removeListerRegistration = this.geoFire.getCollectionReference().document(key).addSnapshotListener((documentSnapshot1, e) -> {
-                removeListerRegistration.remove();
-                synchronized(GeoQuery.this) {
-                    final LocationInfo info1 = GeoQuery.this.locationInfos.get(key);
-                    GeoQuery.this.locationInfos.remove(key);
-                    for (final GeoQueryDataEventListener listener: GeoQuery.this.eventListeners) {
-                        GeoQuery.this.geoFire.raiseEvent(() -> listener.onDataExited(info1.documentSnapshot));
-                    }
-                }
-            });
-        }
-    }
-
     /**
      * Adds a new GeoQueryEventListener to this GeoQuery.
      *
@@ -344,7 +269,7 @@ public class GeoQuery {
      *
      * @param listener The listener to add
      */
-    public synchronized void addGeoQueryEventListener(final GeoQueryEventListener listener) {
+    public void addGeoQueryEventListener(final GeoQueryEventListener listener) {
         addGeoQueryDataEventListener(new EventListenerBridge(listener));
     }
 
@@ -354,38 +279,64 @@ public class GeoQuery {
      *
      * @param listener The listener to add
      */
-    public synchronized void addGeoQueryDataForSingleValueEvent(final GeoQueryDataValueEventListener listener) {
-        Set<GeoHashQuery> newQueries = GeoHashQuery.queriesAtLocation(
-                center,
-                radius
-        );
-        List<TaskCompletionSource<QuerySnapshot>> taskCompletionSourceList = new ArrayList<>();
-        List<GeoQueryDocumentChange> result = new ArrayList<>();
-        for (final GeoHashQuery query : newQueries) {
-            CollectionReference collectionReference = this.geoFire.getCollectionReference();
-            Query filterQuery = this.geoFire.getQuery();
-            Query firebaseQuery = (filterQuery != null ? filterQuery : collectionReference)
-                    .orderBy("g").startAt(query.getStartValue()).endAt(query.getEndValue());
-            TaskCompletionSource<QuerySnapshot> completionSource = new TaskCompletionSource<>();
-            firebaseQuery.get()
-                    .addOnCompleteListener(task -> {
-                        QuerySnapshot querySnapshot = task.getResult();
-                        for (DocumentChange dc : querySnapshot.getDocumentChanges()) {
-                            GeoPoint destination = (GeoPoint)dc.getDocument().getData().get("l");
-                            if (locationIsInQuery(new GeoLocation(destination.getLatitude(), destination.getLongitude()))) {
-                                result.add(new GeoQueryDocumentChange(dc.getDocument(), destination));
-                            }
-                        }
-                        completionSource.setResult(querySnapshot);
-                    });
-            taskCompletionSourceList.add(completionSource);
-        }
-        List<Task<QuerySnapshot>> tasks = new ArrayList<>();
-        for (TaskCompletionSource<QuerySnapshot> task : taskCompletionSourceList) {
-            tasks.add(task.getTask());
-        }
-        Tasks.whenAll(tasks).addOnCompleteListener(task -> {
-            listener.onDocumentChange(result);
+    public void addGeoQueryDataForSingleValueEvent(final GeoQueryDataValueEventListener listener) {
+        this.engine.getOnce((matches, exception) -> {
+            if (exception != null) {
+                // The listener has no error callback
+                GeoFire.LOGGER.log(Level.WARNING, "A single value query failed", exception);
+                return;
+            }
+            listener.onDocumentChange(GeoQueryDocumentChange.fromMatches(matches));
+        });
+    }
+
+    /**
+     * Reads the documents in this query once and streams them to the listener: the documents of every geohash
+     * range as soon as it was read, then all documents ordered by their distance to the center. The listener is
+     * called on the event thread of this query. There is no need to remove this listener after usage.
+     *
+     * @param listener The listener receiving the documents
+     */
+    public void addGeoQueryStreamForSingleValueEvent(final GeoQueryStreamEventListener listener) {
+        this.engine.streamOnce(new GeoQueryEngine.StreamCallback<DocumentSnapshot>() {
+            @Override
+            public void onRange(List<GeoQueryEngine.Match<DocumentSnapshot>> matches) {
+                final List<GeoQueryDocumentChange> documentChanges = GeoQueryDocumentChange.fromMatches(matches);
+                GeoQuery.this.raiseEvent(() -> listener.onDocumentsLoaded(documentChanges));
+            }
+
+            @Override
+            public void onComplete(List<GeoQueryEngine.Match<DocumentSnapshot>> matches, final Exception exception) {
+                if (exception != null) {
+                    GeoQuery.this.raiseEvent(() -> listener.onGeoQueryError(exception));
+                    return;
+                }
+                final List<GeoQueryDocumentChange> documentChanges = GeoQueryDocumentChange.fromMatches(matches);
+                GeoQuery.this.raiseEvent(() -> listener.onGeoQueryComplete(documentChanges));
+            }
+        });
+    }
+
+    /**
+     * Reads one page of the documents in this query once, nearest first. Only the parts of the query that can hold
+     * documents of the page are read, so paging through a large query reads it step by step. Pass the token of a
+     * page to read the next page; its pages keep the center and radius of its first page. The listener is called on
+     * the event thread of this query.
+     *
+     * @throws IllegalArgumentException If the page size is smaller than 1 or the token is of another GeoFire
+     * @param pageSize The maximal number of documents of the page
+     * @param pageToken The token of the previous page, or null for the first page
+     * @param listener The listener receiving the page
+     */
+    public void getPage(int pageSize, GeoQueryPageToken pageToken, final GeoQueryPageListener listener) {
+        this.engine.getPage(pageSize, pageToken, (page, exception) -> {
+            if (exception != null) {
+                this.raiseEvent(() -> listener.onGeoQueryError(exception));
+                return;
+            }
+            final List<GeoQueryDocumentChange> documentChanges = GeoQueryDocumentChange.fromMatches(page.getMatches());
+            final GeoQueryPageToken nextPageToken = page.getNextPageToken();
+            this.raiseEvent(() -> listener.onPage(documentChanges, nextPageToken));
         });
     }
 
@@ -396,25 +347,74 @@ public class GeoQuery {
      *
      * @param listener The listener to add
      */
-    public synchronized void addGeoQueryDataEventListener(final GeoQueryDataEventListener listener) {
-        if (eventListeners.contains(listener)) {
-            throw new IllegalArgumentException("Added the same listener twice to a GeoQuery!");
-        }
-        eventListeners.add(listener);
-        if (this.queries == null) {
-            this.setupQueries();
-        } else {
-            for (final Map.Entry<String, LocationInfo> entry: this.locationInfos.entrySet()) {
-                final LocationInfo info = entry.getValue();
-
-                if (info.inGeoQuery) {
-                    this.geoFire.raiseEvent(() -> listener.onDataEntered(info.documentSnapshot, info.location));
-                }
+    public void addGeoQueryDataEventListener(final GeoQueryDataEventListener listener) {
+        synchronized (this) {
+            if (!this.eventListeners.add(listener)) {
+                throw new IllegalArgumentException("Added the same listener twice to a GeoQuery!");
             }
-            if (this.canFireReady()) {
-                this.geoFire.raiseEvent(listener::onGeoQueryReady);
+            // The listener receives the documents in the query at the moment of its update and every event after it
+            this.engine.enqueue(() -> {
+                this.activeEventListeners.add(listener);
+                if (!this.engine.isStarted()) {
+                    this.engine.start();
+                } else {
+                    final GeoQueryEventBatch batch = this.currentEntries();
+                    final boolean ready = this.engine.isReady();
+                    this.raiseEvent(() -> {
+                        for (GeoQueryEvent event: batch.getEvents()) {
+                            event.dispatch(listener);
+                        }
+                        if (ready) {
+                            listener.onGeoQueryReady();
+                        }
+                    });
+                }
+            });
+        }
+        this.engine.applyUpdates();
+    }
+
+    /**
+     * Adds a new GeoQueryBatchEventListener to this GeoQuery.
+     *
+     * @throws IllegalArgumentException If this listener was already added
+     *
+     * @param listener The listener to add
+     */
+    public void addGeoQueryBatchEventListener(final GeoQueryBatchEventListener listener) {
+        synchronized (this) {
+            if (!this.batchEventListeners.add(listener)) {
+                throw new IllegalArgumentException("Added the same listener twice to a GeoQuery!");
             }
+            this.engine.enqueue(() -> {
+                this.activeBatchEventListeners.add(listener);
+                if (!this.engine.isStarted()) {
+                    this.engine.start();
+                } else {
+                    final GeoQueryEventBatch batch = this.currentEntries();
+                    final boolean ready = this.engine.isReady();
+                    this.raiseEvent(() -> {
+                        if (!batch.isEmpty()) {
+                            listener.onGeoQueryBatch(batch);
+                        }
+                        if (ready) {
+                            listener.onGeoQueryReady();
+                        }
+                    });
+                }
+            });
         }
+        this.engine.applyUpdates();
+    }
+
+    /**
+     * @return A batch with an ENTERED event for every location currently in the query, must be called in an update
+     */
+    private GeoQueryEventBatch currentEntries() {
+        final List<GeoQueryEvent> events = new ArrayList<>();
+        this.engine.forEachEntry((document, location) ->
+                events.add(new GeoQueryEvent(GeoQueryEvent.Type.ENTERED, document, location)));
+        return new GeoQueryEventBatch(events);
     }
 
     /**
@@ -423,7 +423,7 @@ public class GeoQuery {
      *
      * @param listener The listener to add
      */
-    public synchronized void addGeoQueryForSingleValueEvent(final GeoQueryValueEventListener listener) {
+    public void addGeoQueryForSingleValueEvent(final GeoQueryValueEventListener listener) {
         this.setupQueriesForSingleValueEvent(listener);
     }
 
@@ -433,7 +433,7 @@ public class GeoQuery {
      * @param listener The listener to remove
      * @throws IllegalArgumentException If the listener was removed already or never added
      */
-    public synchronized void removeGeoQueryEventListener(GeoQueryEventListener listener) {
+    public void removeGeoQueryEventListener(GeoQueryEventListener listener) {
         removeGeoQueryEventListener(new EventListenerBridge(listener));
     }
 
@@ -444,62 +444,168 @@ public class GeoQuery {
      *
      * @param listener The listener to remove
      */
-    public synchronized void removeGeoQueryEventListener(final GeoQueryDataEventListener listener) {
-        if (!eventListeners.contains(listener)) {
-            throw new IllegalArgumentException("Trying to remove listener that was removed or not added!");
+    public void removeGeoQueryEventListener(final GeoQueryDataEventListener listener) {
+        synchronized (this) {
+            if (!this.eventListeners.remove(listener)) {
+                throw new IllegalArgumentException("Trying to remove listener that was removed or not added!");
+            }
+            this.engine.enqueue(() -> {
+                this.activeEventListeners.remove(listener);
+                if (!this.hasListeners()) {
+                    this.reset();
+                }
+            });
         }
-        eventListeners.remove(listener);
-        if (!this.hasListeners()) {
-            reset();
+        this.engine.applyUpdates();
+    }
+
+    /**
+     * Removes a batch event listener.
+     *
+     * @throws IllegalArgumentException If the listener was removed already or never added
+     *
+     * @param listener The listener to remove
+     */
+    public void removeGeoQueryBatchEventListener(final GeoQueryBatchEventListener listener) {
+        synchronized (this) {
+            if (!this.batchEventListeners.remove(listener)) {
+                throw new IllegalArgumentException("Trying to remove listener that was removed or not added!");
+            }
+            this.engine.enqueue(() -> {
+                this.activeBatchEventListeners.remove(listener);
+                if (!this.hasListeners()) {
+                    this.reset();
+                }
+            });
         }
+        this.engine.applyUpdates();
     }
 
     /**
      * Removes all event listeners from this GeoQuery.
      */
-    public synchronized void removeAllListeners() {
-        eventListeners.clear();
-        reset();
+    public void removeAllListeners() {
+        synchronized (this) {
+            this.eventListeners.clear();
+            this.batchEventListeners.clear();
+            this.engine.enqueue(() -> {
+                this.activeEventListeners.clear();
+                this.activeBatchEventListeners.clear();
+                this.reset();
+            });
+        }
+        this.engine.applyUpdates();
+    }
+
+    /**
+     * Returns the metrics of this query. Metrics are only recorded for queries created while
+     * {@link GeoFire#isMetricsEnabled()} is true.
+     * @return A snapshot of the metrics of this query, or null if metrics are disabled for this query
+     */
+    public GeoQueryMetrics getMetrics() {
+        return this.engine.getMetrics();
+    }
+
+    /**
+     * Sets the listener receiving the metrics of this query every time it becomes ready. The listener is called
+     * with the event raiser of the query, and only if metrics are enabled for this query.
+     * @param listener The listener, or null to remove it
+     */
+    public void setMetricsListener(GeoQueryMetricsListener listener) {
+        this.metricsListener = listener;
+    }
+
+    /**
+     * Returns the shape of this query.
+     * @return The current shape, or null if this query is a circle
+     */
+    public GeoShape getShape() {
+        return this.engine.getShape();
+    }
+
+    /**
+     * Restricts this query to a shape and triggers new events if necessary. Setting the center or the radius
+     * afterwards turns the query into a circle again.
+     * @param shape The new shape
+     */
+    public void setShape(GeoShape shape) {
+        this.engine.setShape(shape);
     }
 
     /**
-     * Returns the current center of this query.
+     * Returns the current center of this query. The center of a query restricted to a shape is the middle of the
+     * bounds of the shape.
      * @return The current center
      */
-    public synchronized GeoLocation getCenter() {
-        return center;
+    public GeoLocation getCenter() {
+        return this.engine.getCenter();
     }
 
     /**
      * Sets the new center of this query and triggers new events if necessary.
      * @param center The new center
      */
-    public synchronized void setCenter(GeoLocation center) {
-        this.center = center;
-        if (this.hasListeners()) {
-            this.setupQueries();
-        }
+    public void setCenter(GeoLocation center) {
+        this.engine.setCenter(center);
+    }
+
+    /**
+     * @return The debounce window of center updates, in milliseconds
+     */
+    public long getDebounceMillis() {
+        return this.engine.getDebounceMillis();
+    }
+
+    /**
+     * @return The hysteresis of the listened ranges, as a fraction of the radius
+     */
+    public double getHysteresis() {
+        return this.engine.getHysteresis();
+    }
+
+    /**
+     * Configures this query for a center that is updated on every location fix. Center updates within the
+     * debounce window after an applied update collapse into one update at the end of the window. With a hysteresis
+     * the query listens to the ranges around its circle widened by that fraction of the radius and keeps them until
+     * the circle has left the widened circle, so crossing a geohash cell border back and forth does not reopen
+     * listeners. Both are off by default.
+     * @param debounceMillis The debounce window in milliseconds, or 0 to apply every update right away
+     * @param hysteresis The hysteresis as a fraction of the radius, e.g. 0.25, or 0 to cover the circle only
+     */
+    public void setMovingCenter(long debounceMillis, double hysteresis) {
+        this.engine.setMovingCenter(debounceMillis, hysteresis);
+    }
+
+    /**
+     * @return The function measuring the distances of locations to the center of this query
+     */
+    public DistanceFunction getDistanceFunction() {
+        return this.engine.getDistanceFunction();
+    }
+
+    /**
+     * Sets the function measuring the distances of locations to the center of this query and triggers new events
+     * if necessary. Queries start with the distance function of their GeoFire instance.
+     * @param distanceFunction The new distance function, see {@link DistanceFunctions}
+     */
+    public void setDistanceFunction(DistanceFunction distanceFunction) {
+        this.engine.setDistanceFunction(distanceFunction);
     }
 
     /**
      * Returns the radius of the query, in kilometers.
      * @return The radius of this query, in kilometers
      */
-    public synchronized double getRadius() {
-        // convert from meters
-        return radius / 1000;
+    public double getRadius() {
+        return this.engine.getRadius();
     }
 
     /**
      * Sets the radius of this query, in kilometers, and triggers new events if necessary.
      * @param radius The new radius value of this query in kilometers
      */
-    public synchronized void setRadius(double radius) {
-        // convert to meters
-        this.radius = radius * 1000;
-        if (this.hasListeners()) {
-            this.setupQueries();
-        }
+    public void setRadius(double radius) {
+        this.engine.setRadius(radius);
     }
 
     /**
@@ -507,12 +613,7 @@ public class GeoQuery {
      * @param center The new center
      * @param radius The new radius value of this query in kilometers
      */
-    public synchronized void setLocation(GeoLocation center, double radius) {
-        this.center = center;
-        // convert radius to meters
-        this.radius = radius * 1000;
-        if (this.hasListeners()) {
-            this.setupQueries();
-        }
+    public void setLocation(GeoLocation center, double radius) {
+        this.engine.setLocation(center, radius);
     }
 }
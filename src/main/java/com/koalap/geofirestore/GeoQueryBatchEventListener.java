@@ -0,0 +1,30 @@
+package com.koalap.geofirestore;
+
+/**
+ * GeoQuery notifies listeners with this interface about all documentSnapshots that entered, exited, moved or
+ * changed within the query during one update, in a single call.
+ */
+public interface GeoQueryBatchEventListener {
+
+    /**
+     * Called with the transitions of one update of the query, e.g. all changes of one Firestore snapshot. When the
+     * listener is added, it is called once with an ENTERED event for every documentSnapshot currently in the
+     * search area.
+     *
+     * @param batch The transitions in the order they happened, never empty
+     */
+    void onGeoQueryBatch(GeoQueryEventBatch batch);
+
+    /**
+     * Called once all initial GeoFire data has been loaded and the relevant batches have been delivered for this
+     * query. Every time the query criteria is updated, this observer will be called after the updated query has
+     * delivered the appropriate batch.
+     */
+    void onGeoQueryReady();
+
+    /**
+     * Called in case an error occurred while retrieving locations for a query, e.g. violating security rules.
+     * @param error The error that occurred while retrieving the query
+     */
+    void onGeoQueryError(Exception error);
+}
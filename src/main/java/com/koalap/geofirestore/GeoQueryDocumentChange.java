@@ -1,13 +1,37 @@
 package com.koalap.geofirestore;
 
+import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.GeoPoint;
 import com.google.firebase.firestore.QueryDocumentSnapshot;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class GeoQueryDocumentChange {
     public GeoQueryDocumentChange(final QueryDocumentSnapshot documentSnapshot,
                                   final GeoPoint geoPoint) {
+        this(documentSnapshot, geoPoint, Double.NaN);
+    }
+
+    /**
+     * @param distance The distance of the document to the center of the query, in kilometers
+     */
+    public GeoQueryDocumentChange(final QueryDocumentSnapshot documentSnapshot,
+                                  final GeoPoint geoPoint,
+                                  final double distance) {
         this.documentSnapshot = documentSnapshot;
         this.geoPoint = geoPoint;
+        this.distance = distance;
+    }
+
+    static List<GeoQueryDocumentChange> fromMatches(List<GeoQueryEngine.Match<DocumentSnapshot>> matches) {
+        List<GeoQueryDocumentChange> documentChanges = new ArrayList<>(matches.size());
+        for (GeoQueryEngine.Match<DocumentSnapshot> match: matches) {
+            GeoLocation location = match.getLocation();
+            documentChanges.add(new GeoQueryDocumentChange((QueryDocumentSnapshot) match.getDocument(),
+                    new GeoPoint(location.latitude, location.longitude), match.getDistance()));
+        }
+        return documentChanges;
     }
 
     public QueryDocumentSnapshot getDocumentSnapshot() {
@@ -26,6 +50,18 @@ public class GeoQueryDocumentChange {
         this.geoPoint = geoPoint;
     }
 
+    /**
+     * @return The distance of the document to the center of the query in kilometers, or NaN if it is not known
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+    public void setDistance(final double distance) {
+        this.distance = distance;
+    }
+
     private QueryDocumentSnapshot documentSnapshot;
     private GeoPoint geoPoint;
+    private double distance;
 }
@@ -0,0 +1,1437 @@
+package com.koalap.geofirestore;
+
+import com.koalap.geofirestore.core.CircleBounds;
+import com.koalap.geofirestore.core.CoveringCostModel;
+import com.koalap.geofirestore.core.GeoHashQuery;
+import com.koalap.geofirestore.core.LocationIndex;
+import com.koalap.geofirestore.core.LongGeoHash;
+import com.koalap.geofirestore.core.ShapeCovering;
+import com.koalap.geofirestore.store.GeoStore;
+import com.koalap.geofirestore.util.GeoUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The query logic of a GeoQuery over any GeoStore: it listens to the geohash ranges covering a circle, tracks the
+ * documents in these ranges and reports which documents enter, move in, change in and exit the circle.
+ *
+ * Instead of a circle the query can be restricted to a {@link GeoShape}. It then listens to the ranges covering the
+ * shape and decides with the shape which documents are in the query; its center and radius are those of the circle
+ * around the bounds of the shape, and distances are measured from that center.
+ *
+ * A query following a moving device can debounce its center updates and keep its ranges with a hysteresis, see
+ * {@link #setMovingCenter}.
+ *
+ * The engine has a single writer: every change of its criteria and every snapshot of a range is an update, and the
+ * updates are applied one after another in the order they were submitted, see {@link #submit}. A thread submitting
+ * an update while another thread applies updates does not wait, the other thread applies it after the updates
+ * before it. The sink is only called within updates and must not block. The getters of the criteria return the
+ * criteria as last set, even before their update was applied, and the single reads use them as well. The other
+ * getters read the state after the last applied update. No getter waits. The engine is created by
+ * {@link GeoIndex#queryAtLocation}.
+ *
+ * @param <D> The type of the documents of the store
+ */
+public final class GeoQueryEngine<D> {
+
+    /**
+     * Receives the transitions of the documents of a query engine.
+     *
+     * @param <D> The type of the documents of the store
+     */
+    public interface Sink<D> {
+        void onDocumentEntered(D document, GeoLocation location);
+
+        void onDocumentMoved(D document, GeoLocation location);
+
+        void onDocumentChanged(D document, GeoLocation location);
+
+        /**
+         * @param location The last known location of the document
+         */
+        void onDocumentExited(D document, GeoLocation location);
+
+        /**
+         * Called after the transitions of one update, e.g. one snapshot of a range or one move of the center.
+         */
+        void onUpdateComplete();
+
+        /**
+         * Called whenever all ranges of the query have delivered their initial documents.
+         */
+        void onReady();
+
+        void onError(Exception exception);
+    }
+
+    /**
+     * Visits the documents in a query.
+     *
+     * @param <D> The type of the documents of the store
+     */
+    public interface EntryVisitor<D> {
+        void visit(D document, GeoLocation location);
+    }
+
+    /**
+     * Receives the results of a single read of a query range by range, see {@link #streamOnce}.
+     *
+     * @param <D> The type of the documents of the store
+     */
+    public interface StreamCallback<D> {
+        /**
+         * Called with the matches of every range with matches as soon as it was read, unless a range failed
+         * before. The calls do not overlap.
+         *
+         * @param matches The matches of the range ordered by their distance
+         */
+        void onRange(List<Match<D>> matches);
+
+        /**
+         * Called once after all ranges were read.
+         *
+         * @param matches All matches ordered by their distance, or null if a range failed
+         * @param exception The exception of the first failed range, or null
+         */
+        void onComplete(List<Match<D>> matches, Exception exception);
+    }
+
+    /**
+     * A document found by a single read of a query.
+     *
+     * @param <D> The type of the documents of the store
+     */
+    public static final class Match<D> {
+        private final D document;
+        private final GeoLocation location;
+        private final double distance;
+
+        Match(D document, GeoLocation location, double distance) {
+            this.document = document;
+            this.location = location;
+            this.distance = distance;
+        }
+
+        public D getDocument() {
+            return this.document;
+        }
+
+        public GeoLocation getLocation() {
+            return this.location;
+        }
+
+        /**
+         * @return The distance of the document to the center of the query, in kilometers
+         */
+        public double getDistance() {
+            return this.distance;
+        }
+    }
+
+    /**
+     * A page of a paginated single read of a query, see {@link #getPage}.
+     *
+     * @param <D> The type of the documents of the store
+     */
+    public static final class Page<D> {
+        private final List<Match<D>> matches;
+        private final GeoQueryPageToken nextPageToken;
+
+        Page(List<Match<D>> matches, GeoQueryPageToken nextPageToken) {
+            this.matches = matches;
+            this.nextPageToken = nextPageToken;
+        }
+
+        /**
+         * @return The matches of the page ordered by their distance
+         */
+        public List<Match<D>> getMatches() {
+            return this.matches;
+        }
+
+        /**
+         * @return The token of the next page, or null if this is the last page
+         */
+        public GeoQueryPageToken getNextPageToken() {
+            return this.nextPageToken;
+        }
+    }
+
+    /**
+     * The circle or shape of a query at one moment, with the ranges covering it. Reads that complete later decide
+     * with the area of the moment they were started.
+     */
+    static final class Area {
+        final List<GeoHashQuery> ranges;
+        // The shape of the query, or null for a circle
+        final GeoShape shape;
+        final GeoLocation center;
+        final CircleBounds bounds;
+        final DistanceFunction.CenterDistance centerDistance;
+        // The maximal relative deviation of the distance function from the haversine distance
+        final double deviation;
+        final double radius;
+
+        Area(List<GeoHashQuery> ranges, GeoShape shape, GeoLocation center, CircleBounds bounds,
+             DistanceFunction.CenterDistance centerDistance, double deviation, double radius) {
+            this.ranges = ranges;
+            this.shape = shape;
+            this.center = center;
+            this.bounds = bounds;
+            this.centerDistance = centerDistance;
+            this.deviation = deviation;
+            this.radius = radius;
+        }
+
+        boolean contains(GeoLocation location) {
+            if (this.shape != null) {
+                return this.shape.contains(location.latitude, location.longitude);
+            }
+            return locationIsInCircle(location, this.bounds, this.centerDistance, this.radius);
+        }
+
+        /**
+         * @return The distance of the location to the center in meters, or NaN if it is not in the area
+         */
+        double distanceIfContains(GeoLocation location) {
+            if (this.shape != null) {
+                return this.shape.contains(location.latitude, location.longitude) ?
+                        this.centerDistance.distanceTo(location.latitude, location.longitude) : Double.NaN;
+            }
+            if (this.bounds.classify(location.latitude, location.longitude) == CircleBounds.OUTSIDE) {
+                return Double.NaN;
+            }
+            double distance = this.centerDistance.distanceTo(location.latitude, location.longitude);
+            return distance <= this.radius ? distance : Double.NaN;
+        }
+    }
+
+    private static final int KILOMETER_TO_METER = 1000;
+
+    private static final Comparator<Match<?>> BY_DISTANCE = new Comparator<Match<?>>() {
+        @Override
+        public int compare(Match<?> match1, Match<?> match2) {
+            return Double.compare(match1.distance, match2.distance);
+        }
+    };
+
+    // Time after which the idle thread of the timer is released
+    private static final long TIMER_KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * The timer of the debounce windows and of the ranges waiting for the server of their store.
+     */
+    static final class TimerHolder {
+        static final ScheduledThreadPoolExecutor TIMER = createTimer();
+    }
+
+    // Fraction of the radius the center may drift from the reference center before all distances are recomputed
+    private static final double REBASE_DRIFT_FRACTION = 1.0/16;
+    // Slack in meters for rounding errors when bounding distances with the triangle inequality
+    private static final double DISTANCE_SLACK = 0.01;
+
+    /**
+     * The state of the engine after an update, read by other threads without waiting for the updates. Immutable.
+     */
+    private static final class State {
+        final boolean started;
+        final boolean ready;
+        final int trackedCount;
+
+        State(GeoQueryEngine<?> engine) {
+            this.started = engine.queries != null;
+            this.ready = this.started && engine.canFireReady();
+            this.trackedCount = engine.locationInfos.size();
+        }
+    }
+
+    /**
+     * The criteria of the query as last set, including the changes whose updates were not applied yet. Immutable.
+     */
+    private static final class Criteria {
+        final GeoLocation center;
+        // The radius in meters
+        final double radius;
+        // The shape of the query and the ranges covering it, or null for a circle
+        final GeoShape shape;
+        final List<GeoHashQuery> shapeCovering;
+        final DistanceFunction distanceFunction;
+        final long debounceMillis;
+        final double hysteresis;
+
+        Criteria(GeoLocation center, double radius, GeoShape shape, List<GeoHashQuery> shapeCovering,
+                 DistanceFunction distanceFunction, long debounceMillis, double hysteresis) {
+            this.center = center;
+            this.radius = radius;
+            this.shape = shape;
+            this.shapeCovering = shapeCovering;
+            this.distanceFunction = distanceFunction;
+            this.debounceMillis = debounceMillis;
+            this.hysteresis = hysteresis;
+        }
+
+        Criteria withCircle(GeoLocation center, double radius) {
+            return new Criteria(center, radius, null, null, this.distanceFunction, this.debounceMillis,
+                    this.hysteresis);
+        }
+
+        Criteria withShape(GeoShape shape, List<GeoHashQuery> shapeCovering) {
+            return new Criteria(shape.getBounds().getCenter(), shapeRadius(shape), shape, shapeCovering,
+                    this.distanceFunction, this.debounceMillis, this.hysteresis);
+        }
+
+        Criteria withDistanceFunction(DistanceFunction distanceFunction) {
+            return new Criteria(this.center, this.radius, this.shape, this.shapeCovering, distanceFunction,
+                    this.debounceMillis, this.hysteresis);
+        }
+
+        Criteria withMovingCenter(long debounceMillis, double hysteresis) {
+            return new Criteria(this.center, this.radius, this.shape, this.shapeCovering, this.distanceFunction,
+                    debounceMillis, hysteresis);
+        }
+    }
+
+    private final GeoIndex<D> index;
+    private final GeoStore<D> store;
+    private final Sink<D> sink;
+    // The updates waiting to be applied, the updates submitted within the current update, and the thread applying
+    // updates right now, guarded by the first queue
+    private final ArrayDeque<Runnable> updates = new ArrayDeque<>();
+    private final ArrayDeque<Runnable> nestedUpdates = new ArrayDeque<>();
+    private Thread updatingThread;
+    // The state after the last applied update
+    private volatile State state;
+    // The criteria as last set, only written while holding the queue so that they change in the order of the updates
+    private volatile Criteria criteria;
+    // The metrics of this query, or null if metrics are disabled
+    private final QueryMetrics metrics;
+    // When the ranges of the query last changed while it was ready, or -1
+    private long readyPendingSince = -1;
+    private final Map<GeoHashQuery, RangeListenerPool<D>.Subscription> rangeSubscriptions = new HashMap<>();
+    private final Set<GeoHashQuery> outstandingQueries = new HashSet<>();
+    private final LocationIndex<D> locationInfos = new LocationIndex<>();
+    // Whether transitions were reported since the last onUpdateComplete
+    private boolean pendingUpdate;
+    private GeoLocation center;
+    private double radius;
+    private DistanceFunction distanceFunction;
+    // The shape of the query and the ranges covering it, or null for a circle
+    private GeoShape shape;
+    private List<GeoHashQuery> shapeCovering;
+    // The distances to the center, with the terms of the center precomputed
+    private DistanceFunction.CenterDistance centerDistance;
+    // The boxes deciding most locations without their distance, see prepareCircle
+    private CircleBounds circleBounds;
+    private List<GeoHashQuery> queries;
+    // The center all reference distances are measured from, and its distance to the center of the last evaluation
+    private GeoLocation referenceCenter;
+    private DistanceFunction.CenterDistance referenceCenterDistance;
+    private double referenceDrift;
+    // The radius of the last evaluation, in meters
+    private double evaluatedRadius;
+    // The debounce window of center updates in milliseconds and the hysteresis of the ranges, see setMovingCenter
+    private long debounceMillis;
+    private double hysteresis;
+    // The circle the ranges of a moving query were computed for, or null
+    private GeoLocation coveredCenter;
+    private double coveredRadius;
+    // Whether a center update was applied within the debounce window, and the latest update held back since
+    private boolean debouncing;
+    private GeoLocation pendingCenter;
+    // Incremented to invalidate the scheduled end of the debounce window
+    private int debounceGeneration;
+
+    private final RangeListenerPool.Subscriber<D> rangeSubscriber = new RangeListenerPool.Subscriber<D>() {
+        @Override
+        public void onRangeChanges(final RangeListenerPool<D>.Subscription subscription,
+                                   final List<GeoStore.Change<D>> changes) {
+            GeoQueryEngine.this.submit(() -> {
+                if (!subscription.isRemoved()) {
+                    GeoQueryEngine.this.applyChanges(subscription.getRange(), changes);
+                }
+            });
+        }
+
+        @Override
+        public void onRangeReady(final RangeListenerPool<D>.Subscription subscription) {
+            GeoQueryEngine.this.submit(() -> {
+                if (!subscription.isRemoved() && GeoQueryEngine.this.outstandingQueries.remove(subscription.getRange())) {
+                    GeoQueryEngine.this.checkAndFireReady();
+                }
+            });
+        }
+
+        @Override
+        public void onRangeError(final RangeListenerPool<D>.Subscription subscription, final Exception error) {
+            GeoQueryEngine.this.submit(() -> {
+                if (!subscription.isRemoved()) {
+                    GeoQueryEngine.this.sink.onError(error);
+                }
+            });
+        }
+    };
+
+    /**
+     * @param index The index this engine queries
+     * @param center The center of the query
+     * @param radius The radius of the query, in kilometers
+     * @param sink The sink receiving the transitions
+     */
+    GeoQueryEngine(GeoIndex<D> index, GeoLocation center, double radius, Sink<D> sink) {
+        this.index = index;
+        this.store = index.getStore();
+        this.sink = sink;
+        this.metrics = index.newQueryMetrics();
+        this.center = center;
+        this.radius = radius * KILOMETER_TO_METER;
+        this.distanceFunction = index.getDistanceFunction();
+        this.prepareCircle();
+        this.state = new State(this);
+        this.criteria = new Criteria(this.center, this.radius, null, null, this.distanceFunction, 0, 0);
+    }
+
+    /**
+     * @param shape The shape of the query
+     */
+    GeoQueryEngine(GeoIndex<D> index, GeoShape shape, Sink<D> sink) {
+        this(index, shape.getBounds().getCenter(), 0, sink);
+        this.criteria = this.criteria.withShape(shape, ShapeCovering.covering(shape));
+        this.applyShape(shape, this.criteria.shapeCovering);
+        this.state = new State(this);
+    }
+
+    /**
+     * Applies an update of the query. Updates are applied one at a time in the order they were submitted, and only
+     * they change the engine and call its sink. If no other thread applies updates right now, the calling thread
+     * applies this update and the updates submitted meanwhile before it returns. Otherwise the update is queued and
+     * the other thread applies it. Within an update, e.g. in a sink calling back into the engine, a submitted update
+     * is applied right after the current update, before the updates submitted by other threads.
+     *
+     * @param update The update, which may use every method of the engine
+     */
+    public void submit(Runnable update) {
+        this.enqueue(update);
+        this.applyUpdates();
+    }
+
+    /**
+     * Queues an update without applying it, see {@link #applyUpdates}. Callers queue updates this way to keep them
+     * in the order of their own lock without applying them while they hold it.
+     */
+    void enqueue(Runnable update) {
+        synchronized (this.updates) {
+            this.queue(update);
+        }
+    }
+
+    /**
+     * Queues an update, the caller holds the queue.
+     */
+    private void queue(Runnable update) {
+        if (this.updatingThread == Thread.currentThread()) {
+            this.nestedUpdates.add(update);
+        } else {
+            this.updates.add(update);
+        }
+    }
+
+    /**
+     * Applies the queued updates unless another thread applies them right now.
+     */
+    void applyUpdates() {
+        synchronized (this.updates) {
+            if (this.updatingThread != null) {
+                // The thread applying updates right now applies ours in order
+                return;
+            }
+            this.updatingThread = Thread.currentThread();
+        }
+        try {
+            while (true) {
+                Runnable update;
+                synchronized (this.updates) {
+                    update = this.nestedUpdates.poll();
+                    if (update == null) {
+                        update = this.updates.poll();
+                    }
+                    if (update == null) {
+                        this.updatingThread = null;
+                        return;
+                    }
+                }
+                try {
+                    update.run();
+                } finally {
+                    this.state = new State(this);
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            // The next submitted update applies the updates after the failed one
+            synchronized (this.updates) {
+                this.updatingThread = null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return The radius of the circle around the bounds of a shape centered in their middle, in meters
+     */
+    private static double shapeRadius(GeoShape shape) {
+        GeoRectangle bounds = shape.getBounds();
+        GeoLocation center = bounds.getCenter();
+        double radius = 0;
+        double[] latitudes = { bounds.getSouth(), center.latitude, bounds.getNorth() };
+        double[] longitudes = { bounds.getWest(), center.longitude, bounds.getEast() };
+        for (double latitude: latitudes) {
+            for (double longitude: longitudes) {
+                radius = Math.max(radius, GeoUtils.distance(center.latitude, center.longitude, latitude, longitude));
+            }
+        }
+        return radius;
+    }
+
+    /**
+     * Restricts the query to a shape, centered in the middle of its bounds with the radius of the circle around them.
+     *
+     * @param shapeCovering The ranges covering the shape
+     */
+    private void applyShape(GeoShape shape, List<GeoHashQuery> shapeCovering) {
+        this.shape = shape;
+        this.shapeCovering = shapeCovering;
+        this.center = shape.getBounds().getCenter();
+        this.radius = shapeRadius(shape);
+        this.prepareCircle();
+    }
+
+    /**
+     * Turns a query restricted to a shape into a circle. The tracked locations were decided by the shape, so they are
+     * all re-evaluated against the circle.
+     */
+    private void clearShape() {
+        if (this.shape != null) {
+            this.shape = null;
+            this.shapeCovering = null;
+            this.referenceCenter = null;
+        }
+    }
+
+    /**
+     * @return The ranges covering the circle or the shape of the query
+     */
+    private List<GeoHashQuery> covering() {
+        if (this.shape != null) {
+            return this.shapeCovering;
+        }
+        return this.covering(this.center, this.radius, this.distanceFunction);
+    }
+
+    /**
+     * @param radius The radius of the circle in meters
+     * @return The ranges covering a circle
+     */
+    private List<GeoHashQuery> covering(GeoLocation center, double radius, DistanceFunction distanceFunction) {
+        CoveringCostModel costModel = this.index.getCoveringCostModel();
+        double deviation = distanceFunction.getMaxRelativeDeviation();
+        if (costModel != null && !Double.isInfinite(deviation) && !Double.isNaN(deviation)) {
+            // The haversine circle holding every location the distance function puts into the query
+            return ShapeCovering.circleCovering(center, radius * (1 + deviation) + DISTANCE_SLACK, costModel);
+        }
+        return this.index.getCoveringCache().coveringAtLocation(center, radius);
+    }
+
+    /**
+     * Returns the ranges a started query listens to. A query with a hysteresis covers its circle widened by the
+     * hysteresis, and keeps these ranges as long as they contain its circle, i.e. until it moved by the hysteresis
+     * or grew beyond it.
+     *
+     * @return The ranges to listen to, sorted and disjoint
+     */
+    private List<GeoHashQuery> rangesToListen() {
+        if (this.shape != null || this.hysteresis == 0) {
+            this.coveredCenter = null;
+            return this.covering();
+        }
+        if (this.queries != null && this.coveredCenter != null &&
+                this.distanceFunction.distance(this.coveredCenter, this.center) + this.radius <= this.coveredRadius) {
+            return this.queries;
+        }
+        this.coveredCenter = this.center;
+        this.coveredRadius = this.radius * (1 + this.hysteresis);
+        return this.covering(this.coveredCenter, this.coveredRadius, this.distanceFunction);
+    }
+
+    /**
+     * Precomputes the center terms of the distance function and the bounding boxes of the circle. Must be called
+     * whenever the center, the radius or the distance function changes.
+     */
+    private void prepareCircle() {
+        this.centerDistance = this.distanceFunction.forCenter(this.center);
+        this.circleBounds = new CircleBounds(this.center, this.radius, this.distanceFunction.getMaxRelativeDeviation());
+    }
+
+    private boolean locationIsInQuery(GeoLocation location) {
+        if (this.shape != null) {
+            return this.shape.contains(location.latitude, location.longitude);
+        }
+        return locationIsInCircle(location, this.circleBounds, this.centerDistance, this.radius);
+    }
+
+    /**
+     * Decides whether a location is in a circle, computing the distance only for locations between the inner and
+     * the outer box of the circle.
+     */
+    private static boolean locationIsInCircle(GeoLocation location, CircleBounds circleBounds,
+                                              DistanceFunction.CenterDistance centerDistance, double radius) {
+        switch (circleBounds.classify(location.latitude, location.longitude)) {
+            case CircleBounds.INSIDE:
+                return true;
+            case CircleBounds.OUTSIDE:
+                return false;
+            default:
+                return centerDistance.distanceTo(location.latitude, location.longitude) <= radius;
+        }
+    }
+
+    /**
+     * Decides whether a location is in the query, using the triangle inequality on its reference distance to skip
+     * the exact distance to the center whenever possible.
+     */
+    private boolean locationIsInQuery(GeoLocation location, double referenceDistance) {
+        if (this.shape != null) {
+            return this.shape.contains(location.latitude, location.longitude);
+        } else if (referenceDistance + this.referenceDrift + DISTANCE_SLACK <= this.radius) {
+            return true;
+        } else if (referenceDistance - this.referenceDrift - DISTANCE_SLACK > this.radius) {
+            return false;
+        } else {
+            return this.locationIsInQuery(location);
+        }
+    }
+
+    /**
+     * @return True if the location is in the query
+     */
+    private boolean updateLocationInfo(final D document, final GeoLocation location) {
+        String key = this.store.getKey(document);
+        LocationIndex.Entry<D> oldInfo = this.locationInfos.get(key);
+        boolean isNew = oldInfo == null;
+        final boolean changedLocation = oldInfo != null && !oldInfo.getLocation().equals(location);
+        boolean wasInQuery = oldInfo != null && oldInfo.isInQuery();
+
+        if (this.referenceCenter == null) {
+            this.rebase();
+        }
+        long geoHash;
+        double referenceDistance;
+        if (oldInfo != null && !changedLocation) {
+            geoHash = oldInfo.getGeoHash();
+            referenceDistance = oldInfo.getReferenceDistance();
+        } else {
+            geoHash = this.store.getGeoHash(document, location);
+            referenceDistance = this.referenceCenterDistance.distanceTo(location.latitude, location.longitude);
+        }
+
+        boolean isInQuery = this.locationIsInQuery(location, referenceDistance);
+        if ((isNew || !wasInQuery) && isInQuery) {
+            this.sink.onDocumentEntered(document, location);
+            this.pendingUpdate = true;
+        } else if (!isNew && isInQuery) {
+            if (changedLocation) {
+                this.sink.onDocumentMoved(document, location);
+            }
+            this.sink.onDocumentChanged(document, location);
+            this.pendingUpdate = true;
+        } else if (wasInQuery && !isInQuery) {
+            this.sink.onDocumentExited(document, location);
+            this.pendingUpdate = true;
+        }
+        this.locationInfos.put(key, location, geoHash, document, isInQuery, referenceDistance);
+        return isInQuery;
+    }
+
+    /**
+     * Makes the current center the reference center and re-evaluates every tracked location against it.
+     */
+    private void rebase() {
+        this.referenceCenter = this.center;
+        this.referenceCenterDistance = this.centerDistance;
+        this.referenceDrift = 0;
+        this.evaluatedRadius = this.radius;
+        this.locationInfos.recomputeReferenceDistances(info -> {
+            GeoLocation location = info.getLocation();
+            double distance = this.referenceCenterDistance.distanceTo(location.latitude, location.longitude);
+            boolean inGeoQuery = this.shape != null ? this.shape.contains(location.latitude, location.longitude) :
+                    distance <= this.radius;
+            this.setInGeoQuery(info, inGeoQuery);
+            return distance;
+        });
+    }
+
+    private void setInGeoQuery(final LocationIndex.Entry<D> info, boolean inGeoQuery) {
+        if (inGeoQuery && !info.isInQuery()) {
+            this.sink.onDocumentEntered(info.getValue(), info.getLocation());
+            this.pendingUpdate = true;
+        } else if (!inGeoQuery && info.isInQuery()) {
+            this.sink.onDocumentExited(info.getValue(), info.getLocation());
+            this.pendingUpdate = true;
+        }
+        info.setInQuery(inGeoQuery);
+    }
+
+    /**
+     * Re-evaluates the tracked locations after the center or radius changed. A location can only enter or exit the
+     * query if its reference distance lies in the ring between the old and the new circle, widened by the drift of
+     * the center from the reference center. All other locations are left untouched. This relies on the triangle
+     * inequality, so if the distance function is not a metric every move of the center re-evaluates all locations,
+     * as does every change of a shape.
+     */
+    private void reevaluateLocations() {
+        if (this.referenceCenter == null || this.shape != null) {
+            this.rebase();
+            return;
+        }
+        double oldDrift = this.referenceDrift;
+        double oldRadius = this.evaluatedRadius;
+        double newDrift = this.referenceCenterDistance.distanceTo(this.center.latitude, this.center.longitude);
+        if (newDrift > this.radius * REBASE_DRIFT_FRACTION || (newDrift > 0 && !this.distanceFunction.isMetric())) {
+            this.rebase();
+            return;
+        }
+        this.referenceDrift = newDrift;
+        this.evaluatedRadius = this.radius;
+
+        double lower = Math.min(oldRadius - oldDrift, this.radius - newDrift) - DISTANCE_SLACK;
+        double upper = Math.max(oldRadius + oldDrift, this.radius + newDrift) + DISTANCE_SLACK;
+        for (LocationIndex.Entry<D> info: this.locationInfos.entriesWithReferenceDistance(lower, upper)) {
+            this.setInGeoQuery(info, this.locationIsInQuery(info.getLocation()));
+        }
+    }
+
+    private void reset() {
+        for (RangeListenerPool<D>.Subscription subscription: this.rangeSubscriptions.values()) {
+            subscription.remove();
+        }
+        if (this.metrics != null) {
+            this.metrics.rangesChanged(0, this.rangeSubscriptions.size(), false);
+            this.readyPendingSince = -1;
+        }
+        this.outstandingQueries.clear();
+        this.rangeSubscriptions.clear();
+        this.queries = null;
+        this.locationInfos.clear();
+        this.pendingUpdate = false;
+        this.referenceCenter = null;
+        this.coveredCenter = null;
+        // A stopped query keeps the center held back in the debounce window, as its criteria report it
+        this.takePendingCenter();
+        this.endDebounce();
+    }
+
+    /**
+     * Ends the current update if it reported any transitions.
+     */
+    private void flushEvents() {
+        if (this.pendingUpdate) {
+            this.pendingUpdate = false;
+            this.sink.onUpdateComplete();
+        }
+    }
+
+    private boolean canFireReady() {
+        return this.outstandingQueries.isEmpty();
+    }
+
+    private void checkAndFireReady() {
+        this.flushEvents();
+        if (canFireReady()) {
+            if (this.metrics != null && this.readyPendingSince >= 0) {
+                this.metrics.ready(System.nanoTime() - this.readyPendingSince);
+                this.readyPendingSince = -1;
+            }
+            this.sink.onReady();
+        }
+    }
+
+    private void setupQueries() {
+        boolean criteriaUpdate = this.queries != null;
+        if (this.metrics != null && this.readyPendingSince < 0) {
+            this.readyPendingSince = System.nanoTime();
+        }
+        List<GeoHashQuery> oldQueries = (this.queries == null) ? Collections.<GeoHashQuery>emptyList() : this.queries;
+        List<GeoHashQuery> newQueries = this.rangesToListen();
+        this.queries = newQueries;
+
+        // Both coverings are sorted and disjoint, so they can be compared in a single pass
+        List<GeoHashQuery> removedQueries = new ArrayList<>();
+        List<GeoHashQuery> addedQueries = new ArrayList<>();
+        int oldIndex = 0;
+        int newIndex = 0;
+        while (oldIndex < oldQueries.size() || newIndex < newQueries.size()) {
+            if (newIndex == newQueries.size()) {
+                removedQueries.add(oldQueries.get(oldIndex++));
+            } else if (oldIndex == oldQueries.size()) {
+                addedQueries.add(newQueries.get(newIndex++));
+            } else {
+                GeoHashQuery oldQuery = oldQueries.get(oldIndex);
+                GeoHashQuery newQuery = newQueries.get(newIndex);
+                int compare = oldQuery.getStartValue().compareTo(newQuery.getStartValue());
+                if (oldQuery.equals(newQuery)) {
+                    oldIndex++;
+                    newIndex++;
+                } else if (compare < 0) {
+                    removedQueries.add(oldQuery);
+                    oldIndex++;
+                } else if (compare > 0) {
+                    addedQueries.add(newQuery);
+                    newIndex++;
+                } else {
+                    removedQueries.add(oldQuery);
+                    addedQueries.add(newQuery);
+                    oldIndex++;
+                    newIndex++;
+                }
+            }
+        }
+
+        for (GeoHashQuery query: removedQueries) {
+            rangeSubscriptions.get(query).remove();
+            rangeSubscriptions.remove(query);
+            outstandingQueries.remove(query);
+        }
+        // Ranges other queries listen to already share their listener and start with its cached documents
+        RangeListenerPool<D> rangeListenerPool = this.index.getRangeListenerPool();
+        List<RangeListenerPool<D>.Subscription> addedSubscriptions = new ArrayList<>(addedQueries.size());
+        for (final GeoHashQuery query: addedQueries) {
+            outstandingQueries.add(query);
+            RangeListenerPool<D>.Subscription subscription = rangeListenerPool.subscribe(query, this.rangeSubscriber);
+            rangeSubscriptions.put(query, subscription);
+            addedSubscriptions.add(subscription);
+        }
+
+        if (this.metrics != null) {
+            this.metrics.rangesChanged(addedQueries.size(), removedQueries.size(), criteriaUpdate);
+        }
+
+        this.reevaluateLocations();
+
+        // remove locations of dropped ranges that are not part of the geo query anymore
+        this.removeUncoveredLocations(removedQueries, newQueries);
+
+        if (addedSubscriptions.isEmpty()) {
+            checkAndFireReady();
+        } else {
+            // The last range becoming ready fires the ready event
+            this.flushEvents();
+            for (RangeListenerPool<D>.Subscription subscription: addedSubscriptions) {
+                subscription.deliverPending();
+            }
+        }
+    }
+
+    /**
+     * Removes the tracked locations in the parts of the dropped ranges which are not covered by the new ranges.
+     * Both lists are sorted and disjoint.
+     */
+    private void removeUncoveredLocations(List<GeoHashQuery> removedQueries, List<GeoHashQuery> newQueries) {
+        int newIndex = 0;
+        for (GeoHashQuery removed: removedQueries) {
+            long start = removed.getStartBits();
+            long end = removed.getEndBits();
+            while (newIndex < newQueries.size() && newQueries.get(newIndex).getEndBits() <= start) {
+                newIndex++;
+            }
+            for (int i = newIndex; i < newQueries.size() && start < end; i++) {
+                GeoHashQuery covered = newQueries.get(i);
+                if (covered.getStartBits() >= end) {
+                    break;
+                }
+                if (covered.getStartBits() > start) {
+                    this.removeLocations(start, covered.getStartBits());
+                }
+                start = Math.max(start, covered.getEndBits());
+            }
+            if (start < end) {
+                this.removeLocations(start, end);
+            }
+        }
+    }
+
+    private void removeLocations(long start, long end) {
+        for (LocationIndex.Entry<D> info: this.locationInfos.removeRange(start, end)) {
+            this.setInGeoQuery(info, false);
+        }
+    }
+
+    /**
+     * @param range The range whose snapshot contained the changes
+     */
+    private void applyChanges(GeoHashQuery range, List<GeoStore.Change<D>> changes) {
+        int received = 0;
+        int discarded = 0;
+        for (GeoStore.Change<D> change : changes) {
+            switch (change.getType()) {
+                case ADDED:
+                case MODIFIED:
+                    received++;
+                    if (!childChanged(change.getDocument())) {
+                        discarded++;
+                    }
+                    break;
+                case REMOVED:
+                    childRemoved(change.getDocument(), range);
+                    break;
+            }
+        }
+        if (this.metrics != null) {
+            this.metrics.documentsApplied(received, discarded);
+        }
+        this.flushEvents();
+    }
+
+    /**
+     * @return True if the document is in the query
+     */
+    private boolean childChanged(D document) {
+        GeoLocation location = this.store.getLocation(document);
+        if (location != null) {
+            return this.updateLocationInfo(document, location);
+        } else {
+            // throw an error in future?
+            return false;
+        }
+    }
+
+    /**
+     * Removes a document that left a range. The ranges are disjoint, so a document that moved to another range of the
+     * query and was updated from there before is not in the range it left anymore, and is kept. A document whose
+     * last known location is in the range it left moved out of all ranges or was deleted, unless the snapshot of its
+     * new range comes later, which enters it again.
+     */
+    private void childRemoved(D document, GeoHashQuery range) {
+        String key = this.store.getKey(document);
+        LocationIndex.Entry<D> info = this.locationInfos.get(key);
+        if (info != null && range.containsGeoHash(info.getGeoHash(), LongGeoHash.DEFAULT_PRECISION)) {
+            this.locationInfos.remove(key);
+            this.setInGeoQuery(info, false);
+        }
+    }
+
+    /**
+     * Starts listening to the ranges of the query. The sink receives the documents already in the query and the
+     * ready event once all ranges were loaded.
+     */
+    public void start() {
+        this.submit(() -> {
+            if (this.queries == null) {
+                this.setupQueries();
+            }
+        });
+    }
+
+    /**
+     * Stops listening to the ranges of the query and forgets all tracked documents, without reporting their exits.
+     */
+    public void stop() {
+        this.submit(this::reset);
+    }
+
+    public boolean isStarted() {
+        return this.state.started;
+    }
+
+    /**
+     * @return True if the query is started and all of its ranges delivered their initial documents
+     */
+    public boolean isReady() {
+        return this.state.ready;
+    }
+
+    /**
+     * Visits the documents in the query. Within an update the documents are visited at once, otherwise as an update
+     * after the updates submitted before, see {@link #submit}.
+     *
+     * @param visitor The visitor called with every document in the query
+     */
+    public void forEachEntry(final EntryVisitor<D> visitor) {
+        boolean inUpdate;
+        synchronized (this.updates) {
+            inUpdate = this.updatingThread == Thread.currentThread();
+        }
+        if (inUpdate) {
+            this.visitEntries(visitor);
+        } else {
+            this.submit(() -> this.visitEntries(visitor));
+        }
+    }
+
+    private void visitEntries(EntryVisitor<D> visitor) {
+        for (LocationIndex.Entry<D> info: this.locationInfos.entries()) {
+            if (info.isInQuery()) {
+                visitor.visit(info.getValue(), info.getLocation());
+            }
+        }
+    }
+
+    /**
+     * @return The number of documents tracked in the ranges of the query, inside and outside of its circle
+     */
+    public int getTrackedCount() {
+        return this.state.trackedCount;
+    }
+
+    /**
+     * @return A snapshot of the metrics of this query, or null if metrics were disabled when it was created
+     */
+    public GeoQueryMetrics getMetrics() {
+        return this.metrics != null ? this.metrics.snapshot() : null;
+    }
+
+    /**
+     * @return The recorder of the metrics of this query, or null if metrics are disabled
+     */
+    QueryMetrics getMetricsRecorder() {
+        return this.metrics;
+    }
+
+    /**
+     * @return The circle or shape of the criteria as last set with the ranges covering it
+     */
+    Area getArea() {
+        Criteria criteria = this.criteria;
+        DistanceFunction distanceFunction = criteria.distanceFunction;
+        double deviation = distanceFunction.getMaxRelativeDeviation();
+        List<GeoHashQuery> ranges = criteria.shape != null ? criteria.shapeCovering :
+                this.covering(criteria.center, criteria.radius, distanceFunction);
+        return new Area(ranges, criteria.shape, criteria.center,
+                new CircleBounds(criteria.center, criteria.radius, deviation),
+                distanceFunction.forCenter(criteria.center), deviation, criteria.radius);
+    }
+
+    /**
+     * Reads the documents in the query once, without listening to the store. The matches are ordered by their
+     * range and then as the store returned them.
+     *
+     * @param callback The callback receiving the matches, or the exception of the first failed range
+     */
+    public void getOnce(final GeoStore.Callback<List<Match<D>>> callback) {
+        this.readOnce(null, false, callback);
+    }
+
+    /**
+     * Reads the documents in the query once, without listening to the store, and reports the matches of every range
+     * as soon as it was read, before the slower ranges completed.
+     *
+     * @param callback The callback receiving the matches of every range and finally all matches ordered by their
+     *                 distance
+     */
+    public void streamOnce(final StreamCallback<D> callback) {
+        this.readOnce(callback, true, callback::onComplete);
+    }
+
+    /**
+     * Reads one page of the documents in the query, nearest first, without listening to the store. The ranges are
+     * read in order of their distance with a limit per read, and reading stops as soon as no unread document can
+     * be nearer than the documents of the page, so the first pages of a large query read only a part of it. With a
+     * distance function that does not bound its deviation from the haversine distance, the documents of a page are
+     * the nearest by their haversine distance, ordered by the distance function.
+     *
+     * @throws IllegalArgumentException If the page size is smaller than 1 or the token is of another store
+     * @param pageSize The maximal number of documents of the page
+     * @param pageToken The token of the previous page, or null to read the first page of the current area
+     * @param callback The callback receiving the page, or the exception of the first failed read
+     */
+    public void getPage(int pageSize, GeoQueryPageToken pageToken, final GeoStore.Callback<Page<D>> callback) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("The page size must be at least 1: " + pageSize);
+        }
+        final PagedSearch<D> search;
+        if (pageToken == null) {
+            search = new PagedSearch<>(this.store, this.getArea());
+        } else if (pageToken.search.getStore() == this.store) {
+            @SuppressWarnings("unchecked")
+            PagedSearch<D> previous = (PagedSearch<D>) pageToken.search;
+            search = new PagedSearch<>(previous);
+        } else {
+            throw new IllegalArgumentException("The page token belongs to another store");
+        }
+        this.readPage(search, pageSize, callback);
+    }
+
+    private void readPage(final PagedSearch<D> search, final int pageSize, final GeoStore.Callback<Page<D>> callback) {
+        final List<PagedSearch.Part<D>> parts;
+        Page<D> page = null;
+        synchronized (search) {
+            List<Match<D>> matches = search.takePage(pageSize);
+            if (matches != null) {
+                // The search is not changed anymore, so the token can share it
+                GeoQueryPageToken next = search.isExhausted() ? null : new GeoQueryPageToken(search);
+                page = new Page<>(Collections.unmodifiableList(matches), next);
+                parts = null;
+            } else {
+                parts = search.nextReads(pageSize);
+            }
+        }
+        if (page != null) {
+            // The callback is called without the lock, it may continue the token on the same thread
+            callback.onComplete(page, null);
+            return;
+        }
+        final int[] remaining = { parts.size() };
+        final Exception[] failure = { null };
+        for (final PagedSearch.Part<D> part: parts) {
+            this.store.getRangePage(part.range, pageSize, part.after, (documents, exception) -> {
+                Exception error;
+                synchronized (search) {
+                    if (exception != null) {
+                        if (failure[0] == null) {
+                            failure[0] = exception;
+                        }
+                    } else if (failure[0] == null) {
+                        search.addRead(part, documents, pageSize);
+                    }
+                    if (--remaining[0] > 0) {
+                        return;
+                    }
+                    error = failure[0];
+                }
+                if (error != null) {
+                    callback.onComplete(null, error);
+                } else {
+                    this.readPage(search, pageSize, callback);
+                }
+            });
+        }
+    }
+
+    /**
+     * @param rangeCallback The callback receiving the matches of every range, or null
+     * @param sortByDistance True to order the matches by their distance, otherwise they are ordered by their range
+     * @param callback The callback receiving all matches, or the exception of the first failed range
+     */
+    private void readOnce(final StreamCallback<D> rangeCallback, final boolean sortByDistance,
+                          final GeoStore.Callback<List<Match<D>>> callback) {
+        final Area area = this.getArea();
+        final int count = area.ranges.size();
+        if (count == 0) {
+            callback.onComplete(new ArrayList<Match<D>>(), null);
+            return;
+        }
+        final List<List<Match<D>>> results = new ArrayList<>(Collections.<List<Match<D>>>nCopies(count, null));
+        final int[] remaining = { count };
+        final Exception[] failure = { null };
+        for (int i = 0; i < count; i++) {
+            final int rangeIndex = i;
+            this.store.getRange(area.ranges.get(i), (documents, exception) -> {
+                List<Match<D>> matches = new ArrayList<>();
+                if (exception == null) {
+                    for (D document: documents) {
+                        GeoLocation location = this.store.getLocation(document);
+                        double distance = location != null ? area.distanceIfContains(location) : Double.NaN;
+                        if (!Double.isNaN(distance)) {
+                            matches.add(new Match<>(document, location, distance/KILOMETER_TO_METER));
+                        }
+                    }
+                    if (sortByDistance) {
+                        Collections.sort(matches, BY_DISTANCE);
+                    }
+                }
+                List<Match<D>> result = null;
+                Exception error = null;
+                // The lock also keeps the calls of the range callback apart
+                synchronized (results) {
+                    results.set(rangeIndex, matches);
+                    if (exception != null && failure[0] == null) {
+                        failure[0] = exception;
+                    }
+                    if (rangeCallback != null && failure[0] == null && !matches.isEmpty()) {
+                        rangeCallback.onRange(Collections.unmodifiableList(matches));
+                    }
+                    if (--remaining[0] == 0) {
+                        error = failure[0];
+                        if (error == null) {
+                            result = new ArrayList<>();
+                            for (List<Match<D>> rangeMatches: results) {
+                                result.addAll(rangeMatches);
+                            }
+                            if (sortByDistance) {
+                                Collections.sort(result, BY_DISTANCE);
+                            }
+                        }
+                    } else {
+                        return;
+                    }
+                }
+                callback.onComplete(result, error);
+            });
+        }
+    }
+
+    /**
+     * @return The center of the query as last set, including a center update held back by the debounce window
+     */
+    public GeoLocation getCenter() {
+        return this.criteria.center;
+    }
+
+    /**
+     * @return The radius of the query as last set, in kilometers
+     */
+    public double getRadius() {
+        return this.criteria.radius / KILOMETER_TO_METER;
+    }
+
+    public DistanceFunction getDistanceFunction() {
+        return this.criteria.distanceFunction;
+    }
+
+    /**
+     * Sets the function measuring the distances of locations to the center and re-evaluates the tracked documents.
+     *
+     * @param distanceFunction The new distance function, see {@link DistanceFunctions}
+     */
+    public void setDistanceFunction(final DistanceFunction distanceFunction) {
+        if (distanceFunction == null) {
+            throw new NullPointerException("distanceFunction");
+        }
+        synchronized (this.updates) {
+            this.criteria = this.criteria.withDistanceFunction(distanceFunction);
+            this.queue(() -> {
+                this.distanceFunction = distanceFunction;
+                this.prepareCircle();
+                if (this.referenceCenter != null) {
+                    this.rebase();
+                    this.flushEvents();
+                }
+            });
+        }
+        this.applyUpdates();
+    }
+
+    /**
+     * @return The shape of the query, or null if the query is a circle
+     */
+    public GeoShape getShape() {
+        return this.criteria.shape;
+    }
+
+    /**
+     * Restricts the query to a shape and updates its ranges and documents if it is started.
+     *
+     * @param shape The new shape
+     */
+    public void setShape(final GeoShape shape) {
+        if (shape == null) {
+            throw new NullPointerException("shape");
+        }
+        // The covering is computed by the calling thread, so the updates are not held up by it
+        final List<GeoHashQuery> shapeCovering = ShapeCovering.covering(shape);
+        synchronized (this.updates) {
+            this.criteria = this.criteria.withShape(shape, shapeCovering);
+            this.queue(() -> {
+                this.pendingCenter = null;
+                this.applyShape(shape, shapeCovering);
+                if (this.queries != null) {
+                    this.setupQueries();
+                }
+            });
+        }
+        this.applyUpdates();
+    }
+
+    /**
+     * Sets the center of the query and updates its ranges and documents if it is started. A query restricted to a
+     * shape becomes a circle with the radius around the bounds of the shape.
+     *
+     * With a debounce window, a started query applies a center update right away if no update was applied within
+     * the window, and holds back later updates until the window ends, when the latest of them is applied.
+     *
+     * @param center The new center
+     */
+    public void setCenter(final GeoLocation center) {
+        synchronized (this.updates) {
+            this.criteria = this.criteria.withCircle(center, this.criteria.radius);
+            this.queue(() -> this.updateCenter(center));
+        }
+        this.applyUpdates();
+    }
+
+    private void updateCenter(GeoLocation center) {
+        if (this.debouncing) {
+            this.pendingCenter = center;
+            return;
+        }
+        if (this.debounceMillis > 0 && this.queries != null) {
+            this.startDebounce();
+        }
+        this.applyCenter(center);
+    }
+
+    private void applyCenter(GeoLocation center) {
+        this.clearShape();
+        this.center = center;
+        this.prepareCircle();
+        if (this.queries != null) {
+            this.setupQueries();
+        }
+    }
+
+    /**
+     * Opens the debounce window, center updates until its end are held back.
+     */
+    private void startDebounce() {
+        this.debouncing = true;
+        final int generation = ++this.debounceGeneration;
+        TimerHolder.TIMER.schedule(() -> this.submit(() -> {
+            if (this.debounceGeneration == generation) {
+                this.debounceEnded();
+            }
+        }), this.debounceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies the latest center update held back in the window, which opens the next window.
+     */
+    private void debounceEnded() {
+        GeoLocation center = this.pendingCenter;
+        this.endDebounce();
+        if (center != null) {
+            this.updateCenter(center);
+        }
+    }
+
+    /**
+     * Closes the debounce window without applying the center update held back in it.
+     */
+    private void endDebounce() {
+        this.debouncing = false;
+        this.pendingCenter = null;
+        this.debounceGeneration++;
+    }
+
+    /**
+     * Applies the center update held back in the debounce window before another update of the criteria.
+     */
+    private void takePendingCenter() {
+        if (this.pendingCenter != null) {
+            this.center = this.pendingCenter;
+            this.pendingCenter = null;
+        }
+    }
+
+    /**
+     * @return The debounce window of center updates, in milliseconds
+     */
+    public long getDebounceMillis() {
+        return this.criteria.debounceMillis;
+    }
+
+    /**
+     * @return The hysteresis of the ranges, as a fraction of the radius
+     */
+    public double getHysteresis() {
+        return this.criteria.hysteresis;
+    }
+
+    /**
+     * Configures the query for a center that is updated often, e.g. on every location fix of a device.
+     *
+     * Center updates within the debounce window after an applied update collapse into one update at the end of
+     * the window, see {@link #setCenter}. With a hysteresis the query listens to the ranges covering its circle
+     * widened by the hysteresis, and keeps them until the circle left the widened circle, so moving back and forth
+     * over the border of a geohash cell does not close and reopen listeners. The documents entering and exiting
+     * the query are still decided by its circle on every applied update. Both are off by default.
+     *
+     * @throws IllegalArgumentException If the window or the hysteresis is negative
+     * @param debounceMillis The debounce window in milliseconds, or 0 to apply every update right away
+     * @param hysteresis The hysteresis as a fraction of the radius, e.g. 0.25, or 0 to cover the circle only
+     */
+    public void setMovingCenter(final long debounceMillis, final double hysteresis) {
+        if (debounceMillis < 0) {
+            throw new IllegalArgumentException("The debounce window must not be negative: " + debounceMillis);
+        }
+        if (!(hysteresis >= 0) || Double.isInfinite(hysteresis)) {
+            throw new IllegalArgumentException("The hysteresis must not be negative: " + hysteresis);
+        }
+        synchronized (this.updates) {
+            this.criteria = this.criteria.withMovingCenter(debounceMillis, hysteresis);
+            this.queue(() -> {
+                this.debounceMillis = debounceMillis;
+                this.hysteresis = hysteresis;
+                if (debounceMillis == 0 && this.debouncing) {
+                    this.debounceEnded();
+                }
+            });
+        }
+        this.applyUpdates();
+    }
+
+    /**
+     * Sets the radius of the query and updates its ranges and documents if it is started. A query restricted to a
+     * shape becomes a circle around the middle of the bounds of the shape.
+     *
+     * @param radius The new radius, in kilometers
+     */
+    public void setRadius(final double radius) {
+        synchronized (this.updates) {
+            this.criteria = this.criteria.withCircle(this.criteria.center, radius * KILOMETER_TO_METER);
+            this.queue(() -> {
+                this.clearShape();
+                this.takePendingCenter();
+                this.radius = radius * KILOMETER_TO_METER;
+                this.prepareCircle();
+                if (this.queries != null) {
+                    this.setupQueries();
+                }
+            });
+        }
+        this.applyUpdates();
+    }
+
+    /**
+     * Sets the center and radius of the query and updates its ranges and documents if it is started. A query
+     * restricted to a shape becomes a circle.
+     *
+     * @param center The new center
+     * @param radius The new radius, in kilometers
+     */
+    public void setLocation(final GeoLocation center, final double radius) {
+        synchronized (this.updates) {
+            this.criteria = this.criteria.withCircle(center, radius * KILOMETER_TO_METER);
+            this.queue(() -> {
+                this.clearShape();
+                this.pendingCenter = null;
+                this.center = center;
+                this.radius = radius * KILOMETER_TO_METER;
+                this.prepareCircle();
+                if (this.queries != null) {
+                    this.setupQueries();
+                }
+            });
+        }
+        this.applyUpdates();
+    }
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+        ThreadFactory threadFactory = r -> {
+            Thread thread = new Thread(r, "GeoFire-timer");
+            thread.setDaemon(true);
+            return thread;
+        };
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, threadFactory);
+        timer.setKeepAliveTime(TIMER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        timer.allowCoreThreadTimeOut(true);
+        return timer;
+    }
+}
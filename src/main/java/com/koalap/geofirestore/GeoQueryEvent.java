@@ -0,0 +1,77 @@
+package com.koalap.geofirestore;
+
+import com.google.firebase.firestore.DocumentSnapshot;
+
+/**
+ * A single transition of a documentSnapshot relative to the search area of a GeoQuery. Instances are immutable.
+ */
+public final class GeoQueryEvent {
+
+    /**
+     * The kinds of transitions, matching the callbacks of GeoQueryDataEventListener.
+     */
+    public enum Type {
+        ENTERED,
+        MOVED,
+        CHANGED,
+        EXITED
+    }
+
+    private final Type type;
+    private final DocumentSnapshot documentSnapshot;
+    private final GeoLocation location;
+
+    GeoQueryEvent(Type type, DocumentSnapshot documentSnapshot, GeoLocation location) {
+        this.type = type;
+        this.documentSnapshot = documentSnapshot;
+        this.location = location;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public DocumentSnapshot getDocumentSnapshot() {
+        return documentSnapshot;
+    }
+
+    /**
+     * @return The key of the documentSnapshot
+     */
+    public String getKey() {
+        return documentSnapshot.getId();
+    }
+
+    /**
+     * @return The location of the documentSnapshot, for EXITED events the last known location
+     */
+    public GeoLocation getLocation() {
+        return location;
+    }
+
+    void dispatch(GeoQueryDataEventListener listener) {
+        switch (type) {
+            case ENTERED:
+                listener.onDataEntered(documentSnapshot, location);
+                break;
+            case MOVED:
+                listener.onDataMoved(documentSnapshot, location);
+                break;
+            case CHANGED:
+                listener.onDataChanged(documentSnapshot, location);
+                break;
+            case EXITED:
+                listener.onDataExited(documentSnapshot);
+                break;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GeoQueryEvent{" +
+                "type=" + type +
+                ", key='" + getKey() + '\'' +
+                ", location=" + location +
+                '}';
+    }
+}
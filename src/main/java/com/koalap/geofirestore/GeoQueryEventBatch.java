@@ -0,0 +1,31 @@
+package com.koalap.geofirestore;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * All transitions caused by a single update of a GeoQuery, e.g. one Firestore snapshot or one change of the
+ * center, in the order they happened. Instances are immutable.
+ */
+public final class GeoQueryEventBatch {
+    private final List<GeoQueryEvent> events;
+
+    GeoQueryEventBatch(List<GeoQueryEvent> events) {
+        this.events = Collections.unmodifiableList(events);
+    }
+
+    /**
+     * @return The events of this batch in the order they happened
+     */
+    public List<GeoQueryEvent> getEvents() {
+        return events;
+    }
+
+    public int size() {
+        return events.size();
+    }
+
+    public boolean isEmpty() {
+        return events.isEmpty();
+    }
+}
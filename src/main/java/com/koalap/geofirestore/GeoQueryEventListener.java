@@ -64,7 +64,8 @@ public interface GeoQueryEventListener {
     /**
      * Called once all initial GeoFire data has been loaded and the relevant events have been fired for this query.
      * Every time the query criteria is updated, this observer will be called after the updated query has fired the
-     * appropriate key entered or key exited events.
+     * appropriate key entered or key exited events. While the device is offline, the query is ready with the data of
+     * the local Firestore cache after 10 seconds.
      */
     public void onGeoQueryReady();
 
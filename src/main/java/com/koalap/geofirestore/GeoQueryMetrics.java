@@ -0,0 +1,193 @@
+package com.koalap.geofirestore;
+
+import java.util.Locale;
+
+/**
+ * A snapshot of the runtime metrics of a query, or of all queries of a GeoFire instance. Instances are immutable.
+ *
+ * Documents are counted when a query applies them, documents a query takes from a range listener it shares with
+ * other queries are counted as well although they cost no additional reads.
+ */
+public final class GeoQueryMetrics {
+
+    private final int activeRanges;
+    private final long rangesAdded;
+    private final long rangesRemoved;
+    private final long criteriaUpdates;
+    private final long rangesChurned;
+    private final long documentsReceived;
+    private final long documentsDiscarded;
+    private final long readyCount;
+    private final long totalTimeToReadyNanos;
+    private final long maxTimeToReadyNanos;
+    private final long lastTimeToReadyNanos;
+    private final long eventsDispatched;
+    private final int dispatchQueueDepth;
+    private final int maxDispatchQueueDepth;
+    private final long totalDispatchLatencyNanos;
+    private final long maxDispatchLatencyNanos;
+
+    GeoQueryMetrics(int activeRanges, long rangesAdded, long rangesRemoved, long criteriaUpdates, long rangesChurned,
+                    long documentsReceived, long documentsDiscarded, long readyCount, long totalTimeToReadyNanos,
+                    long maxTimeToReadyNanos, long lastTimeToReadyNanos, long eventsDispatched,
+                    int dispatchQueueDepth, int maxDispatchQueueDepth, long totalDispatchLatencyNanos,
+                    long maxDispatchLatencyNanos) {
+        this.activeRanges = activeRanges;
+        this.rangesAdded = rangesAdded;
+        this.rangesRemoved = rangesRemoved;
+        this.criteriaUpdates = criteriaUpdates;
+        this.rangesChurned = rangesChurned;
+        this.documentsReceived = documentsReceived;
+        this.documentsDiscarded = documentsDiscarded;
+        this.readyCount = readyCount;
+        this.totalTimeToReadyNanos = totalTimeToReadyNanos;
+        this.maxTimeToReadyNanos = maxTimeToReadyNanos;
+        this.lastTimeToReadyNanos = lastTimeToReadyNanos;
+        this.eventsDispatched = eventsDispatched;
+        this.dispatchQueueDepth = dispatchQueueDepth;
+        this.maxDispatchQueueDepth = maxDispatchQueueDepth;
+        this.totalDispatchLatencyNanos = totalDispatchLatencyNanos;
+        this.maxDispatchLatencyNanos = maxDispatchLatencyNanos;
+    }
+
+    /**
+     * @return The number of geohash ranges the query listens to right now
+     */
+    public int getActiveRanges() {
+        return this.activeRanges;
+    }
+
+    /**
+     * @return The number of ranges the query started to listen to
+     */
+    public long getRangesAdded() {
+        return this.rangesAdded;
+    }
+
+    /**
+     * @return The number of ranges the query stopped listening to
+     */
+    public long getRangesRemoved() {
+        return this.rangesRemoved;
+    }
+
+    /**
+     * @return The number of changes of the center or the radius of a listening query
+     */
+    public long getCriteriaUpdates() {
+        return this.criteriaUpdates;
+    }
+
+    /**
+     * @return The average number of ranges torn down and rebuilt per change of the center or the radius
+     */
+    public double getRangesChurnedPerUpdate() {
+        return this.criteriaUpdates == 0 ? 0 : (double) this.rangesChurned / this.criteriaUpdates;
+    }
+
+    /**
+     * @return The number of added and modified documents the query received from its ranges
+     */
+    public long getDocumentsReceived() {
+        return this.documentsReceived;
+    }
+
+    /**
+     * @return The number of received documents that were outside of the circle of the query
+     */
+    public long getDocumentsDiscarded() {
+        return this.documentsDiscarded;
+    }
+
+    /**
+     * @return The average number of documents received per added range
+     */
+    public double getDocumentsPerRange() {
+        return this.rangesAdded == 0 ? 0 : (double) this.documentsReceived / this.rangesAdded;
+    }
+
+    /**
+     * Returns the fraction of the received documents that were outside of the circle. The reads of these documents
+     * were paid for nothing, as the geohash ranges cover more than the circle.
+     *
+     * @return The over-fetch ratio between 0 and 1
+     */
+    public double getOverFetchRatio() {
+        return this.documentsReceived == 0 ? 0 : (double) this.documentsDiscarded / this.documentsReceived;
+    }
+
+    /**
+     * @return The number of times the query became ready after it was started or its criteria changed
+     */
+    public long getReadyCount() {
+        return this.readyCount;
+    }
+
+    /**
+     * @return The average time from starting the query or changing its criteria until it was ready, in nanoseconds
+     */
+    public long getAverageTimeToReadyNanos() {
+        return this.readyCount == 0 ? 0 : this.totalTimeToReadyNanos / this.readyCount;
+    }
+
+    /**
+     * @return The maximal time until the query was ready, in nanoseconds
+     */
+    public long getMaxTimeToReadyNanos() {
+        return this.maxTimeToReadyNanos;
+    }
+
+    /**
+     * @return The time until the query was ready the last time, in nanoseconds, or -1 if it was never ready
+     */
+    public long getLastTimeToReadyNanos() {
+        return this.lastTimeToReadyNanos;
+    }
+
+    /**
+     * @return The number of events delivered to the listeners
+     */
+    public long getEventsDispatched() {
+        return this.eventsDispatched;
+    }
+
+    /**
+     * @return The number of events raised but not yet delivered
+     */
+    public int getDispatchQueueDepth() {
+        return this.dispatchQueueDepth;
+    }
+
+    /**
+     * @return The maximal number of events that were raised but not yet delivered
+     */
+    public int getMaxDispatchQueueDepth() {
+        return this.maxDispatchQueueDepth;
+    }
+
+    /**
+     * @return The average time from raising an event until its delivery started, in nanoseconds
+     */
+    public long getAverageDispatchLatencyNanos() {
+        return this.eventsDispatched == 0 ? 0 : this.totalDispatchLatencyNanos / this.eventsDispatched;
+    }
+
+    /**
+     * @return The maximal time from raising an event until its delivery started, in nanoseconds
+     */
+    public long getMaxDispatchLatencyNanos() {
+        return this.maxDispatchLatencyNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "GeoQueryMetrics{activeRanges=%d, rangesAdded=%d, rangesRemoved=%d, " +
+                        "rangesChurnedPerUpdate=%.2f, documentsReceived=%d, documentsDiscarded=%d, " +
+                        "overFetchRatio=%.3f, averageTimeToReadyMs=%.3f, eventsDispatched=%d, dispatchQueueDepth=%d, " +
+                        "averageDispatchLatencyMs=%.3f}",
+                this.activeRanges, this.rangesAdded, this.rangesRemoved, this.getRangesChurnedPerUpdate(),
+                this.documentsReceived, this.documentsDiscarded, this.getOverFetchRatio(),
+                this.getAverageTimeToReadyNanos() / 1e6, this.eventsDispatched, this.dispatchQueueDepth,
+                this.getAverageDispatchLatencyNanos() / 1e6);
+    }
+}
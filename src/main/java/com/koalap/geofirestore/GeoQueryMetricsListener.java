@@ -0,0 +1,16 @@
+package com.koalap.geofirestore;
+
+/**
+ * GeoQuery reports its metrics with this interface every time it becomes ready, see
+ * {@link GeoQuery#setMetricsListener(GeoQueryMetricsListener)}.
+ */
+public interface GeoQueryMetricsListener {
+
+    /**
+     * Called after the ready event of the query, once after the initial data was loaded and again after every
+     * update of the query criteria.
+     *
+     * @param metrics The metrics of the query at the time it became ready
+     */
+    void onGeoQueryMetrics(GeoQueryMetrics metrics);
+}
@@ -0,0 +1,25 @@
+package com.koalap.geofirestore;
+
+import java.util.List;
+
+/**
+ * GeoQuery notifies listeners with this interface about a page of a paginated single read.
+ */
+public interface GeoQueryPageListener {
+
+    /**
+     * Called once the page was read.
+     *
+     * @param documentChanges The documents of the page ordered by their distance to the center, at most as many as
+     *                        the page size
+     * @param nextPageToken The token to read the next page with, or null if this is the last page
+     */
+    void onPage(List<GeoQueryDocumentChange> documentChanges, GeoQueryPageToken nextPageToken);
+
+    /**
+     * Called instead of onPage if a part of the query could not be read, e.g. violating security rules. The token
+     * the page was read with can be used again to retry it.
+     * @param error The error that occurred while reading the page
+     */
+    void onGeoQueryError(Exception error);
+}
@@ -0,0 +1,31 @@
+package com.koalap.geofirestore;
+
+/**
+ * Continues a paginated single read of a query with its next page, see
+ * {@link GeoQuery#getPage(int, GeoQueryPageToken, GeoQueryPageListener)}.
+ *
+ * A token holds the parts of the query that were not read yet and the documents that were read for the previous
+ * pages but not returned yet, in memory. It is bound to the query area and the store of its first page, so a
+ * later move of the query does not change the pages of a token. A token can be continued more than once. Immutable.
+ */
+public final class GeoQueryPageToken {
+
+    // Never changed, every page continues a copy
+    final PagedSearch<?> search;
+
+    GeoQueryPageToken(PagedSearch<?> search) {
+        this.search = search;
+    }
+
+    /**
+     * @return The number of documents returned by the pages before this token
+     */
+    public int getReturnedCount() {
+        return this.search.getReturnedCount();
+    }
+
+    @Override
+    public String toString() {
+        return "GeoQueryPageToken{returnedCount=" + this.search.getReturnedCount() + "}";
+    }
+}
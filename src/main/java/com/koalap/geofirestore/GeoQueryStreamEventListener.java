@@ -0,0 +1,31 @@
+package com.koalap.geofirestore;
+
+import java.util.List;
+
+/**
+ * GeoQuery notifies listeners with this interface about the documents of a single read, range by range.
+ */
+public interface GeoQueryStreamEventListener {
+
+    /**
+     * Called as soon as one of the geohash ranges of the query was read, with the documents of that range inside
+     * the query. Ranges without such documents are not reported.
+     *
+     * @param documentChanges The documents of the range ordered by their distance to the center
+     */
+    void onDocumentsLoaded(List<GeoQueryDocumentChange> documentChanges);
+
+    /**
+     * Called once after all ranges were read, with all documents of the query.
+     *
+     * @param documentChanges All documents ordered by their distance to the center
+     */
+    void onGeoQueryComplete(List<GeoQueryDocumentChange> documentChanges);
+
+    /**
+     * Called instead of onGeoQueryComplete if a range could not be read, e.g. violating security rules. No
+     * documents are reported after the error.
+     * @param error The error that occurred while reading the range
+     */
+    void onGeoQueryError(Exception error);
+}
@@ -0,0 +1,137 @@
+package com.koalap.geofirestore;
+
+import com.koalap.geofirestore.util.GeoUtils;
+
+/**
+ * A latitude/longitude rectangle. A rectangle whose western longitude is larger than its eastern longitude crosses
+ * the antimeridian.
+ */
+public final class GeoRectangle implements GeoShape {
+
+    private final double south;
+    private final double west;
+    private final double north;
+    private final double east;
+
+    /**
+     * @throws IllegalArgumentException If the coordinates are not valid or the south is north of the north
+     * @param south The southern latitude in the range of [-90, 90]
+     * @param west The western longitude in the range of [-180, 180]
+     * @param north The northern latitude in the range of [south, 90]
+     * @param east The eastern longitude in the range of [-180, 180]
+     */
+    public GeoRectangle(double south, double west, double north, double east) {
+        if (!GeoLocation.coordinatesValid(south, west) || !GeoLocation.coordinatesValid(north, east) || south > north) {
+            throw new IllegalArgumentException("Not a valid rectangle: [" + south + ", " + west + "], [" + north + ", " + east + "]");
+        }
+        this.south = south;
+        this.west = west;
+        this.north = north;
+        this.east = east;
+    }
+
+    /**
+     * @param southWest The south western corner
+     * @param northEast The north eastern corner
+     */
+    public GeoRectangle(GeoLocation southWest, GeoLocation northEast) {
+        this(southWest.latitude, southWest.longitude, northEast.latitude, northEast.longitude);
+    }
+
+    public double getSouth() {
+        return this.south;
+    }
+
+    public double getWest() {
+        return this.west;
+    }
+
+    public double getNorth() {
+        return this.north;
+    }
+
+    public double getEast() {
+        return this.east;
+    }
+
+    /**
+     * @return True if the rectangle crosses the antimeridian
+     */
+    public boolean crossesAntimeridian() {
+        return this.west > this.east;
+    }
+
+    /**
+     * @return The middle of the rectangle
+     */
+    public GeoLocation getCenter() {
+        double width = this.crossesAntimeridian() ? this.east + 360 - this.west : this.east - this.west;
+        return new GeoLocation((this.south + this.north)/2, GeoUtils.wrapLongitude(this.west + width/2));
+    }
+
+    private boolean containsLongitude(double longitude) {
+        if (this.crossesAntimeridian()) {
+            return longitude >= this.west || longitude <= this.east;
+        }
+        return longitude >= this.west && longitude <= this.east;
+    }
+
+    @Override
+    public boolean contains(double latitude, double longitude) {
+        return latitude >= this.south && latitude <= this.north && this.containsLongitude(longitude);
+    }
+
+    @Override
+    public int relate(double south, double west, double north, double east) {
+        if (north < this.south || south > this.north) {
+            return DISJOINT;
+        }
+        boolean containsLatitudes = south >= this.south && north <= this.north;
+        if (this.crossesAntimeridian()) {
+            if (west >= this.west || east <= this.east) {
+                return containsLatitudes ? CONTAINS : INTERSECTS;
+            }
+            return (east < this.west && west > this.east) ? DISJOINT : INTERSECTS;
+        }
+        if (east < this.west || west > this.east) {
+            return DISJOINT;
+        }
+        return (containsLatitudes && west >= this.west && east <= this.east) ? CONTAINS : INTERSECTS;
+    }
+
+    @Override
+    public GeoRectangle getBounds() {
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        GeoRectangle that = (GeoRectangle) o;
+
+        return Double.compare(that.south, south) == 0 && Double.compare(that.west, west) == 0 &&
+                Double.compare(that.north, north) == 0 && Double.compare(that.east, east) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int result;
+        long temp;
+        temp = Double.doubleToLongBits(south);
+        result = (int) (temp ^ (temp >>> 32));
+        temp = Double.doubleToLongBits(west);
+        result = 31 * result + (int) (temp ^ (temp >>> 32));
+        temp = Double.doubleToLongBits(north);
+        result = 31 * result + (int) (temp ^ (temp >>> 32));
+        temp = Double.doubleToLongBits(east);
+        result = 31 * result + (int) (temp ^ (temp >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "GeoRectangle([" + south + ", " + west + "], [" + north + ", " + east + "])";
+    }
+}
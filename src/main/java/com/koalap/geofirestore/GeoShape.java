@@ -0,0 +1,48 @@
+package com.koalap.geofirestore;
+
+/**
+ * An area on the earth a GeoQuery can be restricted to instead of a circle. See {@link GeoRectangle} and
+ * {@link GeoPolygon} for the built-in shapes.
+ *
+ * Queries cover a shape with the geohash cells {@link #relate} reports as intersecting it, so a shape only reads the
+ * documents of the cells along its border besides the documents inside of it. Implementations must be immutable.
+ */
+public interface GeoShape {
+
+    /**
+     * The box lies completely inside of the shape.
+     */
+    int CONTAINS = 1;
+    /**
+     * The box and the shape do not intersect.
+     */
+    int DISJOINT = -1;
+    /**
+     * The box intersects the border of the shape, or it is not known if it lies inside of it.
+     */
+    int INTERSECTS = 0;
+
+    /**
+     * @param latitude The latitude of the location
+     * @param longitude The longitude of the location
+     * @return True if the location lies in the shape
+     */
+    boolean contains(double latitude, double longitude);
+
+    /**
+     * Relates a latitude/longitude box to the shape. The box never crosses the antimeridian. Returning
+     * {@link #INTERSECTS} is always correct, but a more precise answer gives a tighter covering.
+     *
+     * @param south The southern latitude of the box
+     * @param west The western longitude of the box
+     * @param north The northern latitude of the box
+     * @param east The eastern longitude of the box
+     * @return {@link #CONTAINS}, {@link #DISJOINT} or {@link #INTERSECTS}
+     */
+    int relate(double south, double west, double north, double east);
+
+    /**
+     * @return The smallest latitude/longitude rectangle containing the shape
+     */
+    GeoRectangle getBounds();
+}
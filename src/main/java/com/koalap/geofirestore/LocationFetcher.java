@@ -0,0 +1,151 @@
+package com.koalap.geofirestore;
+
+import com.koalap.geofirestore.store.FirestoreGeoStore;
+import com.koalap.geofirestore.store.GeoStore;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the locations of many keys in chunks with {@link GeoStore#getDocuments}, for Firestore whereIn queries on
+ * the document id.
+ *
+ * Keys already requested by an earlier call that is still in flight are not read again, both calls receive the
+ * result of the same read. The chunks of keys are queued and at most a configurable number of reads run at the
+ * same time.
+ *
+ * @param <D> The type of the documents of the store
+ */
+final class LocationFetcher<D> {
+
+    // The number of keys read together, a single whereIn query of Firestore
+    static final int MAX_KEYS_PER_READ = FirestoreGeoStore.MAX_KEYS_PER_READ;
+
+    /**
+     * The state of a single getLocations call.
+     */
+    private static final class Request {
+        final LocationsCallback callback;
+        final Map<String, GeoLocation> locations;
+        int remaining;
+        boolean failed;
+
+        Request(LocationsCallback callback, int keys) {
+            this.callback = callback;
+            this.locations = new LinkedHashMap<>(keys * 4 / 3 + 1);
+            this.remaining = keys;
+        }
+    }
+
+    private final GeoStore<D> store;
+    // The requests waiting for each key that is currently read
+    private final Map<String, List<Request>> pendingKeys = new HashMap<>();
+    private final ArrayDeque<List<String>> queuedReads = new ArrayDeque<>();
+    private int readsInFlight;
+
+    LocationFetcher(GeoStore<D> store) {
+        this.store = store;
+    }
+
+    /**
+     * Reads the locations of the keys and calls the callback once all of them are known.
+     *
+     * @param keys The keys to read
+     * @param callback The callback receiving the locations
+     * @param maxReadsInFlight The maximal number of reads of this GeoFire instance running at the same time
+     */
+    void getLocations(Collection<String> keys, LocationsCallback callback, int maxReadsInFlight) {
+        Set<String> distinctKeys = new LinkedHashSet<>(keys);
+        if (distinctKeys.contains(null)) {
+            throw new NullPointerException("Keys must not be null!");
+        }
+        if (distinctKeys.isEmpty()) {
+            callback.onLocationsResult(Collections.<String, GeoLocation>emptyMap());
+            return;
+        }
+        Request request = new Request(callback, distinctKeys.size());
+        synchronized (this) {
+            List<String> chunk = new ArrayList<>(MAX_KEYS_PER_READ);
+            for (String key: distinctKeys) {
+                // Reserve the position of the key so the result keeps the order of the request
+                request.locations.put(key, null);
+                List<Request> waiting = this.pendingKeys.get(key);
+                if (waiting == null) {
+                    waiting = new ArrayList<>(1);
+                    this.pendingKeys.put(key, waiting);
+                    chunk.add(key);
+                    if (chunk.size() == MAX_KEYS_PER_READ) {
+                        this.queuedReads.add(chunk);
+                        chunk = new ArrayList<>(MAX_KEYS_PER_READ);
+                    }
+                }
+                waiting.add(request);
+            }
+            if (!chunk.isEmpty()) {
+                this.queuedReads.add(chunk);
+            }
+        }
+        this.startReads(maxReadsInFlight);
+    }
+
+    private void startReads(final int maxReadsInFlight) {
+        while (true) {
+            final List<String> chunk;
+            synchronized (this) {
+                if (this.readsInFlight >= maxReadsInFlight || this.queuedReads.isEmpty()) {
+                    return;
+                }
+                chunk = this.queuedReads.poll();
+                this.readsInFlight++;
+            }
+            this.store.getDocuments(chunk, (documents, exception) ->
+                    this.readCompleted(chunk, documents, exception, maxReadsInFlight));
+        }
+    }
+
+    private void readCompleted(List<String> chunk, List<D> documents, Exception exception, int maxReadsInFlight) {
+        Map<String, GeoLocation> locations = new HashMap<>();
+        if (documents != null) {
+            for (D document: documents) {
+                locations.put(this.store.getKey(document), this.store.getLocation(document));
+            }
+        }
+        List<Request> completed = new ArrayList<>();
+        List<Request> failed = new ArrayList<>();
+        synchronized (this) {
+            this.readsInFlight--;
+            for (String key: chunk) {
+                for (Request request: this.pendingKeys.remove(key)) {
+                    if (request.failed) {
+                        continue;
+                    }
+                    if (exception != null) {
+                        request.failed = true;
+                        failed.add(request);
+                        continue;
+                    }
+                    request.locations.put(key, locations.get(key));
+                    if (--request.remaining == 0) {
+                        completed.add(request);
+                    }
+                }
+            }
+        }
+        // The queued reads start before the callbacks run, so a throwing callback does not stall them
+        this.startReads(maxReadsInFlight);
+        for (Request request: failed) {
+            request.callback.onCancelled(exception);
+        }
+        for (Request request: completed) {
+            request.callback.onLocationsResult(Collections.unmodifiableMap(request.locations));
+        }
+    }
+}
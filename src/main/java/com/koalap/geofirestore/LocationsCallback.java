@@ -0,0 +1,23 @@
+package com.koalap.geofirestore;
+
+import java.util.Map;
+
+/**
+ * Classes implementing this interface can be used to receive the locations of many keys stored in GeoFire.
+ */
+public interface LocationsCallback {
+
+    /**
+     * This method is called once the locations of all keys are known. The location of a key will be null if there
+     * is no valid location stored in GeoFire for the key.
+     * @param locations The locations by their key, in the order of the requested keys
+     */
+    public void onLocationsResult(Map<String, GeoLocation> locations);
+
+    /**
+     * Called if the locations could not be read due to failure on the server or security rules.
+     * @param exception The exception that occurred
+     */
+    public void onCancelled(Exception exception);
+
+}
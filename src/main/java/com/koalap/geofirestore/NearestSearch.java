@@ -0,0 +1,342 @@
+package com.koalap.geofirestore;
+
+import com.koalap.geofirestore.core.CoveringCache;
+import com.koalap.geofirestore.core.GeoHashQuery;
+import com.koalap.geofirestore.core.GeoHashRanges;
+import com.koalap.geofirestore.core.LongGeoHash;
+import com.koalap.geofirestore.store.GeoStore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The state of a nearest-k search: the rings of geohash ranges explored so far and the documents found in them.
+ *
+ * Every ring is the covering of a circle around the center minus the ranges of the previous rings, so every
+ * document is read once. A covering contains its circle, so all unexplored documents are farther from the center
+ * than the radius of the last ring, and the search is complete as soon as the k-th nearest document is closer than
+ * that. The radius of the next ring is estimated from the density of the documents found so far. Not thread safe.
+ *
+ * The proof needs the maximal deviation of the distance function from the haversine distance. With a function that
+ * does not bound it, the k nearest documents are selected by their haversine distance and only ordered by the
+ * distance function.
+ *
+ * @param <D> The type of the documents of the store
+ */
+final class NearestSearch<D> {
+
+    /**
+     * A ring of the search: the ranges read in addition to the previous rings.
+     */
+    static final class Ring {
+        // The radius of the circle covered by this and all previous rings, in meters
+        final double radius;
+        // The ranges of this ring, sorted and disjoint
+        final List<GeoHashQuery> ranges;
+
+        Ring(double radius, List<GeoHashQuery> ranges) {
+            this.radius = radius;
+            this.ranges = ranges;
+        }
+    }
+
+    private static final class Candidate<D> {
+        final String key;
+        final D document;
+        final GeoLocation location;
+        final long geoHash;
+        final double distance;
+        // The distance the documents are selected by: the distance, or the haversine distance if the deviation of
+        // the distance function is not bounded
+        final double selectionDistance;
+
+        Candidate(String key, D document, GeoLocation location, long geoHash, double distance,
+                  double selectionDistance) {
+            this.key = key;
+            this.document = document;
+            this.location = location;
+            this.geoHash = geoHash;
+            this.distance = distance;
+            this.selectionDistance = selectionDistance;
+        }
+    }
+
+    private static final Comparator<Candidate<?>> BY_SELECTION_DISTANCE = new Comparator<Candidate<?>>() {
+        @Override
+        public int compare(Candidate<?> candidate1, Candidate<?> candidate2) {
+            int compare = Double.compare(candidate1.selectionDistance, candidate2.selectionDistance);
+            return compare != 0 ? compare : candidate1.key.compareTo(candidate2.key);
+        }
+    };
+
+    private static final Comparator<Candidate<?>> BY_DISTANCE = new Comparator<Candidate<?>>() {
+        @Override
+        public int compare(Candidate<?> candidate1, Candidate<?> candidate2) {
+            int compare = Double.compare(candidate1.distance, candidate2.distance);
+            return compare != 0 ? compare : candidate1.key.compareTo(candidate2.key);
+        }
+    };
+
+    private static final int KILOMETER_TO_METER = 1000;
+
+    // The maximal radius of a GeoQuery, in meters
+    static final double MAX_RADIUS = 8587 * KILOMETER_TO_METER;
+
+    // Relative margin of the coverings over the radius of their ring, for the ellipsoidal degrees of the coverings
+    private static final double COVERING_MARGIN = 0.01;
+    // Bounds of the factor the radius grows by while fewer than k documents were found
+    private static final double MIN_GROWTH = 1.5;
+    private static final double MAX_GROWTH = 4;
+    // Factor on the radius estimated from the density, as the documents are rarely spread evenly
+    private static final double DENSITY_SAFETY = 1.25;
+
+    private final GeoStore<D> store;
+    private final CoveringCache coveringCache;
+    private final GeoLocation center;
+    private final int k;
+    private final double initialRadius;
+    private final DistanceFunction.CenterDistance centerDistance;
+    // The haversine distance the documents are selected by, or null if they are selected by the distance function
+    private final DistanceFunction.CenterDistance selectionDistance;
+    // Selection distances are at least the haversine distances divided by this factor
+    private final double deviationFactor;
+    private final List<Ring> rings = new ArrayList<>();
+    // The union of the ranges of all rings
+    private List<GeoHashQuery> explored = Collections.emptyList();
+    // The number of base32 characters of the finest ring
+    private int precision = 1;
+    private final Map<String, Candidate<D>> candidates = new HashMap<>();
+
+    /**
+     * @param initialRadius The radius of the first ring, in meters
+     */
+    NearestSearch(GeoStore<D> store, CoveringCache coveringCache, DistanceFunction distanceFunction,
+                  GeoLocation center, int k, double initialRadius) {
+        this.store = store;
+        this.coveringCache = coveringCache;
+        this.center = center;
+        this.k = k;
+        this.initialRadius = Math.min(initialRadius, MAX_RADIUS);
+        this.centerDistance = distanceFunction.forCenter(center);
+        double deviation = distanceFunction.getMaxRelativeDeviation();
+        if (Double.isInfinite(deviation) || Double.isNaN(deviation)) {
+            this.selectionDistance = DistanceFunctions.haversine().forCenter(center);
+            this.deviationFactor = 1;
+        } else {
+            this.selectionDistance = null;
+            this.deviationFactor = 1 + deviation;
+        }
+    }
+
+    /**
+     * Adds or updates a document read from a range of the search.
+     */
+    void add(D document) {
+        GeoLocation location = this.store.getLocation(document);
+        String key = this.store.getKey(document);
+        if (location == null) {
+            this.candidates.remove(key);
+            return;
+        }
+        double distance = this.centerDistance.distanceTo(location.latitude, location.longitude);
+        double selectionDistance = this.selectionDistance != null ?
+                this.selectionDistance.distanceTo(location.latitude, location.longitude) : distance;
+        long geoHash = this.store.getGeoHash(document, location);
+        this.candidates.put(key, new Candidate<>(key, document, location, geoHash, distance, selectionDistance));
+    }
+
+    /**
+     * Removes a document that left a range of the search. A document that moved to another range may have been
+     * added there before, so it is only removed if its last known location is in the range it left.
+     */
+    void remove(D document, GeoHashQuery range) {
+        String key = this.store.getKey(document);
+        Candidate<D> candidate = this.candidates.get(key);
+        if (candidate != null && range.containsGeoHash(candidate.geoHash, LongGeoHash.DEFAULT_PRECISION)) {
+            this.candidates.remove(key);
+        }
+    }
+
+    /**
+     * @return The selection distance of the k-th nearest document in meters, or NaN if fewer than k documents were
+     * found
+     */
+    private double kthDistance() {
+        if (this.candidates.size() < this.k) {
+            return Double.NaN;
+        }
+        return this.sortedCandidates().get(this.k - 1).selectionDistance;
+    }
+
+    private List<Candidate<D>> sortedCandidates() {
+        List<Candidate<D>> sorted = new ArrayList<>(this.candidates.values());
+        Collections.sort(sorted, BY_SELECTION_DISTANCE);
+        return sorted;
+    }
+
+    /**
+     * @return The radius of the circle explored by all rings, in meters, or 0 if no ring was explored
+     */
+    double getRadius() {
+        return this.rings.isEmpty() ? 0 : this.rings.get(this.rings.size() - 1).radius;
+    }
+
+    /**
+     * @return True if the k nearest documents are known, or the search reached the maximal radius
+     */
+    boolean isComplete() {
+        double radius = this.getRadius();
+        if (radius >= MAX_RADIUS) {
+            return true;
+        }
+        double kthDistance = this.kthDistance();
+        return !Double.isNaN(kthDistance) && kthDistance <= radius/this.deviationFactor;
+    }
+
+    /**
+     * Explores the next ring. Its ranges are empty if the previous rings already cover its circle.
+     *
+     * @return The new ring, whose documents must be added before the search can continue
+     */
+    Ring nextRing() {
+        double radius = Math.min(MAX_RADIUS, this.nextRadius());
+        List<GeoHashQuery> covering = this.coveringCache.coveringAtLocation(this.center, radius * (1 + COVERING_MARGIN));
+        for (GeoHashQuery query: covering) {
+            this.precision = Math.max(this.precision, query.getStartValue().length());
+        }
+        List<GeoHashQuery> ranges = this.subtract(covering, this.explored);
+        Ring ring = new Ring(radius, Collections.unmodifiableList(ranges));
+        this.rings.add(ring);
+        this.explored = this.union(this.explored, ranges);
+        return ring;
+    }
+
+    private double nextRadius() {
+        double radius = this.getRadius();
+        if (radius == 0) {
+            return this.initialRadius;
+        }
+        double kthDistance = this.kthDistance();
+        if (!Double.isNaN(kthDistance)) {
+            // The next ring is the last one
+            return Math.max(radius * (1 + COVERING_MARGIN), kthDistance * this.deviationFactor);
+        }
+        int found = 0;
+        for (Candidate<D> candidate: this.candidates.values()) {
+            if (candidate.selectionDistance <= radius) {
+                found++;
+            }
+        }
+        if (found == 0) {
+            return radius * MAX_GROWTH;
+        }
+        double growth = Math.sqrt((double) this.k/found) * DENSITY_SAFETY;
+        return radius * Math.max(MIN_GROWTH, Math.min(MAX_GROWTH, growth));
+    }
+
+    /**
+     * Removes the last ring if the previous rings still contain the k nearest documents with the given margin,
+     * together with its documents.
+     *
+     * @param margin The factor the radius of the previous rings must exceed the radius needed for the k nearest
+     * @return The removed ring, or null if the last ring is needed
+     */
+    Ring shrink(double margin) {
+        if (this.rings.size() < 2) {
+            return null;
+        }
+        double kthDistance = this.kthDistance();
+        Ring previous = this.rings.get(this.rings.size() - 2);
+        if (Double.isNaN(kthDistance) || kthDistance * this.deviationFactor * margin > previous.radius) {
+            return null;
+        }
+        Ring ring = this.rings.remove(this.rings.size() - 1);
+        List<GeoHashQuery> explored = Collections.emptyList();
+        for (Ring remaining: this.rings) {
+            explored = this.union(explored, remaining.ranges);
+        }
+        this.explored = explored;
+        for (GeoHashQuery range: ring.ranges) {
+            for (Iterator<Candidate<D>> iterator = this.candidates.values().iterator(); iterator.hasNext(); ) {
+                if (range.containsGeoHash(iterator.next().geoHash, LongGeoHash.DEFAULT_PRECISION)) {
+                    iterator.remove();
+                }
+            }
+        }
+        return ring;
+    }
+
+    /**
+     * @return The k nearest documents found so far ordered by their distance, without documents beyond the
+     * maximal radius
+     */
+    List<GeoQueryEngine.Match<D>> getNearest() {
+        List<Candidate<D>> sorted = this.sortedCandidates();
+        List<Candidate<D>> selected = new ArrayList<>(Math.min(this.k, sorted.size()));
+        for (Candidate<D> candidate: sorted) {
+            if (selected.size() == this.k || candidate.selectionDistance > MAX_RADIUS) {
+                break;
+            }
+            selected.add(candidate);
+        }
+        if (this.selectionDistance != null) {
+            Collections.sort(selected, BY_DISTANCE);
+        }
+        List<GeoQueryEngine.Match<D>> nearest = new ArrayList<>(selected.size());
+        for (Candidate<D> candidate: selected) {
+            nearest.add(new GeoQueryEngine.Match<>(candidate.document, candidate.location,
+                    candidate.distance/KILOMETER_TO_METER));
+        }
+        return nearest;
+    }
+
+    /**
+     * @return The parts of the sorted and disjoint ranges that are not in the sorted and disjoint explored ranges
+     */
+    private List<GeoHashQuery> subtract(List<GeoHashQuery> ranges, List<GeoHashQuery> explored) {
+        List<GeoHashQuery> result = new ArrayList<>();
+        int exploredIndex = 0;
+        for (GeoHashQuery range: ranges) {
+            long start = range.getStartBits();
+            long end = range.getEndBits();
+            while (exploredIndex < explored.size() && explored.get(exploredIndex).getEndBits() <= start) {
+                exploredIndex++;
+            }
+            for (int i = exploredIndex; i < explored.size() && start < end; i++) {
+                GeoHashQuery covered = explored.get(i);
+                if (covered.getStartBits() >= end) {
+                    break;
+                }
+                if (covered.getStartBits() > start) {
+                    result.add(GeoHashRanges.toQuery(start, covered.getStartBits(), this.precision));
+                }
+                start = Math.max(start, covered.getEndBits());
+            }
+            if (start < end) {
+                result.add(GeoHashRanges.toQuery(start, end, this.precision));
+            }
+        }
+        return result;
+    }
+
+    private List<GeoHashQuery> union(List<GeoHashQuery> ranges1, List<GeoHashQuery> ranges2) {
+        int count = ranges1.size() + ranges2.size();
+        long[] starts = new long[count];
+        long[] ends = new long[count];
+        int i = 0;
+        for (GeoHashQuery range: ranges1) {
+            starts[i] = range.getStartBits();
+            ends[i++] = range.getEndBits();
+        }
+        for (GeoHashQuery range: ranges2) {
+            starts[i] = range.getStartBits();
+            ends[i++] = range.getEndBits();
+        }
+        return GeoHashRanges.merge(starts, ends, count, this.precision);
+    }
+}
@@ -0,0 +1,345 @@
+package com.koalap.geofirestore;
+
+import com.koalap.geofirestore.core.BoxDistance;
+import com.koalap.geofirestore.core.GeoHashQuery;
+import com.koalap.geofirestore.core.GeoHashRanges;
+import com.koalap.geofirestore.core.LongGeoHash;
+import com.koalap.geofirestore.store.GeoStore;
+import com.koalap.geofirestore.util.Base32Utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * The state of a paginated single read of a query: the parts of its ranges that were not read yet and the documents
+ * that were read but not returned yet.
+ *
+ * The ranges of the query are split into finer geohash cells, and every cell knows how near to the center its
+ * documents can be. The cells are read nearest first with a limit per read, and a cell holding more documents than
+ * the limit is continued after the last document read from it. A page is complete as soon as it has enough
+ * documents that are nearer than every part not read yet, so documents far from the center are only read for the
+ * pages that need them. Every document is returned at most once. Not thread safe.
+ *
+ * The bounds of the cells need the maximal deviation of the distance function from the haversine distance. With a
+ * function that does not bound it, the documents of a page are selected by their haversine distance and only
+ * ordered by the distance function within the page.
+ *
+ * @param <D> The type of the documents of the store
+ */
+final class PagedSearch<D> {
+
+    /**
+     * A part of a cell that was not read yet: its documents after a given document. Immutable.
+     */
+    static final class Part<D> {
+        // The query of the whole cell
+        final GeoHashQuery range;
+        // The last document read from the cell, or null if it was not read yet
+        final D after;
+        // A lower bound of the distances of the documents of the part, in meters
+        final double bound;
+
+        Part(GeoHashQuery range, D after, double bound) {
+            this.range = range;
+            this.after = after;
+            this.bound = bound;
+        }
+    }
+
+    private static final Comparator<Part<?>> BY_BOUND = new Comparator<Part<?>>() {
+        @Override
+        public int compare(Part<?> part1, Part<?> part2) {
+            return Double.compare(part1.bound, part2.bound);
+        }
+    };
+
+    /**
+     * A document read but not returned yet. Immutable.
+     */
+    private static final class Candidate<D> {
+        final GeoQueryEngine.Match<D> match;
+        // The distance the documents are selected by in meters: the distance, or the haversine distance if the
+        // deviation of the distance function is not bounded
+        final double selectionDistance;
+
+        Candidate(GeoQueryEngine.Match<D> match, double selectionDistance) {
+            this.match = match;
+            this.selectionDistance = selectionDistance;
+        }
+    }
+
+    private static final Comparator<Candidate<?>> BY_SELECTION_DISTANCE = new Comparator<Candidate<?>>() {
+        @Override
+        public int compare(Candidate<?> candidate1, Candidate<?> candidate2) {
+            return Double.compare(candidate1.selectionDistance, candidate2.selectionDistance);
+        }
+    };
+
+    private static final Comparator<GeoQueryEngine.Match<?>> BY_DISTANCE = new Comparator<GeoQueryEngine.Match<?>>() {
+        @Override
+        public int compare(GeoQueryEngine.Match<?> match1, GeoQueryEngine.Match<?> match2) {
+            return Double.compare(match1.getDistance(), match2.getDistance());
+        }
+    };
+
+    private static final int KILOMETER_TO_METER = 1000;
+
+    // The maximal number of cells the ranges of a query are split into
+    private static final int MAX_CELLS = 256;
+    // The number of bits the cells are finer than the cells of the ranges
+    private static final int REFINE_BITS = 6;
+    // The maximal number of parts read at the same time
+    private static final int MAX_PARALLEL_READS = 4;
+    // Slack in meters for rounding errors of the distance bounds
+    private static final double DISTANCE_SLACK = 0.01;
+
+    private final GeoStore<D> store;
+    private final GeoQueryEngine.Area area;
+    // The haversine distance the documents are selected by, or null if they are selected by the distance function
+    private final DistanceFunction.CenterDistance selectionDistance;
+    // Selection distances are at least the haversine distances divided by this factor
+    private final double deviationFactor;
+    private final PriorityQueue<Part<D>> parts;
+    // The documents read but not returned yet, sorted by their selection distance if sorted is set
+    private final List<Candidate<D>> candidates;
+    private boolean sorted;
+    // The keys of all documents read, so that a document moving between two reads is returned once
+    private final Set<String> readKeys;
+    private int returnedCount;
+
+    /**
+     * Starts a search in the given area.
+     */
+    PagedSearch(GeoStore<D> store, GeoQueryEngine.Area area) {
+        this.store = store;
+        this.area = area;
+        if (Double.isInfinite(area.deviation) || Double.isNaN(area.deviation)) {
+            this.selectionDistance = DistanceFunctions.haversine().forCenter(area.center);
+            this.deviationFactor = 1;
+        } else {
+            this.selectionDistance = null;
+            this.deviationFactor = 1 + area.deviation;
+        }
+        this.parts = new PriorityQueue<>(16, BY_BOUND);
+        this.candidates = new ArrayList<>();
+        this.readKeys = new HashSet<>();
+        this.addCells();
+    }
+
+    /**
+     * Copies a search, so that a page token can be continued more than once.
+     */
+    PagedSearch(PagedSearch<D> other) {
+        this.store = other.store;
+        this.area = other.area;
+        this.selectionDistance = other.selectionDistance;
+        this.deviationFactor = other.deviationFactor;
+        this.parts = new PriorityQueue<>(other.parts);
+        this.candidates = new ArrayList<>(other.candidates);
+        this.sorted = other.sorted;
+        this.readKeys = new HashSet<>(other.readKeys);
+        this.returnedCount = other.returnedCount;
+    }
+
+    GeoStore<D> getStore() {
+        return this.store;
+    }
+
+    /**
+     * @return The number of documents returned by the previous pages
+     */
+    int getReturnedCount() {
+        return this.returnedCount;
+    }
+
+    /**
+     * @return True if all documents were read and returned
+     */
+    boolean isExhausted() {
+        return this.parts.isEmpty() && this.candidates.isEmpty();
+    }
+
+    /**
+     * Splits the ranges of the area into cells, coarsest first, as long as the cells are coarser than the cells of
+     * the ranges plus the refinement bits, dropping cells outside of the area.
+     */
+    private void addCells() {
+        double[] box = new double[4];
+        PriorityQueue<long[]> cells = new PriorityQueue<>(16, (cell1, cell2) -> Long.compare(cell1[1], cell2[1]));
+        int maxBits = 1;
+        for (GeoHashQuery range: this.area.ranges) {
+            for (long[] cell: alignedCells(range.getStartBits(), range.getEndBits())) {
+                maxBits = Math.max(maxBits, (int) cell[1]);
+                if (!Double.isNaN(this.cellBound(cell[0], (int) cell[1], box))) {
+                    cells.add(cell);
+                }
+            }
+        }
+        int targetBits = Math.min(LongGeoHash.DEFAULT_BITS, maxBits + REFINE_BITS);
+        int count = cells.size();
+        while (!cells.isEmpty()) {
+            long[] cell = cells.poll();
+            int bits = (int) cell[1];
+            if (bits < targetBits && count < MAX_CELLS) {
+                count--;
+                for (long half = cell[0]; half < cell[0] + LongGeoHash.cellSize(bits); half += LongGeoHash.cellSize(bits + 1)) {
+                    if (!Double.isNaN(this.cellBound(half, bits + 1, box))) {
+                        cells.add(new long[] { half, bits + 1 });
+                        count++;
+                    }
+                }
+            } else {
+                int precision = (bits + Base32Utils.BITS_PER_BASE32_CHAR - 1) / Base32Utils.BITS_PER_BASE32_CHAR;
+                GeoHashQuery range = GeoHashRanges.toQuery(cell[0], cell[0] + LongGeoHash.cellSize(bits), precision);
+                this.parts.add(new Part<D>(range, null, this.cellBound(cell[0], bits, box)));
+            }
+        }
+    }
+
+    /**
+     * @return The lower bound of the distances of the documents of the cell in meters, or NaN if the cell is
+     * outside of the area
+     */
+    private double cellBound(long hash, int bits, double[] box) {
+        LongGeoHash.decodeBoundingBox(hash, bits, box);
+        if (this.area.shape != null && this.area.shape.relate(box[LongGeoHash.SOUTH], box[LongGeoHash.WEST],
+                box[LongGeoHash.NORTH], box[LongGeoHash.EAST]) == GeoShape.DISJOINT) {
+            return Double.NaN;
+        }
+        double bound = BoxDistance.minDistance(this.area.center.latitude, this.area.center.longitude,
+                box[LongGeoHash.SOUTH], box[LongGeoHash.WEST], box[LongGeoHash.NORTH], box[LongGeoHash.EAST]);
+        bound = Math.max(0, bound/this.deviationFactor - DISTANCE_SLACK);
+        // The radius only bounds the selection distances of the distance function itself
+        return this.area.shape == null && this.selectionDistance == null && bound > this.area.radius ?
+                Double.NaN : bound;
+    }
+
+    /**
+     * @return The lower bound of the distances of the documents in a range of hashes, in meters
+     */
+    private double rangeBound(long start, long end) {
+        double[] box = new double[4];
+        double bound = Double.POSITIVE_INFINITY;
+        for (long[] cell: alignedCells(start, end)) {
+            double cellBound = this.cellBound(cell[0], (int) cell[1], box);
+            if (!Double.isNaN(cellBound)) {
+                bound = Math.min(bound, cellBound);
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * @return The largest aligned cells making up a range of hashes, as pairs of hash and bits
+     */
+    private static List<long[]> alignedCells(long start, long end) {
+        List<long[]> cells = new ArrayList<>();
+        while (start < end) {
+            int bits = Math.max(1, LongGeoHash.MAX_BITS - Long.numberOfTrailingZeros(start));
+            while (LongGeoHash.cellSize(bits) > end - start) {
+                bits++;
+            }
+            cells.add(new long[] { start, bits });
+            start += LongGeoHash.cellSize(bits);
+        }
+        return cells;
+    }
+
+    private void sortCandidates() {
+        if (!this.sorted) {
+            Collections.sort(this.candidates, BY_SELECTION_DISTANCE);
+            this.sorted = true;
+        }
+    }
+
+    /**
+     * @return The selection distance of the n-th nearest document read in meters, or infinity if fewer were read
+     */
+    private double candidateDistance(int n) {
+        this.sortCandidates();
+        return this.candidates.size() >= n ? this.candidates.get(n - 1).selectionDistance : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns the next page if it is complete: all parts not read yet are farther than its documents.
+     *
+     * @param pageSize The maximal number of documents of the page
+     * @return The documents of the page ordered by their distance, or null if more parts must be read
+     */
+    List<GeoQueryEngine.Match<D>> takePage(int pageSize) {
+        double pageDistance = this.candidateDistance(pageSize);
+        if (!this.parts.isEmpty() && pageDistance > this.parts.peek().bound) {
+            return null;
+        }
+        List<Candidate<D>> head = this.candidates.subList(0, Math.min(pageSize, this.candidates.size()));
+        List<GeoQueryEngine.Match<D>> page = new ArrayList<>(head.size());
+        for (Candidate<D> candidate: head) {
+            page.add(candidate.match);
+        }
+        head.clear();
+        if (this.selectionDistance != null) {
+            Collections.sort(page, BY_DISTANCE);
+        }
+        this.returnedCount += page.size();
+        return page;
+    }
+
+    /**
+     * Removes the parts to read next: the nearest part, and other parts that may hold documents of the page.
+     *
+     * @param pageSize The maximal number of documents of the page
+     * @return The parts, whose documents must be added before the next page can be taken
+     */
+    List<Part<D>> nextReads(int pageSize) {
+        double pageDistance = this.candidateDistance(pageSize);
+        List<Part<D>> reads = new ArrayList<>(MAX_PARALLEL_READS);
+        reads.add(this.parts.poll());
+        while (reads.size() < MAX_PARALLEL_READS && !this.parts.isEmpty() && this.parts.peek().bound <= pageDistance) {
+            reads.add(this.parts.poll());
+        }
+        return reads;
+    }
+
+    /**
+     * Adds the documents read from a part, and the rest of the part if the read was limited.
+     *
+     * @param part The part that was read
+     * @param documents The documents of the part, ordered by their geohash and key
+     * @param limit The limit of the read
+     */
+    void addRead(Part<D> part, List<D> documents, int limit) {
+        for (D document: documents) {
+            if (!this.readKeys.add(this.store.getKey(document))) {
+                continue;
+            }
+            GeoLocation location = this.store.getLocation(document);
+            double distance = location != null ? this.area.distanceIfContains(location) : Double.NaN;
+            if (!Double.isNaN(distance)) {
+                GeoQueryEngine.Match<D> match = new GeoQueryEngine.Match<>(document, location, distance/KILOMETER_TO_METER);
+                double selectionDistance = this.selectionDistance != null ?
+                        this.selectionDistance.distanceTo(location.latitude, location.longitude) : distance;
+                this.candidates.add(new Candidate<>(match, selectionDistance));
+                this.sorted = false;
+            }
+        }
+        if (documents.size() >= limit && !documents.isEmpty()) {
+            D last = documents.get(documents.size() - 1);
+            GeoLocation location = this.store.getLocation(last);
+            double bound = part.bound;
+            if (location != null) {
+                // The rest of the cell starts with the cell of the last document
+                long hash = this.store.getGeoHash(last, location);
+                bound = Math.max(bound, this.rangeBound(hash, part.range.getEndBits()));
+            }
+            // The rest of the cell is dropped if it is outside of the area
+            if (!Double.isInfinite(bound)) {
+                this.parts.add(new Part<>(part.range, last, bound));
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.koalap.geofirestore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the metrics of a query and adds them to the metrics of its GeoFire instance, see {@link GeoQueryMetrics}.
+ *
+ * Queries only create a recorder if metrics are enabled, so disabled metrics cost a null check. The documents of a
+ * snapshot are recorded with a single call, the events of the EventRaiser are recorded from the threads delivering
+ * them, so all counters are atomic.
+ */
+final class QueryMetrics {
+
+    private final QueryMetrics parent;
+    private final AtomicInteger activeRanges = new AtomicInteger();
+    private final AtomicLong rangesAdded = new AtomicLong();
+    private final AtomicLong rangesRemoved = new AtomicLong();
+    private final AtomicLong criteriaUpdates = new AtomicLong();
+    private final AtomicLong rangesChurned = new AtomicLong();
+    private final AtomicLong documentsReceived = new AtomicLong();
+    private final AtomicLong documentsDiscarded = new AtomicLong();
+    private final AtomicLong readyCount = new AtomicLong();
+    private final AtomicLong totalTimeToReady = new AtomicLong();
+    private final AtomicLong maxTimeToReady = new AtomicLong();
+    private final AtomicLong lastTimeToReady = new AtomicLong(-1);
+    private final AtomicLong eventsDispatched = new AtomicLong();
+    private final AtomicInteger dispatchQueueDepth = new AtomicInteger();
+    private final AtomicInteger maxDispatchQueueDepth = new AtomicInteger();
+    private final AtomicLong totalDispatchLatency = new AtomicLong();
+    private final AtomicLong maxDispatchLatency = new AtomicLong();
+
+    /**
+     * @param parent The recorder aggregating the metrics of all queries, or null
+     */
+    QueryMetrics(QueryMetrics parent) {
+        this.parent = parent;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry with the new maximum
+        }
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry with the new maximum
+        }
+    }
+
+    /**
+     * Records the ranges a query started and stopped listening to.
+     *
+     * @param criteriaUpdate True if the ranges changed because the center or radius of a listening query changed
+     */
+    void rangesChanged(int added, int removed, boolean criteriaUpdate) {
+        this.activeRanges.addAndGet(added - removed);
+        this.rangesAdded.addAndGet(added);
+        this.rangesRemoved.addAndGet(removed);
+        if (criteriaUpdate) {
+            this.criteriaUpdates.incrementAndGet();
+            this.rangesChurned.addAndGet(added + removed);
+        }
+        if (this.parent != null) {
+            this.parent.rangesChanged(added, removed, criteriaUpdate);
+        }
+    }
+
+    void documentsApplied(int received, int discarded) {
+        this.documentsReceived.addAndGet(received);
+        this.documentsDiscarded.addAndGet(discarded);
+        if (this.parent != null) {
+            this.parent.documentsApplied(received, discarded);
+        }
+    }
+
+    void ready(long timeToReadyNanos) {
+        this.readyCount.incrementAndGet();
+        this.totalTimeToReady.addAndGet(timeToReadyNanos);
+        this.lastTimeToReady.set(timeToReadyNanos);
+        updateMax(this.maxTimeToReady, timeToReadyNanos);
+        if (this.parent != null) {
+            this.parent.ready(timeToReadyNanos);
+        }
+    }
+
+    void eventQueued() {
+        updateMax(this.maxDispatchQueueDepth, this.dispatchQueueDepth.incrementAndGet());
+        if (this.parent != null) {
+            this.parent.eventQueued();
+        }
+    }
+
+    void eventDispatched(long latencyNanos) {
+        this.dispatchQueueDepth.decrementAndGet();
+        this.eventsDispatched.incrementAndGet();
+        this.totalDispatchLatency.addAndGet(latencyNanos);
+        updateMax(this.maxDispatchLatency, latencyNanos);
+        if (this.parent != null) {
+            this.parent.eventDispatched(latencyNanos);
+        }
+    }
+
+    GeoQueryMetrics snapshot() {
+        return new GeoQueryMetrics(this.activeRanges.get(), this.rangesAdded.get(), this.rangesRemoved.get(),
+                this.criteriaUpdates.get(), this.rangesChurned.get(), this.documentsReceived.get(),
+                this.documentsDiscarded.get(), this.readyCount.get(), this.totalTimeToReady.get(),
+                this.maxTimeToReady.get(), this.lastTimeToReady.get(), this.eventsDispatched.get(),
+                this.dispatchQueueDepth.get(), this.maxDispatchQueueDepth.get(), this.totalDispatchLatency.get(),
+                this.maxDispatchLatency.get());
+    }
+}
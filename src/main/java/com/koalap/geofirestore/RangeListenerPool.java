@@ -0,0 +1,394 @@
+package com.koalap.geofirestore;
+
+import com.koalap.geofirestore.core.GeoHashQuery;
+import com.koalap.geofirestore.store.GeoStore;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares one store listener per geohash range between all queries of a GeoIndex.
+ *
+ * Every range listener keeps the current documents of its range. Subscribers joining a range that is already
+ * loaded get the cached documents as added changes instead of a new store listener. The listener is removed
+ * when its last subscriber leaves.
+ *
+ * Each subscription has its own queue of deliveries. Deliveries are enqueued while holding the lock of the pool,
+ * so they keep the order of the snapshots, and run after the lock was released, so subscribers may take their
+ * own locks without risking a deadlock with the pool. The readiness of a range is taken from its first snapshot
+ * that is not from the local cache of the store, so no additional read of the range is needed. While the store is
+ * offline no such snapshot arrives, so a range that received only snapshots from the cache is ready with the cached
+ * documents after a timeout. Store listeners are added outside of the lock as well, since a store may deliver the
+ * first snapshot while adding the listener.
+ *
+ * @param <D> The type of the documents of the store
+ */
+final class RangeListenerPool<D> {
+
+    /**
+     * Receives the changes of the ranges it subscribed to.
+     */
+    interface Subscriber<D> {
+        /**
+         * Called with the changes of one snapshot of a range, or with the cached documents when joining a range.
+         */
+        void onRangeChanges(RangeListenerPool<D>.Subscription subscription, List<GeoStore.Change<D>> changes);
+
+        /**
+         * Called once per subscription after the initial documents of the range were delivered.
+         */
+        void onRangeReady(RangeListenerPool<D>.Subscription subscription);
+
+        void onRangeError(RangeListenerPool<D>.Subscription subscription, Exception error);
+    }
+
+    private static final class RangeKey {
+        final Object scope;
+        final GeoHashQuery range;
+
+        RangeKey(Object scope, GeoHashQuery range) {
+            this.scope = scope;
+            this.range = range;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            RangeKey that = (RangeKey) o;
+
+            return scope.equals(that.scope) && range.equals(that.range);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * scope.hashCode() + range.hashCode();
+        }
+    }
+
+    private final class RangeListener implements GeoStore.RangeListener<D> {
+        final RangeKey key;
+        final Map<String, D> documents = new LinkedHashMap<>();
+        final List<Subscription> subscriptions = new ArrayList<>();
+        GeoStore.Registration registration;
+        // Whether a snapshot was received, and whether the range is ready: a snapshot not from the cache of the store
+        // was received, or the cache timed out
+        boolean received;
+        boolean loaded;
+        // The timeout after which snapshots from the cache make the range ready, or null
+        ScheduledFuture<?> cacheTimeout;
+        boolean cacheTimedOut;
+
+        RangeListener(RangeKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public void onSnapshot(List<GeoStore.Change<D>> changes, boolean fromCache) {
+            List<Subscription> receivers;
+            synchronized (RangeListenerPool.this) {
+                if (RangeListenerPool.this.listeners.get(this.key) != this) {
+                    return;
+                }
+                for (GeoStore.Change<D> change: changes) {
+                    D document = change.getDocument();
+                    String documentKey = RangeListenerPool.this.store.getKey(document);
+                    if (change.getType() == GeoStore.Change.Type.REMOVED) {
+                        this.documents.remove(documentKey);
+                    } else {
+                        this.documents.put(documentKey, document);
+                    }
+                }
+                boolean ready = !this.loaded && (!fromCache || this.cacheTimedOut);
+                this.received = true;
+                if (ready) {
+                    this.loaded = true;
+                    this.cancelCacheTimeout();
+                }
+                if (changes.isEmpty() && !ready) {
+                    return;
+                }
+                List<GeoStore.Change<D>> delivered = Collections.unmodifiableList(changes);
+                for (Subscription subscription: this.subscriptions) {
+                    subscription.enqueue(new Delivery<>(delivered, ready, null));
+                }
+                receivers = new ArrayList<>(this.subscriptions);
+            }
+            for (Subscription subscription: receivers) {
+                subscription.drain();
+            }
+        }
+
+        /**
+         * Makes the range ready with the documents from the cache, or with its first snapshot if none was received.
+         */
+        void onCacheTimeout() {
+            List<Subscription> receivers;
+            synchronized (RangeListenerPool.this) {
+                if (RangeListenerPool.this.listeners.get(this.key) != this || this.loaded) {
+                    return;
+                }
+                this.cacheTimedOut = true;
+                if (!this.received) {
+                    return;
+                }
+                this.loaded = true;
+                for (Subscription subscription: this.subscriptions) {
+                    subscription.enqueue(new Delivery<>(Collections.<GeoStore.Change<D>>emptyList(), true, null));
+                }
+                receivers = new ArrayList<>(this.subscriptions);
+            }
+            for (Subscription subscription: receivers) {
+                subscription.drain();
+            }
+        }
+
+        void cancelCacheTimeout() {
+            if (this.cacheTimeout != null) {
+                this.cacheTimeout.cancel(false);
+                this.cacheTimeout = null;
+            }
+        }
+
+        @Override
+        public void onError(Exception error) {
+            List<Subscription> receivers;
+            synchronized (RangeListenerPool.this) {
+                if (RangeListenerPool.this.listeners.get(this.key) != this) {
+                    return;
+                }
+                for (Subscription subscription: this.subscriptions) {
+                    subscription.enqueue(new Delivery<D>(null, false, error));
+                }
+                receivers = new ArrayList<>(this.subscriptions);
+            }
+            for (Subscription subscription: receivers) {
+                subscription.drain();
+            }
+        }
+    }
+
+    private static final class Delivery<D> {
+        final List<GeoStore.Change<D>> changes;
+        final boolean ready;
+        final Exception error;
+
+        Delivery(List<GeoStore.Change<D>> changes, boolean ready, Exception error) {
+            this.changes = changes;
+            this.ready = ready;
+            this.error = error;
+        }
+    }
+
+    /**
+     * The subscription of one subscriber to one range.
+     */
+    final class Subscription {
+        private final RangeListener listener;
+        private final Subscriber<D> subscriber;
+        private final ArrayDeque<Delivery<D>> deliveries = new ArrayDeque<>();
+        // Nothing is delivered before deliverPending was called, stores may deliver while subscribing
+        private boolean started;
+        private boolean draining;
+        private volatile boolean cancelled;
+
+        private Subscription(RangeListener listener, Subscriber<D> subscriber) {
+            this.listener = listener;
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * @return The geohash range of this subscription
+         */
+        GeoHashQuery getRange() {
+            return this.listener.key.range;
+        }
+
+        /**
+         * @return True if this subscription was removed, it will not deliver any further changes
+         */
+        boolean isRemoved() {
+            return this.cancelled;
+        }
+
+        /**
+         * Delivers the pending changes of this subscription on the calling thread, unless another thread is
+         * delivering them already. Subscribing does not deliver the cached documents of a range, the subscriber
+         * calls this method once it is prepared to receive them.
+         */
+        void deliverPending() {
+            synchronized (this.deliveries) {
+                this.started = true;
+            }
+            this.drain();
+        }
+
+        /**
+         * Stops the deliveries of this subscription and removes the store listener if this was its last
+         * subscription.
+         */
+        void remove() {
+            RangeListenerPool.this.unsubscribe(this);
+        }
+
+        private void enqueue(Delivery<D> delivery) {
+            synchronized (this.deliveries) {
+                this.deliveries.add(delivery);
+            }
+        }
+
+        private void drain() {
+            synchronized (this.deliveries) {
+                if (this.draining || !this.started) {
+                    // The thread draining right now delivers our items in order
+                    return;
+                }
+                this.draining = true;
+            }
+            while (true) {
+                Delivery<D> delivery;
+                synchronized (this.deliveries) {
+                    delivery = this.deliveries.poll();
+                    if (delivery == null || this.cancelled) {
+                        this.deliveries.clear();
+                        this.draining = false;
+                        return;
+                    }
+                }
+                if (delivery.error != null) {
+                    this.subscriber.onRangeError(this, delivery.error);
+                } else {
+                    if (!delivery.changes.isEmpty()) {
+                        this.subscriber.onRangeChanges(this, delivery.changes);
+                    }
+                    if (delivery.ready) {
+                        this.subscriber.onRangeReady(this);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The time after which a range that received only snapshots from the cache of the store is ready, in
+     * milliseconds. It matches the time after which Firestore considers itself offline.
+     */
+    static final long CACHE_TIMEOUT_MILLIS = 10000;
+
+    private final GeoStore<D> store;
+    private final long cacheTimeoutMillis;
+    private final Map<RangeKey, RangeListener> listeners = new HashMap<>();
+
+    RangeListenerPool(GeoStore<D> store) {
+        this(store, CACHE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param cacheTimeoutMillis The time after which a range with only snapshots from the cache is ready
+     */
+    RangeListenerPool(GeoStore<D> store, long cacheTimeoutMillis) {
+        this.store = store;
+        this.cacheTimeoutMillis = cacheTimeoutMillis;
+    }
+
+    /**
+     * Subscribes to the documents of a range in the current scope of the store.
+     *
+     * @param range The geohash range
+     * @param subscriber The subscriber receiving the changes of the range
+     * @return The subscription to remove once the range is not needed anymore, see {@link Subscription#deliverPending()}
+     */
+    Subscription subscribe(GeoHashQuery range, Subscriber<D> subscriber) {
+        RangeKey key = new RangeKey(this.store.getScope(), range);
+        RangeListener listener;
+        Subscription subscription;
+        boolean created;
+        synchronized (this) {
+            listener = this.listeners.get(key);
+            created = listener == null;
+            if (created) {
+                listener = new RangeListener(key);
+                this.listeners.put(key, listener);
+            }
+            subscription = new Subscription(listener, subscriber);
+            listener.subscriptions.add(subscription);
+            if (listener.received) {
+                List<GeoStore.Change<D>> cached = new ArrayList<>(listener.documents.size());
+                for (D document: listener.documents.values()) {
+                    cached.add(new GeoStore.Change<>(GeoStore.Change.Type.ADDED, document));
+                }
+                subscription.enqueue(new Delivery<>(Collections.unmodifiableList(cached), listener.loaded, null));
+            }
+        }
+        if (created) {
+            // A synchronous store delivers the first snapshot right away, which takes the lock of the pool
+            GeoStore.Registration registration = this.store.listenRange(range, listener);
+            synchronized (this) {
+                if (this.listeners.get(key) == listener) {
+                    listener.registration = registration;
+                    registration = null;
+                    if (!listener.loaded) {
+                        final RangeListener waiting = listener;
+                        listener.cacheTimeout = GeoQueryEngine.TimerHolder.TIMER.schedule(waiting::onCacheTimeout,
+                                this.cacheTimeoutMillis, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+            if (registration != null) {
+                // The last subscriber left while the listener was added
+                registration.remove();
+            }
+        }
+        return subscription;
+    }
+
+    private void unsubscribe(Subscription subscription) {
+        subscription.cancelled = true;
+        synchronized (this) {
+            RangeListener listener = subscription.listener;
+            if (!listener.subscriptions.remove(subscription)) {
+                return;
+            }
+            if (listener.subscriptions.isEmpty()) {
+                this.listeners.remove(listener.key);
+                listener.cancelCacheTimeout();
+                if (listener.registration != null) {
+                    listener.registration.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of store listeners currently open
+     */
+    synchronized int getListenerCount() {
+        return this.listeners.size();
+    }
+
+    /**
+     * Removes all store listeners and cancels all subscriptions.
+     */
+    void close() {
+        synchronized (this) {
+            for (RangeListener listener: this.listeners.values()) {
+                for (Subscription subscription: listener.subscriptions) {
+                    subscription.cancelled = true;
+                }
+                listener.cancelCacheTimeout();
+                if (listener.registration != null) {
+                    listener.registration.remove();
+                }
+            }
+            this.listeners.clear();
+        }
+    }
+}
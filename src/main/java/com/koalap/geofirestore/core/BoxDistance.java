@@ -0,0 +1,75 @@
+package com.koalap.geofirestore.core;
+
+import com.koalap.geofirestore.util.Constants;
+import com.koalap.geofirestore.util.GeoUtils;
+
+/**
+ * The haversine distance of a location to the nearest location of a latitude/longitude box, e.g. of a geohash cell.
+ * Every document in the box is at least this far from the location.
+ */
+public final class BoxDistance {
+
+    // Earth's mean radius in meters, as used by the haversine distance
+    private static final double MEAN_RADIUS = (Constants.EARTH_EQ_RADIUS + Constants.EARTH_POLAR_RADIUS)/2;
+
+    private BoxDistance() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * @param latitude The latitude of the location
+     * @param longitude The longitude of the location
+     * @param south The southern latitude of the box
+     * @param west The western longitude of the box, not east of its eastern longitude
+     * @param north The northern latitude of the box
+     * @param east The eastern longitude of the box
+     * @return The distance of the location to the box in meters, 0 if the box contains it
+     */
+    public static double minDistance(double latitude, double longitude, double south, double west, double north, double east) {
+        if (containsLongitude(longitude, west, east)) {
+            // The nearest location is on the meridian of the location
+            return Math.toRadians(Math.max(0, Math.max(south - latitude, latitude - north))) * MEAN_RADIUS;
+        }
+        // The distance grows with the longitude distance along every parallel, so the nearest location is on the
+        // nearer of the meridians bounding the box
+        return Math.min(meridianDistance(latitude, longitude, west, south, north),
+                meridianDistance(latitude, longitude, east, south, north));
+    }
+
+    /**
+     * @return The distance of the location to a meridian between two latitudes, in meters
+     */
+    private static double meridianDistance(double latitude, double longitude, double meridian, double south, double north) {
+        // The cosine of the angular distance along the meridian is a sinusoid of the latitude, its maximum is nearest
+        double sinTerm = Math.sin(Math.toRadians(latitude));
+        double cosTerm = Math.cos(Math.toRadians(latitude)) * Math.cos(Math.toRadians(longitudeDelta(longitude, meridian)));
+        double nearest = Math.toDegrees(Math.atan2(sinTerm, cosTerm));
+        if (nearest < south || nearest > north) {
+            nearest = cosineTerm(sinTerm, cosTerm, south) >= cosineTerm(sinTerm, cosTerm, north) ? south : north;
+        }
+        return GeoUtils.distance(latitude, longitude, nearest, meridian);
+    }
+
+    private static double cosineTerm(double sinTerm, double cosTerm, double latitude) {
+        return sinTerm * Math.sin(Math.toRadians(latitude)) + cosTerm * Math.cos(Math.toRadians(latitude));
+    }
+
+    /**
+     * @return The longitude distance of two meridians in degrees, in the range of [0, 180]
+     */
+    static double longitudeDelta(double longitude1, double longitude2) {
+        return Math.abs(GeoUtils.wrapLongitude(longitude2 - longitude1));
+    }
+
+    /**
+     * @return True if the box spans the longitude
+     */
+    private static boolean containsLongitude(double longitude, double west, double east) {
+        for (double shifted = longitude - 360; shifted <= longitude + 360; shifted += 360) {
+            if (shifted >= west && shifted <= east) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,125 @@
+package com.koalap.geofirestore.core;
+
+import com.koalap.geofirestore.GeoLocation;
+import com.koalap.geofirestore.util.Constants;
+
+/**
+ * An inner and an outer latitude/longitude box of a circle on the earth, to decide most locations without
+ * computing their distance to the center.
+ *
+ * Every location in the inner box is inside the circle and every location outside of the outer box is outside of
+ * it. Only the locations between the two boxes need an exact distance. The boxes are computed on the sphere of the
+ * haversine distance and widened by the relative deviation of the actual distance function from it.
+ */
+public final class CircleBounds {
+
+    /**
+     * The location is in the inner box, so it is inside the circle.
+     */
+    public static final int INSIDE = 1;
+    /**
+     * The location is outside of the outer box, so it is outside of the circle.
+     */
+    public static final int OUTSIDE = -1;
+    /**
+     * The location is between the boxes, its distance decides.
+     */
+    public static final int UNKNOWN = 0;
+
+    // Earth's mean radius in meters, as used by the haversine distance
+    private static final double MEAN_RADIUS = (Constants.EARTH_EQ_RADIUS + Constants.EARTH_POLAR_RADIUS)/2;
+
+    // Margin in meters for rounding errors of the distance functions
+    private static final double SLACK = 0.01;
+
+    // Relative margin of the box extents for rounding errors of the trigonometric functions
+    private static final double EXTENT_MARGIN = 1e-9;
+
+    private final double centerLatitude;
+    private final double centerLongitude;
+
+    // The half extents of the boxes in degrees, an inner latitude extent below zero means there is no inner box
+    private final double outerLatitudeDelta;
+    private final double outerLongitudeDelta;
+    private final double innerLatitudeDelta;
+    private final double innerLongitudeDelta;
+
+    /**
+     * @param center The center of the circle
+     * @param radius The radius of the circle in meters
+     * @param relativeDeviation The maximal relative deviation of the distance function from the haversine distance,
+     *                          or infinity if it is not bounded, in which case no location is decided by the boxes
+     */
+    public CircleBounds(GeoLocation center, double radius, double relativeDeviation) {
+        this.centerLatitude = center.latitude;
+        this.centerLongitude = center.longitude;
+
+        if (Double.isInfinite(relativeDeviation) || Double.isNaN(relativeDeviation)) {
+            this.outerLatitudeDelta = 180;
+            this.outerLongitudeDelta = 180;
+            this.innerLatitudeDelta = -1;
+            this.innerLongitudeDelta = -1;
+            return;
+        }
+
+        // The outer box holds the circle widened by the deviation
+        double outerAngle = (radius * (1 + relativeDeviation) + SLACK)/MEAN_RADIUS;
+        this.outerLatitudeDelta = Math.toDegrees(outerAngle) * (1 + EXTENT_MARGIN);
+        double centerCos = Math.cos(Math.toRadians(this.centerLatitude));
+        if (Math.abs(this.centerLatitude) + this.outerLatitudeDelta >= 90 || Math.sin(outerAngle) >= centerCos) {
+            // The circle contains a pole
+            this.outerLongitudeDelta = 180;
+        } else {
+            this.outerLongitudeDelta = Math.min(180, Math.toDegrees(Math.asin(Math.sin(outerAngle)/centerCos)) * (1 + EXTENT_MARGIN));
+        }
+
+        // The inner box is inscribed in the circle shrunk by the deviation
+        double innerAngle = (radius/(1 + relativeDeviation) - SLACK)/MEAN_RADIUS;
+        double latitudeAngle = innerAngle/Math.sqrt(2);
+        double latitudeDelta = Math.toDegrees(latitudeAngle);
+        if (innerAngle <= 0 || Math.abs(this.centerLatitude) + latitudeDelta >= 90) {
+            this.innerLatitudeDelta = -1;
+            this.innerLongitudeDelta = -1;
+            return;
+        }
+        // The haversine term of the corners grows with the cosine of their latitude, use the one closest to the equator
+        double maxCos;
+        if (this.centerLatitude - latitudeDelta <= 0 && this.centerLatitude + latitudeDelta >= 0) {
+            maxCos = 1;
+        } else {
+            maxCos = Math.cos(Math.toRadians(Math.abs(this.centerLatitude) - latitudeDelta));
+        }
+        double sinHalfAngle = Math.sin(innerAngle/2);
+        double sinHalfLatitude = Math.sin(latitudeAngle/2);
+        double sinSqHalfLongitude = (sinHalfAngle*sinHalfAngle - sinHalfLatitude*sinHalfLatitude)/(maxCos*centerCos);
+        this.innerLatitudeDelta = latitudeDelta * (1 - EXTENT_MARGIN);
+        if (sinSqHalfLongitude >= 1) {
+            this.innerLongitudeDelta = 180;
+        } else {
+            this.innerLongitudeDelta = Math.toDegrees(2 * Math.asin(Math.sqrt(sinSqHalfLongitude))) * (1 - EXTENT_MARGIN);
+        }
+    }
+
+    /**
+     * @param latitude The latitude of the location
+     * @param longitude The longitude of the location
+     * @return {@link #INSIDE}, {@link #OUTSIDE} or {@link #UNKNOWN}
+     */
+    public int classify(double latitude, double longitude) {
+        double latitudeDelta = Math.abs(latitude - this.centerLatitude);
+        if (latitudeDelta > this.outerLatitudeDelta) {
+            return OUTSIDE;
+        }
+        double longitudeDelta = Math.abs(longitude - this.centerLongitude);
+        if (longitudeDelta > 180) {
+            longitudeDelta = 360 - longitudeDelta;
+        }
+        if (longitudeDelta > this.outerLongitudeDelta) {
+            return OUTSIDE;
+        }
+        if (latitudeDelta <= this.innerLatitudeDelta && longitudeDelta <= this.innerLongitudeDelta) {
+            return INSIDE;
+        }
+        return UNKNOWN;
+    }
+}
@@ -0,0 +1,76 @@
+package com.koalap.geofirestore.core;
+
+import com.koalap.geofirestore.GeoLocation;
+import com.koalap.geofirestore.GeoRectangle;
+import com.koalap.geofirestore.GeoShape;
+import com.koalap.geofirestore.util.Constants;
+import com.koalap.geofirestore.util.GeoUtils;
+
+/**
+ * A circle of the haversine distance as a shape, so the adaptive coverings can refine its border like the border of
+ * any other shape.
+ *
+ * A box is only reported disjoint if its nearest location is farther than the radius, and only reported inside if
+ * its farthest location is within the radius, so the covering always contains the circle.
+ */
+final class CircleShape implements GeoShape {
+
+    // Earth's mean radius in meters, as used by the haversine distance
+    private static final double MEAN_RADIUS = (Constants.EARTH_EQ_RADIUS + Constants.EARTH_POLAR_RADIUS)/2;
+
+    private final double latitude;
+    private final double longitude;
+    private final double radius;
+    private final GeoRectangle bounds;
+
+    /**
+     * @param center The center of the circle
+     * @param radius The radius of the circle in meters
+     */
+    CircleShape(GeoLocation center, double radius) {
+        this.latitude = center.latitude;
+        this.longitude = center.longitude;
+        this.radius = radius;
+
+        double angle = radius/MEAN_RADIUS;
+        double latitudeDelta = Math.toDegrees(angle);
+        double south = Math.max(-90, this.latitude - latitudeDelta);
+        double north = Math.min(90, this.latitude + latitudeDelta);
+        double centerCos = Math.cos(Math.toRadians(this.latitude));
+        if (south == -90 || north == 90 || Math.sin(angle) >= centerCos) {
+            // The circle contains a pole
+            this.bounds = new GeoRectangle(south, -180, north, 180);
+        } else {
+            double longitudeDelta = Math.toDegrees(Math.asin(Math.sin(angle)/centerCos));
+            this.bounds = new GeoRectangle(south, GeoUtils.wrapLongitude(this.longitude - longitudeDelta),
+                    north, GeoUtils.wrapLongitude(this.longitude + longitudeDelta));
+        }
+    }
+
+    @Override
+    public boolean contains(double latitude, double longitude) {
+        return GeoUtils.distance(this.latitude, this.longitude, latitude, longitude) <= this.radius;
+    }
+
+    @Override
+    public int relate(double south, double west, double north, double east) {
+        if (BoxDistance.minDistance(this.latitude, this.longitude, south, west, north, east) > this.radius) {
+            return DISJOINT;
+        }
+        // On a box within 90 degrees of longitude of the center the farthest location is a corner
+        if (BoxDistance.longitudeDelta(this.longitude, west) <= 90 &&
+                BoxDistance.longitudeDelta(this.longitude, east) <= 90 &&
+                GeoUtils.distance(this.latitude, this.longitude, south, west) <= this.radius &&
+                GeoUtils.distance(this.latitude, this.longitude, south, east) <= this.radius &&
+                GeoUtils.distance(this.latitude, this.longitude, north, west) <= this.radius &&
+                GeoUtils.distance(this.latitude, this.longitude, north, east) <= this.radius) {
+            return CONTAINS;
+        }
+        return INTERSECTS;
+    }
+
+    @Override
+    public GeoRectangle getBounds() {
+        return this.bounds;
+    }
+}
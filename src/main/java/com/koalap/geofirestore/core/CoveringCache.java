@@ -0,0 +1,169 @@
+package com.koalap.geofirestore.core;
+
+import com.koalap.geofirestore.GeoLocation;
+import com.koalap.geofirestore.util.Constants;
+import com.koalap.geofirestore.util.GeoUtils;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread safe LRU cache of geohash coverings.
+ *
+ * The center of a circle is quantized to a cell a few bits finer than the precision of its covering. The cached
+ * covering is computed for the whole quantization cell expanded by the radius, so it covers the circle around
+ * every center inside that cell. Centers jittering inside one cell therefore share a single covering, at the price
+ * of an occasional extra range at the border of the circle.
+ */
+public final class CoveringCache {
+
+    // The default maximal number of cached coverings
+    public static final int DEFAULT_MAX_SIZE = 256;
+
+    // Number of bits the quantization cell is finer than the query cells, split evenly between latitude and longitude
+    private static final int QUANTIZATION_BITS = 10;
+
+    // Length of a degree longitude at the equator
+    private static final double METERS_PER_DEGREE_LONGITUDE = Constants.EARTH_EQ_RADIUS * Math.PI / 180;
+
+    private static final class Key {
+        final long cell;
+        final int bits;
+        final long radius;
+
+        Key(long cell, int bits, double radius) {
+            this.cell = cell;
+            this.bits = bits;
+            this.radius = Double.doubleToLongBits(radius);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key that = (Key) o;
+
+            return this.cell == that.cell && this.bits == that.bits && this.radius == that.radius;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (cell ^ (cell >>> 32));
+            result = 31 * result + bits;
+            result = 31 * result + (int) (radius ^ (radius >>> 32));
+            return result;
+        }
+    }
+
+    private final Map<Key, List<GeoHashQuery>> coverings;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public CoveringCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize The maximal number of cached coverings, the least recently used covering is evicted first
+     */
+    public CoveringCache(final int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Size of a CoveringCache must be larger than zero!");
+        }
+        this.coverings = new LinkedHashMap<Key, List<GeoHashQuery>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, List<GeoHashQuery>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the geohash ranges covering a circle, from the cache if possible.
+     *
+     * @param location The center of the circle
+     * @param radius The radius of the circle in meters
+     * @return An immutable list of disjoint queries sorted by their start value
+     */
+    public List<GeoHashQuery> coveringAtLocation(GeoLocation location, double radius) {
+        int queryBits = Math.min(LongGeoHash.MAX_BITS, Math.max(1, GeoHashQuery.Utils.bitsForBoundingBox(location, radius)));
+        int cellBits = Math.min(LongGeoHash.MAX_BITS, queryBits + QUANTIZATION_BITS);
+        Key key = new Key(LongGeoHash.encode(location.latitude, location.longitude, cellBits), cellBits, radius);
+
+        List<GeoHashQuery> covering;
+        synchronized (this.coverings) {
+            covering = this.coverings.get(key);
+        }
+        if (covering != null) {
+            this.hits.incrementAndGet();
+            return covering;
+        }
+        this.misses.incrementAndGet();
+        covering = coveringForCell(key.cell, cellBits, radius);
+        synchronized (this.coverings) {
+            this.coverings.put(key, covering);
+        }
+        return covering;
+    }
+
+    private static List<GeoHashQuery> coveringForCell(long cell, int cellBits, double radius) {
+        double[] box = new double[4];
+        LongGeoHash.decodeBoundingBox(cell, cellBits, box);
+
+        double latitudeDegrees = radius/Constants.METERS_PER_DEGREE_LATITUDE;
+        double latitudeNorth = Math.min(90, box[LongGeoHash.NORTH] + latitudeDegrees);
+        double latitudeSouth = Math.max(-90, box[LongGeoHash.SOUTH] - latitudeDegrees);
+        double longitudeDeltaNorth = GeoUtils.distanceToLongitudeDegrees(radius, latitudeNorth);
+        double longitudeDeltaSouth = GeoUtils.distanceToLongitudeDegrees(radius, latitudeSouth);
+        double longitudeDelta = Math.max(longitudeDeltaNorth, longitudeDeltaSouth);
+        double longitudeWest = GeoUtils.wrapLongitude(box[LongGeoHash.WEST] - longitudeDelta);
+        double longitudeEast = GeoUtils.wrapLongitude(box[LongGeoHash.EAST] + longitudeDelta);
+
+        double latitude = (latitudeNorth + latitudeSouth)/2;
+        double longitude = (box[LongGeoHash.WEST] + box[LongGeoHash.EAST])/2;
+        // The query cells have to span the expanded cell, not just the radius, so that the samples cover it
+        double cellSize = Math.max((box[LongGeoHash.NORTH] - box[LongGeoHash.SOUTH]) * Constants.METERS_PER_DEGREE_LATITUDE,
+                (box[LongGeoHash.EAST] - box[LongGeoHash.WEST]) * METERS_PER_DEGREE_LONGITUDE);
+        double size = radius + cellSize/2;
+        int queryBits = Math.min(LongGeoHash.MAX_BITS,
+                Math.max(1, GeoHashQuery.Utils.bitsForBoundingBox(new GeoLocation(latitude, longitude), size)));
+
+        return GeoHashQuery.coveringForSamples(latitudeSouth, latitude, latitudeNorth,
+                longitudeWest, longitude, longitudeEast, queryBits);
+    }
+
+    /**
+     * @return The number of coverings served from the cache
+     */
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return The number of coverings that had to be computed
+     */
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return The number of coverings currently cached
+     */
+    public int size() {
+        synchronized (this.coverings) {
+            return this.coverings.size();
+        }
+    }
+
+    /**
+     * Removes all cached coverings. The hit and miss counters are not reset.
+     */
+    public void clear() {
+        synchronized (this.coverings) {
+            this.coverings.clear();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.koalap.geofirestore.core;
+
+/**
+ * The costs an adaptive covering weighs against each other: every range of a covering is another store listener,
+ * and every cell reaching beyond the circle reads the documents outside of it. Both are expressed in document reads.
+ *
+ * A border cell is split into finer ranges while the reads it is expected to save exceed the cost of the additional
+ * range, up to a maximal number of ranges. The expected reads follow from the area of the cell outside of the circle
+ * and the density of the documents, so the density should be an estimate for the queried region; an estimate that
+ * is too high only costs listeners, one that is too low only costs reads. Immutable.
+ */
+public final class CoveringCostModel {
+
+    /**
+     * The default cost of a range, in document reads. A read of an empty range is charged as one document read, and
+     * the listener adds some overhead to it.
+     */
+    public static final double DEFAULT_RANGE_COST = 2;
+
+    /**
+     * The default maximal number of ranges of a covering.
+     */
+    public static final int DEFAULT_MAX_RANGES = 16;
+
+    private final double documentsPerSquareKilometer;
+    private final double rangeCost;
+    private final int maxRanges;
+
+    /**
+     * @param documentsPerSquareKilometer The expected density of the documents
+     */
+    public CoveringCostModel(double documentsPerSquareKilometer) {
+        this(documentsPerSquareKilometer, DEFAULT_RANGE_COST, DEFAULT_MAX_RANGES);
+    }
+
+    /**
+     * @throws IllegalArgumentException If the density is not positive, the range cost is negative or fewer than 2
+     * ranges are allowed
+     * @param documentsPerSquareKilometer The expected density of the documents
+     * @param rangeCost The cost of an additional range, in document reads
+     * @param maxRanges The maximal number of ranges of a covering, at least 2
+     */
+    public CoveringCostModel(double documentsPerSquareKilometer, double rangeCost, int maxRanges) {
+        if (!(documentsPerSquareKilometer > 0) || Double.isInfinite(documentsPerSquareKilometer)) {
+            throw new IllegalArgumentException("The density must be larger than zero: " + documentsPerSquareKilometer);
+        }
+        if (!(rangeCost >= 0) || Double.isInfinite(rangeCost)) {
+            throw new IllegalArgumentException("The range cost must not be negative: " + rangeCost);
+        }
+        if (maxRanges < 2) {
+            throw new IllegalArgumentException("A covering needs at least 2 ranges: " + maxRanges);
+        }
+        this.documentsPerSquareKilometer = documentsPerSquareKilometer;
+        this.rangeCost = rangeCost;
+        this.maxRanges = maxRanges;
+    }
+
+    public double getDocumentsPerSquareKilometer() {
+        return this.documentsPerSquareKilometer;
+    }
+
+    public double getRangeCost() {
+        return this.rangeCost;
+    }
+
+    public int getMaxRanges() {
+        return this.maxRanges;
+    }
+
+    /**
+     * @param area The area in square kilometers
+     * @return The number of documents expected in the area
+     */
+    public double expectedReads(double area) {
+        return area * this.documentsPerSquareKilometer;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        CoveringCostModel that = (CoveringCostModel) o;
+
+        return Double.compare(that.documentsPerSquareKilometer, this.documentsPerSquareKilometer) == 0 &&
+                Double.compare(that.rangeCost, this.rangeCost) == 0 && this.maxRanges == that.maxRanges;
+    }
+
+    @Override
+    public int hashCode() {
+        long bits = Double.doubleToLongBits(this.documentsPerSquareKilometer);
+        int result = (int) (bits ^ (bits >>> 32));
+        bits = Double.doubleToLongBits(this.rangeCost);
+        result = 31 * result + (int) (bits ^ (bits >>> 32));
+        return 31 * result + this.maxRanges;
+    }
+
+    @Override
+    public String toString() {
+        return "CoveringCostModel{documentsPerSquareKilometer=" + this.documentsPerSquareKilometer +
+                ", rangeCost=" + this.rangeCost + ", maxRanges=" + this.maxRanges + "}";
+    }
+}
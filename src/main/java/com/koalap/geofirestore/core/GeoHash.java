@@ -33,8 +33,15 @@ public class GeoHash {
         if (!GeoLocation.coordinatesValid(latitude, longitude)) {
             throw new IllegalArgumentException(String.format("Not valid location coordinates: [%f, %f]", latitude, longitude));
         }
-        double[] longitudeRange = { -180, 180 };
-        double[] latitudeRange = { -90, 90 };
+        if (precision <= LongGeoHash.MAX_PRECISION) {
+            long hash = LongGeoHash.encode(latitude, longitude, precision * Base32Utils.BITS_PER_BASE32_CHAR);
+            this.geoHash = LongGeoHash.toBase32String(hash, precision);
+            return;
+        }
+        double longitudeMin = -180;
+        double longitudeMax = 180;
+        double latitudeMin = -90;
+        double latitudeMax = 90;
 
         char[] buffer = new char[precision];
 
@@ -42,15 +49,24 @@ public class GeoHash {
             int hashValue = 0;
             for (int j = 0; j < Base32Utils.BITS_PER_BASE32_CHAR; j++) {
                 boolean even = (((i*Base32Utils.BITS_PER_BASE32_CHAR) + j) % 2) == 0;
-                double val = even ? longitude : latitude;
-                double[] range = even ? longitudeRange : latitudeRange;
-                double mid = (range[0] + range[1])/2;
-                if (val > mid) {
-                    hashValue = (hashValue << 1) + 1;
-                    range[0] = mid;
+                if (even) {
+                    double mid = (longitudeMin + longitudeMax)/2;
+                    if (longitude > mid) {
+                        hashValue = (hashValue << 1) + 1;
+                        longitudeMin = mid;
+                    } else {
+                        hashValue = (hashValue << 1);
+                        longitudeMax = mid;
+                    }
                 } else {
-                    hashValue = (hashValue << 1);
-                    range[1] = mid;
+                    double mid = (latitudeMin + latitudeMax)/2;
+                    if (latitude > mid) {
+                        hashValue = (hashValue << 1) + 1;
+                        latitudeMin = mid;
+                    } else {
+                        hashValue = (hashValue << 1);
+                        latitudeMax = mid;
+                    }
                 }
             }
             buffer[i] = Base32Utils.valueToBase32Char(hashValue);
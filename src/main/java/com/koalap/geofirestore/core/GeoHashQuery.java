@@ -6,6 +6,7 @@ import com.koalap.geofirestore.util.Constants;
 import com.koalap.geofirestore.util.GeoUtils;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class GeoHashQuery {
@@ -37,12 +38,40 @@ public class GeoHashQuery {
         }
     }
 
+    // Marks a bound that cannot be represented as a long hash
+    private static final long NO_BITS = -1;
+
     private final String startValue;
     private final String endValue;
+    // The bounds as long hashes, or NO_BITS if a value is longer than a long hash can hold
+    private final long startBits;
+    private final long endBits;
 
     public GeoHashQuery(String startValue, String endValue) {
         this.startValue = startValue;
         this.endValue = endValue;
+        this.startBits = boundToBits(startValue);
+        this.endBits = boundToBits(endValue);
+    }
+
+    GeoHashQuery(String startValue, String endValue, long startBits, long endBits) {
+        this.startValue = startValue;
+        this.endValue = endValue;
+        this.startBits = startBits;
+        this.endBits = endBits;
+    }
+
+    private static long boundToBits(String value) {
+        int length = value.length();
+        boolean open = length > 0 && value.charAt(length - 1) == '~';
+        int baseLength = open ? length - 1 : length;
+        long bits = Base32Utils.decodeBits(value, 0, baseLength);
+        if (bits == Base32Utils.INVALID_VALUE) {
+            return NO_BITS;
+        }
+        int significantBits = baseLength * Base32Utils.BITS_PER_BASE32_CHAR;
+        long hash = bits << (LongGeoHash.MAX_BITS - significantBits);
+        return open ? LongGeoHash.prefixEnd(hash, significantBits) : hash;
     }
 
     public static GeoHashQuery queryForGeoHash(GeoHash geohash, int bits) {
@@ -70,8 +99,22 @@ public class GeoHashQuery {
     }
 
     public static Set<GeoHashQuery> queriesAtLocation(GeoLocation location, double radius) {
-        int queryBits = Math.max(1, Utils.bitsForBoundingBox(location, radius));
-        int geoHashPrecision = (int) Math.ceil((float)queryBits /Base32Utils.BITS_PER_BASE32_CHAR);
+        return new HashSet<>(coveringAtLocation(location, radius));
+    }
+
+    /**
+     * Computes the geohash ranges covering a circle.
+     *
+     * The cells of nine sample points around the center are computed as long hashes, sorted and merged in a single
+     * pass. Ranges which overlap or touch are joined.
+     *
+     * @param location The center of the circle
+     * @param radius The radius of the circle in meters
+     * @return An immutable list of disjoint queries sorted by their start value
+     */
+    public static List<GeoHashQuery> coveringAtLocation(GeoLocation location, double radius) {
+        // A long hash holds at most 60 bits, coarser cells still cover the circle
+        int queryBits = Math.min(LongGeoHash.MAX_BITS, Math.max(1, Utils.bitsForBoundingBox(location, radius)));
 
         double latitude = location.latitude;
         double longitude = location.longitude;
@@ -81,56 +124,47 @@ public class GeoHashQuery {
         double longitudeDeltaNorth = GeoUtils.distanceToLongitudeDegrees(radius, latitudeNorth);
         double longitudeDeltaSouth = GeoUtils.distanceToLongitudeDegrees(radius, latitudeSouth);
         double longitudeDelta = Math.max(longitudeDeltaNorth, longitudeDeltaSouth);
+        double longitudeWest = GeoUtils.wrapLongitude(longitude - longitudeDelta);
+        double longitudeEast = GeoUtils.wrapLongitude(longitude + longitudeDelta);
 
-        Set<GeoHashQuery> queries = new HashSet<>();
-
-        GeoHash geoHash = new GeoHash(latitude, longitude, geoHashPrecision);
-        GeoHash geoHashW = new GeoHash(latitude, GeoUtils.wrapLongitude(longitude - longitudeDelta), geoHashPrecision);
-        GeoHash geoHashE = new GeoHash(latitude, GeoUtils.wrapLongitude(longitude + longitudeDelta), geoHashPrecision);
-
-        GeoHash geoHashN = new GeoHash(latitudeNorth, longitude, geoHashPrecision);
-        GeoHash geoHashNW = new GeoHash(latitudeNorth, GeoUtils.wrapLongitude(longitude - longitudeDelta), geoHashPrecision);
-        GeoHash geoHashNE = new GeoHash(latitudeNorth, GeoUtils.wrapLongitude(longitude + longitudeDelta), geoHashPrecision);
-
-        GeoHash geoHashS = new GeoHash(latitudeSouth, longitude, geoHashPrecision);
-        GeoHash geoHashSW = new GeoHash(latitudeSouth, GeoUtils.wrapLongitude(longitude - longitudeDelta), geoHashPrecision);
-        GeoHash geoHashSE = new GeoHash(latitudeSouth, GeoUtils.wrapLongitude(longitude + longitudeDelta), geoHashPrecision);
-
-        queries.add(queryForGeoHash(geoHash, queryBits));
-        queries.add(queryForGeoHash(geoHashE, queryBits));
-        queries.add(queryForGeoHash(geoHashW, queryBits));
-        queries.add(queryForGeoHash(geoHashN, queryBits));
-        queries.add(queryForGeoHash(geoHashNE, queryBits));
-        queries.add(queryForGeoHash(geoHashNW, queryBits));
-        queries.add(queryForGeoHash(geoHashS, queryBits));
-        queries.add(queryForGeoHash(geoHashSE, queryBits));
-        queries.add(queryForGeoHash(geoHashSW, queryBits));
-
-        // Join queries
-        boolean didJoin;
-        do {
-            GeoHashQuery query1 = null;
-            GeoHashQuery query2 = null;
-            for (GeoHashQuery query: queries) {
-                for (GeoHashQuery other: queries) {
-                    if (query != other && query.canJoinWith(other)) {
-                        query1 = query;
-                        query2 = other;
-                        break;
-                    }
-                }
-            }
-            if (query1 != null && query2 != null) {
-                queries.remove(query1);
-                queries.remove(query2);
-                queries.add(query1.joinWith(query2));
-                didJoin = true;
-            } else {
-                didJoin = false;
-            }
-        } while (didJoin);
-
-        return queries;
+        return coveringForSamples(latitudeSouth, latitude, latitudeNorth,
+                longitudeWest, longitude, longitudeEast, queryBits);
+    }
+
+    /**
+     * Computes the geohash ranges covering the cells of the nine sample points of a 3x3 grid. The cells must be at
+     * least as large as the distance between two neighbouring samples for the ranges to cover the whole grid.
+     *
+     * @param latitudeSouth The southern latitude of the grid
+     * @param latitude The middle latitude of the grid
+     * @param latitudeNorth The northern latitude of the grid
+     * @param longitudeWest The western longitude of the grid
+     * @param longitude The middle longitude of the grid
+     * @param longitudeEast The eastern longitude of the grid
+     * @param queryBits The number of bits of the cells
+     * @return An immutable list of disjoint queries sorted by their start value
+     */
+    static List<GeoHashQuery> coveringForSamples(double latitudeSouth, double latitude, double latitudeNorth,
+                                                 double longitudeWest, double longitude, double longitudeEast,
+                                                 int queryBits) {
+        int geoHashPrecision = (int) Math.ceil((float)queryBits /Base32Utils.BITS_PER_BASE32_CHAR);
+        long cellSize = LongGeoHash.cellSize(queryBits);
+
+        long[] starts = new long[9];
+        long[] ends = new long[9];
+        starts[0] = LongGeoHash.encode(latitude, longitude, queryBits);
+        starts[1] = LongGeoHash.encode(latitude, longitudeEast, queryBits);
+        starts[2] = LongGeoHash.encode(latitude, longitudeWest, queryBits);
+        starts[3] = LongGeoHash.encode(latitudeNorth, longitude, queryBits);
+        starts[4] = LongGeoHash.encode(latitudeNorth, longitudeEast, queryBits);
+        starts[5] = LongGeoHash.encode(latitudeNorth, longitudeWest, queryBits);
+        starts[6] = LongGeoHash.encode(latitudeSouth, longitude, queryBits);
+        starts[7] = LongGeoHash.encode(latitudeSouth, longitudeEast, queryBits);
+        starts[8] = LongGeoHash.encode(latitudeSouth, longitudeWest, queryBits);
+        for (int i = 0; i < starts.length; i++) {
+            ends[i] = starts[i] + cellSize;
+        }
+        return GeoHashRanges.merge(starts, ends, starts.length, geoHashPrecision);
     }
 
     private boolean isPrefix(GeoHashQuery other) {
@@ -167,6 +201,39 @@ public class GeoHashQuery {
         return this.startValue.compareTo(hashStr) <= 0 && this.endValue.compareTo(hashStr) > 0;
     }
 
+    /**
+     * Checks whether a long hash lies in this query without converting it to a string.
+     *
+     * @param hash The long hash
+     * @param precision The number of base32 characters of the hash
+     * @return True if the string of the hash with the given precision is contained in this query
+     */
+    public boolean containsGeoHash(long hash, int precision) {
+        if (this.startBits == NO_BITS || this.endBits == NO_BITS ||
+                this.startValue.length() > precision || this.endValue.length() > precision) {
+            // The query is finer than the hash, compare the strings
+            String hashStr = LongGeoHash.toBase32String(hash, precision);
+            return this.startValue.compareTo(hashStr) <= 0 && this.endValue.compareTo(hashStr) > 0;
+        }
+        return this.startBits <= hash && hash < this.endBits;
+    }
+
+    /**
+     * @return The inclusive start of this query as a long hash, see {@link LongGeoHash}, or -1 if the start value
+     * is longer than a long hash can hold
+     */
+    public long getStartBits() {
+        return this.startBits;
+    }
+
+    /**
+     * @return The exclusive end of this query as a long hash, see {@link LongGeoHash}, or -1 if the end value
+     * is longer than a long hash can hold
+     */
+    public long getEndBits() {
+        return this.endBits;
+    }
+
     public String getStartValue() {
         return this.startValue;
     }
@@ -0,0 +1,124 @@
+package com.koalap.geofirestore.core;
+
+import com.koalap.geofirestore.util.Base32Utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sorts and merges ranges of long hashes into GeoHashQuery objects.
+ *
+ * A range is given by an inclusive start and an exclusive end hash, see {@link LongGeoHash}. Ranges are sorted
+ * by their start and then merged in a single pass, joining every range that overlaps or touches its predecessor.
+ */
+public final class GeoHashRanges {
+
+    // Below this size ranges are sorted with an insertion sort
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private GeoHashRanges() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * Sorts and merges the given ranges. The arrays are reordered in place.
+     *
+     * @param starts The inclusive start hashes of the ranges
+     * @param ends The exclusive end hashes of the ranges
+     * @param count The number of ranges in the arrays
+     * @param precision The number of base32 characters of the query values
+     * @return An immutable list of disjoint queries sorted by their start value
+     */
+    public static List<GeoHashQuery> merge(long[] starts, long[] ends, int count, int precision) {
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        sort(starts, ends, 0, count, new long[count], new long[count]);
+        List<GeoHashQuery> queries = new ArrayList<>();
+        long start = starts[0];
+        long end = ends[0];
+        for (int i = 1; i < count; i++) {
+            if (starts[i] <= end) {
+                end = Math.max(end, ends[i]);
+            } else {
+                queries.add(toQuery(start, end, precision));
+                start = starts[i];
+                end = ends[i];
+            }
+        }
+        queries.add(toQuery(start, end, precision));
+        return Collections.unmodifiableList(queries);
+    }
+
+    /**
+     * Creates the query for a range of long hashes. The end value uses the same "~" notation as
+     * {@link GeoHashQuery#queryForGeoHash(GeoHash, int)} whenever the last character of the end would overflow.
+     *
+     * @param start The inclusive start hash
+     * @param end The exclusive end hash
+     * @param precision The number of base32 characters of the query values
+     * @return The query for the range
+     */
+    public static GeoHashQuery toQuery(long start, long end, int precision) {
+        char[] buffer = new char[precision];
+        LongGeoHash.toBase32Chars(start, precision, buffer, 0);
+        String startValue = new String(buffer);
+
+        int baseBits = (precision - 1) * Base32Utils.BITS_PER_BASE32_CHAR;
+        long last = end - 1;
+        String endValue;
+        if (end != LongGeoHash.END && LongGeoHash.truncate(end, baseBits) == LongGeoHash.truncate(last, baseBits)) {
+            LongGeoHash.toBase32Chars(end, precision, buffer, 0);
+            endValue = new String(buffer);
+        } else {
+            LongGeoHash.toBase32Chars(last, precision, buffer, 0);
+            buffer[precision - 1] = '~';
+            endValue = new String(buffer);
+        }
+        return new GeoHashQuery(startValue, endValue, start, end);
+    }
+
+    // Stable merge sort of the ranges by start, ties broken by the larger end first
+    private static void sort(long[] starts, long[] ends, int from, int to, long[] startsBuffer, long[] endsBuffer) {
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            for (int i = from + 1; i < to; i++) {
+                long start = starts[i];
+                long end = ends[i];
+                int j = i - 1;
+                while (j >= from && compare(starts[j], ends[j], start, end) > 0) {
+                    starts[j + 1] = starts[j];
+                    ends[j + 1] = ends[j];
+                    j--;
+                }
+                starts[j + 1] = start;
+                ends[j + 1] = end;
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(starts, ends, from, middle, startsBuffer, endsBuffer);
+        sort(starts, ends, middle, to, startsBuffer, endsBuffer);
+        System.arraycopy(starts, from, startsBuffer, from, to - from);
+        System.arraycopy(ends, from, endsBuffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle &&
+                    compare(startsBuffer[left], endsBuffer[left], startsBuffer[right], endsBuffer[right]) <= 0)) {
+                starts[i] = startsBuffer[left];
+                ends[i] = endsBuffer[left++];
+            } else {
+                starts[i] = startsBuffer[right];
+                ends[i] = endsBuffer[right++];
+            }
+        }
+    }
+
+    private static int compare(long start1, long end1, long start2, long end2) {
+        if (start1 != start2) {
+            return start1 < start2 ? -1 : 1;
+        }
+        return end1 == end2 ? 0 : (end1 > end2 ? -1 : 1);
+    }
+}
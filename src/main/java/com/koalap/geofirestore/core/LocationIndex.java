@@ -0,0 +1,237 @@
+package com.koalap.geofirestore.core;
+
+import com.koalap.geofirestore.GeoLocation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * The locations tracked by a query, indexed by key, by long geohash and by their distance to a reference center.
+ *
+ * The geohash order makes dropping a range of a covering a single subrange removal, the distance order lets a
+ * query find the locations which can enter or exit when its circle changes. The class is not thread safe.
+ *
+ * @param <T> The type of the value stored with each location
+ */
+public final class LocationIndex<T> {
+
+    /**
+     * A tracked location.
+     *
+     * @param <T> The type of the value stored with the location
+     */
+    public static final class Entry<T> {
+        final String key;
+        final GeoLocation location;
+        final long geoHash;
+        final T value;
+        boolean inQuery;
+        double referenceDistance;
+
+        Entry(String key, GeoLocation location, long geoHash, T value, boolean inQuery, double referenceDistance) {
+            this.key = key;
+            this.location = location;
+            this.geoHash = geoHash;
+            this.value = value;
+            this.inQuery = inQuery;
+            this.referenceDistance = referenceDistance;
+        }
+
+        public String getKey() {
+            return this.key;
+        }
+
+        public GeoLocation getLocation() {
+            return this.location;
+        }
+
+        /**
+         * @return The long geohash of the location with the default precision, see {@link LongGeoHash}
+         */
+        public long getGeoHash() {
+            return this.geoHash;
+        }
+
+        public T getValue() {
+            return this.value;
+        }
+
+        /**
+         * @return Whether the location is inside the query
+         */
+        public boolean isInQuery() {
+            return this.inQuery;
+        }
+
+        /**
+         * Sets whether the location is inside the query. This does not change the order of the entry.
+         *
+         * @param inQuery True if the location is inside the query
+         */
+        public void setInQuery(boolean inQuery) {
+            this.inQuery = inQuery;
+        }
+
+        /**
+         * @return The distance of the location to the reference center of the query, in meters
+         */
+        public double getReferenceDistance() {
+            return this.referenceDistance;
+        }
+    }
+
+    /**
+     * Computes the distance of an entry to a new reference center.
+     *
+     * @param <T> The type of the value stored with each location
+     */
+    public interface ReferenceDistance<T> {
+        double referenceDistance(Entry<T> entry);
+    }
+
+    // Probes without a key sort before all entries with the same geohash or distance
+    private static int compareKeys(String key1, String key2) {
+        if (key1 == null || key2 == null) {
+            return key1 == null ? (key2 == null ? 0 : -1) : 1;
+        }
+        return key1.compareTo(key2);
+    }
+
+    private static final Comparator<Entry<?>> GEOHASH_ORDER = (entry1, entry2) -> {
+        if (entry1.geoHash != entry2.geoHash) {
+            return entry1.geoHash < entry2.geoHash ? -1 : 1;
+        }
+        return compareKeys(entry1.key, entry2.key);
+    };
+
+    private static final Comparator<Entry<?>> REFERENCE_DISTANCE_ORDER = (entry1, entry2) -> {
+        int compare = Double.compare(entry1.referenceDistance, entry2.referenceDistance);
+        if (compare != 0) {
+            return compare;
+        }
+        return compareKeys(entry1.key, entry2.key);
+    };
+
+    private final Map<String, Entry<T>> entries = new HashMap<>();
+    private final TreeSet<Entry<T>> byGeoHash = new TreeSet<>(GEOHASH_ORDER);
+    private final TreeSet<Entry<T>> byReferenceDistance = new TreeSet<>(REFERENCE_DISTANCE_ORDER);
+
+    /**
+     * @param key The key of the location
+     * @return The entry for the key or null if the key is not tracked
+     */
+    public Entry<T> get(String key) {
+        return this.entries.get(key);
+    }
+
+    /**
+     * Adds a location, replacing a previous entry with the same key.
+     *
+     * @return The new entry
+     */
+    public Entry<T> put(String key, GeoLocation location, long geoHash, T value, boolean inQuery, double referenceDistance) {
+        this.remove(key);
+        Entry<T> entry = new Entry<>(key, location, geoHash, value, inQuery, referenceDistance);
+        this.entries.put(key, entry);
+        this.byGeoHash.add(entry);
+        this.byReferenceDistance.add(entry);
+        return entry;
+    }
+
+    /**
+     * @param key The key of the location
+     * @return The removed entry or null if the key was not tracked
+     */
+    public Entry<T> remove(String key) {
+        Entry<T> entry = this.entries.remove(key);
+        if (entry != null) {
+            this.byGeoHash.remove(entry);
+            this.byReferenceDistance.remove(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * @return All entries in no particular order, the collection must not be modified
+     */
+    public Collection<Entry<T>> entries() {
+        return Collections.unmodifiableCollection(this.entries.values());
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    public void clear() {
+        this.entries.clear();
+        this.byGeoHash.clear();
+        this.byReferenceDistance.clear();
+    }
+
+    /**
+     * @param start The inclusive start hash
+     * @param end The exclusive end hash
+     * @return A view of the entries with a geohash in the range, ordered by geohash
+     */
+    public NavigableSet<Entry<T>> entriesInRange(long start, long end) {
+        return this.byGeoHash.subSet(geoHashProbe(start), true, geoHashProbe(end), false);
+    }
+
+    /**
+     * Removes all entries with a geohash in a range.
+     *
+     * @param start The inclusive start hash
+     * @param end The exclusive end hash
+     * @return The removed entries, ordered by geohash
+     */
+    public List<Entry<T>> removeRange(long start, long end) {
+        NavigableSet<Entry<T>> range = this.entriesInRange(start, end);
+        if (range.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Entry<T>> removed = new ArrayList<>(range);
+        range.clear();
+        for (Entry<T> entry: removed) {
+            this.entries.remove(entry.key);
+            this.byReferenceDistance.remove(entry);
+        }
+        return removed;
+    }
+
+    /**
+     * @param lower The exclusive lower bound of the distance
+     * @param upper The inclusive upper bound of the distance
+     * @return A view of the entries with a reference distance in the interval, ordered by distance
+     */
+    public NavigableSet<Entry<T>> entriesWithReferenceDistance(double lower, double upper) {
+        return this.byReferenceDistance.subSet(distanceProbe(Math.nextUp(lower)), true, distanceProbe(Math.nextUp(upper)), false);
+    }
+
+    /**
+     * Recomputes the reference distances of all entries, e.g. after the reference center of the query moved.
+     *
+     * @param function The function computing the new reference distance of an entry
+     */
+    public void recomputeReferenceDistances(ReferenceDistance<T> function) {
+        this.byReferenceDistance.clear();
+        for (Entry<T> entry: this.entries.values()) {
+            entry.referenceDistance = function.referenceDistance(entry);
+            this.byReferenceDistance.add(entry);
+        }
+    }
+
+    private static <T> Entry<T> geoHashProbe(long geoHash) {
+        return new Entry<>(null, null, geoHash, null, false, 0);
+    }
+
+    private static <T> Entry<T> distanceProbe(double distance) {
+        return new Entry<>(null, null, 0, null, false, distance);
+    }
+}
@@ -0,0 +1,231 @@
+package com.koalap.geofirestore.core;
+
+import com.koalap.geofirestore.GeoLocation;
+import com.koalap.geofirestore.util.Base32Utils;
+
+/**
+ * Allocation free geohash operations on a 64 bit long.
+ *
+ * The interleaved bits of a hash are stored left aligned to {@link #MAX_BITS}, i.e. the first (longitude) bit of
+ * the hash is bit 59 of the long and unused trailing bits are zero. Hashes of different precisions therefore share
+ * one ordering which is the same as the lexicographic ordering of their base32 strings, and comparing two hashes is
+ * a plain signed long comparison.
+ */
+public final class LongGeoHash {
+
+    // The maximal number of base32 characters a long hash can hold
+    public static final int MAX_PRECISION = 12;
+
+    // The maximal number of bits a long hash can hold
+    public static final int MAX_BITS = MAX_PRECISION * Base32Utils.BITS_PER_BASE32_CHAR;
+
+    // The default precision of a geohash, the same as GeoHash uses
+    public static final int DEFAULT_PRECISION = 10;
+
+    // The default number of bits of a geohash
+    public static final int DEFAULT_BITS = DEFAULT_PRECISION * Base32Utils.BITS_PER_BASE32_CHAR;
+
+    // Exclusive upper bound of all long hashes, the equivalent of the "~" end value of a GeoHashQuery
+    public static final long END = 1L << MAX_BITS;
+
+    // Indices of the values written by decodeBoundingBox
+    public static final int SOUTH = 0;
+    public static final int WEST = 1;
+    public static final int NORTH = 2;
+    public static final int EAST = 3;
+
+    private LongGeoHash() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * Encodes a location with the default precision of 10 characters.
+     *
+     * @param latitude The latitude in the range of [-90, 90]
+     * @param longitude The longitude in the range of [-180, 180]
+     * @return The long hash
+     */
+    public static long encode(double latitude, double longitude) {
+        return encode(latitude, longitude, DEFAULT_BITS);
+    }
+
+    /**
+     * Encodes a location into a long hash with the given number of bits. The result is bit for bit the same as
+     * the hash the GeoHash class computes for the same location.
+     *
+     * @param latitude The latitude in the range of [-90, 90]
+     * @param longitude The longitude in the range of [-180, 180]
+     * @param bits The number of bits in the range of [1, 60]
+     * @return The long hash
+     */
+    public static long encode(double latitude, double longitude, int bits) {
+        checkBits(bits);
+        if (!GeoLocation.coordinatesValid(latitude, longitude)) {
+            throw new IllegalArgumentException("Not valid location coordinates: [" + latitude + ", " + longitude + "]");
+        }
+        double longitudeMin = -180;
+        double longitudeMax = 180;
+        double latitudeMin = -90;
+        double latitudeMax = 90;
+        long hash = 0;
+        for (int i = 0; i < bits; i++) {
+            if ((i & 1) == 0) {
+                double mid = (longitudeMin + longitudeMax)/2;
+                if (longitude > mid) {
+                    hash = (hash << 1) | 1;
+                    longitudeMin = mid;
+                } else {
+                    hash = hash << 1;
+                    longitudeMax = mid;
+                }
+            } else {
+                double mid = (latitudeMin + latitudeMax)/2;
+                if (latitude > mid) {
+                    hash = (hash << 1) | 1;
+                    latitudeMin = mid;
+                } else {
+                    hash = hash << 1;
+                    latitudeMax = mid;
+                }
+            }
+        }
+        return hash << (MAX_BITS - bits);
+    }
+
+    /**
+     * Writes the bounding box of the cell of a hash into the given array, indexed by {@link #SOUTH}, {@link #WEST},
+     * {@link #NORTH} and {@link #EAST}.
+     *
+     * @param hash The long hash
+     * @param bits The number of significant bits of the hash
+     * @param box An array of at least 4 elements receiving the bounding box
+     */
+    public static void decodeBoundingBox(long hash, int bits, double[] box) {
+        checkBits(bits);
+        double longitudeMin = -180;
+        double longitudeMax = 180;
+        double latitudeMin = -90;
+        double latitudeMax = 90;
+        for (int i = 0; i < bits; i++) {
+            boolean set = ((hash >>> (MAX_BITS - 1 - i)) & 1) != 0;
+            if ((i & 1) == 0) {
+                double mid = (longitudeMin + longitudeMax)/2;
+                if (set) {
+                    longitudeMin = mid;
+                } else {
+                    longitudeMax = mid;
+                }
+            } else {
+                double mid = (latitudeMin + latitudeMax)/2;
+                if (set) {
+                    latitudeMin = mid;
+                } else {
+                    latitudeMax = mid;
+                }
+            }
+        }
+        box[SOUTH] = latitudeMin;
+        box[WEST] = longitudeMin;
+        box[NORTH] = latitudeMax;
+        box[EAST] = longitudeMax;
+    }
+
+    /**
+     * Truncates a hash to its first bits, clearing all other bits.
+     *
+     * @param hash The long hash
+     * @param bits The number of bits to keep in the range of [0, 60]
+     * @return The truncated hash
+     */
+    public static long truncate(long hash, int bits) {
+        if (bits < 0 || bits > MAX_BITS) {
+            throw new IllegalArgumentException("Not a valid number of bits: " + bits);
+        }
+        return hash & ~cellMask(bits);
+    }
+
+    /**
+     * Returns the exclusive upper bound of all hashes starting with the first bits of the given hash. This is
+     * {@link #END} for the last cell.
+     *
+     * @param hash The long hash
+     * @param bits The number of bits of the prefix in the range of [0, 60]
+     * @return The first hash after the cell
+     */
+    public static long prefixEnd(long hash, int bits) {
+        return truncate(hash, bits) + cellSize(bits);
+    }
+
+    /**
+     * Checks whether a hash starts with the given prefix.
+     *
+     * @param hash The long hash
+     * @param prefix The long hash of the prefix
+     * @param bits The number of bits of the prefix
+     * @return True if the first bits of both hashes are equal
+     */
+    public static boolean hasPrefix(long hash, long prefix, int bits) {
+        return truncate(hash, bits) == truncate(prefix, bits);
+    }
+
+    /**
+     * @param bits The number of bits of a cell in the range of [0, 60]
+     * @return The distance between the hashes of two neighbouring cells with the given number of bits
+     */
+    public static long cellSize(int bits) {
+        return 1L << (MAX_BITS - bits);
+    }
+
+    /**
+     * Writes the base32 characters of a hash into a buffer.
+     *
+     * @param hash The long hash
+     * @param precision The number of characters in the range of [1, 12]
+     * @param buffer The buffer to write to
+     * @param offset The index of the first character in the buffer
+     */
+    public static void toBase32Chars(long hash, int precision, char[] buffer, int offset) {
+        checkBits(precision * Base32Utils.BITS_PER_BASE32_CHAR);
+        Base32Utils.encodeBits(hash >>> (MAX_BITS - precision * Base32Utils.BITS_PER_BASE32_CHAR), precision, buffer, offset);
+    }
+
+    /**
+     * Converts a hash to its base32 string. This is the only allocating operation of this class and is meant to be
+     * used at the storage boundary only.
+     *
+     * @param hash The long hash
+     * @param precision The number of characters in the range of [1, 12]
+     * @return The geohash string
+     */
+    public static String toBase32String(long hash, int precision) {
+        char[] buffer = new char[precision];
+        toBase32Chars(hash, precision, buffer, 0);
+        return new String(buffer);
+    }
+
+    /**
+     * Parses a geohash string of at most 12 characters.
+     *
+     * @throws IllegalArgumentException If the string is not a valid geohash of at most 12 characters
+     * @param hash The geohash string
+     * @return The long hash, left aligned
+     */
+    public static long fromBase32String(CharSequence hash) {
+        int length = hash.length();
+        long value = Base32Utils.decodeBits(hash, 0, length);
+        if (value == Base32Utils.INVALID_VALUE) {
+            throw new IllegalArgumentException("Not a valid geoHash of at most " + MAX_PRECISION + " characters: " + hash);
+        }
+        return value << (MAX_BITS - length * Base32Utils.BITS_PER_BASE32_CHAR);
+    }
+
+    private static long cellMask(int bits) {
+        return cellSize(bits) - 1;
+    }
+
+    private static void checkBits(int bits) {
+        if (bits < 1 || bits > MAX_BITS) {
+            throw new IllegalArgumentException("Number of bits of a long hash must be in [1, " + MAX_BITS + "]: " + bits);
+        }
+    }
+}
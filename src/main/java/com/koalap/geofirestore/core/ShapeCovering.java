@@ -0,0 +1,194 @@
+package com.koalap.geofirestore.core;
+
+import com.koalap.geofirestore.GeoLocation;
+import com.koalap.geofirestore.GeoShape;
+import com.koalap.geofirestore.util.Base32Utils;
+import com.koalap.geofirestore.util.Constants;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Computes the geohash ranges covering a {@link GeoShape}.
+ *
+ * The covering starts with the whole world and repeatedly splits the largest cell intersecting the border of the
+ * shape into its two halves, dropping halves disjoint from the shape. Cells inside of the shape are kept whole. The
+ * refinement keeps a cell whole when splitting it would exceed the maximal number of cells or its halves would be
+ * finer than the default geohash precision, so the covering follows the border as closely as the budget allows.
+ * Neighbouring cells are merged into one range.
+ *
+ * An adaptive covering additionally weighs every split against a {@link CoveringCostModel}: a split that drops a
+ * half is free, but a split that keeps both halves adds a range, and is only made if the documents the cell is
+ * expected to read outside of the shape are worth more than that range. A split typically halves the part of a cell
+ * outside of the shape, so half of these reads count as saved.
+ */
+public final class ShapeCovering {
+
+    // The default maximal number of cells of a covering
+    public static final int DEFAULT_MAX_CELLS = 32;
+
+    // Earth's mean radius in kilometers, for the areas of the cells
+    private static final double MEAN_RADIUS_KILOMETERS = (Constants.EARTH_EQ_RADIUS + Constants.EARTH_POLAR_RADIUS)/2/1000;
+
+    // Number of samples per side of a cell estimating the part of it outside of the shape
+    private static final int SAMPLES = 4;
+
+    // The fraction of its reads outside of the shape a cell is expected to save by splitting
+    private static final double SPLIT_SAVING = 0.5;
+
+    private static final class Cell implements Comparable<Cell> {
+        final long hash;
+        final int bits;
+
+        Cell(long hash, int bits) {
+            this.hash = hash;
+            this.bits = bits;
+        }
+
+        @Override
+        public int compareTo(Cell other) {
+            // Larger cells first
+            return this.bits != other.bits ? (this.bits < other.bits ? -1 : 1) : Long.compare(this.hash, other.hash);
+        }
+    }
+
+    private ShapeCovering() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * @param shape The shape to cover
+     * @return An immutable list of disjoint queries sorted by their start value, with at most
+     * {@link #DEFAULT_MAX_CELLS} cells
+     */
+    public static List<GeoHashQuery> covering(GeoShape shape) {
+        return covering(shape, DEFAULT_MAX_CELLS);
+    }
+
+    /**
+     * @param shape The shape to cover
+     * @param maxCells The maximal number of cells, at least 2
+     * @return An immutable list of disjoint queries sorted by their start value
+     */
+    public static List<GeoHashQuery> covering(GeoShape shape, int maxCells) {
+        if (maxCells < 2) {
+            throw new IllegalArgumentException("A covering needs at least 2 cells: " + maxCells);
+        }
+        return refine(shape, maxCells, null);
+    }
+
+    /**
+     * @param shape The shape to cover
+     * @param costModel The costs of the ranges and of the documents read outside of the shape
+     * @return An immutable list of disjoint queries sorted by their start value, with at most
+     * {@link CoveringCostModel#getMaxRanges()} cells
+     */
+    public static List<GeoHashQuery> covering(GeoShape shape, CoveringCostModel costModel) {
+        return refine(shape, costModel.getMaxRanges(), costModel);
+    }
+
+    /**
+     * Covers a circle of the haversine distance adaptively. Unlike the covering of the {@link CoveringCache} it
+     * follows the border of the circle with finer ranges where they are worth their cost.
+     *
+     * @param center The center of the circle
+     * @param radius The radius of the circle in meters
+     * @param costModel The costs of the ranges and of the documents read outside of the circle
+     * @return An immutable list of disjoint queries sorted by their start value
+     */
+    public static List<GeoHashQuery> circleCovering(GeoLocation center, double radius, CoveringCostModel costModel) {
+        return covering(new CircleShape(center, radius), costModel);
+    }
+
+    private static List<GeoHashQuery> refine(GeoShape shape, int maxCells, CoveringCostModel costModel) {
+        double[] box = new double[4];
+        List<Cell> cells = new ArrayList<>();
+        // Cells intersecting the border, the largest first
+        PriorityQueue<Cell> border = new PriorityQueue<>();
+        // The two halves of the world are the coarsest cells
+        int count = 0;
+        for (long hash = 0; hash < LongGeoHash.END; hash += LongGeoHash.cellSize(1)) {
+            int relation = relate(shape, hash, 1, box);
+            if (relation == GeoShape.CONTAINS) {
+                cells.add(new Cell(hash, 1));
+                count++;
+            } else if (relation == GeoShape.INTERSECTS) {
+                border.add(new Cell(hash, 1));
+                count++;
+            }
+        }
+        while (!border.isEmpty()) {
+            Cell cell = border.poll();
+            int bits = cell.bits + 1;
+            if (bits > LongGeoHash.DEFAULT_BITS) {
+                cells.add(cell);
+                continue;
+            }
+            long first = cell.hash;
+            long second = cell.hash + LongGeoHash.cellSize(bits);
+            int firstRelation = relate(shape, first, bits, box);
+            int secondRelation = relate(shape, second, bits, box);
+            int added = (firstRelation != GeoShape.DISJOINT ? 1 : 0) + (secondRelation != GeoShape.DISJOINT ? 1 : 0) - 1;
+            if (count + added > maxCells || (added > 0 && costModel != null && !worthSplitting(shape, cell, costModel, box))) {
+                // Keep the cell, smaller cells may still have a half outside of the shape
+                cells.add(cell);
+                continue;
+            }
+            count += added;
+            addHalf(first, bits, firstRelation, cells, border);
+            addHalf(second, bits, secondRelation, cells, border);
+        }
+        int maxBits = 1;
+        for (Cell cell: cells) {
+            maxBits = Math.max(maxBits, cell.bits);
+        }
+
+        int precision = (maxBits + Base32Utils.BITS_PER_BASE32_CHAR - 1) / Base32Utils.BITS_PER_BASE32_CHAR;
+        long[] starts = new long[cells.size()];
+        long[] ends = new long[cells.size()];
+        for (int i = 0; i < cells.size(); i++) {
+            Cell cell = cells.get(i);
+            starts[i] = cell.hash;
+            ends[i] = cell.hash + LongGeoHash.cellSize(cell.bits);
+        }
+        return GeoHashRanges.merge(starts, ends, cells.size(), precision);
+    }
+
+    /**
+     * @return True if the reads of a border cell outside of the shape are expected to outweigh an additional range
+     */
+    private static boolean worthSplitting(GeoShape shape, Cell cell, CoveringCostModel costModel, double[] box) {
+        LongGeoHash.decodeBoundingBox(cell.hash, cell.bits, box);
+        double south = box[LongGeoHash.SOUTH];
+        double west = box[LongGeoHash.WEST];
+        double north = box[LongGeoHash.NORTH];
+        double east = box[LongGeoHash.EAST];
+        int outside = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            double latitude = south + (north - south) * (i + 0.5)/SAMPLES;
+            for (int j = 0; j < SAMPLES; j++) {
+                if (!shape.contains(latitude, west + (east - west) * (j + 0.5)/SAMPLES)) {
+                    outside++;
+                }
+            }
+        }
+        double area = MEAN_RADIUS_KILOMETERS * MEAN_RADIUS_KILOMETERS * Math.toRadians(east - west) *
+                (Math.sin(Math.toRadians(north)) - Math.sin(Math.toRadians(south)));
+        double wastedReads = costModel.expectedReads(area * outside/(SAMPLES * SAMPLES));
+        return wastedReads * SPLIT_SAVING > costModel.getRangeCost();
+    }
+
+    private static void addHalf(long hash, int bits, int relation, List<Cell> cells, PriorityQueue<Cell> border) {
+        if (relation == GeoShape.CONTAINS) {
+            cells.add(new Cell(hash, bits));
+        } else if (relation == GeoShape.INTERSECTS) {
+            border.add(new Cell(hash, bits));
+        }
+    }
+
+    private static int relate(GeoShape shape, long hash, int bits, double[] box) {
+        LongGeoHash.decodeBoundingBox(hash, bits, box);
+        return shape.relate(box[LongGeoHash.SOUTH], box[LongGeoHash.WEST], box[LongGeoHash.NORTH], box[LongGeoHash.EAST]);
+    }
+}
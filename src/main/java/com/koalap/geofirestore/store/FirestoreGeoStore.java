@@ -0,0 +1,354 @@
+package com.koalap.geofirestore.store;
+
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.GeoPoint;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.MetadataChanges;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+import com.koalap.geofirestore.GeoLocation;
+import com.koalap.geofirestore.core.GeoHashQuery;
+import com.koalap.geofirestore.core.LongGeoHash;
+import com.koalap.geofirestore.util.Base32Utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A GeoStore keeping the documents in a Firestore collection. The geohash is stored in the field "g" and the
+ * location in the field "l" of each document. An optional filter query restricts the documents queries see.
+ */
+public class FirestoreGeoStore implements GeoStore<DocumentSnapshot> {
+
+    // The maximal number of writes Firestore accepts in a single batch
+    public static final int MAX_BATCH_SIZE = 500;
+
+    // The maximal number of values Firestore accepts in a whereIn filter
+    public static final int MAX_KEYS_PER_READ = 10;
+
+    // The number of parsed snapshots kept by a store, a power of two
+    private static final int PARSE_CACHE_SIZE = 256;
+
+    /**
+     * The fields "l" and "g" of a snapshot, parsed once. Immutable.
+     */
+    private static final class ParsedDocument {
+        final DocumentSnapshot snapshot;
+        // The location, or null if the document has no valid location
+        final GeoLocation location;
+        // The long hash with the default precision, or -1 if the document has no valid location
+        final long geoHash;
+
+        ParsedDocument(DocumentSnapshot snapshot) {
+            this.snapshot = snapshot;
+            this.location = readLocation(snapshot);
+            this.geoHash = this.location != null ? readGeoHash(snapshot, this.location) : -1;
+        }
+    }
+
+    // The last snapshots parsed for the queries of this store by their identity hash, it keeps at most
+    // PARSE_CACHE_SIZE snapshots from being collected while the store is used. A slot is replaced as a whole, so the
+    // cache needs no lock.
+    private final ParsedDocument[] parseCache = new ParsedDocument[PARSE_CACHE_SIZE];
+
+    private final CollectionReference collectionReference;
+    private volatile Query filter;
+
+    /**
+     * @param collectionReference The collection storing the documents
+     * @param filter The query to add filters to the collection, or null
+     */
+    public FirestoreGeoStore(CollectionReference collectionReference, Query filter) {
+        this.collectionReference = collectionReference;
+        this.filter = filter;
+    }
+
+    /**
+     * Reads the location of a document from its field "l".
+     *
+     * @param documentSnapshot The document
+     * @return The location or null if the document has no valid location
+     */
+    public static GeoLocation getLocationValue(DocumentSnapshot documentSnapshot) {
+        return readLocation(documentSnapshot);
+    }
+
+    /**
+     * Parses the fields of a snapshot once, every query sharing the snapshot of a range gets the parsed fields.
+     */
+    private ParsedDocument parse(DocumentSnapshot snapshot) {
+        int slot = System.identityHashCode(snapshot) & (PARSE_CACHE_SIZE - 1);
+        ParsedDocument parsed = this.parseCache[slot];
+        if (parsed == null || parsed.snapshot != snapshot) {
+            parsed = new ParsedDocument(snapshot);
+            this.parseCache[slot] = parsed;
+        }
+        return parsed;
+    }
+
+    /**
+     * Reads the field "l" without copying the fields of the document.
+     */
+    private static GeoLocation readLocation(DocumentSnapshot snapshot) {
+        GeoPoint point;
+        try {
+            point = snapshot.getGeoPoint("l");
+        } catch (RuntimeException e) {
+            // The field is not a GeoPoint
+            return null;
+        }
+        if (point == null) {
+            return null;
+        }
+        double latitude = point.getLatitude();
+        double longitude = point.getLongitude();
+        return GeoLocation.coordinatesValid(latitude, longitude) ? new GeoLocation(latitude, longitude) : null;
+    }
+
+    /**
+     * Reads the geohash the writer stored in the field "g", and only encodes the location if the field is not a
+     * geohash of at least the default precision. Firestore orders and assigns the documents to ranges by the stored
+     * field, so even a stale geohash must be kept to match the ranges that deliver the document.
+     */
+    private static long readGeoHash(DocumentSnapshot snapshot, GeoLocation location) {
+        String geoHash;
+        try {
+            geoHash = snapshot.getString("g");
+        } catch (RuntimeException e) {
+            // The field is not a string
+            geoHash = null;
+        }
+        if (geoHash != null && geoHash.length() >= LongGeoHash.DEFAULT_PRECISION &&
+                Base32Utils.isValidBase32String(geoHash, 0, LongGeoHash.DEFAULT_PRECISION)) {
+            return LongGeoHash.fromBase32String(geoHash.length() == LongGeoHash.DEFAULT_PRECISION ?
+                    geoHash : geoHash.substring(0, LongGeoHash.DEFAULT_PRECISION));
+        }
+        return LongGeoHash.encode(location.latitude, location.longitude);
+    }
+
+    private static Map<String, Object> locationUpdates(GeoLocation location) {
+        long geoHash = LongGeoHash.encode(location.latitude, location.longitude);
+        Map<String, Object> updates = new HashMap<>();
+        updates.put("g", LongGeoHash.toBase32String(geoHash, LongGeoHash.DEFAULT_PRECISION));
+        updates.put("l", new GeoPoint(location.latitude, location.longitude));
+        return updates;
+    }
+
+    private static Map<String, Object> locationDeletes() {
+        Map<String, Object> updates = new HashMap<>();
+        updates.put("g", FieldValue.delete());
+        updates.put("l", FieldValue.delete());
+        return updates;
+    }
+
+    public CollectionReference getCollectionReference() {
+        return this.collectionReference;
+    }
+
+    /**
+     * @return The query to add filters to the collection, or null
+     */
+    public Query getFilter() {
+        return this.filter;
+    }
+
+    /**
+     * Sets the query to add filters to the collection. Ranges listened to before keep their filter.
+     *
+     * @param filter The query to add filters to the collection, or null
+     */
+    public void setFilter(Query filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * @param range The range of geohashes
+     * @return The Firestore query for the documents of the range
+     */
+    public Query rangeQuery(GeoHashQuery range) {
+        Query filter = this.filter;
+        return (filter != null ? filter : this.collectionReference)
+                .orderBy("g").startAt(range.getStartValue()).endAt(range.getEndValue());
+    }
+
+    @Override
+    public String getKey(DocumentSnapshot document) {
+        return document.getId();
+    }
+
+    @Override
+    public GeoLocation getLocation(DocumentSnapshot document) {
+        return this.parse(document).location;
+    }
+
+    @Override
+    public long getGeoHash(DocumentSnapshot document, GeoLocation location) {
+        ParsedDocument parsed = this.parse(document);
+        return parsed.location != null ? parsed.geoHash : GeoStore.super.getGeoHash(document, location);
+    }
+
+    @Override
+    public Object getScope() {
+        Query filter = this.filter;
+        return filter != null ? filter : this.collectionReference;
+    }
+
+    @Override
+    public Registration listenRange(GeoHashQuery range, final RangeListener<DocumentSnapshot> listener) {
+        Query query = this.rangeQuery(range);
+        // The metadata changes include the snapshot confirming a range read from the cache before
+        ListenerRegistration registration = query.addSnapshotListener(MetadataChanges.INCLUDE, (querySnapshot, e) -> {
+            if (e != null) {
+                listener.onError(e);
+                return;
+            }
+            List<DocumentChange> documentChanges = querySnapshot.getDocumentChanges();
+            List<Change<DocumentSnapshot>> changes = new ArrayList<>(documentChanges.size());
+            for (DocumentChange documentChange: documentChanges) {
+                changes.add(new Change<DocumentSnapshot>(changeType(documentChange.getType()), documentChange.getDocument()));
+            }
+            listener.onSnapshot(changes, querySnapshot.getMetadata().isFromCache());
+        });
+        return registration::remove;
+    }
+
+    private static Change.Type changeType(DocumentChange.Type type) {
+        switch (type) {
+            case ADDED:
+                return Change.Type.ADDED;
+            case MODIFIED:
+                return Change.Type.MODIFIED;
+            default:
+                return Change.Type.REMOVED;
+        }
+    }
+
+    @Override
+    public void getRange(GeoHashQuery range, final Callback<List<DocumentSnapshot>> callback) {
+        this.rangeQuery(range).get().addOnCompleteListener(task -> {
+            if (task.isSuccessful()) {
+                callback.onComplete(new ArrayList<DocumentSnapshot>(task.getResult().getDocuments()), null);
+            } else {
+                callback.onComplete(null, task.getException());
+            }
+        });
+    }
+
+    @Override
+    public void getRangePage(GeoHashQuery range, int limit, DocumentSnapshot after,
+                             final Callback<List<DocumentSnapshot>> callback) {
+        Query filter = this.filter;
+        Query query = (filter != null ? filter : this.collectionReference).orderBy("g");
+        // The cursor of a page replaces the start of the range, documents with the same geohash follow by their id
+        query = after != null ? query.startAfter(after) : query.startAt(range.getStartValue());
+        query.endAt(range.getEndValue()).limit(limit).get().addOnCompleteListener(task -> {
+            if (task.isSuccessful()) {
+                callback.onComplete(new ArrayList<DocumentSnapshot>(task.getResult().getDocuments()), null);
+            } else {
+                callback.onComplete(null, task.getException());
+            }
+        });
+    }
+
+    @Override
+    public void getDocument(String key, final Callback<DocumentSnapshot> callback) {
+        this.collectionReference.document(key).get().addOnCompleteListener(task -> {
+            if (task.isSuccessful()) {
+                DocumentSnapshot document = task.getResult();
+                callback.onComplete(document != null && document.exists() ? document : null, null);
+            } else {
+                callback.onComplete(null, task.getException());
+            }
+        });
+    }
+
+    /**
+     * Reads the documents of the keys with whereIn queries on the document id, in chunks of
+     * {@link #MAX_KEYS_PER_READ} keys. Only the documents matching the filter are found.
+     */
+    @Override
+    public void getDocuments(List<String> keys, final Callback<List<DocumentSnapshot>> callback) {
+        final List<DocumentSnapshot> documents = new ArrayList<>(keys.size());
+        if (keys.isEmpty()) {
+            callback.onComplete(documents, null);
+            return;
+        }
+        Query filter = this.filter;
+        Query query = filter != null ? filter : this.collectionReference;
+        final int[] remaining = { (keys.size() + MAX_KEYS_PER_READ - 1) / MAX_KEYS_PER_READ };
+        final Exception[] failure = { null };
+        for (int start = 0; start < keys.size(); start += MAX_KEYS_PER_READ) {
+            List<String> chunk = keys.subList(start, Math.min(keys.size(), start + MAX_KEYS_PER_READ));
+            query.whereIn(FieldPath.documentId(), new ArrayList<>(chunk)).get().addOnCompleteListener(task -> {
+                Exception error;
+                synchronized (documents) {
+                    if (!task.isSuccessful()) {
+                        if (failure[0] == null) {
+                            failure[0] = task.getException();
+                        }
+                    } else {
+                        documents.addAll(task.getResult().getDocuments());
+                    }
+                    if (--remaining[0] > 0) {
+                        return;
+                    }
+                    error = failure[0];
+                }
+                callback.onComplete(error == null ? documents : null, error);
+            });
+        }
+    }
+
+    @Override
+    public void setLocation(String key, GeoLocation location, final Callback<Void> callback) {
+        Task<Void> task = this.collectionReference.document(key)
+                .set(locationUpdates(location), SetOptions.merge());
+        if (callback != null) {
+            task.addOnCompleteListener(result -> callback.onComplete(null, result.getException()));
+        }
+    }
+
+    @Override
+    public void removeLocation(String key, final Callback<Void> callback) {
+        Task<Void> task = this.collectionReference.document(key).update(locationDeletes());
+        if (callback != null) {
+            task.addOnCompleteListener(result -> callback.onComplete(null, result.getException()));
+        }
+    }
+
+    @Override
+    public Batch newBatch() {
+        final WriteBatch batch = this.collectionReference.getFirestore().batch();
+        return new Batch() {
+            @Override
+            public void setLocation(String key, GeoLocation location) {
+                batch.set(FirestoreGeoStore.this.collectionReference.document(key), locationUpdates(location), SetOptions.merge());
+            }
+
+            @Override
+            public void removeLocation(String key) {
+                // Unlike an update, a merge does not fail the whole batch if one of its documents does not exist
+                batch.set(FirestoreGeoStore.this.collectionReference.document(key), locationDeletes(),
+                        SetOptions.merge());
+            }
+
+            @Override
+            public void commit(final Callback<Void> callback) {
+                batch.commit().addOnCompleteListener(task -> callback.onComplete(null, task.getException()));
+            }
+        };
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return MAX_BATCH_SIZE;
+    }
+}
@@ -0,0 +1,275 @@
+package com.koalap.geofirestore.store;
+
+import com.koalap.geofirestore.GeoLocation;
+import com.koalap.geofirestore.core.GeoHashQuery;
+import com.koalap.geofirestore.core.LongGeoHash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The storage of the documents GeoFire queries. A document has a key, a location and the geohash of the location
+ * with the default precision, and the store can list and listen to the documents in a range of geohashes.
+ *
+ * Ranges are inclusive at both ends and compare geohashes as strings, like the Firestore query
+ * orderBy("g").startAt(start).endAt(end). See {@link FirestoreGeoStore} and {@link MemoryGeoStore}.
+ *
+ * @param <D> The type of the documents
+ */
+public interface GeoStore<D> {
+
+    /**
+     * Receives the result of an operation.
+     *
+     * @param <T> The type of the result
+     */
+    interface Callback<T> {
+        /**
+         * @param result The result, or null if the operation failed
+         * @param exception The exception, or null if the operation succeeded
+         */
+        void onComplete(T result, Exception exception);
+    }
+
+    /**
+     * A change of a document in a range.
+     *
+     * @param <D> The type of the documents
+     */
+    final class Change<D> {
+        public enum Type {
+            ADDED,
+            MODIFIED,
+            REMOVED
+        }
+
+        private final Type type;
+        private final D document;
+
+        public Change(Type type, D document) {
+            this.type = type;
+            this.document = document;
+        }
+
+        public Type getType() {
+            return this.type;
+        }
+
+        public D getDocument() {
+            return this.document;
+        }
+    }
+
+    /**
+     * Receives the snapshots of a range.
+     *
+     * @param <D> The type of the documents
+     */
+    interface RangeListener<D> {
+        /**
+         * Called with the changes of every snapshot of the range. The first snapshot adds all documents in the
+         * range and is delivered even if the range is empty. A store with a local cache may deliver snapshots of
+         * the cache first, and then delivers a snapshot not from the cache once the range was read from its
+         * server, even if it has no changes. Queries take a range with only snapshots of the cache as loaded after a
+         * timeout, e.g. while the store is offline.
+         *
+         * @param changes The changes since the previous snapshot
+         * @param fromCache True if the snapshot comes from a local cache and may not be complete yet
+         */
+        void onSnapshot(List<Change<D>> changes, boolean fromCache);
+
+        /**
+         * Called with the changes of every snapshot of a store without a local cache, see
+         * {@link #onSnapshot(List, boolean)}.
+         *
+         * @param changes The changes since the previous snapshot
+         */
+        default void onSnapshot(List<Change<D>> changes) {
+            this.onSnapshot(changes, false);
+        }
+
+        void onError(Exception exception);
+    }
+
+    /**
+     * A listener added to the store.
+     */
+    interface Registration {
+        void remove();
+    }
+
+    /**
+     * Writes of many documents that are applied atomically.
+     */
+    interface Batch {
+        void setLocation(String key, GeoLocation location);
+
+        void removeLocation(String key);
+
+        void commit(Callback<Void> callback);
+    }
+
+    /**
+     * @param document A document of this store
+     * @return The key of the document
+     */
+    String getKey(D document);
+
+    /**
+     * @param document A document of this store
+     * @return The location of the document, or null if it has no valid location
+     */
+    GeoLocation getLocation(D document);
+
+    /**
+     * Returns the geohash of a document with the default precision. The default encodes the location, stores that
+     * keep the geohash of their documents return it instead.
+     *
+     * @param document A document of this store with a valid location
+     * @param location The location of the document, see {@link #getLocation}
+     * @return The long hash of the document, see {@link LongGeoHash}
+     */
+    default long getGeoHash(D document, GeoLocation location) {
+        return LongGeoHash.encode(location.latitude, location.longitude);
+    }
+
+    /**
+     * Identifies the documents the store serves at the moment, e.g. the filter of a query. Range listeners are only
+     * shared between queries while the scope is equal.
+     *
+     * @return The current scope
+     */
+    default Object getScope() {
+        return this;
+    }
+
+    /**
+     * Listens to the documents in a range.
+     *
+     * @param range The range of geohashes
+     * @param listener The listener receiving the snapshots of the range
+     * @return The registration to remove the listener
+     */
+    Registration listenRange(GeoHashQuery range, RangeListener<D> listener);
+
+    /**
+     * Reads the documents in a range once.
+     *
+     * @param range The range of geohashes
+     * @param callback The callback receiving the documents
+     */
+    void getRange(GeoHashQuery range, Callback<List<D>> callback);
+
+    /**
+     * Reads a page of the documents in a range once. The documents of a range are ordered by their geohash and then
+     * by their key, like the Firestore query orderBy("g").startAfter(after).limit(limit). The default reads the
+     * whole range and returns the page of it.
+     *
+     * @param range The range of geohashes
+     * @param limit The maximal number of documents of the page
+     * @param after The last document of the previous page of the range, or null for the first page
+     * @param callback The callback receiving the documents of the page
+     */
+    default void getRangePage(GeoHashQuery range, final int limit, final D after, final Callback<List<D>> callback) {
+        this.getRange(range, (documents, exception) -> {
+            if (exception != null) {
+                callback.onComplete(null, exception);
+                return;
+            }
+            List<RangeEntry<D>> entries = new ArrayList<>(documents.size());
+            for (D document: documents) {
+                GeoLocation location = this.getLocation(document);
+                if (location != null) {
+                    entries.add(new RangeEntry<>(this.getGeoHash(document, location), this.getKey(document), document));
+                }
+            }
+            Collections.sort(entries);
+            RangeEntry<D> afterEntry = null;
+            GeoLocation afterLocation = after != null ? this.getLocation(after) : null;
+            if (afterLocation != null) {
+                afterEntry = new RangeEntry<>(this.getGeoHash(after, afterLocation), this.getKey(after), null);
+            }
+            List<D> page = new ArrayList<>(Math.min(limit, entries.size()));
+            for (RangeEntry<D> entry: entries) {
+                if (page.size() == limit) {
+                    break;
+                }
+                if (afterEntry == null || entry.compareTo(afterEntry) > 0) {
+                    page.add(entry.document);
+                }
+            }
+            callback.onComplete(page, null);
+        });
+    }
+
+    /**
+     * Reads a single document once.
+     *
+     * @param key The key of the document
+     * @param callback The callback receiving the document, or null if there is no document for the key
+     */
+    void getDocument(String key, Callback<D> callback);
+
+    /**
+     * Reads the documents of many keys once. The default reads every document with {@link #getDocument}.
+     *
+     * @param keys The keys of the documents
+     * @param callback The callback receiving the documents found in any order, keys without a document have none
+     */
+    default void getDocuments(List<String> keys, final Callback<List<D>> callback) {
+        final List<D> documents = new ArrayList<>(keys.size());
+        if (keys.isEmpty()) {
+            callback.onComplete(documents, null);
+            return;
+        }
+        final int[] remaining = { keys.size() };
+        final Exception[] failure = { null };
+        for (String key: keys) {
+            this.getDocument(key, (document, exception) -> {
+                Exception error;
+                synchronized (documents) {
+                    if (exception != null) {
+                        if (failure[0] == null) {
+                            failure[0] = exception;
+                        }
+                    } else if (document != null) {
+                        documents.add(document);
+                    }
+                    if (--remaining[0] > 0) {
+                        return;
+                    }
+                    error = failure[0];
+                }
+                callback.onComplete(error == null ? documents : null, error);
+            });
+        }
+    }
+
+    /**
+     * Sets the location of a document, creating the document if necessary.
+     *
+     * @param key The key of the document
+     * @param location The new location
+     * @param callback The callback called once the write completed, may be null
+     */
+    void setLocation(String key, GeoLocation location, Callback<Void> callback);
+
+    /**
+     * Removes the location of an existing document.
+     *
+     * @param key The key of the document
+     * @param callback The callback called once the write completed, may be null
+     */
+    void removeLocation(String key, Callback<Void> callback);
+
+    /**
+     * @return A new empty batch of writes
+     */
+    Batch newBatch();
+
+    /**
+     * @return The maximal number of writes of a batch
+     */
+    int getMaxBatchSize();
+}
@@ -0,0 +1,448 @@
+package com.koalap.geofirestore.store;
+
+import com.koalap.geofirestore.GeoLocation;
+import com.koalap.geofirestore.core.GeoHashQuery;
+import com.koalap.geofirestore.core.LongGeoHash;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+
+/**
+ * A GeoStore keeping its documents in memory, to run and measure queries without Firestore.
+ *
+ * The documents are indexed by geohash in a sorted set, so a range is a subset view of the index. Range listeners
+ * receive the same kind of snapshots as Firestore listeners: an initial snapshot adding all documents of the range,
+ * then one snapshot per write or batch with the documents that were added to, modified in or removed from the
+ * range. Snapshots and callbacks are delivered in the order of the writes through an executor, by default on the
+ * thread that writes.
+ */
+public final class MemoryGeoStore implements GeoStore<MemoryGeoStore.Document> {
+
+    /**
+     * An immutable document of the store. Every write creates a new document.
+     */
+    public static final class Document {
+        private final String key;
+        private final GeoLocation location;
+        private final String geoHash;
+        // The geohash as a long hash, like the field "g" of a Firestore document it is stored with the document
+        private final long longGeoHash;
+
+        Document(String key, GeoLocation location, String geoHash, long longGeoHash) {
+            this.key = key;
+            this.location = location;
+            this.geoHash = geoHash;
+            this.longGeoHash = longGeoHash;
+        }
+
+        public String getKey() {
+            return this.key;
+        }
+
+        /**
+         * @return The location of the document, or null if its location was removed
+         */
+        public GeoLocation getLocation() {
+            return this.location;
+        }
+
+        /**
+         * @return The geohash of the location with the default precision, or null if the location was removed
+         */
+        public String getGeoHash() {
+            return this.geoHash;
+        }
+
+        @Override
+        public String toString() {
+            return "Document{key='" + key + "', location=" + location + ", geoHash='" + geoHash + "'}";
+        }
+    }
+
+    // Probes with a null key sort after all documents with the same geohash
+    private static final Comparator<Document> GEOHASH_ORDER = (document1, document2) -> {
+        int compare = document1.geoHash.compareTo(document2.geoHash);
+        if (compare != 0) {
+            return compare;
+        }
+        if (document1.key == null || document2.key == null) {
+            return document1.key == null ? (document2.key == null ? 0 : 1) : -1;
+        }
+        return document1.key.compareTo(document2.key);
+    };
+
+    // The maximal number of writes of a batch, the same as for Firestore
+    public static final int MAX_BATCH_SIZE = 500;
+
+    private final class RangeRegistration implements Registration {
+        final GeoHashQuery range;
+        final RangeListener<Document> listener;
+        // The common prefix of the start and the end of the range, every geohash in the range starts with it
+        final String prefix;
+        // Guarded by the store
+        boolean removed;
+
+        RangeRegistration(GeoHashQuery range, RangeListener<Document> listener) {
+            this.range = range;
+            this.listener = listener;
+            String start = range.getStartValue();
+            String end = range.getEndValue();
+            int length = 0;
+            while (length < start.length() && length < end.length() && start.charAt(length) == end.charAt(length)) {
+                length++;
+            }
+            this.prefix = start.substring(0, length);
+        }
+
+        boolean contains(Document document) {
+            return document != null && document.geoHash != null
+                    && document.geoHash.compareTo(this.range.getStartValue()) >= 0
+                    && document.geoHash.compareTo(this.range.getEndValue()) <= 0;
+        }
+
+        @Override
+        public void remove() {
+            synchronized (MemoryGeoStore.this) {
+                if (this.removed) {
+                    return;
+                }
+                this.removed = true;
+                List<RangeRegistration> registrations = MemoryGeoStore.this.rangeRegistrations.get(this.prefix);
+                registrations.remove(this);
+                if (registrations.isEmpty()) {
+                    MemoryGeoStore.this.rangeRegistrations.remove(this.prefix);
+                }
+            }
+        }
+    }
+
+    private final Executor executor;
+    private final Map<String, Document> documents = new HashMap<>();
+    private final TreeSet<Document> byGeoHash = new TreeSet<>(GEOHASH_ORDER);
+    // The registrations by the common prefix of their range, so a write only visits the ranges of the prefixes of
+    // its geohash
+    private final Map<String, List<RangeRegistration>> rangeRegistrations = new HashMap<>();
+    private final ArrayDeque<Runnable> deliveries = new ArrayDeque<>();
+    private boolean delivering;
+
+    /**
+     * Creates a store delivering snapshots and callbacks on the thread that writes or listens.
+     */
+    public MemoryGeoStore() {
+        this(Runnable::run);
+    }
+
+    /**
+     * @param executor The executor delivering snapshots and callbacks, they are delivered one after another in order
+     */
+    public MemoryGeoStore(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return The number of documents with a location
+     */
+    public synchronized int size() {
+        return this.byGeoHash.size();
+    }
+
+    @Override
+    public String getKey(Document document) {
+        return document.key;
+    }
+
+    @Override
+    public GeoLocation getLocation(Document document) {
+        return document.location;
+    }
+
+    @Override
+    public long getGeoHash(Document document, GeoLocation location) {
+        return document.geoHash != null ? document.longGeoHash : GeoStore.super.getGeoHash(document, location);
+    }
+
+    @Override
+    public Registration listenRange(GeoHashQuery range, RangeListener<Document> listener) {
+        RangeRegistration registration = new RangeRegistration(range, listener);
+        synchronized (this) {
+            List<RangeRegistration> registrations = this.rangeRegistrations.get(registration.prefix);
+            if (registrations == null) {
+                registrations = new ArrayList<>(1);
+                this.rangeRegistrations.put(registration.prefix, registrations);
+            }
+            registrations.add(registration);
+            final List<Change<Document>> changes = new ArrayList<>();
+            for (Document document: this.documentsInRange(range)) {
+                changes.add(new Change<>(Change.Type.ADDED, document));
+            }
+            this.enqueueSnapshot(registration, changes);
+        }
+        this.deliver();
+        return registration;
+    }
+
+    @Override
+    public void getRange(GeoHashQuery range, final Callback<List<Document>> callback) {
+        synchronized (this) {
+            final List<Document> result = new ArrayList<>(this.documentsInRange(range));
+            this.deliveries.add(() -> callback.onComplete(result, null));
+        }
+        this.deliver();
+    }
+
+    @Override
+    public void getRangePage(GeoHashQuery range, int limit, Document after, final Callback<List<Document>> callback) {
+        synchronized (this) {
+            NavigableSet<Document> documents = this.documentsInRange(range);
+            if (after != null && after.geoHash != null) {
+                documents = documents.tailSet(after, false);
+            }
+            final List<Document> result = new ArrayList<>(Math.min(limit, documents.size()));
+            for (Document document: documents) {
+                if (result.size() == limit) {
+                    break;
+                }
+                result.add(document);
+            }
+            this.deliveries.add(() -> callback.onComplete(result, null));
+        }
+        this.deliver();
+    }
+
+    @Override
+    public void getDocument(String key, final Callback<Document> callback) {
+        synchronized (this) {
+            final Document document = this.documents.get(key);
+            this.deliveries.add(() -> callback.onComplete(document, null));
+        }
+        this.deliver();
+    }
+
+    @Override
+    public void setLocation(String key, GeoLocation location, Callback<Void> callback) {
+        Batch batch = this.newBatch();
+        batch.setLocation(key, location);
+        batch.commit(callback);
+    }
+
+    @Override
+    public void removeLocation(String key, Callback<Void> callback) {
+        Batch batch = this.newBatch();
+        batch.removeLocation(key);
+        batch.commit(callback);
+    }
+
+    @Override
+    public Batch newBatch() {
+        return new Batch() {
+            // The new documents by key, null removes the location of a document
+            private final Map<String, GeoLocation> writes = new LinkedHashMap<>();
+
+            @Override
+            public void setLocation(String key, GeoLocation location) {
+                if (key == null || location == null) {
+                    throw new NullPointerException("Keys and locations must not be null!");
+                }
+                this.writes.put(key, location);
+            }
+
+            @Override
+            public void removeLocation(String key) {
+                if (key == null) {
+                    throw new NullPointerException("Keys must not be null!");
+                }
+                this.writes.put(key, null);
+            }
+
+            @Override
+            public void commit(Callback<Void> callback) {
+                MemoryGeoStore.this.commit(this.writes, callback);
+            }
+        };
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return MAX_BATCH_SIZE;
+    }
+
+    private void commit(Map<String, GeoLocation> writes, final Callback<Void> callback) {
+        synchronized (this) {
+            if (writes.size() > MAX_BATCH_SIZE) {
+                this.enqueueCallback(callback, new IllegalArgumentException("A batch must not have more than " + MAX_BATCH_SIZE + " writes!"));
+            } else if (!this.canCommit(writes)) {
+                this.enqueueCallback(callback, new IllegalStateException("Cannot remove the location of a missing document!"));
+            } else {
+                List<Document> oldDocuments = new ArrayList<>(writes.size());
+                List<Document> newDocuments = new ArrayList<>(writes.size());
+                for (Map.Entry<String, GeoLocation> write: writes.entrySet()) {
+                    Document oldDocument = this.documents.get(write.getKey());
+                    Document newDocument = newDocument(write.getKey(), write.getValue());
+                    this.replace(oldDocument, newDocument);
+                    oldDocuments.add(oldDocument);
+                    newDocuments.add(newDocument);
+                }
+                this.enqueueSnapshots(oldDocuments, newDocuments);
+                this.enqueueCallback(callback, null);
+            }
+        }
+        this.deliver();
+    }
+
+    private boolean canCommit(Map<String, GeoLocation> writes) {
+        // Like a Firestore update, removing a location fails if the document does not exist
+        for (Map.Entry<String, GeoLocation> write: writes.entrySet()) {
+            if (write.getValue() == null && !this.documents.containsKey(write.getKey())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Document newDocument(String key, GeoLocation location) {
+        if (location == null) {
+            return new Document(key, null, null, -1);
+        }
+        long geoHash = LongGeoHash.encode(location.latitude, location.longitude);
+        return new Document(key, location, LongGeoHash.toBase32String(geoHash, LongGeoHash.DEFAULT_PRECISION), geoHash);
+    }
+
+    private void replace(Document oldDocument, Document newDocument) {
+        if (oldDocument != null && oldDocument.geoHash != null) {
+            this.byGeoHash.remove(oldDocument);
+        }
+        this.documents.put(newDocument.key, newDocument);
+        if (newDocument.geoHash != null) {
+            this.byGeoHash.add(newDocument);
+        }
+    }
+
+    private NavigableSet<Document> documentsInRange(GeoHashQuery range) {
+        Document start = new Document("", null, range.getStartValue(), -1);
+        Document end = new Document(null, null, range.getEndValue(), -1);
+        if (GEOHASH_ORDER.compare(start, end) > 0) {
+            // An empty view, Collections.emptyNavigableSet needs API level 26
+            return this.byGeoHash.subSet(start, true, start, false);
+        }
+        return this.byGeoHash.subSet(start, true, end, false);
+    }
+
+    private void enqueueSnapshots(List<Document> oldDocuments, List<Document> newDocuments) {
+        // The changes of every range in the order of the writes
+        Map<RangeRegistration, List<Change<Document>>> snapshots = new LinkedHashMap<>();
+        Set<RangeRegistration> registrations = new LinkedHashSet<>();
+        for (int i = 0; i < newDocuments.size(); i++) {
+            Document oldDocument = oldDocuments.get(i);
+            Document newDocument = newDocuments.get(i);
+            registrations.clear();
+            this.addRegistrations(oldDocument, registrations);
+            this.addRegistrations(newDocument, registrations);
+            for (RangeRegistration registration: registrations) {
+                boolean wasInRange = registration.contains(oldDocument);
+                boolean isInRange = registration.contains(newDocument);
+                Change<Document> change;
+                if (wasInRange && isInRange) {
+                    change = new Change<>(Change.Type.MODIFIED, newDocument);
+                } else if (isInRange) {
+                    change = new Change<>(Change.Type.ADDED, newDocument);
+                } else if (wasInRange) {
+                    change = new Change<>(Change.Type.REMOVED, oldDocument);
+                } else {
+                    continue;
+                }
+                List<Change<Document>> changes = snapshots.get(registration);
+                if (changes == null) {
+                    changes = new ArrayList<>();
+                    snapshots.put(registration, changes);
+                }
+                changes.add(change);
+            }
+        }
+        for (Map.Entry<RangeRegistration, List<Change<Document>>> snapshot: snapshots.entrySet()) {
+            this.enqueueSnapshot(snapshot.getKey(), snapshot.getValue());
+        }
+    }
+
+    /**
+     * Adds the registrations whose prefix is a prefix of the geohash of the document, the only ones that may
+     * contain it.
+     */
+    private void addRegistrations(Document document, Set<RangeRegistration> registrations) {
+        if (document == null || document.geoHash == null) {
+            return;
+        }
+        for (int length = 0; length <= document.geoHash.length(); length++) {
+            List<RangeRegistration> prefixRegistrations =
+                    this.rangeRegistrations.get(document.geoHash.substring(0, length));
+            if (prefixRegistrations != null) {
+                registrations.addAll(prefixRegistrations);
+            }
+        }
+    }
+
+    private void enqueueSnapshot(final RangeRegistration registration, final List<Change<Document>> changes) {
+        this.deliveries.add(() -> {
+            boolean registered;
+            synchronized (MemoryGeoStore.this) {
+                registered = !registration.removed;
+            }
+            // Like Firestore, no snapshots are delivered after the listener was removed
+            if (registered) {
+                registration.listener.onSnapshot(Collections.unmodifiableList(changes));
+            }
+        });
+    }
+
+    private void enqueueCallback(final Callback<Void> callback, final Exception exception) {
+        if (callback != null) {
+            this.deliveries.add(() -> callback.onComplete(null, exception));
+        }
+    }
+
+    private void deliver() {
+        this.executor.execute(this::drainDeliveries);
+    }
+
+    private void drainDeliveries() {
+        synchronized (this) {
+            if (this.delivering) {
+                // The thread delivering right now runs our deliveries in order
+                return;
+            }
+            this.delivering = true;
+        }
+        boolean drained = false;
+        try {
+            while (true) {
+                Runnable delivery;
+                synchronized (this) {
+                    delivery = this.deliveries.poll();
+                    if (delivery == null) {
+                        this.delivering = false;
+                        drained = true;
+                        return;
+                    }
+                }
+                delivery.run();
+            }
+        } finally {
+            if (!drained) {
+                // A delivery threw, the next write or listener delivers the remaining ones
+                synchronized (this) {
+                    this.delivering = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.koalap.geofirestore.store;
+
+/**
+ * A document with its geohash and key, ordered like the documents of a range, see {@link GeoStore#getRangePage}.
+ * Immutable.
+ *
+ * @param <D> The type of the documents
+ */
+final class RangeEntry<D> implements Comparable<RangeEntry<?>> {
+    final long geoHash;
+    final String key;
+    // The document, or null for an entry only marking a position
+    final D document;
+
+    RangeEntry(long geoHash, String key, D document) {
+        this.geoHash = geoHash;
+        this.key = key;
+        this.document = document;
+    }
+
+    @Override
+    public int compareTo(RangeEntry<?> other) {
+        int compare = Long.compare(this.geoHash, other.geoHash);
+        return compare != 0 ? compare : this.key.compareTo(other.key);
+    }
+}
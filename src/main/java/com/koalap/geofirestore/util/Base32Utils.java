@@ -5,29 +5,135 @@ public final class Base32Utils {
     /* number of bits per base 32 character */
     public static final int BITS_PER_BASE32_CHAR = 5;
 
+    /* value returned by the non-throwing decode methods for invalid input */
+    public static final int INVALID_VALUE = -1;
+
+    /* maximal number of characters decodeBits can pack into a long */
+    public static final int MAX_CHARS_PER_LONG = 12;
+
     private static final String BASE32_CHARS = "0123456789bcdefghjkmnpqrstuvwxyz";
 
+    private static final char[] VALUE_TO_CHAR = BASE32_CHARS.toCharArray();
+
+    /* maps an ASCII char to its base 32 value or INVALID_VALUE */
+    private static final byte[] CHAR_TO_VALUE = new byte[128];
+
+    static {
+        for (int i = 0; i < CHAR_TO_VALUE.length; i++) {
+            CHAR_TO_VALUE[i] = INVALID_VALUE;
+        }
+        for (int i = 0; i < VALUE_TO_CHAR.length; i++) {
+            CHAR_TO_VALUE[VALUE_TO_CHAR[i]] = (byte) i;
+        }
+    }
+
     private Base32Utils() {
         throw new AssertionError("No instances.");
     }
 
     public static char valueToBase32Char(int value) {
-        if (value < 0 || value >= BASE32_CHARS.length()) {
+        if (value < 0 || value >= VALUE_TO_CHAR.length) {
             throw new IllegalArgumentException("Not a valid base32 value: " + value);
         }
-        return BASE32_CHARS.charAt(value);
+        return VALUE_TO_CHAR[value];
     }
 
     public static int base32CharToValue(char base32Char) {
-        int value = BASE32_CHARS.indexOf(base32Char);
-        if (value == -1) {
+        int value = base32CharToValueOrInvalid(base32Char);
+        if (value == INVALID_VALUE) {
             throw new IllegalArgumentException("Not a valid base32 char: " + base32Char);
         } else {
             return value;
         }
     }
 
+    /**
+     * @param base32Char The char to decode
+     * @return The base 32 value of the char or INVALID_VALUE if it is not a base 32 char
+     */
+    public static int base32CharToValueOrInvalid(char base32Char) {
+        return base32Char < CHAR_TO_VALUE.length ? CHAR_TO_VALUE[base32Char] : INVALID_VALUE;
+    }
+
     public static boolean isValidBase32String(String string) {
-        return string.matches("^[" + BASE32_CHARS + "]*$");
+        return isValidBase32String(string, 0, string.length());
+    }
+
+    /**
+     * @param chars The chars to check
+     * @param start The index of the first char to check
+     * @param end The index after the last char to check
+     * @return True if all chars in the range are base 32 chars
+     */
+    public static boolean isValidBase32String(CharSequence chars, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (base32CharToValueOrInvalid(chars.charAt(i)) == INVALID_VALUE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes up to 12 base 32 chars into the low bits of a long, 5 bits per char with the first char in the
+     * highest bits.
+     *
+     * @param chars The chars to decode
+     * @param start The index of the first char to decode
+     * @param end The index after the last char to decode
+     * @return The decoded bits or INVALID_VALUE if the range contains a char that is not a base 32 char or is
+     * longer than 12 chars
+     */
+    public static long decodeBits(CharSequence chars, int start, int end) {
+        if (end - start > MAX_CHARS_PER_LONG) {
+            return INVALID_VALUE;
+        }
+        long bits = 0;
+        for (int i = start; i < end; i++) {
+            int value = base32CharToValueOrInvalid(chars.charAt(i));
+            if (value == INVALID_VALUE) {
+                return INVALID_VALUE;
+            }
+            bits = (bits << BITS_PER_BASE32_CHAR) | value;
+        }
+        return bits;
+    }
+
+    /**
+     * Decodes up to 12 base 32 chars of an array, see {@link #decodeBits(CharSequence, int, int)}.
+     *
+     * @param chars The chars to decode
+     * @param start The index of the first char to decode
+     * @param end The index after the last char to decode
+     * @return The decoded bits or INVALID_VALUE
+     */
+    public static long decodeBits(char[] chars, int start, int end) {
+        if (end - start > MAX_CHARS_PER_LONG) {
+            return INVALID_VALUE;
+        }
+        long bits = 0;
+        for (int i = start; i < end; i++) {
+            int value = base32CharToValueOrInvalid(chars[i]);
+            if (value == INVALID_VALUE) {
+                return INVALID_VALUE;
+            }
+            bits = (bits << BITS_PER_BASE32_CHAR) | value;
+        }
+        return bits;
+    }
+
+    /**
+     * Encodes the low bits of a long into base 32 chars, the inverse of decodeBits.
+     *
+     * @param bits The bits to encode, 5 per char with the first char in the highest bits
+     * @param count The number of chars to write, at most 12
+     * @param buffer The buffer to write to
+     * @param offset The index of the first char in the buffer
+     */
+    public static void encodeBits(long bits, int count, char[] buffer, int offset) {
+        for (int i = count - 1; i >= 0; i--) {
+            buffer[offset + i] = VALUE_TO_CHAR[(int) (bits & 0x1f)];
+            bits >>>= BITS_PER_BASE32_CHAR;
+        }
     }
-}
\ No newline at end of file
+}
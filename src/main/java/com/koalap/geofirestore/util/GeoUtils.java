@@ -1,9 +1,13 @@
 package com.koalap.geofirestore.util;
 
-import com.koalap.geofirestore.GeoFire;
 import com.koalap.geofirestore.GeoLocation;
 
+import java.util.logging.Logger;
+
 public final class GeoUtils {
+    // The logger of GeoFire, looked up by name so the geometry has no dependency on Firestore
+    private static final Logger LOGGER = Logger.getLogger("GeoFire");
+
     private static final double MAX_SUPPORTED_RADIUS = 8587;
 
     private GeoUtils() {
@@ -56,7 +60,7 @@ public final class GeoUtils {
 
     public static double capRadius(double radius) {
         if (radius > MAX_SUPPORTED_RADIUS) {
-            GeoFire.LOGGER.warning("The radius is bigger than " + MAX_SUPPORTED_RADIUS + " and hence we'll use that value");
+            LOGGER.warning("The radius is bigger than " + MAX_SUPPORTED_RADIUS + " and hence we'll use that value");
             return MAX_SUPPORTED_RADIUS;
         }
 
@@ -0,0 +1,231 @@
+package com.koalap.geofirestore;
+
+import com.koalap.geofirestore.store.MemoryGeoStore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs nearest-k queries over the in-memory store, which completes its reads and delivers its snapshots on the
+ * calling thread, and compares the nearest documents with a brute force search.
+ */
+public class GeoNearestEngineTest {
+
+    private static final GeoLocation CENTER = new GeoLocation(45.764, 4.8357);
+
+    /**
+     * Records the nearest documents reported by an engine.
+     */
+    private static final class RecordingSink implements GeoNearestEngine.Sink<MemoryGeoStore.Document> {
+        List<String> nearest = Collections.emptyList();
+        int changedCount;
+        int readyCount;
+
+        @Override
+        public void onNearestChanged(List<GeoQueryEngine.Match<MemoryGeoStore.Document>> nearest) {
+            this.nearest = keys(nearest);
+            this.changedCount++;
+        }
+
+        @Override
+        public void onReady() {
+            this.readyCount++;
+        }
+
+        @Override
+        public void onError(Exception exception) {
+            throw new AssertionError(exception);
+        }
+    }
+
+    private MemoryGeoStore store;
+    private GeoIndex<MemoryGeoStore.Document> index;
+    private RecordingSink sink;
+    private final Map<String, GeoLocation> locations = new HashMap<>();
+
+    @Before
+    public void setUp() {
+        this.store = new MemoryGeoStore();
+        this.index = new GeoIndex<>(this.store);
+        this.sink = new RecordingSink();
+    }
+
+    private static GeoLocation offset(GeoLocation center, double north, double east) {
+        return new GeoLocation(center.latitude + north, center.longitude + east);
+    }
+
+    private static List<String> keys(List<GeoQueryEngine.Match<MemoryGeoStore.Document>> matches) {
+        List<String> keys = new ArrayList<>(matches.size());
+        for (GeoQueryEngine.Match<MemoryGeoStore.Document> match: matches) {
+            keys.add(match.getDocument().getKey());
+        }
+        return keys;
+    }
+
+    private void setLocation(String key, GeoLocation location) {
+        this.locations.put(key, location);
+        this.store.setLocation(key, location, null);
+    }
+
+    private void removeLocation(String key) {
+        this.locations.remove(key);
+        this.store.removeLocation(key, null);
+    }
+
+    private void addRandomDocuments(int count, double spread) {
+        Random random = new Random(17);
+        for (int i = 0; i < count; i++) {
+            this.setLocation("k" + i, offset(CENTER, (random.nextDouble() - 0.5) * spread,
+                    (random.nextDouble() - 0.5) * spread * 1.4));
+        }
+    }
+
+    /**
+     * @return The keys of the k nearest documents of the store, selected by the haversine distance and ordered by
+     * the distance function of the index
+     */
+    private List<String> bruteForceNearest(int k) {
+        final DistanceFunction.CenterDistance haversine = DistanceFunctions.haversine().forCenter(CENTER);
+        final DistanceFunction.CenterDistance distance = this.index.getDistanceFunction().forCenter(CENTER);
+        List<String> keys = new ArrayList<>(this.locations.keySet());
+        Collections.sort(keys, new Comparator<String>() {
+            @Override
+            public int compare(String key1, String key2) {
+                GeoLocation location1 = GeoNearestEngineTest.this.locations.get(key1);
+                GeoLocation location2 = GeoNearestEngineTest.this.locations.get(key2);
+                return Double.compare(haversine.distanceTo(location1.latitude, location1.longitude),
+                        haversine.distanceTo(location2.latitude, location2.longitude));
+            }
+        });
+        List<String> nearest = new ArrayList<>(keys.subList(0, Math.min(k, keys.size())));
+        Collections.sort(nearest, new Comparator<String>() {
+            @Override
+            public int compare(String key1, String key2) {
+                GeoLocation location1 = GeoNearestEngineTest.this.locations.get(key1);
+                GeoLocation location2 = GeoNearestEngineTest.this.locations.get(key2);
+                return Double.compare(distance.distanceTo(location1.latitude, location1.longitude),
+                        distance.distanceTo(location2.latitude, location2.longitude));
+            }
+        });
+        return nearest;
+    }
+
+    private List<String> getOnce(int k) {
+        final List<List<String>> results = new ArrayList<>();
+        this.index.queryNearest(CENTER, k, 0.5, null).getOnce((nearest, exception) -> {
+            assertNull(exception);
+            results.add(keys(nearest));
+        });
+        assertEquals("The in-memory store completes the reads at once", 1, results.size());
+        return results.get(0);
+    }
+
+    @Test
+    public void oneShotNearestMatchBruteForce() {
+        this.addRandomDocuments(3000, 0.5);
+        for (int k: new int[] { 1, 7, 60, 400 }) {
+            assertEquals(this.bruteForceNearest(k), this.getOnce(k));
+        }
+    }
+
+    /**
+     * The equirectangular distance does not bound its deviation, the nearest documents are selected by the
+     * haversine distance and ordered by the equirectangular distance.
+     */
+    @Test
+    public void oneShotNearestOfUnboundedDistanceFunctionMatchBruteForce() {
+        this.index.setDistanceFunction(DistanceFunctions.equirectangular());
+        this.addRandomDocuments(3000, 0.5);
+        for (int k: new int[] { 1, 7, 60, 400 }) {
+            assertEquals(this.bruteForceNearest(k), this.getOnce(k));
+        }
+    }
+
+    @Test
+    public void oneShotReturnsAllDocumentsIfFewerThanK() {
+        this.addRandomDocuments(5, 2);
+        assertEquals(this.bruteForceNearest(5), this.getOnce(10));
+    }
+
+    @Test
+    public void liveQueryExpandsAfterTheNearestDocumentsLeave() {
+        for (int i = 0; i < 3; i++) {
+            this.setLocation("near" + i, offset(CENTER, 0.001 * (i + 1), 0));
+            this.setLocation("far" + i, offset(CENTER, 0, 0.3 * (i + 1)));
+        }
+        GeoNearestEngine<MemoryGeoStore.Document> engine = this.index.queryNearest(CENTER, 3, 0.5, this.sink);
+        engine.start();
+        assertTrue(engine.isReady());
+        assertEquals(this.bruteForceNearest(3), this.sink.nearest);
+        double exploredRadius = engine.getExploredRadius();
+
+        this.removeLocation("near0");
+        this.setLocation("near1", offset(CENTER, 1, 0));
+        this.removeLocation("near2");
+
+        assertTrue(engine.isReady());
+        assertEquals(this.bruteForceNearest(3), this.sink.nearest);
+        assertEquals(this.sink.nearest, keys(engine.getNearest()));
+        assertTrue(engine.getExploredRadius() > exploredRadius);
+        assertTrue(this.sink.readyCount >= 2);
+    }
+
+    @Test
+    public void documentsComingCloseShrinkTheRingsAndTheirListeners() {
+        for (int i = 0; i < 3; i++) {
+            this.setLocation("far" + i, offset(CENTER, 0.4 * (i + 1), 0));
+        }
+        GeoNearestEngine<MemoryGeoStore.Document> engine = this.index.queryNearest(CENTER, 3, 0.5, this.sink);
+        engine.start();
+        assertEquals(this.bruteForceNearest(3), this.sink.nearest);
+        double exploredRadius = engine.getExploredRadius();
+        int listenerCount = this.index.getListenerCount();
+
+        for (int i = 0; i < 3; i++) {
+            this.setLocation("near" + i, offset(CENTER, 0, 0.0005 * (i + 1)));
+        }
+
+        assertEquals(this.bruteForceNearest(3), this.sink.nearest);
+        assertTrue(engine.getExploredRadius() < exploredRadius);
+        assertTrue(this.index.getListenerCount() < listenerCount);
+        // Documents of the dropped rings do not change the nearest documents
+        int changedCount = this.sink.changedCount;
+        this.setLocation("far0", offset(CENTER, 0.5, 0));
+        assertEquals(changedCount, this.sink.changedCount);
+
+        engine.stop();
+        assertEquals(0, this.index.getListenerCount());
+    }
+
+    @Test
+    public void unchangedNearestDocumentsAreNotReported() {
+        this.addRandomDocuments(500, 0.2);
+        GeoNearestEngine<MemoryGeoStore.Document> engine = this.index.queryNearest(CENTER, 5, 0.5, this.sink);
+        engine.start();
+        assertEquals(1, this.sink.changedCount);
+        List<String> nearest = this.sink.nearest;
+
+        // Writes of documents that stay behind the nearest documents, within the rings and outside of them
+        String last = nearest.get(nearest.size() - 1);
+        GeoLocation lastLocation = this.locations.get(last);
+        this.setLocation("behind", offset(CENTER, (lastLocation.latitude - CENTER.latitude) * 1.001,
+                (lastLocation.longitude - CENTER.longitude) * 1.001));
+        this.setLocation("outside", offset(CENTER, 1, 1));
+        assertEquals(1, this.sink.changedCount);
+        this.removeLocation(last);
+
+        assertEquals(2, this.sink.changedCount);
+        assertEquals(this.bruteForceNearest(5), this.sink.nearest);
+        assertTrue(engine.isReady());
+    }
+}
@@ -0,0 +1,292 @@
+package com.koalap.geofirestore;
+
+import com.koalap.geofirestore.core.GeoHashQuery;
+import com.koalap.geofirestore.core.LongGeoHash;
+import com.koalap.geofirestore.store.GeoStore;
+import com.koalap.geofirestore.util.GeoUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Delivers the snapshots of every range of a query by hand, to check the order in which the ranges of a document
+ * moving between them report it: the range it left may report the removal before or after the range it entered
+ * reports the addition.
+ */
+public class GeoQueryEngineRangeTest {
+
+    private static final GeoLocation CENTER = new GeoLocation(48.8566, 2.3522);
+    private static final double RADIUS = 3;
+
+    private static final class Doc {
+        final String key;
+        final GeoLocation location;
+
+        Doc(String key, GeoLocation location) {
+            this.key = key;
+            this.location = location;
+        }
+    }
+
+    /**
+     * A store whose range listeners receive only the snapshots the test delivers. Reading documents fails, the
+     * query must decide with the documents of the snapshots alone.
+     */
+    private static final class ScriptedStore implements GeoStore<Doc> {
+        final Map<GeoHashQuery, RangeListener<Doc>> listeners = new LinkedHashMap<>();
+
+        @Override
+        public String getKey(Doc document) {
+            return document.key;
+        }
+
+        @Override
+        public GeoLocation getLocation(Doc document) {
+            return document.location;
+        }
+
+        @Override
+        public Registration listenRange(final GeoHashQuery range, RangeListener<Doc> listener) {
+            this.listeners.put(range, listener);
+            return () -> this.listeners.remove(range);
+        }
+
+        @Override
+        public void getRange(GeoHashQuery range, Callback<List<Doc>> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void getDocument(String key, Callback<Doc> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setLocation(String key, GeoLocation location, Callback<Void> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void removeLocation(String key, Callback<Void> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Batch newBatch() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getMaxBatchSize() {
+            return 1;
+        }
+
+        /**
+         * @return The listened range containing the location, or null
+         */
+        GeoHashQuery rangeOf(GeoLocation location) {
+            long hash = LongGeoHash.encode(location.latitude, location.longitude);
+            for (GeoHashQuery range: this.listeners.keySet()) {
+                if (range.containsGeoHash(hash, LongGeoHash.DEFAULT_PRECISION)) {
+                    return range;
+                }
+            }
+            return null;
+        }
+
+        void deliver(GeoHashQuery range, Change.Type type, Doc document) {
+            this.listeners.get(range).onSnapshot(Collections.singletonList(new Change<>(type, document)), false);
+        }
+
+        void deliverEmpty() {
+            for (RangeListener<Doc> listener: new ArrayList<>(this.listeners.values())) {
+                listener.onSnapshot(Collections.<Change<Doc>>emptyList(), false);
+            }
+        }
+    }
+
+    private static final class RecordingSink implements GeoQueryEngine.Sink<Doc> {
+        final Map<String, GeoLocation> inQuery = new HashMap<>();
+
+        @Override
+        public void onDocumentEntered(Doc document, GeoLocation location) {
+            assertNull("Entered twice: " + document.key, this.inQuery.put(document.key, location));
+        }
+
+        @Override
+        public void onDocumentMoved(Doc document, GeoLocation location) {
+            assertNotNull("Moved without entering: " + document.key, this.inQuery.put(document.key, location));
+        }
+
+        @Override
+        public void onDocumentChanged(Doc document, GeoLocation location) {
+        }
+
+        @Override
+        public void onDocumentExited(Doc document, GeoLocation location) {
+            assertNotNull("Exited without entering: " + document.key, this.inQuery.remove(document.key));
+        }
+
+        @Override
+        public void onUpdateComplete() {
+        }
+
+        @Override
+        public void onReady() {
+        }
+
+        @Override
+        public void onError(Exception exception) {
+            throw new AssertionError(exception);
+        }
+    }
+
+    private ScriptedStore store;
+    private RecordingSink sink;
+    private GeoQueryEngine<Doc> engine;
+    private Random random;
+
+    @Before
+    public void setUp() {
+        this.store = new ScriptedStore();
+        this.sink = new RecordingSink();
+        this.engine = new GeoIndex<>(this.store).queryAtLocation(CENTER, RADIUS, this.sink);
+        this.engine.start();
+        this.store.deliverEmpty();
+        assertTrue(this.engine.isReady());
+        assertTrue("The query needs two ranges", this.store.listeners.size() >= 2);
+        this.random = new Random(7);
+    }
+
+    private GeoLocation randomLocation(double spread) {
+        return new GeoLocation(CENTER.latitude + (this.random.nextDouble() - 0.5) * spread,
+                CENTER.longitude + (this.random.nextDouble() - 0.5) * spread);
+    }
+
+    private static boolean isInCircle(GeoLocation location) {
+        return GeoUtils.distance(CENTER.latitude, CENTER.longitude, location.latitude, location.longitude) <=
+                RADIUS * 1000;
+    }
+
+    /**
+     * @return A location in the circle and in a listened range other than the given one
+     */
+    private GeoLocation locationInCircleOutsideOf(GeoHashQuery range) {
+        while (true) {
+            GeoLocation location = this.randomLocation(0.05);
+            GeoHashQuery locationRange = this.store.rangeOf(location);
+            if (isInCircle(location) && locationRange != null && !locationRange.equals(range)) {
+                return location;
+            }
+        }
+    }
+
+    private Doc addInCircle(String key) {
+        Doc document = new Doc(key, this.locationInCircleOutsideOf(null));
+        this.store.deliver(this.store.rangeOf(document.location), GeoStore.Change.Type.ADDED, document);
+        assertEquals(document.location, this.sink.inQuery.get(key));
+        return document;
+    }
+
+    @Test
+    public void removalFromOldRangeAfterAdditionToNewRangeKeepsDocument() {
+        Doc before = this.addInCircle("car");
+        GeoHashQuery oldRange = this.store.rangeOf(before.location);
+        Doc after = new Doc("car", this.locationInCircleOutsideOf(oldRange));
+
+        this.store.deliver(this.store.rangeOf(after.location), GeoStore.Change.Type.ADDED, after);
+        assertEquals(after.location, this.sink.inQuery.get("car"));
+        this.store.deliver(oldRange, GeoStore.Change.Type.REMOVED, before);
+
+        assertEquals(after.location, this.sink.inQuery.get("car"));
+        assertEquals(1, this.engine.getTrackedCount());
+    }
+
+    @Test
+    public void removalFromOldRangeBeforeAdditionToNewRangeEntersDocumentAgain() {
+        Doc before = this.addInCircle("car");
+        GeoHashQuery oldRange = this.store.rangeOf(before.location);
+        Doc after = new Doc("car", this.locationInCircleOutsideOf(oldRange));
+
+        this.store.deliver(oldRange, GeoStore.Change.Type.REMOVED, before);
+        assertFalse(this.sink.inQuery.containsKey("car"));
+        this.store.deliver(this.store.rangeOf(after.location), GeoStore.Change.Type.ADDED, after);
+
+        assertEquals(after.location, this.sink.inQuery.get("car"));
+        assertEquals(1, this.engine.getTrackedCount());
+    }
+
+    @Test
+    public void removalOfDeletedDocumentExits() {
+        Doc document = this.addInCircle("car");
+
+        this.store.deliver(this.store.rangeOf(document.location), GeoStore.Change.Type.REMOVED, document);
+
+        assertTrue(this.sink.inQuery.isEmpty());
+        assertEquals(0, this.engine.getTrackedCount());
+    }
+
+    /**
+     * Moves a fleet of vehicles within and out of the ranges of the query. Every move between two ranges is reported
+     * by both ranges in a random order, and the query must end up with the vehicles in its circle.
+     */
+    @Test
+    public void fleetMovingBetweenRangesInAnyOrder() {
+        Map<String, Doc> fleet = new HashMap<>();
+        for (int i = 0; i < 200; i++) {
+            Doc document = new Doc("v" + i, this.randomLocation(0.2));
+            GeoHashQuery range = this.store.rangeOf(document.location);
+            if (range != null) {
+                this.store.deliver(range, GeoStore.Change.Type.ADDED, document);
+            }
+            fleet.put(document.key, document);
+        }
+        List<String> keys = new ArrayList<>(fleet.keySet());
+        for (int step = 0; step < 5000; step++) {
+            String key = keys.get(this.random.nextInt(keys.size()));
+            Doc before = fleet.get(key);
+            Doc after = new Doc(key, this.randomLocation(0.2));
+            fleet.put(key, after);
+            GeoHashQuery oldRange = this.store.rangeOf(before.location);
+            GeoHashQuery newRange = this.store.rangeOf(after.location);
+            if (oldRange != null && oldRange.equals(newRange)) {
+                this.store.deliver(newRange, GeoStore.Change.Type.MODIFIED, after);
+            } else if (this.random.nextBoolean()) {
+                if (oldRange != null) {
+                    this.store.deliver(oldRange, GeoStore.Change.Type.REMOVED, before);
+                }
+                if (newRange != null) {
+                    this.store.deliver(newRange, GeoStore.Change.Type.ADDED, after);
+                }
+            } else {
+                if (newRange != null) {
+                    this.store.deliver(newRange, GeoStore.Change.Type.ADDED, after);
+                }
+                if (oldRange != null) {
+                    this.store.deliver(oldRange, GeoStore.Change.Type.REMOVED, before);
+                }
+            }
+        }
+
+        Set<String> expected = new HashSet<>();
+        for (Doc document: fleet.values()) {
+            if (isInCircle(document.location)) {
+                expected.add(document.key);
+                assertEquals(document.location, this.sink.inQuery.get(document.key));
+            }
+        }
+        assertEquals(expected, this.sink.inQuery.keySet());
+    }
+}
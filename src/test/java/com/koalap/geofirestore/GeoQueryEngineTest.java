@@ -0,0 +1,354 @@
+package com.koalap.geofirestore;
+
+import com.koalap.geofirestore.store.MemoryGeoStore;
+import com.koalap.geofirestore.util.GeoUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the query engine over the in-memory store, which delivers its snapshots on the writing thread.
+ */
+public class GeoQueryEngineTest {
+
+    private static final GeoLocation CENTER = new GeoLocation(52.52, 13.405);
+
+    // A short debounce window, in milliseconds
+    private static final long WINDOW = 150;
+    private static final double KILOMETERS_PER_DEGREE_LATITUDE = 111.2;
+
+    /**
+     * Records the transitions of an engine and the documents in its query.
+     */
+    private static class RecordingSink implements GeoQueryEngine.Sink<MemoryGeoStore.Document> {
+        final Map<String, GeoLocation> inQuery = new HashMap<>();
+        final List<String> events = new ArrayList<>();
+        int readyCount;
+
+        @Override
+        public void onDocumentEntered(MemoryGeoStore.Document document, GeoLocation location) {
+            assertNull("Entered twice: " + document.getKey(), this.inQuery.put(document.getKey(), location));
+            this.events.add("ENTERED " + document.getKey());
+        }
+
+        @Override
+        public void onDocumentMoved(MemoryGeoStore.Document document, GeoLocation location) {
+            GeoLocation previous = this.inQuery.put(document.getKey(), location);
+            assertNotNull("Moved without entering: " + document.getKey(), previous);
+            this.events.add("MOVED " + document.getKey());
+        }
+
+        @Override
+        public void onDocumentChanged(MemoryGeoStore.Document document, GeoLocation location) {
+            assertTrue("Changed without entering: " + document.getKey(), this.inQuery.containsKey(document.getKey()));
+        }
+
+        @Override
+        public void onDocumentExited(MemoryGeoStore.Document document, GeoLocation location) {
+            assertNotNull("Exited without entering: " + document.getKey(), this.inQuery.remove(document.getKey()));
+            this.events.add("EXITED " + document.getKey());
+        }
+
+        @Override
+        public void onUpdateComplete() {
+        }
+
+        @Override
+        public void onReady() {
+            this.readyCount++;
+        }
+
+        @Override
+        public void onError(Exception exception) {
+            throw new AssertionError(exception);
+        }
+    }
+
+    /**
+     * Records the documents in the query whenever it is ready, which it is after every applied center update, also
+     * when the timer of the debounce window applies it.
+     */
+    private static class ReadyRecordingSink extends RecordingSink {
+        final List<Set<String>> readyKeys = Collections.synchronizedList(new ArrayList<Set<String>>());
+
+        @Override
+        public void onReady() {
+            super.onReady();
+            this.readyKeys.add(new HashSet<>(this.inQuery.keySet()));
+        }
+
+        /**
+         * @return The documents in the query when it was ready the given time, waiting for the timer if needed
+         */
+        Set<String> awaitReady(int count) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (this.readyKeys.size() < count && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue("Ready " + this.readyKeys.size() + " times", this.readyKeys.size() >= count);
+            return this.readyKeys.get(count - 1);
+        }
+    }
+
+    private MemoryGeoStore store;
+    private GeoIndex<MemoryGeoStore.Document> index;
+    private RecordingSink sink;
+
+    @Before
+    public void setUp() {
+        this.store = new MemoryGeoStore();
+        this.index = new GeoIndex<>(this.store);
+        this.sink = new RecordingSink();
+    }
+
+    private static GeoLocation offset(GeoLocation center, double north, double east) {
+        return new GeoLocation(center.latitude + north, center.longitude + east);
+    }
+
+    /**
+     * @return The keys of the documents of the store within the radius in kilometers of the center
+     */
+    private static Set<String> keysWithin(Map<String, GeoLocation> locations, GeoLocation center, double radius) {
+        Set<String> keys = new HashSet<>();
+        for (Map.Entry<String, GeoLocation> entry: locations.entrySet()) {
+            GeoLocation location = entry.getValue();
+            double distance = GeoUtils.distance(center.latitude, center.longitude, location.latitude, location.longitude);
+            if (distance <= radius * 1000) {
+                keys.add(entry.getKey());
+            }
+        }
+        return keys;
+    }
+
+    private Map<String, GeoLocation> addRandomDocuments() {
+        Random random = new Random(20);
+        Map<String, GeoLocation> locations = new HashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            GeoLocation location = offset(CENTER, (random.nextDouble() - 0.5) * 0.1, (random.nextDouble() - 0.5) * 0.15);
+            locations.put("k" + i, location);
+            this.store.setLocation("k" + i, location, null);
+        }
+        return locations;
+    }
+
+    @Test
+    public void documentsInCircleEnterAndQueryBecomesReady() {
+        this.store.setLocation("inside", offset(CENTER, 0.001, 0.001), null);
+        this.store.setLocation("border", offset(CENTER, 0.0085, 0), null);
+        this.store.setLocation("outside", offset(CENTER, 0.02, 0), null);
+        GeoQueryEngine<MemoryGeoStore.Document> engine = this.index.queryAtLocation(CENTER, 1, this.sink);
+        assertFalse(engine.isStarted());
+        assertFalse(engine.isReady());
+        assertEquals(0, this.sink.readyCount);
+
+        engine.start();
+
+        assertTrue(engine.isStarted());
+        assertTrue(engine.isReady());
+        assertEquals(1, this.sink.readyCount);
+        Set<String> expected = new HashSet<>();
+        expected.add("inside");
+        expected.add("border");
+        assertEquals(expected, this.sink.inQuery.keySet());
+    }
+
+    @Test
+    public void documentsEnterMoveAndExitOnWrites() {
+        GeoQueryEngine<MemoryGeoStore.Document> engine = this.index.queryAtLocation(CENTER, 1, this.sink);
+        engine.start();
+        assertEquals(1, this.sink.readyCount);
+
+        this.store.setLocation("a", offset(CENTER, 0.001, 0), null);
+        assertEquals("ENTERED a", this.sink.events.get(this.sink.events.size() - 1));
+        this.store.setLocation("a", offset(CENTER, 0, 0.002), null);
+        assertEquals("MOVED a", this.sink.events.get(this.sink.events.size() - 1));
+        assertEquals(offset(CENTER, 0, 0.002), this.sink.inQuery.get("a"));
+        this.store.setLocation("a", offset(CENTER, 0.5, 0), null);
+        assertEquals("EXITED a", this.sink.events.get(this.sink.events.size() - 1));
+
+        this.store.setLocation("b", offset(CENTER, -0.002, 0), null);
+        assertEquals("ENTERED b", this.sink.events.get(this.sink.events.size() - 1));
+        this.store.removeLocation("b", null);
+        assertEquals("EXITED b", this.sink.events.get(this.sink.events.size() - 1));
+        assertTrue(this.sink.inQuery.isEmpty());
+        // The writes do not make the query ready again
+        assertEquals(1, this.sink.readyCount);
+    }
+
+    @Test
+    public void documentsOutsideOfTheCircleDoNotEnter() {
+        GeoQueryEngine<MemoryGeoStore.Document> engine = this.index.queryAtLocation(CENTER, 1, this.sink);
+        engine.start();
+        this.store.setLocation("far", offset(CENTER, 0.5, 0.5), null);
+        this.store.setLocation("far", offset(CENTER, 0.6, 0.5), null);
+        this.store.removeLocation("far", null);
+        assertTrue(this.sink.events.isEmpty());
+    }
+
+    @Test
+    public void movingTheCenterMatchesTheDocumentsWithinTheRadius() {
+        Random random = new Random(42);
+        Map<String, GeoLocation> locations = new HashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            GeoLocation location = offset(CENTER, (random.nextDouble() - 0.5) * 0.2, (random.nextDouble() - 0.5) * 0.3);
+            locations.put("k" + i, location);
+            this.store.setLocation("k" + i, location, null);
+        }
+        double radius = 2;
+        GeoQueryEngine<MemoryGeoStore.Document> engine = this.index.queryAtLocation(CENTER, radius, this.sink);
+        engine.start();
+        assertEquals(keysWithin(locations, CENTER, radius), this.sink.inQuery.keySet());
+
+        for (int i = 0; i < 50; i++) {
+            GeoLocation center = offset(CENTER, (random.nextDouble() - 0.5) * 0.1, (random.nextDouble() - 0.5) * 0.15);
+            if (i % 10 == 9) {
+                radius = 0.5 + random.nextDouble() * 3;
+                engine.setLocation(center, radius);
+            } else {
+                engine.setCenter(center);
+            }
+            assertTrue(engine.isReady());
+            assertEquals(keysWithin(locations, center, radius), this.sink.inQuery.keySet());
+        }
+        assertEquals(51, this.sink.readyCount);
+    }
+
+    @Test
+    public void stoppedQueryForgetsItsDocuments() {
+        this.store.setLocation("a", offset(CENTER, 0.001, 0), null);
+        GeoQueryEngine<MemoryGeoStore.Document> engine = this.index.queryAtLocation(CENTER, 1, this.sink);
+        engine.start();
+        assertEquals(1, engine.getTrackedCount());
+
+        engine.stop();
+
+        assertFalse(engine.isStarted());
+        assertFalse(engine.isReady());
+        assertEquals(0, engine.getTrackedCount());
+        assertEquals(0, this.index.getListenerCount());
+        int eventCount = this.sink.events.size();
+        this.store.setLocation("b", offset(CENTER, 0.001, 0), null);
+        assertEquals(eventCount, this.sink.events.size());
+    }
+
+    @Test
+    public void listenerMovingTheCenterFromAnEventMovesItAfterTheUpdate() {
+        this.store.setLocation("a", offset(CENTER, 0.001, 0), null);
+        this.store.setLocation("b", offset(CENTER, 0.1, 0), null);
+        final GeoLocation moved = offset(CENTER, 0.1, 0);
+        final List<GeoQueryEngine<MemoryGeoStore.Document>> engines = new ArrayList<>();
+        RecordingSink movingSink = new RecordingSink() {
+            @Override
+            public void onDocumentEntered(MemoryGeoStore.Document document, GeoLocation location) {
+                super.onDocumentEntered(document, location);
+                if (document.getKey().equals("a")) {
+                    engines.get(0).setCenter(moved);
+                    // The center is reported at once, while the update moving it waits for the current update
+                    assertEquals(moved, engines.get(0).getCenter());
+                    assertTrue(this.inQuery.containsKey("a"));
+                }
+            }
+        };
+        engines.add(this.index.queryAtLocation(CENTER, 1, movingSink));
+        engines.get(0).start();
+
+        assertEquals(moved, engines.get(0).getCenter());
+        assertEquals(Collections.singleton("b"), movingSink.inQuery.keySet());
+        assertEquals(0, movingSink.events.indexOf("ENTERED a"));
+        assertTrue(movingSink.events.contains("EXITED a"));
+    }
+
+    @Test
+    public void centerUpdatesWithinTheDebounceWindowCollapseIntoOne() throws InterruptedException {
+        Map<String, GeoLocation> locations = this.addRandomDocuments();
+        this.index.setMetricsEnabled(true);
+        ReadyRecordingSink sink = new ReadyRecordingSink();
+        GeoQueryEngine<MemoryGeoStore.Document> engine = this.index.queryAtLocation(CENTER, 1, sink);
+        engine.setMovingCenter(WINDOW, 0);
+        engine.start();
+        GeoLocation first = offset(CENTER, 0.01, 0);
+        GeoLocation second = offset(CENTER, 0.02, 0);
+        GeoLocation last = offset(CENTER, 0.02, 0.02);
+
+        // The first update is applied at once and opens the window
+        engine.setCenter(first);
+        assertEquals(keysWithin(locations, first, 1), sink.awaitReady(2));
+        engine.setCenter(second);
+        engine.setCenter(last);
+        assertEquals(last, engine.getCenter());
+        assertEquals(1, engine.getMetrics().getCriteriaUpdates());
+
+        assertEquals(keysWithin(locations, last, 1), sink.awaitReady(3));
+        // The second update was never applied, and the window after the last one ends without an update
+        Thread.sleep(WINDOW * 3);
+        assertEquals(3, sink.readyKeys.size());
+        assertEquals(2, engine.getMetrics().getCriteriaUpdates());
+    }
+
+    @Test
+    public void lastCenterHeldBackIsAppliedAtTheEndOfTheWindow() throws InterruptedException {
+        Map<String, GeoLocation> locations = this.addRandomDocuments();
+        ReadyRecordingSink sink = new ReadyRecordingSink();
+        GeoQueryEngine<MemoryGeoStore.Document> engine = this.index.queryAtLocation(CENTER, 1, sink);
+        engine.setMovingCenter(WINDOW, 0);
+        engine.start();
+        GeoLocation center = CENTER;
+        int updates = 40;
+        for (int i = 0; i < updates; i++) {
+            center = offset(center, 0.0005, 0.0005);
+            engine.setCenter(center);
+            Thread.sleep(WINDOW / 10);
+        }
+        // Every update after the window of the previous applied update waits for the end of the window
+        Thread.sleep(WINDOW * 3);
+        int applied = sink.readyKeys.size() - 1;
+        assertTrue("Applied " + applied + " of " + updates + " updates", applied < updates / 2);
+
+        assertEquals(keysWithin(locations, center, 1), sink.readyKeys.get(sink.readyKeys.size() - 1));
+        assertEquals(keysWithin(locations, center, 1), sink.inQuery.keySet());
+    }
+
+    @Test
+    public void hysteresisKeepsTheRangesWhileTheCircleStaysInTheCoveredCircle() {
+        Map<String, GeoLocation> locations = this.addRandomDocuments();
+        this.index.setMetricsEnabled(true);
+        // Near the border of a geohash cell, the covering of the widened circle changes when the circle moves
+        GeoLocation covered = offset(CENTER, 0.008, 0);
+        GeoQueryEngine<MemoryGeoStore.Document> engine = this.index.queryAtLocation(covered, 1, this.sink);
+        // The ranges cover 1.5 km around the center, the circle may move by up to 0.5 km
+        engine.setMovingCenter(0, 0.5);
+        engine.start();
+        long rangesAdded = engine.getMetrics().getRangesAdded();
+        assertTrue(rangesAdded > 0);
+
+        double[] moves = { 0.2, -0.2, 0.45, 0, -0.45, 0.3 };
+        for (double move: moves) {
+            GeoLocation center = offset(covered, move / KILOMETERS_PER_DEGREE_LATITUDE, 0);
+            engine.setCenter(center);
+            // The documents are still decided by the circle
+            assertEquals(keysWithin(locations, center, 1), this.sink.inQuery.keySet());
+        }
+        engine.setLocation(covered, 1.45);
+        assertEquals(keysWithin(locations, covered, 1.45), this.sink.inQuery.keySet());
+        assertEquals(rangesAdded, engine.getMetrics().getRangesAdded());
+        assertEquals(0, engine.getMetrics().getRangesRemoved());
+        assertEquals(moves.length + 1, engine.getMetrics().getCriteriaUpdates());
+
+        // The circle leaves the covered circle
+        engine.setCenter(offset(covered, 2 / KILOMETERS_PER_DEGREE_LATITUDE, 0));
+        assertTrue(engine.getMetrics().getRangesAdded() > rangesAdded);
+        assertEquals(keysWithin(locations, engine.getCenter(), 1.45), this.sink.inQuery.keySet());
+    }
+}
@@ -0,0 +1,295 @@
+package com.koalap.geofirestore;
+
+import com.koalap.geofirestore.core.GeoHashQuery;
+import com.koalap.geofirestore.store.GeoStore;
+import com.koalap.geofirestore.store.MemoryGeoStore;
+import com.koalap.geofirestore.util.GeoUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pages through queries over the in-memory store, whose reads complete on the calling thread, and compares the
+ * pages with the documents within the radius.
+ */
+public class GeoQueryPageTest {
+
+    private static final GeoLocation CENTER = new GeoLocation(48.8566, 2.3522);
+    private static final double RADIUS = 5;
+    private static final int PAGE_SIZE = 20;
+
+    /**
+     * Counts the page reads of the in-memory store.
+     */
+    private static final class CountingStore implements GeoStore<MemoryGeoStore.Document> {
+        final MemoryGeoStore store = new MemoryGeoStore();
+        int pageReads;
+
+        @Override
+        public String getKey(MemoryGeoStore.Document document) {
+            return this.store.getKey(document);
+        }
+
+        @Override
+        public GeoLocation getLocation(MemoryGeoStore.Document document) {
+            return this.store.getLocation(document);
+        }
+
+        @Override
+        public long getGeoHash(MemoryGeoStore.Document document, GeoLocation location) {
+            return this.store.getGeoHash(document, location);
+        }
+
+        @Override
+        public Registration listenRange(GeoHashQuery range, RangeListener<MemoryGeoStore.Document> listener) {
+            return this.store.listenRange(range, listener);
+        }
+
+        @Override
+        public void getRange(GeoHashQuery range, Callback<List<MemoryGeoStore.Document>> callback) {
+            this.store.getRange(range, callback);
+        }
+
+        @Override
+        public void getRangePage(GeoHashQuery range, int limit, MemoryGeoStore.Document after,
+                                 Callback<List<MemoryGeoStore.Document>> callback) {
+            this.pageReads++;
+            this.store.getRangePage(range, limit, after, callback);
+        }
+
+        @Override
+        public void getDocument(String key, Callback<MemoryGeoStore.Document> callback) {
+            this.store.getDocument(key, callback);
+        }
+
+        @Override
+        public void setLocation(String key, GeoLocation location, Callback<Void> callback) {
+            this.store.setLocation(key, location, callback);
+        }
+
+        @Override
+        public void removeLocation(String key, Callback<Void> callback) {
+            this.store.removeLocation(key, callback);
+        }
+
+        @Override
+        public Batch newBatch() {
+            return this.store.newBatch();
+        }
+
+        @Override
+        public int getMaxBatchSize() {
+            return this.store.getMaxBatchSize();
+        }
+    }
+
+    private static final GeoQueryEngine.Sink<MemoryGeoStore.Document> IGNORING_SINK =
+            new GeoQueryEngine.Sink<MemoryGeoStore.Document>() {
+                @Override
+                public void onDocumentEntered(MemoryGeoStore.Document document, GeoLocation location) {
+                }
+
+                @Override
+                public void onDocumentMoved(MemoryGeoStore.Document document, GeoLocation location) {
+                }
+
+                @Override
+                public void onDocumentChanged(MemoryGeoStore.Document document, GeoLocation location) {
+                }
+
+                @Override
+                public void onDocumentExited(MemoryGeoStore.Document document, GeoLocation location) {
+                }
+
+                @Override
+                public void onUpdateComplete() {
+                }
+
+                @Override
+                public void onReady() {
+                }
+
+                @Override
+                public void onError(Exception exception) {
+                    throw new AssertionError(exception);
+                }
+            };
+
+    private CountingStore store;
+    private GeoIndex<MemoryGeoStore.Document> index;
+    private final Map<String, GeoLocation> locations = new HashMap<>();
+
+    @Before
+    public void setUp() {
+        this.store = new CountingStore();
+        this.index = new GeoIndex<>(this.store);
+        Random random = new Random(22);
+        for (int i = 0; i < 20000; i++) {
+            GeoLocation location = new GeoLocation(CENTER.latitude + (random.nextDouble() - 0.5) * 0.6,
+                    CENTER.longitude + (random.nextDouble() - 0.5) * 0.9);
+            this.setLocation("k" + i, location);
+        }
+    }
+
+    private void setLocation(String key, GeoLocation location) {
+        this.locations.put(key, location);
+        this.store.setLocation(key, location, null);
+    }
+
+    private GeoQueryEngine<MemoryGeoStore.Document> query() {
+        return this.index.queryAtLocation(CENTER, RADIUS, IGNORING_SINK);
+    }
+
+    private static GeoQueryEngine.Page<MemoryGeoStore.Document> getPage(GeoQueryEngine<MemoryGeoStore.Document> engine,
+                                                                       GeoQueryPageToken token) {
+        final List<GeoQueryEngine.Page<MemoryGeoStore.Document>> pages = new ArrayList<>();
+        engine.getPage(PAGE_SIZE, token, (page, exception) -> {
+            assertNull(exception);
+            pages.add(page);
+        });
+        assertEquals("The in-memory store completes the page at once", 1, pages.size());
+        return pages.get(0);
+    }
+
+    /**
+     * @return The keys of all pages in order, checking that every page is full but the last, that the pages are
+     * ordered by the haversine distance and the matches of a page by their distance
+     */
+    private static List<String> readAllPages(GeoQueryEngine<MemoryGeoStore.Document> engine, GeoQueryPageToken token) {
+        List<String> keys = new ArrayList<>();
+        double previousPageDistance = 0;
+        do {
+            GeoQueryEngine.Page<MemoryGeoStore.Document> page = getPage(engine, token);
+            token = page.getNextPageToken();
+            if (token != null) {
+                assertEquals(PAGE_SIZE, page.getMatches().size());
+            }
+            double lastDistance = 0;
+            double pageDistance = 0;
+            for (GeoQueryEngine.Match<MemoryGeoStore.Document> match: page.getMatches()) {
+                assertTrue(match.getDistance() >= lastDistance);
+                lastDistance = match.getDistance();
+                GeoLocation location = match.getLocation();
+                double distance = GeoUtils.distance(CENTER.latitude, CENTER.longitude, location.latitude,
+                        location.longitude);
+                assertTrue(distance >= previousPageDistance);
+                pageDistance = Math.max(pageDistance, distance);
+                keys.add(match.getDocument().getKey());
+            }
+            previousPageDistance = pageDistance;
+        } while (token != null);
+        return keys;
+    }
+
+    private Set<String> keysWithinRadius() {
+        DistanceFunction.CenterDistance distance = this.index.getDistanceFunction().forCenter(CENTER);
+        Set<String> keys = new HashSet<>();
+        for (Map.Entry<String, GeoLocation> entry: this.locations.entrySet()) {
+            GeoLocation location = entry.getValue();
+            if (distance.distanceTo(location.latitude, location.longitude) <= RADIUS * 1000) {
+                keys.add(entry.getKey());
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    public void pagesReturnEveryDocumentInTheRadiusOnceInOrder() {
+        List<String> keys = readAllPages(this.query(), null);
+
+        Set<String> expected = this.keysWithinRadius();
+        assertEquals(expected.size(), keys.size());
+        assertEquals(expected, new HashSet<>(keys));
+    }
+
+    @Test
+    public void firstPageReadsOnlyPartOfTheQuery() {
+        GeoQueryEngine<MemoryGeoStore.Document> engine = this.query();
+        getPage(engine, null);
+        int firstPageReads = this.store.pageReads;
+        readAllPages(engine, null);
+        assertTrue(firstPageReads * 4 < this.store.pageReads - firstPageReads);
+    }
+
+    /**
+     * The equirectangular distance does not bound its deviation from the haversine distance, the pages are
+     * bounded with the haversine distance instead.
+     */
+    @Test
+    public void pagesOfUnboundedDistanceFunctionReadOnlyPartOfTheQuery() {
+        this.index.setDistanceFunction(DistanceFunctions.equirectangular());
+        GeoQueryEngine<MemoryGeoStore.Document> engine = this.query();
+        getPage(engine, null);
+        int firstPageReads = this.store.pageReads;
+        List<String> keys = readAllPages(engine, null);
+
+        assertTrue(firstPageReads * 4 < this.store.pageReads - firstPageReads);
+        assertEquals(this.keysWithinRadius(), new HashSet<>(keys));
+        assertEquals(keys.size(), new HashSet<>(keys).size());
+    }
+
+    @Test
+    public void pageBoundarySplittingDocumentsWithTheSameGeoHash() {
+        GeoLocation location = new GeoLocation(CENTER.latitude + 0.001, CENTER.longitude);
+        for (int i = 0; i < PAGE_SIZE * 3 + 7; i++) {
+            this.setLocation("same" + i, location);
+        }
+        List<String> keys = readAllPages(this.query(), null);
+
+        assertEquals(this.keysWithinRadius(), new HashSet<>(keys));
+        assertEquals(keys.size(), new HashSet<>(keys).size());
+    }
+
+    @Test
+    public void documentMovingBetweenPagesIsReturnedOnce() {
+        GeoQueryEngine<MemoryGeoStore.Document> engine = this.query();
+        GeoQueryEngine.Page<MemoryGeoStore.Document> first = getPage(engine, null);
+        List<String> keys = new ArrayList<>();
+        for (GeoQueryEngine.Match<MemoryGeoStore.Document> match: first.getMatches()) {
+            keys.add(match.getDocument().getKey());
+        }
+        // A returned document moves to an unread part near the border, and a document of an unread part near the
+        // border moves to another unread part across the query
+        String returned = keys.get(0);
+        this.setLocation(returned, new GeoLocation(CENTER.latitude + 0.044, CENTER.longitude));
+        String far = null;
+        for (String key: this.keysWithinRadius()) {
+            GeoLocation location = this.locations.get(key);
+            if (location.latitude > CENTER.latitude + 0.04) {
+                far = key;
+                break;
+            }
+        }
+        assertNotNull(far);
+        this.setLocation(far, new GeoLocation(CENTER.latitude - 0.044, CENTER.longitude));
+
+        keys.addAll(readAllPages(engine, first.getNextPageToken()));
+
+        assertEquals(keys.size(), new HashSet<>(keys).size());
+        assertTrue(keys.contains(far));
+    }
+
+    @Test
+    public void tokenContinuedTwiceReturnsTheSamePages() {
+        GeoQueryEngine<MemoryGeoStore.Document> engine = this.query();
+        GeoQueryPageToken token = getPage(engine, null).getNextPageToken();
+        int returnedCount = token.getReturnedCount();
+
+        List<String> keys1 = readAllPages(engine, token);
+        List<String> keys2 = readAllPages(engine, token);
+
+        assertEquals(keys1, keys2);
+        assertEquals(returnedCount, token.getReturnedCount());
+        assertEquals(PAGE_SIZE, returnedCount);
+    }
+}
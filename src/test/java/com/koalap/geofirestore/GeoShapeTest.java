@@ -0,0 +1,141 @@
+package com.koalap.geofirestore;
+
+import com.koalap.geofirestore.util.GeoUtils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the relations of the built-in shapes with boxes against their containment of locations sampled in the
+ * boxes, for a concave polygon, a narrow triangle and rectangles across the antimeridian.
+ */
+public class GeoShapeTest {
+
+    // A U around a notch open to the north, between latitudes 48.83 and 48.9 and longitudes 2.3 and 2.4
+    private static final GeoPolygon U = new GeoPolygon(
+            new GeoLocation(48.8, 2.25), new GeoLocation(48.8, 2.45), new GeoLocation(48.9, 2.45),
+            new GeoLocation(48.9, 2.4), new GeoLocation(48.83, 2.4), new GeoLocation(48.83, 2.3),
+            new GeoLocation(48.9, 2.3), new GeoLocation(48.9, 2.25));
+
+    private static final GeoPolygon TRIANGLE = new GeoPolygon(
+            new GeoLocation(48.8, 2.3), new GeoLocation(48.8, 2.4), new GeoLocation(48.95, 2.35));
+
+    private static final GeoRectangle ACROSS_ANTIMERIDIAN = new GeoRectangle(-10, 170, 10, -170);
+
+    private static final int BOXES = 5000;
+    private static final int SAMPLES = 6;
+
+    private final Random random = new Random(18);
+
+    /**
+     * Checks that a box the shape contains has only sampled locations inside of it, and a disjoint box none.
+     */
+    private static void checkRelation(GeoShape shape, double south, double west, double north, double east) {
+        int relation = shape.relate(south, west, north, east);
+        if (relation == GeoShape.INTERSECTS) {
+            return;
+        }
+        for (int i = 0; i < SAMPLES; i++) {
+            double latitude = south + (north - south) * (i + 0.5)/SAMPLES;
+            for (int j = 0; j < SAMPLES; j++) {
+                double longitude = west + (east - west) * (j + 0.5)/SAMPLES;
+                if ((relation == GeoShape.CONTAINS) != shape.contains(latitude, longitude)) {
+                    fail(shape + " relates [" + south + ", " + west + "], [" + north + ", " + east + "] as " +
+                            relation + " at " + latitude + ", " + longitude);
+                }
+            }
+        }
+    }
+
+    /**
+     * Relates random boxes around the bounds of the shape, from a hundredth to a half of the bounds.
+     */
+    private int checkRandomBoxes(GeoShape shape) {
+        GeoRectangle bounds = shape.getBounds();
+        double height = bounds.getNorth() - bounds.getSouth();
+        double width = bounds.crossesAntimeridian() ? bounds.getEast() + 360 - bounds.getWest() :
+                bounds.getEast() - bounds.getWest();
+        int decided = 0;
+        for (int i = 0; i < BOXES; i++) {
+            double size = 0.01 + this.random.nextDouble() * 0.5;
+            double south = bounds.getSouth() + (this.random.nextDouble() * 1.5 - 0.25) * height;
+            double west = bounds.getWest() + (this.random.nextDouble() * 1.5 - 0.25) * width;
+            double north = Math.min(90, south + size * height);
+            south = Math.max(-90, south);
+            // Boxes never cross the antimeridian
+            west = GeoUtils.wrapLongitude(west);
+            double east = Math.min(180, west + size * width);
+            if (shape.relate(south, west, north, east) != GeoShape.INTERSECTS) {
+                decided++;
+            }
+            checkRelation(shape, south, west, north, east);
+        }
+        return decided;
+    }
+
+    @Test
+    public void concavePolygonContainsItsArmsButNotItsNotch() {
+        assertTrue(U.contains(48.81, 2.35));
+        assertTrue(U.contains(48.87, 2.27));
+        assertTrue(U.contains(48.87, 2.43));
+        assertFalse(U.contains(48.87, 2.35));
+        assertFalse(U.contains(48.95, 2.35));
+        assertFalse(U.contains(48.85, 2.2));
+    }
+
+    @Test
+    public void concavePolygonRelatesBoxes() {
+        // Within the bounds, but in the notch
+        assertEquals(GeoShape.DISJOINT, U.relate(48.85, 2.32, 48.89, 2.38));
+        assertEquals(GeoShape.CONTAINS, U.relate(48.805, 2.26, 48.82, 2.44));
+        assertEquals(GeoShape.CONTAINS, U.relate(48.84, 2.26, 48.89, 2.29));
+        // All corners lie in the arms, but the notch cuts through the box
+        assertEquals(GeoShape.INTERSECTS, U.relate(48.86, 2.26, 48.89, 2.44));
+        assertEquals(GeoShape.DISJOINT, U.relate(48.95, 2.2, 49, 2.5));
+    }
+
+    @Test
+    public void edgesThroughABoxIntersectIt() {
+        // No corner lies in the triangle, but its edges cross the box
+        assertFalse(TRIANGLE.contains(48.86, 2.3));
+        assertFalse(TRIANGLE.contains(48.87, 2.4));
+        assertEquals(GeoShape.INTERSECTS, TRIANGLE.relate(48.86, 2.3, 48.87, 2.4));
+        // The apex lies in the box, no corner lies in the triangle
+        assertEquals(GeoShape.INTERSECTS, TRIANGLE.relate(48.94, 2.34, 48.96, 2.36));
+        // Next to an edge, within the bounds of the triangle
+        assertEquals(GeoShape.DISJOINT, TRIANGLE.relate(48.9, 2.3, 48.94, 2.31));
+    }
+
+    @Test
+    public void polygonRelationsMatchContainment() {
+        assertTrue(this.checkRandomBoxes(U) > 0);
+        assertTrue(this.checkRandomBoxes(TRIANGLE) > 0);
+    }
+
+    @Test
+    public void rectangleAcrossAntimeridianContainsBothSides() {
+        assertTrue(ACROSS_ANTIMERIDIAN.crossesAntimeridian());
+        assertTrue(ACROSS_ANTIMERIDIAN.contains(0, 179));
+        assertTrue(ACROSS_ANTIMERIDIAN.contains(0, -179));
+        assertTrue(ACROSS_ANTIMERIDIAN.contains(0, 180));
+        assertFalse(ACROSS_ANTIMERIDIAN.contains(0, 0));
+        assertFalse(ACROSS_ANTIMERIDIAN.contains(11, 179));
+        assertEquals(0, ACROSS_ANTIMERIDIAN.getCenter().latitude, 0);
+        assertEquals(180, Math.abs(ACROSS_ANTIMERIDIAN.getCenter().longitude), 1e-9);
+    }
+
+    @Test
+    public void rectangleAcrossAntimeridianRelatesBoxes() {
+        assertEquals(GeoShape.CONTAINS, ACROSS_ANTIMERIDIAN.relate(0, 172, 5, 180));
+        assertEquals(GeoShape.CONTAINS, ACROSS_ANTIMERIDIAN.relate(0, -180, 5, -175));
+        assertEquals(GeoShape.DISJOINT, ACROSS_ANTIMERIDIAN.relate(0, 0, 5, 10));
+        assertEquals(GeoShape.DISJOINT, ACROSS_ANTIMERIDIAN.relate(20, 175, 25, 180));
+        assertEquals(GeoShape.INTERSECTS, ACROSS_ANTIMERIDIAN.relate(0, 160, 5, 175));
+        assertEquals(GeoShape.INTERSECTS, ACROSS_ANTIMERIDIAN.relate(0, -175, 5, -165));
+        assertEquals(GeoShape.INTERSECTS, ACROSS_ANTIMERIDIAN.relate(5, 175, 20, 180));
+        assertTrue(this.checkRandomBoxes(ACROSS_ANTIMERIDIAN) > 0);
+    }
+}
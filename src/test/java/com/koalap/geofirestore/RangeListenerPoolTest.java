@@ -0,0 +1,193 @@
+package com.koalap.geofirestore;
+
+import com.koalap.geofirestore.core.GeoHashQuery;
+import com.koalap.geofirestore.store.GeoStore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Delivers the snapshots of a range by hand, like a store with a local cache that is offline or reaches its server
+ * later.
+ */
+public class RangeListenerPoolTest {
+
+    private static final long CACHE_TIMEOUT_MILLIS = 50;
+
+    private static final GeoHashQuery RANGE = new GeoHashQuery("u09t", "u09u");
+
+    /**
+     * A store of keys whose range listeners receive only the snapshots the test delivers.
+     */
+    private static final class ScriptedStore implements GeoStore<String> {
+        final Map<GeoHashQuery, RangeListener<String>> listeners = new HashMap<>();
+
+        @Override
+        public String getKey(String document) {
+            return document;
+        }
+
+        @Override
+        public GeoLocation getLocation(String document) {
+            return null;
+        }
+
+        @Override
+        public Registration listenRange(final GeoHashQuery range, RangeListener<String> listener) {
+            this.listeners.put(range, listener);
+            return () -> this.listeners.remove(range);
+        }
+
+        @Override
+        public void getRange(GeoHashQuery range, Callback<List<String>> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void getDocument(String key, Callback<String> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setLocation(String key, GeoLocation location, Callback<Void> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void removeLocation(String key, Callback<Void> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Batch newBatch() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getMaxBatchSize() {
+            return 1;
+        }
+
+        void deliver(boolean fromCache, String... added) {
+            List<Change<String>> changes = new ArrayList<>();
+            for (String key: added) {
+                changes.add(new Change<>(Change.Type.ADDED, key));
+            }
+            this.listeners.get(RANGE).onSnapshot(changes, fromCache);
+        }
+    }
+
+    private static final class RecordingSubscriber implements RangeListenerPool.Subscriber<String> {
+        final List<String> documents = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch ready = new CountDownLatch(1);
+        volatile int readyCount;
+
+        @Override
+        public void onRangeChanges(RangeListenerPool<String>.Subscription subscription,
+                                   List<GeoStore.Change<String>> changes) {
+            for (GeoStore.Change<String> change: changes) {
+                this.documents.add(change.getDocument());
+            }
+        }
+
+        @Override
+        public void onRangeReady(RangeListenerPool<String>.Subscription subscription) {
+            this.readyCount++;
+            this.ready.countDown();
+        }
+
+        @Override
+        public void onRangeError(RangeListenerPool<String>.Subscription subscription, Exception error) {
+            throw new AssertionError(error);
+        }
+    }
+
+    private ScriptedStore store;
+    private RangeListenerPool<String> pool;
+
+    @Before
+    public void setUp() {
+        this.store = new ScriptedStore();
+        this.pool = new RangeListenerPool<>(this.store, CACHE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Waits for the documents delivered by the timer thread, which may still be delivering after the range was ready.
+     */
+    private static void awaitDocuments(RecordingSubscriber subscriber, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (subscriber.documents.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, subscriber.documents.size());
+    }
+
+    private RecordingSubscriber subscribe() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        this.pool.subscribe(RANGE, subscriber).deliverPending();
+        return subscriber;
+    }
+
+    @Test
+    public void snapshotsFromCacheAreReadyAfterTimeout() throws InterruptedException {
+        RecordingSubscriber subscriber = this.subscribe();
+        this.store.deliver(true, "a", "b");
+        assertEquals(0, subscriber.readyCount);
+        assertEquals(2, subscriber.documents.size());
+
+        assertTrue(subscriber.ready.await(5, TimeUnit.SECONDS));
+
+        this.store.deliver(true, "c");
+        this.store.deliver(false);
+        awaitDocuments(subscriber, 3);
+        assertEquals(1, subscriber.readyCount);
+    }
+
+    @Test
+    public void snapshotFromServerIsReadyWithoutTimeout() throws InterruptedException {
+        RecordingSubscriber subscriber = this.subscribe();
+        this.store.deliver(true, "a");
+        this.store.deliver(false);
+        assertEquals(1, subscriber.readyCount);
+
+        Thread.sleep(CACHE_TIMEOUT_MILLIS * 4);
+        assertEquals(1, subscriber.readyCount);
+    }
+
+    @Test
+    public void firstSnapshotFromCacheAfterTimeoutIsReady() throws InterruptedException {
+        RecordingSubscriber subscriber = this.subscribe();
+        Thread.sleep(CACHE_TIMEOUT_MILLIS * 4);
+        assertEquals(0, subscriber.readyCount);
+
+        this.store.deliver(true);
+
+        assertEquals(1, subscriber.readyCount);
+    }
+
+    @Test
+    public void subscriberJoiningAfterTimeoutIsReadyWithCachedDocuments() throws InterruptedException {
+        RecordingSubscriber first = this.subscribe();
+        this.store.deliver(true, "a");
+        RecordingSubscriber early = this.subscribe();
+        assertEquals(0, early.readyCount);
+        assertTrue(first.ready.await(5, TimeUnit.SECONDS));
+        assertTrue(early.ready.await(5, TimeUnit.SECONDS));
+
+        RecordingSubscriber late = this.subscribe();
+
+        assertEquals(1, late.readyCount);
+        assertEquals(Collections.singletonList("a"), late.documents);
+        assertEquals(1, this.pool.getListenerCount());
+    }
+}
@@ -0,0 +1,168 @@
+package com.koalap.geofirestore.core;
+
+import com.koalap.geofirestore.DistanceFunction;
+import com.koalap.geofirestore.DistanceFunctions;
+import com.koalap.geofirestore.GeoLocation;
+import com.koalap.geofirestore.util.Constants;
+import com.koalap.geofirestore.util.GeoUtils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the decisions of the boxes with the exact distance of random locations, around the border of the circle
+ * and far from it, for centers near the poles and the antimeridian and radii on both sides of the thresholds where
+ * a box reaches a pole or the inner box vanishes.
+ */
+public class CircleBoundsTest {
+
+    // Earth's mean radius in meters, as used by the haversine distance
+    private static final double MEAN_RADIUS = (Constants.EARTH_EQ_RADIUS + Constants.EARTH_POLAR_RADIUS)/2;
+
+    private static final double[] RADII = { 0.005, 0.02, 1, 10, 100, 1000, 10000, 100000, 1000000, 8587000 };
+    private static final double[] LATITUDES = { 0, 0.001, -33.9, 48.8566, 70, -85, 89.9, -89.999, 90, -90 };
+    private static final double[] LONGITUDES = { 0, 2.3522, 179.9999, -179.9999, 180, -180 };
+    private static final int SAMPLES = 2000;
+
+    private final Random random = new Random(13);
+
+    /**
+     * @return The location at the distance in meters and the bearing in radians from the center, on the sphere
+     */
+    private static GeoLocation destination(GeoLocation center, double distance, double bearing) {
+        double angle = distance/MEAN_RADIUS;
+        double latitude = Math.toRadians(center.latitude);
+        double sinLatitude = Math.sin(latitude)*Math.cos(angle) +
+                Math.cos(latitude)*Math.sin(angle)*Math.cos(bearing);
+        double destinationLatitude = Math.asin(Math.max(-1, Math.min(1, sinLatitude)));
+        double longitudeDelta = Math.atan2(Math.sin(bearing)*Math.sin(angle)*Math.cos(latitude),
+                Math.cos(angle) - Math.sin(latitude)*sinLatitude);
+        return new GeoLocation(Math.max(-90, Math.min(90, Math.toDegrees(destinationLatitude))),
+                GeoUtils.wrapLongitude(center.longitude + Math.toDegrees(longitudeDelta)));
+    }
+
+    /**
+     * @return A random location close to the border of the circle, within it or anywhere on the earth
+     */
+    private GeoLocation sample(GeoLocation center, double radius) {
+        double bearing = this.random.nextDouble() * 2 * Math.PI;
+        switch (this.random.nextInt(5)) {
+            case 4:
+                // Diagonal bearings, where the corners of the inner box touch the border
+                bearing = (this.random.nextInt(4) + 0.5) * Math.PI/2 + (this.random.nextDouble() - 0.5) * 0.2;
+                // Falls through
+            case 0:
+                // Relative distances from 1e-9 to 1e-2 around the border
+                double offset = Math.pow(10, -9 + this.random.nextDouble() * 7);
+                return destination(center, radius * (this.random.nextBoolean() ? 1 + offset : 1 - offset), bearing);
+            case 1:
+                return destination(center, this.random.nextDouble() * 2 * radius, bearing);
+            case 2:
+                // Locations on the meridian of the center or on any meridian, across the antimeridian and the poles
+                double latitudeSpread = 4 * Math.toDegrees(radius/MEAN_RADIUS);
+                double latitude = center.latitude + (this.random.nextDouble() - 0.5) * latitudeSpread;
+                double longitude = this.random.nextBoolean() ? center.longitude :
+                        center.longitude + (this.random.nextDouble() - 0.5) * 360;
+                return new GeoLocation(Math.max(-90, Math.min(90, latitude)), GeoUtils.wrapLongitude(longitude));
+            default:
+                return new GeoLocation(this.random.nextDouble() * 180 - 90, this.random.nextDouble() * 360 - 180);
+        }
+    }
+
+    /**
+     * Checks every decision of the boxes of the distance function with its distance.
+     *
+     * @return The number of decided locations
+     */
+    private int checkDecisions(GeoLocation center, double radius, DistanceFunction distanceFunction) {
+        CircleBounds bounds = new CircleBounds(center, radius, distanceFunction.getMaxRelativeDeviation());
+        DistanceFunction.CenterDistance centerDistance = distanceFunction.forCenter(center);
+        int decided = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            GeoLocation location = this.sample(center, radius);
+            double distance = centerDistance.distanceTo(location.latitude, location.longitude);
+            int decision = bounds.classify(location.latitude, location.longitude);
+            String message = location + " at " + distance + " m of " + center + " with radius " + radius;
+            if (decision == CircleBounds.INSIDE) {
+                assertTrue("Inside: " + message, distance <= radius);
+                decided++;
+            } else if (decision == CircleBounds.OUTSIDE) {
+                assertTrue("Outside: " + message, distance > radius);
+                decided++;
+            }
+        }
+        return decided;
+    }
+
+    private void checkAllCenters(double radius, DistanceFunction distanceFunction) {
+        for (double latitude : LATITUDES) {
+            for (double longitude : LONGITUDES) {
+                assertTrue(this.checkDecisions(new GeoLocation(latitude, longitude), radius, distanceFunction) > 0);
+            }
+        }
+    }
+
+    @Test
+    public void haversineDecisionsMatchDistance() {
+        for (double radius : RADII) {
+            this.checkAllCenters(radius, DistanceFunctions.haversine());
+        }
+    }
+
+    @Test
+    public void ellipsoidalDecisionsMatchDistance() {
+        for (double radius : RADII) {
+            this.checkAllCenters(radius, DistanceFunctions.ellipsoidal());
+        }
+    }
+
+    /**
+     * The outer box reaches a pole and the inner box vanishes at radii depending on the distance of the center to
+     * the pole, the radii just below and above them are checked.
+     */
+    @Test
+    public void decisionsMatchDistanceAroundPoleThresholds() {
+        double[] latitudes = { 60, 85, 89, -89.99, 89.9999 };
+        for (double latitude : latitudes) {
+            GeoLocation center = new GeoLocation(latitude, 179.99);
+            double poleRadius = Math.toRadians(90 - Math.abs(latitude)) * MEAN_RADIUS;
+            double[] thresholds = { poleRadius, poleRadius * Math.sqrt(2) };
+            for (double threshold : thresholds) {
+                for (double factor : new double[] { 0.99, 0.999999, 1.000001, 1.01 }) {
+                    assertTrue(this.checkDecisions(center, threshold * factor, DistanceFunctions.haversine()) > 0);
+                    assertTrue(this.checkDecisions(center, threshold * factor, DistanceFunctions.ellipsoidal()) > 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void locationsFarFromBorderAreDecided() {
+        GeoLocation[] centers = { new GeoLocation(48.8566, 2.3522), new GeoLocation(-33.9, 179.999),
+                new GeoLocation(60, -180) };
+        for (GeoLocation center : centers) {
+            for (double radius : new double[] { 10, 1000, 100000 }) {
+                CircleBounds bounds = new CircleBounds(center, radius, 0);
+                for (int i = 0; i < SAMPLES; i++) {
+                    double bearing = this.random.nextDouble() * 2 * Math.PI;
+                    GeoLocation inside = destination(center, this.random.nextDouble() * 0.5 * radius, bearing);
+                    assertEquals(CircleBounds.INSIDE, bounds.classify(inside.latitude, inside.longitude));
+                    GeoLocation outside = destination(center, (2 + this.random.nextDouble()) * radius, bearing);
+                    assertEquals(CircleBounds.OUTSIDE, bounds.classify(outside.latitude, outside.longitude));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void unboundedDeviationDecidesNothing() {
+        CircleBounds bounds = new CircleBounds(new GeoLocation(48.8566, 2.3522), 1000, Double.POSITIVE_INFINITY);
+        for (int i = 0; i < SAMPLES; i++) {
+            GeoLocation location = this.sample(new GeoLocation(48.8566, 2.3522), 1000);
+            assertEquals(CircleBounds.UNKNOWN, bounds.classify(location.latitude, location.longitude));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.koalap.geofirestore.core;
+
+import com.koalap.geofirestore.GeoLocation;
+import com.koalap.geofirestore.util.Base32Utils;
+import com.koalap.geofirestore.util.Constants;
+import com.koalap.geofirestore.util.GeoUtils;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the sort and merge pass of GeoHashQuery.coveringAtLocation covers the same hashes as the previous
+ * pairwise join loop of GeoHashQuery.queriesAtLocation, for radii from 10 m to 1000 km.
+ */
+public class GeoHashQueryCoveringTest {
+
+    private static final double[] RADII = { 10, 100, 1000, 10000, 100000, 1000000 };
+    private static final int LOCATIONS = 256;
+    private static final int SAMPLES = 64;
+
+    @Test
+    public void coveringMatchesLegacyJoinLoop() {
+        Random random = new Random(42);
+        for (double radius : RADII) {
+            double degrees = 2 * radius / Constants.METERS_PER_DEGREE_LATITUDE;
+            for (int l = 0; l < LOCATIONS; l++) {
+                GeoLocation location = new GeoLocation(random.nextDouble() * 170 - 85, random.nextDouble() * 360 - 180);
+                Set<GeoHashQuery> legacy = legacyQueriesAtLocation(location, radius);
+                List<GeoHashQuery> merged = GeoHashQuery.coveringAtLocation(location, radius);
+                for (int i = 0; i < SAMPLES; i++) {
+                    double latitude = location.latitude + (random.nextDouble() - 0.5) * degrees;
+                    double longitude = location.longitude + (random.nextDouble() - 0.5) * degrees;
+                    GeoHash hash = new GeoHash(Math.max(-90, Math.min(90, latitude)),
+                            GeoUtils.wrapLongitude(longitude));
+                    assertEquals("Coverings differ at " + location + " for " + hash + ": " + legacy + " vs " + merged,
+                            contains(legacy, hash), contains(merged, hash));
+                }
+            }
+        }
+    }
+
+    private static boolean contains(Iterable<GeoHashQuery> queries, GeoHash hash) {
+        for (GeoHashQuery query : queries) {
+            if (query.containsGeoHash(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The implementation of GeoHashQuery.queriesAtLocation before the covering was computed with long hashes
+    private static Set<GeoHashQuery> legacyQueriesAtLocation(GeoLocation location, double radius) {
+        int queryBits = Math.max(1, GeoHashQuery.Utils.bitsForBoundingBox(location, radius));
+        int geoHashPrecision = (int) Math.ceil((float)queryBits /Base32Utils.BITS_PER_BASE32_CHAR);
+
+        double latitude = location.latitude;
+        double longitude = location.longitude;
+        double latitudeDegrees = radius/Constants.METERS_PER_DEGREE_LATITUDE;
+        double latitudeNorth = Math.min(90, latitude + latitudeDegrees);
+        double latitudeSouth = Math.max(-90, latitude - latitudeDegrees);
+        double longitudeDeltaNorth = GeoUtils.distanceToLongitudeDegrees(radius, latitudeNorth);
+        double longitudeDeltaSouth = GeoUtils.distanceToLongitudeDegrees(radius, latitudeSouth);
+        double longitudeDelta = Math.max(longitudeDeltaNorth, longitudeDeltaSouth);
+
+        Set<GeoHashQuery> queries = new HashSet<>();
+        double[] latitudes = { latitude, latitudeNorth, latitudeSouth };
+        double[] longitudes = { longitude, GeoUtils.wrapLongitude(longitude - longitudeDelta),
+                GeoUtils.wrapLongitude(longitude + longitudeDelta) };
+        for (double sampleLatitude : latitudes) {
+            for (double sampleLongitude : longitudes) {
+                GeoHash geoHash = new GeoHash(sampleLatitude, sampleLongitude, geoHashPrecision);
+                queries.add(GeoHashQuery.queryForGeoHash(geoHash, queryBits));
+            }
+        }
+
+        boolean didJoin;
+        do {
+            GeoHashQuery query1 = null;
+            GeoHashQuery query2 = null;
+            for (GeoHashQuery query: queries) {
+                for (GeoHashQuery other: queries) {
+                    if (query != other && query.canJoinWith(other)) {
+                        query1 = query;
+                        query2 = other;
+                        break;
+                    }
+                }
+            }
+            if (query1 != null && query2 != null) {
+                queries.remove(query1);
+                queries.remove(query2);
+                queries.add(query1.joinWith(query2));
+                didJoin = true;
+            } else {
+                didJoin = false;
+            }
+        } while (didJoin);
+
+        return queries;
+    }
+}
@@ -0,0 +1,192 @@
+package com.koalap.geofirestore.core;
+
+import com.koalap.geofirestore.GeoLocation;
+import com.koalap.geofirestore.GeoPolygon;
+import com.koalap.geofirestore.GeoRectangle;
+import com.koalap.geofirestore.GeoShape;
+import com.koalap.geofirestore.util.Constants;
+import com.koalap.geofirestore.util.GeoUtils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the coverings of shapes contain every location sampled in the shapes, and that they keep to their
+ * budget of cells for budgets from the smallest one up to coverings following the border closely. The adaptive
+ * coverings of a circle are compared with the covering of the cache for densities from sparse to dense.
+ */
+public class ShapeCoveringTest {
+
+    private static final GeoShape[] SHAPES = {
+            // A U around a notch open to the north
+            new GeoPolygon(new GeoLocation(48.8, 2.25), new GeoLocation(48.8, 2.45), new GeoLocation(48.9, 2.45),
+                    new GeoLocation(48.9, 2.4), new GeoLocation(48.83, 2.4), new GeoLocation(48.83, 2.3),
+                    new GeoLocation(48.9, 2.3), new GeoLocation(48.9, 2.25)),
+            new GeoPolygon(new GeoLocation(35, -10), new GeoLocation(60, 5), new GeoLocation(40, 30)),
+            new GeoRectangle(40.70, -74.02, 40.80, -73.93),
+            new GeoRectangle(-20, 175, -15, -178),
+            new GeoRectangle(85, -180, 90, 180)
+    };
+
+    private static final int[] MAX_CELLS = { 2, 3, 8, ShapeCovering.DEFAULT_MAX_CELLS, 200 };
+    private static final int SAMPLES = 2000;
+
+    private static final GeoLocation CIRCLE_CENTER = new GeoLocation(48.8566, 2.3522);
+    private static final double CIRCLE_RADIUS = 3000;
+    // Documents per square kilometer, from a sparse region to a dense city
+    private static final double[] DENSITIES = { 0.01, 1, 100, 10000 };
+
+    private final Random random = new Random(18);
+
+    private static boolean covers(List<GeoHashQuery> covering, double latitude, double longitude) {
+        long hash = LongGeoHash.encode(latitude, longitude);
+        for (GeoHashQuery query: covering) {
+            if (query.containsGeoHash(hash, LongGeoHash.DEFAULT_PRECISION)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks that the ranges are sorted and disjoint, and that they contain the locations sampled in the shape.
+     */
+    private void checkCovering(GeoShape shape, List<GeoHashQuery> covering) {
+        assertFalse(covering.isEmpty());
+        for (int i = 1; i < covering.size(); i++) {
+            assertTrue(covering.get(i - 1).getEndValue().compareTo(covering.get(i).getStartValue()) <= 0);
+        }
+        GeoRectangle bounds = shape.getBounds();
+        double width = bounds.crossesAntimeridian() ? bounds.getEast() + 360 - bounds.getWest() :
+                bounds.getEast() - bounds.getWest();
+        int inside = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            double latitude = bounds.getSouth() + this.random.nextDouble() * (bounds.getNorth() - bounds.getSouth());
+            double longitude = GeoUtils.wrapLongitude(bounds.getWest() + this.random.nextDouble() * width);
+            if (shape.contains(latitude, longitude)) {
+                inside++;
+                assertTrue(shape + " at " + latitude + ", " + longitude + " not in " + covering,
+                        covers(covering, latitude, longitude));
+            }
+        }
+        assertTrue(inside > 0);
+    }
+
+    @Test
+    public void coveringsContainTheirShapes() {
+        for (GeoShape shape: SHAPES) {
+            this.checkCovering(shape, ShapeCovering.covering(shape));
+        }
+    }
+
+    @Test
+    public void coveringsRespectTheirMaximalNumberOfCells() {
+        for (GeoShape shape: SHAPES) {
+            for (int maxCells: MAX_CELLS) {
+                List<GeoHashQuery> covering = ShapeCovering.covering(shape, maxCells);
+                assertTrue(shape + " with " + maxCells + " cells: " + covering, covering.size() <= maxCells);
+                this.checkCovering(shape, covering);
+            }
+        }
+    }
+
+    @Test
+    public void largerBudgetsFollowTheBorderMoreClosely() {
+        GeoShape shape = SHAPES[0];
+        List<GeoHashQuery> coarse = ShapeCovering.covering(shape, 4);
+        List<GeoHashQuery> fine = ShapeCovering.covering(shape, 200);
+        int coarseOutside = 0;
+        int fineOutside = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            double latitude = 48.75 + this.random.nextDouble() * 0.2;
+            double longitude = 2.2 + this.random.nextDouble() * 0.3;
+            if (!shape.contains(latitude, longitude)) {
+                coarseOutside += covers(coarse, latitude, longitude) ? 1 : 0;
+                fineOutside += covers(fine, latitude, longitude) ? 1 : 0;
+            }
+        }
+        assertTrue(fineOutside < coarseOutside);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void coveringNeedsTwoCells() {
+        ShapeCovering.covering(SHAPES[0], 1);
+    }
+
+    /**
+     * @return Locations spread evenly around the circle, up to three times its radius from its center
+     */
+    private List<GeoLocation> circleSamples() {
+        double latitudeSpan = 3 * CIRCLE_RADIUS / Constants.METERS_PER_DEGREE_LATITUDE;
+        double longitudeSpan = latitudeSpan / Math.cos(Math.toRadians(CIRCLE_CENTER.latitude));
+        List<GeoLocation> samples = new ArrayList<>(SAMPLES * 5);
+        for (int i = 0; i < SAMPLES * 5; i++) {
+            samples.add(new GeoLocation(CIRCLE_CENTER.latitude + (this.random.nextDouble() * 2 - 1) * latitudeSpan,
+                    CIRCLE_CENTER.longitude + (this.random.nextDouble() * 2 - 1) * longitudeSpan));
+        }
+        return samples;
+    }
+
+    private static boolean inCircle(GeoLocation location) {
+        return GeoUtils.distance(CIRCLE_CENTER.latitude, CIRCLE_CENTER.longitude, location.latitude,
+                location.longitude) <= CIRCLE_RADIUS;
+    }
+
+    /**
+     * @return The number of sampled locations the covering reads outside of the circle, checking that it reads all
+     * locations inside of it
+     */
+    private static int readOutsideOfCircle(List<GeoHashQuery> covering, List<GeoLocation> samples) {
+        int outside = 0;
+        for (GeoLocation location: samples) {
+            boolean covered = covers(covering, location.latitude, location.longitude);
+            if (inCircle(location)) {
+                assertTrue(location + " not in " + covering, covered);
+            } else if (covered) {
+                outside++;
+            }
+        }
+        return outside;
+    }
+
+    @Test
+    public void adaptiveCircleCoveringsContainTheCircleWithinTheirBudget() {
+        List<GeoLocation> samples = this.circleSamples();
+        for (double density: DENSITIES) {
+            for (CoveringCostModel costModel: new CoveringCostModel[] { new CoveringCostModel(density),
+                    new CoveringCostModel(density, CoveringCostModel.DEFAULT_RANGE_COST, 4) }) {
+                List<GeoHashQuery> covering = ShapeCovering.circleCovering(CIRCLE_CENTER, CIRCLE_RADIUS, costModel);
+                assertTrue(costModel + ": " + covering, covering.size() <= costModel.getMaxRanges());
+                readOutsideOfCircle(covering, samples);
+            }
+        }
+    }
+
+    /**
+     * A sparse region is covered with fewer ranges than the covering of the cache, a dense one reads fewer documents
+     * outside of the circle.
+     */
+    @Test
+    public void adaptiveCircleCoveringsReadLessThanTheCachedCoveringAsTheDensityGrows() {
+        List<GeoLocation> samples = this.circleSamples();
+        List<GeoHashQuery> cachedCovering = new CoveringCache().coveringAtLocation(CIRCLE_CENTER, CIRCLE_RADIUS);
+        int cached = readOutsideOfCircle(cachedCovering, samples);
+        int previous = Integer.MAX_VALUE;
+        for (double density: DENSITIES) {
+            List<GeoHashQuery> covering = ShapeCovering.circleCovering(CIRCLE_CENTER, CIRCLE_RADIUS,
+                    new CoveringCostModel(density));
+            if (density == DENSITIES[0]) {
+                assertTrue(covering.size() < cachedCovering.size());
+            }
+            int adaptive = readOutsideOfCircle(covering, samples);
+            assertTrue(density + ": " + adaptive + " after " + previous, adaptive <= previous);
+            previous = adaptive;
+        }
+        assertTrue(previous < cached);
+    }
+}